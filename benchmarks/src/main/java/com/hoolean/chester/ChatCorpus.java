@@ -0,0 +1,343 @@
+package com.hoolean.chester;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates made-up chat messages to learn from and reply to, so that benchmarks can be run (and their results
+ * compared between machines and builds) without needing a real channel's logs.
+ *
+ * Words are drawn from a fixed vocabulary following Zipf's law, as in real chat, where a handful of words make up most
+ * of what is said and most words are only rarely used; messages are of varied length, sometimes address another user
+ * by nick, and are sprinkled with punctuation, emoticons and links.
+ *
+ * Everything is drawn from a single seeded Random, so the same seed always gives the same corpus.
+ */
+public final class ChatCorpus
+{
+	/**
+	 * The kinds of character that words are made of.
+	 */
+	public enum Script
+	{
+		/**
+		 * Words of one to three Latin syllables, separated by spaces.
+		 */
+		LATIN,
+
+		/**
+		 * Words of one or two CJK ideographs, separated by spaces all the same, so that they are tokenized as words;
+		 * this makes for far more distinct characters than LATIN, which hashing has to cope with.
+		 */
+		CJK
+	}
+
+	/**
+	 * The seed used when none is given.
+	 */
+	public static final long DEFAULT_SEED = 0xC4E57E7L;
+
+	/**
+	 * The amount of distinct words used when no amount is given.
+	 */
+	public static final int DEFAULT_VOCABULARY_SIZE = 20000;
+
+	/**
+	 * The amount of users who may be addressed when no amount is given.
+	 */
+	public static final int DEFAULT_NICK_COUNT = 50;
+
+	private static final String[] SYLLABLES;
+
+	static
+	{
+		String consonants = "bcdfghjklmnprstvwz";
+		String vowels = "aeiou";
+
+		SYLLABLES = new String[consonants.length() * vowels.length()];
+		for (int c = 0; c < consonants.length(); c++)
+		{
+			for (int v = 0; v < vowels.length(); v++)
+			{
+				SYLLABLES[c * vowels.length() + v] = "" + consonants.charAt(c) + vowels.charAt(v);
+			}
+		}
+	}
+
+	private static final String[] EMOTICONS = { ":)", ":(", ":D", ";)", ":P", "o/", "\\o", "<3", "^_^", ">_<" };
+
+	private static final String[] ENDINGS = { "", "", "", ".", ".", "!", "?", "...", "!!", "?!" };
+
+	private static final String[] LINK_HOSTS = { "example.com", "example.org", "example.net" };
+
+	private final Random random;
+
+	private final Script script;
+
+	/**
+	 * The words, most common first.
+	 */
+	private final String[] vocabulary;
+
+	/**
+	 * The chance of drawing each word or any before it, which rises to 1 at the last word.
+	 */
+	private final double[] cumulativeWeights;
+
+	private final String[] nicks;
+
+	/**
+	 * Creates a ChatCorpus with the default seed, vocabulary size and amount of nicks.
+	 *
+	 * @param script The kind of character that words are made of
+	 */
+	public ChatCorpus(Script script)
+	{
+		this(DEFAULT_SEED, script, DEFAULT_VOCABULARY_SIZE, DEFAULT_NICK_COUNT);
+	}
+
+	/**
+	 * Creates a ChatCorpus.
+	 *
+	 * @param seed The seed that every word, nick and message is drawn from
+	 * @param script The kind of character that words are made of
+	 * @param vocabularySize The amount of distinct words
+	 * @param nickCount The amount of users who may be addressed
+	 */
+	public ChatCorpus(long seed, Script script, int vocabularySize, int nickCount)
+	{
+		if (vocabularySize < 1 || nickCount < 1)
+		{
+			throw new IllegalArgumentException("The vocabulary and nicks must not be empty");
+		}
+
+		this.random = new Random(seed);
+		this.script = script;
+
+		Set<String> words = new LinkedHashSet<String>();
+		while (words.size() < vocabularySize)
+		{
+			words.add(this.nextWord());
+		}
+		this.vocabulary = words.toArray(new String[vocabularySize]);
+
+		// the nth most common word is said 1/n as often as the most common
+		this.cumulativeWeights = new double[vocabularySize];
+		double total = 0;
+		for (int rank = 0; rank < vocabularySize; rank++)
+		{
+			total += 1.0 / (rank + 1);
+			this.cumulativeWeights[rank] = total;
+		}
+		for (int rank = 0; rank < vocabularySize; rank++)
+		{
+			this.cumulativeWeights[rank] /= total;
+		}
+
+		Set<String> nicks = new LinkedHashSet<String>();
+		while (nicks.size() < nickCount)
+		{
+			nicks.add(this.nextNick());
+		}
+		this.nicks = nicks.toArray(new String[nickCount]);
+	}
+
+	/**
+	 * Gets the nicks of the users who may be addressed in messages.
+	 *
+	 * @return The nicks
+	 */
+	public List<String> getNicks()
+	{
+		return Arrays.asList(this.nicks);
+	}
+
+	/**
+	 * Draws a word, following Zipf's law.
+	 *
+	 * @return The word
+	 */
+	public String nextVocabularyWord()
+	{
+		int rank = Arrays.binarySearch(this.cumulativeWeights, this.random.nextDouble());
+
+		// binarySearch gives where the value would be inserted, encoded, when it is not present exactly
+		if (rank < 0)
+		{
+			rank = -rank - 1;
+		}
+
+		return this.vocabulary[Math.min(rank, this.vocabulary.length - 1)];
+	}
+
+	/**
+	 * Generates the next message.
+	 *
+	 * @return The message
+	 */
+	public String nextMessage()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		// about one message in eight is addressed to someone
+		if (this.random.nextInt(8) == 0)
+		{
+			builder.append(this.nicks[this.random.nextInt(this.nicks.length)]);
+			builder.append(this.random.nextBoolean() ? ": " : ", ");
+		}
+
+		// mostly short messages, with the odd long one
+		int wordCount = 1 + (int) Math.min(40, -Math.log(1 - this.random.nextDouble()) * 7);
+
+		for (int i = 0; i < wordCount; i++)
+		{
+			if (i > 0)
+			{
+				builder.append(this.random.nextInt(10) == 0 ? ", " : " ");
+			}
+
+			builder.append(this.nextVocabularyWord());
+		}
+
+		builder.append(ENDINGS[this.random.nextInt(ENDINGS.length)]);
+
+		if (this.random.nextInt(10) == 0)
+		{
+			builder.append(' ').append(EMOTICONS[this.random.nextInt(EMOTICONS.length)]);
+		}
+
+		if (this.random.nextInt(30) == 0)
+		{
+			builder.append(" https://").append(LINK_HOSTS[this.random.nextInt(LINK_HOSTS.length)]).append('/');
+			builder.append(this.nextVocabularyWord()).append("?id=").append(this.random.nextInt(100000));
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Generates several messages.
+	 *
+	 * @param count The amount of messages
+	 * @return The messages, in order
+	 */
+	public List<String> nextMessages(int count)
+	{
+		List<String> messages = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+		{
+			messages.add(this.nextMessage());
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Makes up a word, which may already have been made up.
+	 */
+	private String nextWord()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		if (this.script == Script.CJK)
+		{
+			int length = 1 + this.random.nextInt(2);
+			for (int i = 0; i < length; i++)
+			{
+				// the CJK Unified Ideographs block
+				builder.append((char) (0x4E00 + this.random.nextInt(0x9FFF - 0x4E00 + 1)));
+			}
+		}
+		else
+		{
+			int length = 1 + this.random.nextInt(3);
+			for (int i = 0; i < length; i++)
+			{
+				builder.append(SYLLABLES[this.random.nextInt(SYLLABLES.length)]);
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Makes up a nick, which may already have been made up; nicks are always Latin, with the odd digit or underscore.
+	 */
+	private String nextNick()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		int length = 2 + this.random.nextInt(3);
+		for (int i = 0; i < length; i++)
+		{
+			builder.append(SYLLABLES[this.random.nextInt(SYLLABLES.length)]);
+		}
+
+		switch (this.random.nextInt(4))
+		{
+			case 0:
+				builder.append(this.random.nextInt(100));
+				break;
+			case 1:
+				builder.append('_');
+				break;
+			default:
+				break;
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Writes a corpus to a file, one message per line, for trying out importing (see CorpusImporter) or for feeding
+	 * to other tools; the file is gzipped if its name ends with ".gz".
+	 *
+	 * Usage: ChatCorpus &lt;file&gt; &lt;message count&gt; [LATIN|CJK] [seed]
+	 *
+	 * @param args The arguments
+	 * @throws IOException If the file could not be written
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Usage: ChatCorpus <file> <message count> [LATIN|CJK] [seed]");
+			return;
+		}
+
+		File file = new File(args[0]);
+		int count = Integer.parseInt(args[1]);
+		Script script = args.length > 2 ? Script.valueOf(args[2]) : Script.LATIN;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+
+		ChatCorpus corpus = new ChatCorpus(seed, script, DEFAULT_VOCABULARY_SIZE, DEFAULT_NICK_COUNT);
+
+		OutputStream output = new FileOutputStream(file);
+		if (file.getName().endsWith(".gz"))
+		{
+			output = new GZIPOutputStream(output);
+		}
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)))
+		{
+			for (int i = 0; i < count; i++)
+			{
+				writer.write(corpus.nextMessage());
+				writer.write('\n');
+			}
+		}
+	}
+}
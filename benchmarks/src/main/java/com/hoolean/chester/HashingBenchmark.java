@@ -0,0 +1,152 @@
+package com.hoolean.chester;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures lookups in the two open-addressed hash indexes that everything else is built on; finding the id of a token
+ * in the TokenDictionary, and finding a TokenGroup in a published chain.
+ *
+ * How long a lookup takes depends mostly on how many slots it has to look at, so the mean probe length of each index is
+ * printed once the trial is over; a change to Hashing that makes lookups slower should show up there first.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class HashingBenchmark
+{
+	private static final int MESSAGE_COUNT = 200000;
+
+	/**
+	 * The amount of tokens and TokenGroups that are looked up in turn.
+	 */
+	private static final int LOOKUP_COUNT = 65536;
+
+	@Param({ "LATIN", "CJK" })
+	public ChatCorpus.Script script;
+
+	@Param({ "4" })
+	public int markovLength;
+
+	private TokenDictionary tokenDictionary;
+
+	private ContextTable contextTable;
+
+	private MarkovChain chain;
+
+	private String[] tokens;
+
+	/**
+	 * The runs of tokens to look up, one after the other, each markovLength long.
+	 */
+	private int[] groupTokens;
+
+	private int nextToken;
+
+	private int nextGroup;
+
+	@Setup(Level.Trial)
+	public void fillIndexes()
+	{
+		List<String> messages = new ChatCorpus(this.script).nextMessages(MESSAGE_COUNT);
+
+		this.tokenDictionary = new TokenDictionary();
+		this.contextTable = new ContextTable(this.markovLength);
+
+		Tokenizer tokenizer = new Tokenizer(this.tokenDictionary);
+		for (String message : messages)
+		{
+			int tokenCount = tokenizer.intern(message, 0, message.length());
+			int[] messageTokens = tokenizer.toArray();
+
+			for (int offset = 0; offset + this.markovLength <= tokenCount; offset++)
+			{
+				this.contextTable.addGroup(messageTokens, offset);
+			}
+		}
+
+		this.contextTable.publish();
+		this.chain = this.contextTable.getChain();
+
+		// look up every token and TokenGroup in an order unrelated to when they were added, so that lookups are not
+		// helped along by the slots of one being next to those of the last
+		this.tokens = new String[LOOKUP_COUNT];
+		this.groupTokens = new int[LOOKUP_COUNT * this.markovLength];
+
+		int tokenCount = this.tokenDictionary.size();
+		int groupCount = this.chain.getGroupCount();
+		for (int i = 0; i < LOOKUP_COUNT; i++)
+		{
+			this.tokens[i] = this.tokenDictionary.getToken((Hashing.hash(i) >>> 1) % tokenCount);
+
+			int group = (Hashing.hash(~i) >>> 1) % groupCount;
+			for (int j = 0; j < this.markovLength; j++)
+			{
+				this.groupTokens[i * this.markovLength + j] = this.chain.getToken(group, j);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void printProbeLengths()
+	{
+		System.out.println();
+		System.out.printf("Tokens: %d, mean probe length %.3f%n", this.tokenDictionary.size(),
+				this.tokenDictionary.getMeanProbeLength());
+		System.out.printf("TokenGroups: %d, mean probe length %.3f%n", this.chain.getGroupCount(),
+				this.contextTable.getMeanProbeLength());
+	}
+
+	@Benchmark
+	public int getTokenId()
+	{
+		String token = this.tokens[this.nextToken];
+		this.nextToken = (this.nextToken + 1) & (LOOKUP_COUNT - 1);
+
+		return this.tokenDictionary.getId(token);
+	}
+
+	@Benchmark
+	public int findGroup()
+	{
+		int offset = this.nextGroup * this.markovLength;
+		this.nextGroup = (this.nextGroup + 1) & (LOOKUP_COUNT - 1);
+
+		return this.chain.findGroup(this.groupTokens, offset);
+	}
+
+	@Benchmark
+	public int hashToken()
+	{
+		String token = this.tokens[this.nextToken];
+		this.nextToken = (this.nextToken + 1) & (LOOKUP_COUNT - 1);
+
+		return TokenDictionary.hash(token, 0, token.length());
+	}
+
+	@Benchmark
+	public int hashGroup()
+	{
+		int offset = this.nextGroup * this.markovLength;
+		this.nextGroup = (this.nextGroup + 1) & (LOOKUP_COUNT - 1);
+
+		return ContextTable.hash(this.groupTokens, offset, this.markovLength);
+	}
+}
@@ -0,0 +1,96 @@
+package com.hoolean.chester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages a second MegaHal learns from, one at a time as the bot does while chatting, and in
+ * batches as the learner thread does.
+ *
+ * Each iteration starts from an empty brain and learns the corpus in order, wrapping around to the start should it
+ * reach the end, so the results include the cost of the brain growing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class LearningBenchmark
+{
+	/**
+	 * The amount of messages learnt at once by addMessages.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	private static final int MESSAGE_COUNT = 200000;
+
+	@Param({ "2", "4", "6" })
+	public int markovLength;
+
+	@Param({ "LATIN", "CJK" })
+	public ChatCorpus.Script script;
+
+	private String[] messages;
+
+	private List<List<String>> batches;
+
+	private MegaHal megaHal;
+
+	private int nextMessage;
+
+	private int nextBatch;
+
+	@Setup(Level.Trial)
+	public void generateCorpus()
+	{
+		ChatCorpus corpus = new ChatCorpus(this.script);
+
+		List<String> messages = corpus.nextMessages(MESSAGE_COUNT);
+		this.messages = messages.toArray(new String[MESSAGE_COUNT]);
+
+		this.batches = new ArrayList<List<String>>(MESSAGE_COUNT / BATCH_SIZE);
+		for (int i = 0; i < MESSAGE_COUNT; i += BATCH_SIZE)
+		{
+			this.batches.add(messages.subList(i, i + BATCH_SIZE));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void createBrain()
+	{
+		this.megaHal = new MegaHal(this.markovLength);
+		this.nextMessage = 0;
+		this.nextBatch = 0;
+	}
+
+	@Benchmark
+	public void addMessage()
+	{
+		this.megaHal.addMessage(this.messages[this.nextMessage]);
+		this.nextMessage = (this.nextMessage + 1) % this.messages.length;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void addMessages()
+	{
+		this.megaHal.addMessages(this.batches.get(this.nextBatch));
+		this.nextBatch = (this.nextBatch + 1) % this.batches.size();
+	}
+}
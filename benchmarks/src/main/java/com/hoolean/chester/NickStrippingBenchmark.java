@@ -0,0 +1,104 @@
+package com.hoolean.chester;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the NickMatchers that ConverseListener uses around every message; checking whether the bot was pinged,
+ * removing its nick from a message before replying, and splitting the nicks of everyone in the channel in the reply
+ * so as not to ping them. The matchers are built once, as ConverseListener keeps them between messages; building a
+ * channel's matcher again, as happens when its users change, is measured separately.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NickStrippingBenchmark
+{
+	private static final int MESSAGE_COUNT = 10000;
+
+	/**
+	 * The character nicks are split with; the zero width space, as ConverseListener uses.
+	 */
+	private static final char SPLITTER = (char) 0x200b;
+
+	/**
+	 * The amount of users in the channel.
+	 */
+	@Param({ "10", "100", "1000" })
+	public int nickCount;
+
+	private String nick;
+
+	private List<String> nicks;
+
+	private NickMatcher ownNick;
+
+	private NickMatcher channelNicks;
+
+	private String[] messages;
+
+	private int nextMessage;
+
+	@Setup(Level.Trial)
+	public void generateCorpus()
+	{
+		ChatCorpus corpus = new ChatCorpus(ChatCorpus.DEFAULT_SEED, ChatCorpus.Script.LATIN,
+				ChatCorpus.DEFAULT_VOCABULARY_SIZE, this.nickCount);
+
+		this.nicks = corpus.getNicks();
+		this.nick = this.nicks.get(0);
+		this.messages = corpus.nextMessages(MESSAGE_COUNT).toArray(new String[MESSAGE_COUNT]);
+
+		this.ownNick = new NickMatcher(Collections.singletonList(this.nick));
+		this.channelNicks = new NickMatcher(this.nicks);
+	}
+
+	@Benchmark
+	public boolean isMessagePinging()
+	{
+		return this.ownNick.isFoundIn(this.nextMessage());
+	}
+
+	@Benchmark
+	public String removeNick()
+	{
+		return this.ownNick.remove(this.nextMessage());
+	}
+
+	@Benchmark
+	public String removePings()
+	{
+		return this.channelNicks.split(this.nextMessage(), SPLITTER);
+	}
+
+	@Benchmark
+	public NickMatcher buildChannelNicks()
+	{
+		return new NickMatcher(this.nicks);
+	}
+
+	private String nextMessage()
+	{
+		String message = this.messages[this.nextMessage];
+		this.nextMessage = (this.nextMessage + 1) % this.messages.length;
+
+		return message;
+	}
+}
@@ -0,0 +1,123 @@
+package com.hoolean.chester;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long MegaHal takes to build a reply from brains of several sizes and Markov lengths; each call is timed
+ * separately, so JMH reports the percentiles of the latency as well as the mean.
+ *
+ * The reply time budget is set to 0 and the reply pool to a single thread, so each reply to a message is the first
+ * candidate generated; otherwise every reply would simply take the budget. This measures the cost of a single walk of
+ * the chain, which the budget is then spent repeating.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ReplyBenchmark
+{
+	/**
+	 * The amount of messages learnt at once while filling the brain.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * The amount of messages, not in the brain, that are replied to in turn.
+	 */
+	private static final int PROMPT_COUNT = 10000;
+
+	/**
+	 * The amount of messages the brain learns before any replies are built.
+	 */
+	@Param({ "10000", "100000", "1000000" })
+	public int brainSize;
+
+	@Param({ "2", "4" })
+	public int markovLength;
+
+	private MegaHal megaHal;
+
+	private ForkJoinPool replyPool;
+
+	private String[] prompts;
+
+	private String[] words;
+
+	private int nextPrompt;
+
+	private int nextWord;
+
+	@Setup(Level.Trial)
+	public void fillBrain()
+	{
+		ChatCorpus corpus = new ChatCorpus(ChatCorpus.Script.LATIN);
+
+		this.megaHal = new MegaHal(this.markovLength);
+		for (int learnt = 0; learnt < this.brainSize; learnt += BATCH_SIZE)
+		{
+			this.megaHal.addMessages(corpus.nextMessages(Math.min(BATCH_SIZE, this.brainSize - learnt)));
+		}
+
+		this.replyPool = new ForkJoinPool(1);
+		this.megaHal.setReplyPool(this.replyPool, 1);
+		this.megaHal.setReplyTimeBudget(0);
+
+		// the same corpus carries on, so the prompts use the same words but are new messages
+		List<String> prompts = corpus.nextMessages(PROMPT_COUNT);
+		this.prompts = prompts.toArray(new String[PROMPT_COUNT]);
+
+		this.words = new String[PROMPT_COUNT];
+		for (int i = 0; i < PROMPT_COUNT; i++)
+		{
+			this.words[i] = corpus.nextVocabularyWord();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void shutDownPool()
+	{
+		this.replyPool.shutdown();
+	}
+
+	@Benchmark
+	public String getMessage()
+	{
+		return this.megaHal.getMessage();
+	}
+
+	@Benchmark
+	public String getBestMessageFromToken()
+	{
+		String word = this.words[this.nextWord];
+		this.nextWord = (this.nextWord + 1) % this.words.length;
+
+		return this.megaHal.getBestMessageFromToken(word);
+	}
+
+	@Benchmark
+	public String getBestMessageFromMessage()
+	{
+		String prompt = this.prompts[this.nextPrompt];
+		this.nextPrompt = (this.nextPrompt + 1) % this.prompts.length;
+
+		return this.megaHal.getBestMessageFromMessage(prompt);
+	}
+}
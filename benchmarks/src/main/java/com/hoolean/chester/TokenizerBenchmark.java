@@ -0,0 +1,79 @@
+package com.hoolean.chester;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages a second are broken into tokens and resolved against a TokenDictionary; interning, as
+ * when learning, and looking up, as when replying.
+ *
+ * The dictionary has already seen every message, so this is the cost of tokenizing once the vocabulary has settled,
+ * which is by far the common case; interning new tokens is part of LearningBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark
+{
+	private static final int MESSAGE_COUNT = 100000;
+
+	@Param({ "LATIN", "CJK" })
+	public ChatCorpus.Script script;
+
+	private String[] messages;
+
+	private Tokenizer tokenizer;
+
+	private int nextMessage;
+
+	@Setup(Level.Trial)
+	public void generateCorpus()
+	{
+		List<String> messages = new ChatCorpus(this.script).nextMessages(MESSAGE_COUNT);
+		this.messages = messages.toArray(new String[MESSAGE_COUNT]);
+
+		this.tokenizer = new Tokenizer(new TokenDictionary());
+		for (String message : this.messages)
+		{
+			this.tokenizer.intern(message, 0, message.length());
+		}
+	}
+
+	@Benchmark
+	public int intern()
+	{
+		String message = this.nextMessage();
+		return this.tokenizer.intern(message, 0, message.length());
+	}
+
+	@Benchmark
+	public int lookUp()
+	{
+		String message = this.nextMessage();
+		return this.tokenizer.lookUp(message, 0, message.length());
+	}
+
+	private String nextMessage()
+	{
+		String message = this.messages[this.nextMessage];
+		this.nextMessage = (this.nextMessage + 1) % this.messages.length;
+
+		return message;
+	}
+}
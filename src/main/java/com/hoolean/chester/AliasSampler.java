@@ -0,0 +1,165 @@
+package com.hoolean.chester;
+
+import java.util.Random;
+
+/**
+ * Draws tokens at random in proportion to how often each was observed, in constant time per draw, using Walker's alias
+ * method.
+ *
+ * Building the sampler takes time linear in the amount of distinct tokens, so instances are built lazily and cached
+ * until the counts they were built from change. Instances are immutable, so may be shared between threads freely.
+ */
+final class AliasSampler
+{
+	/**
+	 * The ids of the tokens that can be drawn.
+	 */
+	private final int[] tokens;
+
+	/**
+	 * For each column, the chance of drawing the column's own token rather than its alias.
+	 */
+	private final double[] probabilities;
+
+	/**
+	 * For each column, the index of the token drawn when the column's own token is not.
+	 */
+	private final int[] aliases;
+
+	/**
+	 * The sum of the counts the sampler was built from, used to tell whether it is out of date.
+	 */
+	private final long total;
+
+	/**
+	 * The amount of edges stored by the snapshot of a ContextTable that built the sampler, or 0 if it was not built
+	 * from one; see ContextSnapshot.
+	 */
+	private final int edgeCount;
+
+	/**
+	 * Builds a sampler for a set of tokens and the amount of times each was observed.
+	 *
+	 * @param tokens The ids of the tokens, which the sampler keeps a reference to
+	 * @param counts The amount of times each token was observed, in the same order as the tokens
+	 * @param total The sum of the counts
+	 */
+	public AliasSampler(int[] tokens, int[] counts, long total)
+	{
+		this(tokens, counts, total, 0);
+	}
+
+	/**
+	 * Builds a sampler for a set of tokens and the amount of times each was observed, from the edges of a snapshot of
+	 * a ContextTable.
+	 *
+	 * @param tokens The ids of the tokens, which the sampler keeps a reference to
+	 * @param counts The amount of times each token was observed, in the same order as the tokens
+	 * @param total The sum of the counts
+	 * @param edgeCount The amount of edges stored by the snapshot
+	 */
+	public AliasSampler(int[] tokens, int[] counts, long total, int edgeCount)
+	{
+		int size = tokens.length;
+
+		this.tokens = tokens;
+		this.probabilities = new double[size];
+		this.aliases = new int[size];
+		this.total = total;
+		this.edgeCount = edgeCount;
+
+		/*
+		Each token's count is scaled so that the average column holds exactly 1. Columns holding less than 1 ("small")
+		are topped up with the excess of a column holding more than 1 ("large"), which then becomes the small column's
+		alias. Both work lists share one Array: small columns grow up from the start and large columns down from the
+		end.
+		 */
+		double[] scaled = new double[size];
+		int[] work = new int[size];
+		int smallCount = 0;
+		int largeStart = size;
+
+		for (int i = 0; i < size; i++)
+		{
+			scaled[i] = (double) counts[i] * size / total;
+
+			if (scaled[i] < 1.0)
+			{
+				work[smallCount++] = i;
+			}
+			else
+			{
+				work[--largeStart] = i;
+			}
+		}
+
+		while (smallCount > 0 && largeStart < size)
+		{
+			int small = work[--smallCount];
+			int large = work[largeStart];
+
+			this.probabilities[small] = scaled[small];
+			this.aliases[small] = large;
+
+			// move the excess of the large column into the small one
+			scaled[large] = (scaled[large] + scaled[small]) - 1.0;
+
+			if (scaled[large] < 1.0)
+			{
+				// the large column has become small
+				largeStart++;
+				work[smallCount++] = large;
+			}
+		}
+
+		// whatever remains is full, give or take rounding error
+		while (largeStart < size)
+		{
+			this.probabilities[work[largeStart++]] = 1.0;
+		}
+
+		while (smallCount > 0)
+		{
+			this.probabilities[work[--smallCount]] = 1.0;
+		}
+	}
+
+	/**
+	 * Gets the sum of the counts the sampler was built from.
+	 *
+	 * @return The total count
+	 */
+	public long getTotal()
+	{
+		return this.total;
+	}
+
+	/**
+	 * Gets the amount of edges stored by the snapshot of a ContextTable that built the sampler; a snapshot of fewer
+	 * edges cannot use it, as it may draw a token from an edge that the snapshot does not have.
+	 *
+	 * @return The amount of edges, else 0 if it was not built from a snapshot
+	 */
+	public int getEdgeCount()
+	{
+		return this.edgeCount;
+	}
+
+	/**
+	 * Draws a token at random, weighted by the amount of times each was observed.
+	 *
+	 * @param random The source of randomness
+	 * @return The id of the token drawn
+	 */
+	public int sample(Random random)
+	{
+		int column = random.nextInt(this.tokens.length);
+
+		if (random.nextDouble() < this.probabilities[column])
+		{
+			return this.tokens[column];
+		}
+
+		return this.tokens[this.aliases[column]];
+	}
+}
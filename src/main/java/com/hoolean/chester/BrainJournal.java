@@ -0,0 +1,598 @@
+package com.hoolean.chester;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of every message MegaHal has learnt from, one per line, allowing permanence in its learning.
+ *
+ * The file is opened once, in append mode, and kept open. Appended messages are buffered in memory and written out
+ * together ("group committed") once enough of them have built up or enough time has passed since the last commit,
+ * whichever comes first, so that a busy channel costs one write per batch rather than one per message. The sync policy
+ * decides whether each commit is also forced to the disk before carrying on.
+ *
+ * The journal keeps track of the offset just after the last message appended, so that a brain snapshot can record how
+ * far through the journal it is; at startup only the messages beyond that offset need to be replayed.
+ */
+public class BrainJournal implements Closeable
+{
+	/**
+	 * Whether or not commits are forced to the disk.
+	 */
+	public enum SyncPolicy
+	{
+		/**
+		 * Leave it to the operating system to write committed messages to the disk; fastest, but the last few seconds
+		 * of messages may be lost if the machine (rather than just Chester) goes down.
+		 */
+		NEVER,
+
+		/**
+		 * Force every commit to the disk before the next one.
+		 */
+		COMMIT
+	}
+
+	/**
+	 * The default amount of characters buffered before they are committed.
+	 */
+	public static final int DEFAULT_COMMIT_SIZE = 64 * 1024;
+
+	/**
+	 * The default longest amount of time a message is buffered before it is committed, in milliseconds.
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+	/**
+	 * Reads no further than a given amount of bytes into another stream.
+	 */
+	private static final class BoundedInputStream extends FilterInputStream
+	{
+		/**
+		 * The amount of bytes that may still be read.
+		 */
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long limit)
+		{
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (this.remaining <= 0)
+				return -1;
+
+			int b = super.read();
+			if (b != -1)
+			{
+				this.remaining--;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			if (this.remaining <= 0)
+				return -1;
+
+			int read = super.read(buffer, offset, (int) Math.min(length, this.remaining));
+			if (read > 0)
+			{
+				this.remaining -= read;
+			}
+
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException
+		{
+			long skipped = super.skip(Math.min(count, this.remaining));
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(super.available(), this.remaining);
+		}
+	}
+
+	/**
+	 * The file the journal is stored in.
+	 */
+	private final File file;
+
+	/**
+	 * The channel to the file, opened for appending.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The amount of characters buffered before they are committed.
+	 */
+	private final int commitSize;
+
+	/**
+	 * Whether or not commits are forced to the disk.
+	 */
+	private final SyncPolicy syncPolicy;
+
+	/**
+	 * Commits buffered messages once the commit interval has passed.
+	 */
+	private final ScheduledExecutorService committer;
+
+	/**
+	 * Whether or not the committer was created for this journal alone, and so should be shut down with it.
+	 */
+	private final boolean ownsCommitter;
+
+	/**
+	 * The task that commits buffered messages every commit interval.
+	 */
+	private final ScheduledFuture<?> commitTask;
+
+	/**
+	 * The messages appended since the last commit, each followed by a new line.
+	 */
+	private final StringBuilder pending = new StringBuilder();
+
+	/**
+	 * The bytes of messages taken out of pending by a commit that failed part way through writing them, which are the
+	 * first to be written by the next commit; else null if every commit so far has written all it took.
+	 */
+	private ByteBuffer unwritten = null;
+
+	/**
+	 * The length the file will have once every message appended so far has been committed, in bytes.
+	 */
+	private long position;
+
+	/**
+	 * Whether or not the journal has been closed.
+	 */
+	private boolean closed = false;
+
+	// statistics about the commits made, guarded by this
+	private long commitCount = 0;
+	private long lastCommitNanos = 0;
+
+	/**
+	 * How long each commit took; unlike the other statistics, this can be read without the lock.
+	 */
+	private final Metrics.Histogram commitTimes = Metrics.Histogram.nanoseconds();
+
+	/**
+	 * Opens a BrainJournal with the default commit size, commit interval and sync policy.
+	 *
+	 * @param file The file to append to, which is created if it does not exist
+	 * @throws IOException If the file could not be opened
+	 */
+	public BrainJournal(File file) throws IOException
+	{
+		this(file, DEFAULT_COMMIT_SIZE, DEFAULT_COMMIT_INTERVAL, SyncPolicy.NEVER);
+	}
+
+	/**
+	 * Opens a BrainJournal.
+	 *
+	 * @param file The file to append to, which is created if it does not exist
+	 * @param commitSize The amount of characters buffered before they are committed
+	 * @param commitInterval The longest amount of time a message is buffered before it is committed, in milliseconds
+	 * @param syncPolicy Whether or not commits are forced to the disk
+	 * @throws IOException If the file could not be opened
+	 */
+	public BrainJournal(File file, int commitSize, long commitInterval, SyncPolicy syncPolicy) throws IOException
+	{
+		this(file, commitSize, commitInterval, syncPolicy, null);
+	}
+
+	/**
+	 * Opens a BrainJournal whose buffered messages are committed every commit interval by a thread shared with other
+	 * journals, so that many journals can be kept open without a thread each.
+	 *
+	 * @param file The file to append to, which is created if it does not exist
+	 * @param commitSize The amount of characters buffered before they are committed
+	 * @param commitInterval The longest amount of time a message is buffered before it is committed, in milliseconds
+	 * @param syncPolicy Whether or not commits are forced to the disk
+	 * @param committer The executor to commit on, which is left running when the journal is closed; or null for the
+	 *                  journal to create a thread of its own
+	 * @throws IOException If the file could not be opened
+	 */
+	public BrainJournal(File file, int commitSize, long commitInterval, SyncPolicy syncPolicy,
+			ScheduledExecutorService committer) throws IOException
+	{
+		this(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND), commitSize, commitInterval, syncPolicy, committer);
+	}
+
+	/**
+	 * Opens a BrainJournal that appends through a channel that has already been opened, such as one that fails part
+	 * way through on purpose to test that a failed commit loses and repeats nothing.
+	 *
+	 * @param file The file to append to
+	 * @param channel The channel to the file, opened for appending, which is closed along with the journal
+	 * @param commitSize The amount of characters buffered before they are committed
+	 * @param commitInterval The longest amount of time a message is buffered before it is committed, in milliseconds
+	 * @param syncPolicy Whether or not commits are forced to the disk
+	 * @param committer The executor to commit on, which is left running when the journal is closed; or null for the
+	 *                  journal to create a thread of its own
+	 * @throws IOException If the size of the file could not be read
+	 */
+	BrainJournal(File file, FileChannel channel, int commitSize, long commitInterval, SyncPolicy syncPolicy,
+			ScheduledExecutorService committer) throws IOException
+	{
+		this.file = file;
+		this.channel = channel;
+		this.commitSize = commitSize;
+		this.syncPolicy = syncPolicy;
+		this.position = this.channel.size();
+
+		// a file that does not end with a new line would have its last line joined to the first message appended
+		if (this.position > 0 && !endsWithNewLine(file))
+		{
+			this.pending.append('\n');
+			this.position++;
+		}
+
+		this.ownsCommitter = committer == null;
+		this.committer = this.ownsCommitter ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester journal committer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : committer;
+
+		this.commitTask = this.committer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					BrainJournal.this.commit();
+				}
+				catch (IOException e)
+				{
+					System.err.println(String.format("Could not commit messages to the brain journal at '%s'.", BrainJournal.this.file.getAbsolutePath()));
+					e.printStackTrace();
+				}
+			}
+		}, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the file the journal is stored in.
+	 *
+	 * @return The file
+	 */
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	/**
+	 * Appends a message to the journal. The message is buffered, and only committed to the file once the buffer is
+	 * full or the commit interval passes.
+	 *
+	 * @param message The message, which should not contain new lines
+	 * @throws IOException If appending the message caused a commit, which failed
+	 */
+	public synchronized void append(String message) throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("The brain journal has been closed.");
+		}
+
+		this.pending.append(message).append('\n');
+		this.position += utf8Length(message) + 1;
+
+		if (this.pending.length() >= this.commitSize)
+		{
+			this.commit();
+		}
+	}
+
+	/**
+	 * Writes every buffered message to the file, forcing it to the disk if the sync policy says to.
+	 *
+	 * @throws IOException If the messages could not be written
+	 */
+	public synchronized void commit() throws IOException
+	{
+		if ((this.pending.length() == 0 && this.unwritten == null) || this.closed)
+			return;
+
+		long start = System.nanoTime();
+
+		// take the messages out of pending as bytes, after whatever a failed commit left unwritten, so that each byte is
+		// written exactly once however many attempts it takes; the file always holds a prefix of what was appended
+		if (this.pending.length() > 0)
+		{
+			ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(this.pending));
+			if (this.unwritten != null)
+			{
+				ByteBuffer joined = ByteBuffer.allocate(this.unwritten.remaining() + encoded.remaining());
+				joined.put(this.unwritten).put(encoded).flip();
+				encoded = joined;
+			}
+
+			this.unwritten = encoded;
+			this.pending.setLength(0);
+		}
+
+		// a write that throws part way through leaves the buffer's position after the bytes it did write
+		while (this.unwritten.hasRemaining())
+		{
+			this.channel.write(this.unwritten);
+		}
+		this.unwritten = null;
+
+		if (this.syncPolicy == SyncPolicy.COMMIT)
+		{
+			this.channel.force(false);
+		}
+
+		this.commitCount++;
+		this.lastCommitNanos = System.nanoTime() - start;
+		this.commitTimes.record(this.lastCommitNanos);
+	}
+
+	/**
+	 * Gets the offset in the file just after the last message appended, whether or not it has been committed yet; once
+	 * it has, replaying the journal from this offset skips every message appended so far.
+	 *
+	 * @return The offset, in bytes
+	 */
+	public synchronized long getPosition()
+	{
+		return this.position;
+	}
+
+	/**
+	 * Commits every buffered message, then gets the offset just after the last message appended; as nothing can be
+	 * appended in between, the file holds every message up to the offset once this returns, so it can be replayed up to
+	 * there while the journal is still being appended to.
+	 *
+	 * @return The offset, in bytes
+	 * @throws IOException If the messages could not be written
+	 */
+	public synchronized long commitPosition() throws IOException
+	{
+		this.commit();
+		return this.position;
+	}
+
+	/**
+	 * Gets the amount of commits that have been made.
+	 *
+	 * @return The amount of commits
+	 */
+	public synchronized long getCommitCount()
+	{
+		return this.commitCount;
+	}
+
+	/**
+	 * Gets how long the last commit took.
+	 *
+	 * @return The duration of the last commit, in nanoseconds
+	 */
+	public synchronized long getLastCommitNanos()
+	{
+		return this.lastCommitNanos;
+	}
+
+	/**
+	 * Registers metrics about the commits made and the size of the journal.
+	 *
+	 * @param metrics The registry to register the metrics with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_journal_commit_seconds", "Time taken to write each commit of buffered messages to the journal, including forcing it to the disk if the sync policy says to.", this.commitTimes);
+
+		metrics.register("chester_journal_bytes", "Size of the journal, including messages not yet committed.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return BrainJournal.this.getPosition();
+			}
+		});
+	}
+
+	/**
+	 * Teaches MegaHal every message in a journal file from an offset onwards, in batches.
+	 *
+	 * @param file The file, which must not be being appended to
+	 * @param offset The offset to start at, in bytes, which should be the start of a line
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param batchSize The amount of messages to learn at once
+	 * @return The amount of messages replayed
+	 * @throws IOException If the file could not be read
+	 */
+	public static long replay(File file, long offset, MegaHal megaHal, int batchSize) throws IOException
+	{
+		return replay(file, offset, Long.MAX_VALUE, megaHal, batchSize);
+	}
+
+	/**
+	 * Teaches MegaHal every message in a journal file between two offsets, in batches. Only the part of the file before
+	 * the end offset is read, so the file may be appended to meanwhile as long as every message up to the end offset
+	 * has been committed, such as by commitPosition().
+	 *
+	 * @param file The file
+	 * @param offset The offset to start at, in bytes, which should be the start of a line
+	 * @param end The offset to stop at, in bytes, which should be the start of a line or the end of the file
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param batchSize The amount of messages to learn at once
+	 * @return The amount of messages replayed
+	 * @throws IOException If the file could not be read
+	 */
+	public static long replay(File file, long offset, long end, MegaHal megaHal, int batchSize) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		InputStream in = Channels.newInputStream(channel.position(offset));
+		if (end != Long.MAX_VALUE)
+		{
+			in = new BoundedInputStream(in, Math.max(0, end - offset));
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try
+		{
+			List<String> batch = new ArrayList<String>(batchSize);
+			long count = 0;
+
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				batch.add(line);
+
+				if (batch.size() == batchSize)
+				{
+					megaHal.addMessages(batch);
+					count += batch.size();
+					batch.clear();
+				}
+			}
+
+			megaHal.addMessages(batch);
+			count += batch.size();
+
+			return count;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Whether or not the last byte of a file is a new line.
+	 *
+	 * @param file The file, which must not be empty
+	 * @return True if the file ends with a new line, else False
+	 * @throws IOException If the file could not be read
+	 */
+	private static boolean endsWithNewLine(File file) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try
+		{
+			randomAccessFile.seek(randomAccessFile.length() - 1);
+			return randomAccessFile.read() == '\n';
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Gets the amount of bytes a String takes up in UTF-8, without encoding it. Unpaired surrogates count as one byte,
+	 * as they are encoded as a question mark.
+	 *
+	 * @param string The String
+	 * @return The amount of bytes
+	 */
+	private static int utf8Length(String string)
+	{
+		int length = 0;
+		for (int i = 0; i < string.length(); i++)
+		{
+			char character = string.charAt(i);
+
+			if (character < 0x80)
+			{
+				length += 1;
+			}
+			else if (character < 0x800)
+			{
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(character) && i + 1 < string.length()
+					&& Character.isLowSurrogate(string.charAt(i + 1)))
+			{
+				// a pair of surrogates makes up one code point beyond the basic plane
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(character))
+			{
+				length += 1;
+			}
+			else
+			{
+				length += 3;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Commits any buffered messages, forces them to the disk and closes the file.
+	 *
+	 * @throws IOException If the messages could not be written or the file could not be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		// a shared committer carries on for the other journals, so only stop this one's task on it
+		this.commitTask.cancel(false);
+		if (this.ownsCommitter)
+		{
+			this.committer.shutdown();
+		}
+
+		synchronized (this)
+		{
+			if (this.closed)
+				return;
+
+			try
+			{
+				this.commit();
+				this.channel.force(false);
+			}
+			finally
+			{
+				this.closed = true;
+				this.channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,662 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Opens the brains Chester learns and replies with, as the config says; loading each from its snapshot, mapped file
+ * or brain file, setting it up, and starting the brain journal and learning pipeline that teach it.
+ *
+ * A brain is loaded from its snapshot, else its mapped file, along with whatever has been appended to its brain file
+ * since either was written; whatever cannot be used is set aside and the brain file, along with every corpus that was
+ * imported into the brain, is learnt from the start instead.
+ */
+final class BrainLoader
+{
+	/**
+	 * The name given to the brain that every channel shares, if they share one.
+	 */
+	static final String SHARED_BRAIN_NAME = "shared";
+
+	private static final String DEFAULT_BRAIN = "Hello World\nCan I have some coffee?\nPlease slap me";
+
+	/**
+	 * The directory, next to each brain file, that every corpus imported into the brain is copied into; as imported
+	 * messages are not appended to the brain file, this is what they are learnt again from if there is no snapshot.
+	 */
+	private static final String IMPORTED_DIRECTORY = "brain.imported";
+
+	/**
+	 * The end of the name of an imported corpus that is still being copied into the imported directory.
+	 */
+	static final String IMPORTED_PARTIAL_SUFFIX = ".partial";
+
+	/**
+	 * The end of the name a snapshot that could not be used is kept under, rather than being written over.
+	 */
+	private static final String BAD_SNAPSHOT_SUFFIX = ".bad";
+
+	/**
+	 * The config, as it was last read.
+	 */
+	private final AtomicReference<Properties> config;
+
+	/**
+	 * The pool that every brain generates candidate replies across.
+	 */
+	private final ForkJoinPool replyPool;
+
+	/**
+	 * The amount of searches for candidate replies that each reply starts on the reply pool.
+	 */
+	private final int replySearchCount;
+
+	/**
+	 * Creates a loader that opens brains as the config says at the time each is opened.
+	 *
+	 * @param config The config, as it was last read, which is replaced each time the config is read again
+	 * @param replyPool The pool that every brain generates candidate replies across
+	 * @param replySearchCount The amount of searches each reply starts on the pool
+	 */
+	BrainLoader(AtomicReference<Properties> config, ForkJoinPool replyPool, int replySearchCount)
+	{
+		this.config = config;
+		this.replyPool = replyPool;
+		this.replySearchCount = replySearchCount;
+	}
+
+	/**
+	 * Creates the BrainManager that hosts the brains Chester learns and replies with, in the brain mode the config says.
+	 * If every channel shares one brain, it is opened straight away, from where it has always been kept, and registers
+	 * its metrics; otherwise each brain is only opened once its channel is first spoken in, and is closed again once
+	 * its channel has been quiet for the idle timeout.
+	 *
+	 * Each brain is opened as the config says at the time, so that it can be changed while Chester runs.
+	 *
+	 * @param metrics The metrics to register those of the manager, and any shared brain, with
+	 * @return The manager, else null if the shared brain could not be opened
+	 */
+	BrainManager createBrainManager(final Metrics metrics)
+	{
+		Properties properties = this.config.get();
+		int learnerThreads = Math.max(1, Config.getIntProperty(properties, Config.PROPERTY_KEY_BRAIN_LEARN_THREADS, Config.PROPERTY_DEFAULT_BRAIN_LEARN_THREADS));
+
+		if (Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_MODE, Config.PROPERTY_DEFAULT_BRAIN_MODE, Config.BrainMode.class) == Config.BrainMode.SHARED)
+		{
+			BrainManager brainManager = new BrainManager(new BrainManager.Opener()
+			{
+				@Override
+				public BrainManager.Brain open(String name, BrainManager manager) throws IOException
+				{
+					return BrainLoader.this.openSharedBrain(BrainLoader.this.config.get(), metrics);
+				}
+			}, learnerThreads, 0);
+
+			brainManager.setSharedBrain(SHARED_BRAIN_NAME);
+			brainManager.registerMetrics(metrics);
+
+			try
+			{
+				brainManager.getBrain(SHARED_BRAIN_NAME);
+			}
+			catch (IOException e)
+			{
+				System.err.println(String.format("Could not open the brain file at '%s' for appending.", new File("brain.txt").getAbsolutePath()));
+				e.printStackTrace();
+				return null;
+			}
+
+			return brainManager;
+		}
+
+		// a shared token dictionary cannot be layered over the tokens of many mapped brains
+		if (Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_STORAGE, Config.PROPERTY_DEFAULT_BRAIN_STORAGE, Config.BrainStorage.class) == Config.BrainStorage.MAPPED)
+		{
+			System.err.println(String.format("'%s' cannot be used with a brain for each channel, so the brains will be kept on the heap.", Config.PROPERTY_KEY_BRAIN_STORAGE));
+		}
+
+		BrainManager brainManager = new BrainManager(new BrainManager.Opener()
+		{
+			@Override
+			public BrainManager.Brain open(String name, BrainManager manager) throws IOException
+			{
+				return BrainLoader.this.openChannelBrain(BrainLoader.this.config.get(), name, manager);
+			}
+		}, learnerThreads, Config.getIntProperty(properties, Config.PROPERTY_KEY_BRAIN_IDLE_TIMEOUT, Config.PROPERTY_DEFAULT_BRAIN_IDLE_TIMEOUT));
+
+		// let channels be given the brains of others
+		brainManager.setChannelBrains(Config.getChannelBrains(properties));
+
+		brainManager.registerMetrics(metrics);
+
+		final TokenDictionary tokenDictionary = brainManager.getTokenDictionary();
+		metrics.register("chester_brain_tokens", "Distinct tokens known, shared between every brain.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return tokenDictionary.size();
+			}
+		});
+
+		return brainManager;
+	}
+
+	/**
+	 * Opens the brain that every channel shares, from where it has always been kept.
+	 *
+	 * @param properties The config
+	 * @param metrics The metrics to register those of the brain with
+	 * @return The brain
+	 * @throws IOException If the brain file could not be opened for appending
+	 */
+	private BrainManager.Brain openSharedBrain(Properties properties, Metrics metrics) throws IOException
+	{
+		// the defaul brain file
+		File brainFile = new File("brain.txt");
+
+		// start from the last snapshot of its brain if there is one
+		MegaHal hal = this.loadBrain(properties, brainFile,
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_BATCH_SIZE, Config.PROPERTY_DEFAULT_LEARN_BATCH_SIZE));
+
+		// the only brain keeps threads of its own, as it always has
+		return this.openBrain(properties, hal, brainFile, this.getSnapshotFile(properties, hal), null, null, metrics);
+	}
+
+	/**
+	 * Opens the brain of a channel, or of the channels that share it, from the directory of its own that it is kept in.
+	 *
+	 * @param properties The config
+	 * @param name The name of the brain
+	 * @param manager The manager the brain will be hosted by
+	 * @return The brain
+	 * @throws IOException If the brain directory could not be created, or the brain file opened for appending
+	 */
+	private BrainManager.Brain openChannelBrain(Properties properties, String name, BrainManager manager) throws IOException
+	{
+		File brainDirectory = this.getBrainDirectory(properties, name);
+
+		File brainFile = new File(brainDirectory, "brain.txt");
+		File snapshotFile = new File(brainDirectory, Config.PROPERTY_DEFAULT_SNAPSHOT_FILE);
+
+		MegaHal hal = this.loadBrain(properties, snapshotFile, brainFile,
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_BATCH_SIZE, Config.PROPERTY_DEFAULT_LEARN_BATCH_SIZE),
+				manager.getTokenDictionary());
+
+		// frozen brains keep their token ids, so they can share the dictionary like any other
+		if (Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_STORAGE, Config.PROPERTY_DEFAULT_BRAIN_STORAGE, Config.BrainStorage.class) == Config.BrainStorage.FROZEN)
+		{
+			hal.freeze();
+		}
+
+		// brains come and go, so share threads between them, and leave their metrics out; the README says which are
+		return this.openBrain(properties, hal, brainFile, snapshotFile, manager.getLearnerPool(), manager.getScheduler(), null);
+	}
+
+	/**
+	 * Gets the directory the brain of a channel, or of the channels that share it, is kept in, creating it if need be.
+	 *
+	 * @param properties The config
+	 * @param name The name of the brain
+	 * @return The directory
+	 * @throws IOException If the directory could not be created
+	 */
+	File getBrainDirectory(Properties properties, String name) throws IOException
+	{
+		File directory = new File(properties.getProperty(Config.PROPERTY_KEY_BRAIN_DIRECTORY, Config.PROPERTY_DEFAULT_BRAIN_DIRECTORY));
+		File brainDirectory = new File(directory, name);
+		if (!brainDirectory.isDirectory() && !brainDirectory.mkdirs())
+		{
+			throw new IOException(String.format("Could not create the brain directory at '%s'.", brainDirectory.getAbsolutePath()));
+		}
+
+		return brainDirectory;
+	}
+
+	/**
+	 * Sets up a loaded instance of MegaHal as the config says, and opens the brain journal and starts the learning
+	 * pipeline that teach it.
+	 *
+	 * @param properties The config
+	 * @param hal The instance
+	 * @param brainFile The brain file to append learnt messages to
+	 * @param snapshotFile The file to write snapshots to
+	 * @param learnerPool The pool to learn on, or null for the pipeline to have a thread of its own
+	 * @param committer The executor to commit the journal on, or null for the journal to have a thread of its own
+	 * @param metrics The metrics to register those of the brain with, or null to leave them out
+	 * @return The brain
+	 * @throws IOException If the brain file could not be opened for appending
+	 */
+	private BrainManager.Brain openBrain(Properties properties, MegaHal hal, File brainFile, File snapshotFile,
+			Executor learnerPool, ScheduledExecutorService committer, Metrics metrics) throws IOException
+	{
+		// bound how long each reply can take, so that one slow reply cannot hold up the few reply threads, and with them
+		// the replies to every other channel
+		this.setReplyLimits(properties, hal);
+
+		// bound how much memory the brain may use, if asked to
+		this.setMemoryBudget(properties, hal);
+
+		// keep the brain file open for appending newly learnt sentences to
+		BrainJournal journal = new BrainJournal(brainFile,
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_JOURNAL_COMMIT_SIZE, Config.PROPERTY_DEFAULT_JOURNAL_COMMIT_SIZE),
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_JOURNAL_COMMIT_INTERVAL, Config.PROPERTY_DEFAULT_JOURNAL_COMMIT_INTERVAL),
+				Config.getEnumProperty(properties, Config.PROPERTY_KEY_JOURNAL_SYNC, Config.PROPERTY_DEFAULT_JOURNAL_SYNC, BrainJournal.SyncPolicy.class),
+				committer);
+
+		// learn from messages away from the IRC event thread, so that busy channels cannot hold up the connection
+		LearningPipeline learningPipeline = new LearningPipeline(hal, journal,
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_QUEUE_CAPACITY, Config.PROPERTY_DEFAULT_LEARN_QUEUE_CAPACITY),
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_BATCH_SIZE, Config.PROPERTY_DEFAULT_LEARN_BATCH_SIZE),
+				Config.getEnumProperty(properties, Config.PROPERTY_KEY_LEARN_OVERFLOW, Config.PROPERTY_DEFAULT_LEARN_OVERFLOW, LearningPipeline.OverflowPolicy.class),
+				learnerPool);
+		learningPipeline.setSnapshot(snapshotFile,
+				Config.getIntProperty(properties, Config.PROPERTY_KEY_SNAPSHOT_INTERVAL, Config.PROPERTY_DEFAULT_SNAPSHOT_INTERVAL));
+
+		// skip repeats of the messages seen lately, if asked to
+		int seenWindow = Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_SEEN_WINDOW, Config.PROPERTY_DEFAULT_LEARN_SEEN_WINDOW);
+		if (seenWindow > 0)
+		{
+			learningPipeline.setSeenFilter(new SeenFilter(seenWindow,
+					Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_SEEN_MIN_LENGTH, Config.PROPERTY_DEFAULT_LEARN_SEEN_MIN_LENGTH)));
+		}
+
+		if (metrics != null)
+		{
+			hal.registerMetrics(metrics);
+			journal.registerMetrics(metrics);
+			learningPipeline.registerMetrics(metrics);
+		}
+
+		learningPipeline.start();
+
+		return new BrainManager.Brain(journal, learningPipeline);
+	}
+
+	/**
+	 * Bounds how long an instance of MegaHal's replies may take, and how long they may be, as the config says, and has
+	 * it search for them on the reply pool.
+	 *
+	 * @param properties The config
+	 * @param hal The instance
+	 */
+	void setReplyLimits(Properties properties, MegaHal hal)
+	{
+		hal.setReplyTimeBudget(Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_TIME_BUDGET, Config.PROPERTY_DEFAULT_REPLY_TIME_BUDGET));
+		hal.setMaxReplyLength(Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_MAX_LENGTH, Config.PROPERTY_DEFAULT_REPLY_MAX_LENGTH));
+		hal.setMaxWalkTime(Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_MAX_WALK_TIME, Config.PROPERTY_DEFAULT_REPLY_MAX_WALK_TIME));
+		hal.setReplyPool(this.replyPool, this.replySearchCount);
+	}
+
+	/**
+	 * Bounds how much memory an instance of MegaHal's brain may use to the budget in the config, given in megabytes, if
+	 * there is one; each time the brain is pruned to keep within it, the percentage of each count that the config says is
+	 * kept.
+	 *
+	 * @param properties The config
+	 * @param hal The instance
+	 */
+	void setMemoryBudget(Properties properties, MegaHal hal)
+	{
+		int memoryBudget = Config.getIntProperty(properties, Config.PROPERTY_KEY_BRAIN_MEMORY_BUDGET, Config.PROPERTY_DEFAULT_BRAIN_MEMORY_BUDGET);
+		if (memoryBudget <= 0)
+			return;
+
+		// a mapped brain keeps most of what it knows off the heap, and a frozen one in a form that cannot be pruned;
+		// neither can forget it
+		if (hal.getMappedChain() != null || hal.isFrozen())
+		{
+			System.err.println(String.format("'%s' cannot be used with a mapped or frozen brain, and will be ignored.", Config.PROPERTY_KEY_BRAIN_MEMORY_BUDGET));
+			return;
+		}
+
+		int pruneDecay = Config.getIntProperty(properties, Config.PROPERTY_KEY_BRAIN_PRUNE_DECAY, Config.PROPERTY_DEFAULT_BRAIN_PRUNE_DECAY);
+		if (pruneDecay <= 0 || pruneDecay >= 100)
+		{
+			System.err.println(String.format("'%d' is not a valid value for '%s'. The default will be used.", pruneDecay, Config.PROPERTY_KEY_BRAIN_PRUNE_DECAY));
+			pruneDecay = Integer.parseInt(Config.PROPERTY_DEFAULT_BRAIN_PRUNE_DECAY);
+		}
+
+		hal.setPruneDecay(pruneDecay / 100.0);
+		hal.setMemoryBudget(memoryBudget * 1024L * 1024L);
+	}
+
+	/**
+	 * Sets the amount of lower orders an instance of MegaHal learns, and backs off to, to the amount in the config. This
+	 * should be called as soon as the instance is created, before it learns anything.
+	 *
+	 * @param properties The config
+	 * @param hal The instance
+	 */
+	void setBackoffOrders(Properties properties, MegaHal hal)
+	{
+		int backoffOrders = Config.getIntProperty(properties, Config.PROPERTY_KEY_BRAIN_BACKOFF_ORDERS, Config.PROPERTY_DEFAULT_BRAIN_BACKOFF_ORDERS);
+		if (backoffOrders < 0 || backoffOrders >= hal.getMarkovLength())
+		{
+			System.err.println(String.format("'%d' is not a valid value for '%s'. The default will be used.", backoffOrders, Config.PROPERTY_KEY_BRAIN_BACKOFF_ORDERS));
+			backoffOrders = MegaHal.DEFAULT_BACKOFF_ORDERS;
+		}
+
+		hal.setBackoffOrders(backoffOrders);
+	}
+
+	/**
+	 * Gets the file that snapshots of an instance of MegaHal's brain should be written to; the mapped file if it reads
+	 * its brain from one, else the snapshot file.
+	 *
+	 * @param properties The config
+	 * @param hal The instance
+	 * @return The file
+	 */
+	File getSnapshotFile(Properties properties, MegaHal hal)
+	{
+		if (hal.getMappedChain() != null)
+		{
+			return hal.getMappedChain().getFile();
+		}
+
+		return new File(properties.getProperty(Config.PROPERTY_KEY_SNAPSHOT_FILE, Config.PROPERTY_DEFAULT_SNAPSHOT_FILE));
+	}
+
+	/**
+	 * Creates an instance of MegaHal that knows everything in the brain file, kept where the config says.
+	 *
+	 * @param properties The config
+	 * @param brainFile The brain file
+	 * @param batchSize The amount of messages to learn from at once
+	 * @return The instance
+	 */
+	MegaHal loadBrain(Properties properties, File brainFile, int batchSize)
+	{
+		File snapshotFile = new File(properties.getProperty(Config.PROPERTY_KEY_SNAPSHOT_FILE, Config.PROPERTY_DEFAULT_SNAPSHOT_FILE));
+		Config.BrainStorage storage = Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_STORAGE, Config.PROPERTY_DEFAULT_BRAIN_STORAGE, Config.BrainStorage.class);
+
+		if (storage == Config.BrainStorage.MAPPED)
+		{
+			File mappedFile = new File(properties.getProperty(Config.PROPERTY_KEY_BRAIN_MAPPED_FILE, Config.PROPERTY_DEFAULT_BRAIN_MAPPED_FILE));
+			return this.loadMappedBrain(properties, mappedFile, snapshotFile, brainFile, batchSize);
+		}
+
+		MegaHal hal = this.loadBrain(properties, snapshotFile, brainFile, batchSize, null);
+
+		// freeze the brain once it has caught up with the brain file, folding in whatever was replayed
+		if (storage == Config.BrainStorage.FROZEN)
+		{
+			hal.freeze();
+		}
+
+		return hal;
+	}
+
+	/**
+	 * Creates an instance of MegaHal that knows everything in the brain file, from the snapshot of its brain and the
+	 * messages appended to the brain file since, else from the whole brain file.
+	 *
+	 * @param properties The config
+	 * @param snapshotFile The file the snapshot is stored in
+	 * @param brainFile The brain file
+	 * @param batchSize The amount of messages to learn from at once
+	 * @param tokenDictionary The dictionary, shared with other brains, that the instance should give its tokens the
+	 *                        ids of; or null for it to have its own
+	 * @return The instance
+	 */
+	MegaHal loadBrain(Properties properties, File snapshotFile, File brainFile, int batchSize,
+			TokenDictionary tokenDictionary)
+	{
+		BrainSnapshot snapshot = readSnapshot(snapshotFile, brainFile, tokenDictionary);
+
+		if (snapshot == null)
+		{
+			MegaHal hal = tokenDictionary == null ? new MegaHal()
+					: new MegaHal(MegaHal.DEFAULT_MARKOV_LENGTH, tokenDictionary);
+			this.setBackoffOrders(properties, hal);
+
+			// whatever was imported is only kept apart from the brain file, so learn it first
+			replayImported(brainFile, hal);
+
+			if (brainFile.exists())
+			{
+				replayBrain(brainFile, 0, hal, batchSize);
+			}
+			else
+			{
+				// load each default sentence
+				for (String message : DEFAULT_BRAIN.split("\n"))
+				{
+					hal.addMessage(message);
+				}
+			}
+
+			return hal;
+		}
+
+		// load each sentence that the snapshot does not already know
+		MegaHal hal = new MegaHal(snapshot);
+		this.setBackoffOrders(properties, hal);
+		replayBrain(brainFile, snapshot.getJournalOffset(), hal, batchSize);
+		return hal;
+	}
+
+	/**
+	 * Creates an instance of MegaHal that reads its brain in place from a mapped file, and learns the messages appended
+	 * to the brain file since it was written. If there is no mapped file that can be used, one is first written from a
+	 * brain loaded as loadBrain() does; if that fails, the loaded brain is used as it is.
+	 *
+	 * @param properties The config
+	 * @param mappedFile The file the MappedChain is stored in
+	 * @param snapshotFile The file the snapshot is stored in, for if the brain needs loading
+	 * @param brainFile The brain file
+	 * @param batchSize The amount of messages to learn from at once
+	 * @return The instance
+	 */
+	private MegaHal loadMappedBrain(Properties properties, File mappedFile, File snapshotFile, File brainFile,
+			int batchSize)
+	{
+		MappedChain mappedChain = openMappedChain(mappedFile, brainFile);
+
+		if (mappedChain == null)
+		{
+			MegaHal hal = this.loadBrain(properties, snapshotFile, brainFile, batchSize, null);
+
+			try
+			{
+				// nothing has been appended to the brain file yet, so all of it has been learnt
+				hal.writeMappedChain(mappedFile, brainFile.length());
+				mappedChain = MappedChain.open(mappedFile);
+			}
+			catch (IOException e)
+			{
+				System.err.println(String.format("Could not create a mapped brain at '%s'; the brain will be kept on the heap instead.", mappedFile.getAbsolutePath()));
+				e.printStackTrace();
+				return hal;
+			}
+		}
+
+		// load each sentence that the mapped brain does not already know
+		MegaHal hal = new MegaHal(mappedChain);
+		this.setBackoffOrders(properties, hal);
+		replayBrain(brainFile, mappedChain.getJournalOffset(), hal, batchSize);
+		return hal;
+	}
+
+	/**
+	 * Opens the mapped brain, unless there is none or it cannot be used with the brain file.
+	 *
+	 * @param mappedFile The file the MappedChain is stored in
+	 * @param brainFile The brain file the chain was written partway through
+	 * @return The chain, else null if a new one should be written
+	 */
+	private static MappedChain openMappedChain(File mappedFile, File brainFile)
+	{
+		if (!mappedFile.exists())
+			return null;
+
+		MappedChain mappedChain;
+		try
+		{
+			mappedChain = MappedChain.open(mappedFile);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not open the mapped brain at '%s'; it will be written again.", mappedFile.getAbsolutePath()));
+			e.printStackTrace();
+			return null;
+		}
+
+		// a brain file shorter than the chain expects has been replaced or cut short since the chain was written
+		if (mappedChain.getJournalOffset() > brainFile.length())
+		{
+			System.err.println(String.format("The mapped brain at '%s' does not match the brain file; it will be written again.", mappedFile.getAbsolutePath()));
+			return null;
+		}
+
+		return mappedChain;
+	}
+
+	/**
+	 * Teaches MegaHal every message in the brain file from an offset onwards, if there is a brain file.
+	 *
+	 * @param brainFile The brain file
+	 * @param offset The offset to start at, in bytes
+	 * @param hal The instance of MegaHal to teach
+	 * @param batchSize The amount of messages to learn from at once
+	 */
+	private static void replayBrain(File brainFile, long offset, MegaHal hal, int batchSize)
+	{
+		if (!brainFile.exists())
+			return;
+
+		try
+		{
+			BrainJournal.replay(brainFile, offset, hal, batchSize);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not read the brain file at '%s'.", brainFile.getAbsolutePath()));
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the snapshot of MegaHal's brain, unless there is none or it cannot be used with the brain file. A snapshot
+	 * that cannot be used is moved aside, rather than being left to be written over by the next snapshot, as it may know
+	 * what nothing else does.
+	 *
+	 * @param snapshotFile The file the snapshot is stored in
+	 * @param brainFile The brain file the snapshot was taken partway through
+	 * @param tokenDictionary The dictionary to intern the snapshot's tokens into, or null to intern them into a new one
+	 * @return The snapshot, else null if the brain file should be replayed from the start
+	 */
+	private static BrainSnapshot readSnapshot(File snapshotFile, File brainFile, TokenDictionary tokenDictionary)
+	{
+		if (!snapshotFile.exists())
+			return null;
+
+		BrainSnapshot snapshot;
+		try
+		{
+			snapshot = tokenDictionary == null ? BrainSnapshot.read(snapshotFile)
+					: BrainSnapshot.read(snapshotFile, tokenDictionary);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not read the brain snapshot at '%s'; the brain file will be relearnt instead.", snapshotFile.getAbsolutePath()));
+			e.printStackTrace();
+			keepBadSnapshot(snapshotFile);
+			return null;
+		}
+
+		// a brain file shorter than the snapshot expects has been replaced or cut short since the snapshot was written
+		if (snapshot.getJournalOffset() > brainFile.length())
+		{
+			System.err.println(String.format("The brain snapshot at '%s' does not match the brain file; the brain file will be relearnt instead.", snapshotFile.getAbsolutePath()));
+			keepBadSnapshot(snapshotFile);
+			return null;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Moves a snapshot that could not be used aside, in place of any moved aside before, so that it can be looked into
+	 * or put back by hand.
+	 *
+	 * @param snapshotFile The file the snapshot is stored in
+	 */
+	private static void keepBadSnapshot(File snapshotFile)
+	{
+		File badFile = new File(snapshotFile.getPath() + BAD_SNAPSHOT_SUFFIX);
+		try
+		{
+			Files.move(snapshotFile.toPath(), badFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			System.err.println(String.format("The brain snapshot has been kept at '%s'.", badFile.getAbsolutePath()));
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not keep the brain snapshot at '%s'; it will be written over.", badFile.getAbsolutePath()));
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the directory that every corpus imported into a brain is copied into.
+	 *
+	 * @param brainFile The brain's brain file
+	 * @return The directory, next to the brain file
+	 */
+	static File getImportedDirectory(File brainFile)
+	{
+		return new File(brainFile.getAbsoluteFile().getParentFile(), IMPORTED_DIRECTORY);
+	}
+
+	/**
+	 * Teaches MegaHal every corpus that has been imported into a brain, if any has; corpora still being copied in, or
+	 * whose copying was cut short, are left out.
+	 *
+	 * @param brainFile The brain's brain file
+	 * @param hal The instance of MegaHal to teach
+	 */
+	private static void replayImported(File brainFile, MegaHal hal)
+	{
+		File[] imported = getImportedDirectory(brainFile).listFiles();
+		if (imported == null)
+			return;
+
+		Arrays.sort(imported);
+		List<File> files = new ArrayList<File>(imported.length);
+		for (File file : imported)
+		{
+			if (!file.getName().endsWith(IMPORTED_PARTIAL_SUFFIX))
+			{
+				files.add(file);
+			}
+		}
+
+		if (files.isEmpty())
+			return;
+
+		try
+		{
+			new BulkTrainer(hal).importFiles(files);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not read the messages imported into '%s'.", getImportedDirectory(brainFile).getAbsolutePath()));
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
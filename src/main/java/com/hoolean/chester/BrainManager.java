@@ -0,0 +1,917 @@
+package com.hoolean.chester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts the brains that Chester learns and replies with, each made up of an instance of MegaHal along with the brain
+ * journal and learning pipeline that teach it, and opens and closes them as they are needed.
+ *
+ * Each channel is given a brain of its own, named after it, unless the brain of a channel has been named, which lets
+ * channels share one; or, if a shared brain has been named, every channel is given that. A brain is only opened the
+ * first time it is asked for, and, if there is an idle timeout, closed again once it has not been asked for in that
+ * long, so that brains of quiet channels do not take up memory in between. Closing a brain writes a snapshot of it, so
+ * opening it again is quick.
+ *
+ * Brains are opened without holding up anyone asking for any other brain. Messages to be learnt by a brain that is not
+ * open are held while it is opened on a thread of the manager's, and handed to it in order once it is, so that whoever
+ * submits them never waits for a brain to open; only those asking for the brain itself, to reply with it, wait.
+ *
+ * Brains share what they can, so that hundreds can be hosted at once: one TokenDictionary, so that each token is
+ * stored once however many brains know it; one pool of threads for their learners to run on; and one thread that
+ * commits their journals and closes idle brains. Replies are all built on the same ForkJoinPool already.
+ */
+public class BrainManager implements Closeable
+{
+	/**
+	 * Opens brains as they are first needed.
+	 */
+	public interface Opener
+	{
+		/**
+		 * Opens a brain, loading everything it has learnt and starting its learning pipeline. It may use the
+		 * manager's token dictionary, learner pool and scheduler.
+		 *
+		 * @param name The name of the brain
+		 * @param manager The manager the brain will be hosted by
+		 * @return The brain
+		 * @throws IOException If the brain could not be opened
+		 */
+		Brain open(String name, BrainManager manager) throws IOException;
+	}
+
+	/**
+	 * An instance of MegaHal, along with the journal and pipeline that teach it.
+	 */
+	public static final class Brain
+	{
+		private final BrainJournal journal;
+		private final LearningPipeline learningPipeline;
+
+		/**
+		 * The System.nanoTime() at which the brain was last asked for; guarded by the manager.
+		 */
+		private long lastUsedTime;
+
+		/**
+		 * Creates a Brain from its parts; the pipeline should already have been started.
+		 *
+		 * @param journal The journal its learnt messages are appended to
+		 * @param learningPipeline The pipeline that teaches its instance of MegaHal
+		 */
+		public Brain(BrainJournal journal, LearningPipeline learningPipeline)
+		{
+			this.journal = journal;
+			this.learningPipeline = learningPipeline;
+		}
+
+		/**
+		 * Gets the instance of MegaHal to reply with; that which the pipeline teaches, which may be replaced, so this
+		 * should be called for each reply rather than the instance kept.
+		 *
+		 * @return The instance
+		 */
+		public MegaHal getMegaHal()
+		{
+			return this.learningPipeline.getMegaHal();
+		}
+
+		/**
+		 * Gets the pipeline to submit messages to be learnt to.
+		 *
+		 * @return The pipeline
+		 */
+		public LearningPipeline getLearningPipeline()
+		{
+			return this.learningPipeline;
+		}
+
+		/**
+		 * Gets the journal that learnt messages are appended to.
+		 *
+		 * @return The journal
+		 */
+		public BrainJournal getJournal()
+		{
+			return this.journal;
+		}
+
+		/**
+		 * Learns everything still queued, writes a last snapshot if snapshots are being written and closes the
+		 * journal.
+		 *
+		 * @throws IOException If the journal could not be closed
+		 * @throws InterruptedException If interrupted while waiting for the learner
+		 */
+		private void close() throws IOException, InterruptedException
+		{
+			try
+			{
+				this.learningPipeline.close();
+			}
+			finally
+			{
+				this.journal.close();
+			}
+		}
+	}
+
+	/**
+	 * A brain being opened, along with the messages submitted to it meanwhile; guarded by the manager.
+	 */
+	private static final class Opening
+	{
+		/**
+		 * The messages submitted to the brain while it was being opened, in the order they were submitted.
+		 */
+		private final List<String> messages = new ArrayList<String>();
+
+		/**
+		 * Whether or not the brain has been opened, or has failed to be.
+		 */
+		private boolean done = false;
+
+		/**
+		 * The brain, once opened; null if it failed to be, or the manager was closed meanwhile.
+		 */
+		private Brain brain = null;
+
+		/**
+		 * Why the brain could not be opened, if it could not.
+		 */
+		private IOException failure = null;
+	}
+
+	/**
+	 * The most messages held for a brain while it is opened; any more are dropped, as a full learning pipeline would.
+	 */
+	private static final int MAX_OPENING_MESSAGES = 10000;
+
+	/**
+	 * The longest amount of time between checks for idle brains, in milliseconds.
+	 */
+	private static final long IDLE_CHECK_INTERVAL = 60 * 1000;
+
+	/**
+	 * The digits the bytes of escaped characters in brain names are written in.
+	 */
+	private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+	/**
+	 * Opens brains as they are first needed.
+	 */
+	private final Opener opener;
+
+	/**
+	 * How long a brain may go without being asked for before it is closed, in milliseconds; 0 if brains are never
+	 * closed until the manager is.
+	 */
+	private final long idleTimeout;
+
+	/**
+	 * The dictionary that every brain gives its tokens the ids of.
+	 */
+	private final TokenDictionary tokenDictionary = new TokenDictionary();
+
+	/**
+	 * The pool that the learners of the brains run on.
+	 */
+	private final ExecutorService learnerPool;
+
+	/**
+	 * The pool that brains are opened on when messages are submitted to them, so that submitting never waits.
+	 */
+	private final ExecutorService openerPool;
+
+	/**
+	 * Commits the journals of the brains, and closes idle brains.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The name of the brain every channel is given, or null if each is given its own.
+	 */
+	private volatile String sharedBrain = null;
+
+	/**
+	 * The names of the brains of channels that have been named, by the lower case name of the channel.
+	 */
+	private final Map<String, String> channelBrains = new HashMap<String, String>();
+
+	/**
+	 * The brains that are open, by name; guarded by this.
+	 */
+	private final Map<String, Brain> brains = new HashMap<String, Brain>();
+
+	/**
+	 * The brains that are being closed, by name, which may not be opened again until they are; guarded by this.
+	 */
+	private final Map<String, Brain> closingBrains = new HashMap<String, Brain>();
+
+	/**
+	 * The brains that are being opened, by name; guarded by this.
+	 */
+	private final Map<String, Opening> openings = new HashMap<String, Opening>();
+
+	/**
+	 * Whether or not the manager has been closed; guarded by this.
+	 */
+	private boolean closed = false;
+
+	// metrics about the brains opened and closed
+	private final Metrics.Counter openCount = new Metrics.Counter();
+	private final Metrics.Counter idleCloseCount = new Metrics.Counter();
+	private final Metrics.Counter openDroppedCount = new Metrics.Counter();
+	private final Metrics.Histogram openTimes = Metrics.Histogram.nanoseconds();
+	private final Metrics.Counter replaceCount = new Metrics.Counter();
+	private final Metrics.Histogram replaceTimes = Metrics.Histogram.nanoseconds();
+
+	/**
+	 * Creates a BrainManager, which opens no brains until they are asked for.
+	 *
+	 * @param opener Opens brains as they are first needed
+	 * @param learnerThreads The amount of threads that the learners of the brains run on
+	 * @param idleTimeout How long a brain may go without being asked for before it is closed, in milliseconds; or 0 for
+	 *                    brains to be kept open until the manager is closed
+	 */
+	public BrainManager(Opener opener, int learnerThreads, long idleTimeout)
+	{
+		this.opener = opener;
+		this.idleTimeout = idleTimeout;
+
+		final AtomicInteger learnerCount = new AtomicInteger();
+		this.learnerPool = Executors.newFixedThreadPool(learnerThreads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester learner " + learnerCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final AtomicInteger openerCount = new AtomicInteger();
+		this.openerPool = Executors.newFixedThreadPool(learnerThreads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester brain opener " + openerCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester brain manager");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (idleTimeout > 0)
+		{
+			long interval = Math.min(idleTimeout, IDLE_CHECK_INTERVAL);
+			this.scheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					BrainManager.this.closeIdleBrains();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Gives every channel the same brain, rather than one each.
+	 *
+	 * @param name The name of the brain
+	 */
+	public void setSharedBrain(String name)
+	{
+		this.sharedBrain = name;
+	}
+
+	/**
+	 * Names the brain of a channel, rather than it being named after the channel; giving several channels the same
+	 * name makes them share a brain.
+	 *
+	 * @param channel The name of the channel
+	 * @param name The name of its brain
+	 */
+	public synchronized void setChannelBrain(String channel, String name)
+	{
+		this.channelBrains.put(channel.toLowerCase(Locale.ROOT), name);
+	}
+
+	/**
+	 * Names the brains of channels, in place of every name given before; channels no longer named are given brains
+	 * named after themselves again. Brains that are open are left open, but channels that have been given another
+	 * brain are given it from the next time they ask for one.
+	 *
+	 * @param channelBrains The names of the brains, by the names of their channels
+	 */
+	public synchronized void setChannelBrains(Map<String, String> channelBrains)
+	{
+		this.channelBrains.clear();
+
+		for (Map.Entry<String, String> entry : channelBrains.entrySet())
+		{
+			this.setChannelBrain(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Gets the name of the brain that a channel is given.
+	 *
+	 * @param channel The name of the channel
+	 * @return The name of its brain
+	 */
+	public synchronized String getBrainName(String channel)
+	{
+		if (this.sharedBrain != null)
+			return this.sharedBrain;
+
+		String name = this.channelBrains.get(channel.toLowerCase(Locale.ROOT));
+		return name != null ? name : getDefaultBrainName(channel);
+	}
+
+	/**
+	 * Gets the brain that a channel is given, opening it if it is not open.
+	 *
+	 * @param channel The name of the channel
+	 * @return The brain
+	 * @throws IOException If the brain had to be opened, and could not be
+	 */
+	public Brain getChannelBrain(String channel) throws IOException
+	{
+		return this.getBrain(this.getBrainName(channel));
+	}
+
+	/**
+	 * Submits a message to be learnt by the brain a channel is given, returning straight away. If the brain is not open,
+	 * the message is held until it has been, and it is opened on a thread of the manager's if it is not already being
+	 * opened; whoever submits the message never waits for it.
+	 *
+	 * @param channel The name of the channel
+	 * @param message The message
+	 * @return True if the message was submitted, or held for the brain, else False if it was dropped
+	 */
+	public boolean submitMessage(String channel, String message)
+	{
+		final String name = this.getBrainName(channel);
+		final Opening opening;
+		Brain brain;
+
+		synchronized (this)
+		{
+			if (this.closed)
+				return false;
+
+			brain = this.brains.get(name);
+			if (brain != null)
+			{
+				brain.lastUsedTime = System.nanoTime();
+				opening = null;
+			}
+			else if (this.openings.containsKey(name))
+			{
+				// the brain is being opened already, and takes the message once it is
+				return this.holdMessage(this.openings.get(name), message);
+			}
+			else
+			{
+				opening = new Opening();
+				this.openings.put(name, opening);
+				this.holdMessage(opening, message);
+			}
+		}
+
+		if (opening == null)
+			return brain.getLearningPipeline().submit(message);
+
+		try
+		{
+			this.openerPool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						BrainManager.this.open(name, opening, BrainManager.this.opener);
+					}
+					catch (IOException e)
+					{
+						System.err.println(String.format("Could not open the brain '%s'; the messages held for it will be ignored.", name));
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the manager was closed meanwhile
+			this.finishOpening(name, opening, null, new IOException("The brain manager has been closed."));
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets a brain, opening it if it is not open. Opening a brain only holds up those asking for the same brain, who
+	 * wait for it to be opened, as do those asking for a brain that is being closed until it has been.
+	 *
+	 * @param name The name of the brain
+	 * @return The brain
+	 * @throws IOException If the brain had to be opened, and could not be
+	 * @throws IllegalStateException If the manager has been closed
+	 */
+	public Brain getBrain(String name) throws IOException
+	{
+		Opening opening;
+		boolean opener = false;
+
+		synchronized (this)
+		{
+			if (this.closed)
+				throw new IllegalStateException("The brain manager has been closed.");
+
+			Brain brain = this.brains.get(name);
+			if (brain != null)
+			{
+				brain.lastUsedTime = System.nanoTime();
+				return brain;
+			}
+
+			opening = this.openings.get(name);
+			if (opening == null)
+			{
+				opening = new Opening();
+				this.openings.put(name, opening);
+				opener = true;
+			}
+		}
+
+		// open the brain without holding the lock, so that other brains can be asked for meanwhile
+		if (opener)
+		{
+			this.open(name, opening, this.opener);
+		}
+
+		return this.awaitOpening(name, opening);
+	}
+
+	/**
+	 * Replaces the instance of MegaHal of a brain with another, such as one that has been retrained, opening the brain
+	 * first if it is not open. The replacement is caught up with everything the brain's journal holds from an offset on
+	 * while the brain carries on learning and replying, and then swapped in by the brain's pipeline, which holds up
+	 * learning only while it catches up with the little learnt meanwhile; replies are never held up, and those already
+	 * being built finish with the instance replaced. The brain's journal and pipeline are kept.
+	 *
+	 * @param name The name of the brain
+	 * @param megaHal The replacement, which should be prepared beforehand as far as it can be
+	 * @param offset The offset in the brain's journal up to which the replacement has already learnt, in bytes
+	 * @param batchSize The amount of messages to teach the replacement at once while catching it up
+	 * @throws IOException If the brain could not be opened, or its journal read; the brain is then left as it was
+	 * @throws IllegalStateException If the manager has been closed
+	 */
+	public void replaceMegaHal(String name, MegaHal megaHal, long offset, int batchSize) throws IOException
+	{
+		Brain brain = this.getBrain(name);
+
+		long startTime = System.nanoTime();
+		brain.learningPipeline.replaceMegaHal(megaHal, offset, batchSize);
+		this.replaceTimes.record(System.nanoTime() - startTime);
+		this.replaceCount.increment();
+	}
+
+	/**
+	 * Opens a brain that is being opened, hands it the messages held for it, and makes it open; or, if it cannot be
+	 * opened, drops the messages and lets those waiting for it know why.
+	 *
+	 * @param name The name of the brain
+	 * @param opening The brain being opened, which must be in openings
+	 * @param opener Opens the brain
+	 * @throws IOException If the brain could not be opened
+	 */
+	private void open(String name, Opening opening, Opener opener) throws IOException
+	{
+		Brain brain = null;
+		IOException failure = null;
+		long startTime = System.nanoTime();
+
+		try
+		{
+			// a brain being closed may still be appending to its journal, so wait for it before reading the journal again
+			synchronized (this)
+			{
+				while (this.closingBrains.containsKey(name))
+				{
+					this.wait();
+				}
+			}
+
+			brain = opener.open(name, this);
+			this.openTimes.record(System.nanoTime() - startTime);
+			this.openCount.increment();
+		}
+		catch (IOException e)
+		{
+			failure = e;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			failure = new IOException(String.format("Interrupted while opening the brain '%s'.", name));
+		}
+		catch (RuntimeException e)
+		{
+			failure = new IOException(String.format("Could not open the brain '%s'.", name), e);
+		}
+
+		this.finishOpening(name, opening, brain, failure);
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Hands a brain that has been opened the messages held for it, a few at a time, until none are left; only then is it
+	 * made open, so that no message submitted after those can be learnt before them. If the manager was closed
+	 * meanwhile, the brain is closed again, having learnt them.
+	 *
+	 * @param name The name of the brain
+	 * @param opening The brain being opened
+	 * @param brain The brain, or null if it could not be opened
+	 * @param failure Why the brain could not be opened, if it could not
+	 */
+	private void finishOpening(String name, Opening opening, Brain brain, IOException failure)
+	{
+		while (true)
+		{
+			List<String> messages;
+			synchronized (this)
+			{
+				if (brain == null || opening.messages.isEmpty())
+				{
+					if (brain == null && !opening.messages.isEmpty())
+					{
+						this.openDroppedCount.add(opening.messages.size());
+						opening.messages.clear();
+					}
+
+					if (brain != null && !this.closed)
+					{
+						brain.lastUsedTime = System.nanoTime();
+						this.brains.put(name, brain);
+						opening.brain = brain;
+						brain = null;
+					}
+
+					opening.failure = failure;
+					opening.done = true;
+					this.openings.remove(name);
+					this.notifyAll();
+					break;
+				}
+
+				messages = new ArrayList<String>(opening.messages);
+				opening.messages.clear();
+			}
+
+			// submit them without holding the lock, as the pipeline may wait for room in its queue
+			for (String message : messages)
+			{
+				brain.getLearningPipeline().submit(message);
+			}
+		}
+
+		// the manager was closed meanwhile, so close the brain as it would have been
+		if (brain != null)
+		{
+			try
+			{
+				brain.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println(String.format("Could not close the brain '%s'.", name));
+				e.printStackTrace();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits for a brain being opened to be opened.
+	 *
+	 * @param name The name of the brain
+	 * @param opening The brain being opened
+	 * @return The brain
+	 * @throws IOException If the brain could not be opened
+	 * @throws IllegalStateException If the manager was closed meanwhile
+	 */
+	private synchronized Brain awaitOpening(String name, Opening opening) throws IOException
+	{
+		while (!opening.done)
+		{
+			try
+			{
+				this.wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(String.format("Interrupted while waiting for the brain '%s' to open.", name));
+			}
+		}
+
+		if (opening.failure != null)
+			throw new IOException(String.format("Could not open the brain '%s'.", name), opening.failure);
+
+		if (opening.brain == null)
+			throw new IllegalStateException("The brain manager has been closed.");
+
+		opening.brain.lastUsedTime = System.nanoTime();
+		return opening.brain;
+	}
+
+	/**
+	 * Holds a message for a brain being opened, unless too many are held already.
+	 *
+	 * @param opening The brain being opened; guarded by the caller
+	 * @param message The message
+	 * @return True if the message was held, else False if it was dropped
+	 */
+	private boolean holdMessage(Opening opening, String message)
+	{
+		if (opening.messages.size() >= MAX_OPENING_MESSAGES)
+		{
+			this.openDroppedCount.increment();
+			return false;
+		}
+
+		opening.messages.add(message);
+		return true;
+	}
+
+	/**
+	 * Gets every brain that is open.
+	 *
+	 * @return The brains
+	 */
+	public synchronized List<Brain> getOpenBrains()
+	{
+		return new ArrayList<Brain>(this.brains.values());
+	}
+
+	/**
+	 * Gets the amount of brains that are open.
+	 *
+	 * @return The amount of brains
+	 */
+	public synchronized int getOpenBrainCount()
+	{
+		return this.brains.size();
+	}
+
+	/**
+	 * Gets the dictionary that brains opened by the manager should give their tokens the ids of.
+	 *
+	 * @return The dictionary
+	 */
+	TokenDictionary getTokenDictionary()
+	{
+		return this.tokenDictionary;
+	}
+
+	/**
+	 * Gets the pool that the learners of brains opened by the manager should run on.
+	 *
+	 * @return The pool
+	 */
+	public ExecutorService getLearnerPool()
+	{
+		return this.learnerPool;
+	}
+
+	/**
+	 * Gets the executor that the journals of brains opened by the manager should be committed on.
+	 *
+	 * @return The executor
+	 */
+	public ScheduledExecutorService getScheduler()
+	{
+		return this.scheduler;
+	}
+
+	/**
+	 * Registers metrics about the brains that are open, and how often they are opened and closed.
+	 *
+	 * @param metrics The registry to register the metrics with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_brain_opens_total", "Brains opened, including those opened again after being closed for being idle.", this.openCount);
+		metrics.register("chester_brain_idle_closes_total", "Brains closed for going unused for the idle timeout.", this.idleCloseCount);
+		metrics.register("chester_brain_open_seconds", "Time taken to open each brain, during which it cannot be asked for.", this.openTimes);
+		metrics.register("chester_brain_open_dropped_total", "Messages dropped for the brain they were submitted to being opened, and too many being held for it already, or it failing to open.", this.openDroppedCount);
+		metrics.register("chester_brain_replaces_total", "Brains whose instance of MegaHal was replaced by another, such as one that has been retrained.", this.replaceCount);
+		metrics.register("chester_brain_replace_seconds", "Time taken to catch each replacement brain up with its journal and swap it in.", this.replaceTimes);
+
+		metrics.register("chester_brains_open", "Brains open.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return BrainManager.this.getOpenBrainCount();
+			}
+		});
+	}
+
+	/**
+	 * Closes every brain, then stops the shared threads. Brains may no longer be asked for once this has been called.
+	 *
+	 * @throws IOException If a brain could not be closed; every other brain is still closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		List<Brain> brains;
+		synchronized (this)
+		{
+			if (this.closed)
+				return;
+
+			this.closed = true;
+			brains = new ArrayList<Brain>(this.brains.values());
+			this.brains.clear();
+		}
+
+		IOException failure = null;
+		try
+		{
+			for (Brain brain : brains)
+			{
+				try
+				{
+					brain.close();
+				}
+				catch (IOException e)
+				{
+					failure = e;
+				}
+			}
+
+			// brains closed for being idle may still be closing, and brains being opened are closed once they have been
+			synchronized (this)
+			{
+				while (!this.closingBrains.isEmpty() || !this.openings.isEmpty())
+				{
+					this.wait();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.openerPool.shutdown();
+			this.scheduler.shutdown();
+			this.learnerPool.shutdown();
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Closes every brain that has not been asked for within the idle timeout.
+	 */
+	private void closeIdleBrains()
+	{
+		Map<String, Brain> idleBrains = new HashMap<String, Brain>();
+
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			for (Iterator<Map.Entry<String, Brain>> iterator = this.brains.entrySet().iterator(); iterator.hasNext(); )
+			{
+				Map.Entry<String, Brain> entry = iterator.next();
+
+				if (now - entry.getValue().lastUsedTime >= TimeUnit.MILLISECONDS.toNanos(this.idleTimeout))
+				{
+					idleBrains.put(entry.getKey(), entry.getValue());
+					iterator.remove();
+				}
+			}
+
+			this.closingBrains.putAll(idleBrains);
+		}
+
+		// close them without holding the lock, so that other brains can be asked for meanwhile
+		for (Map.Entry<String, Brain> entry : idleBrains.entrySet())
+		{
+			try
+			{
+				entry.getValue().close();
+				this.idleCloseCount.increment();
+			}
+			catch (IOException e)
+			{
+				System.err.println(String.format("Could not close the idle brain '%s'.", entry.getKey()));
+				e.printStackTrace();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					this.closingBrains.remove(entry.getKey());
+					this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the name a channel's brain is given if it has not been named; the name of the channel in lower case, without
+	 * the # that most channel names start with, and with anything other than letters, digits, dots, dashes and
+	 * underscores escaped as a % and the hex of each of its bytes in UTF-8, so that it can be used as the name of a
+	 * file. Names that only differ in the characters escaped, such as #a_b and #a b, or &foo and +foo, are given
+	 * different brains, as no two channel names are escaped alike; names made only of letters, digits, dots, dashes and
+	 * underscores are left as they are.
+	 *
+	 * @param channel The name of the channel
+	 * @return The name of its brain
+	 */
+	static String getDefaultBrainName(String channel)
+	{
+		String name = channel.toLowerCase(Locale.ROOT);
+
+		// only # is left out, so that channels of other types are not given the brains of the # channels of the same
+		// name; the channel # itself is left with the empty name, which is escaped below
+		if (name.startsWith("#"))
+		{
+			name = name.substring(1);
+		}
+
+		// a name made only of dots could lead out of the directory brains are kept in, so escape its dots too
+		boolean onlyDots = name.replace(".", "").isEmpty();
+
+		StringBuilder builder = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); )
+		{
+			int codePoint = name.codePointAt(i);
+			boolean safe = (codePoint >= 'a' && codePoint <= 'z') || (codePoint >= '0' && codePoint <= '9')
+					|| (codePoint == '.' && !onlyDots) || codePoint == '-' || codePoint == '_';
+
+			if (safe)
+			{
+				builder.append((char) codePoint);
+			}
+			else
+			{
+				for (byte b : new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8))
+				{
+					builder.append('%').append(HEX_DIGITS.charAt((b >> 4) & 0xF)).append(HEX_DIGITS.charAt(b & 0xF));
+				}
+			}
+
+			i += Character.charCount(codePoint);
+		}
+
+		// no name is escaped to a lone %, so the empty name cannot share it
+		return builder.length() == 0 ? "%" : builder.toString();
+	}
+}
@@ -0,0 +1,493 @@
+package com.hoolean.chester;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Everything MegaHal has learnt, stored in a compact binary file so that it can be loaded in one pass at startup
+ * rather than relearnt from every message in the brain journal.
+ *
+ * A snapshot records how far through the journal it had got, so that only the messages appended since need to be
+ * replayed on top of it. The file starts with a magic number and a format version, so that a file from a different
+ * version of Chester is refused rather than misread, and ends with the magic number again, so that a truncated file
+ * is noticed.
+ *
+ * Only the tokens that the context table uses are written, each with the id it had, and when the snapshot is read they
+ * are interned into a dictionary that may already know other tokens, with the table's ids changed to match. This lets
+ * many brains share one dictionary, without each snapshot holding every token of the others.
+ *
+ * The layout, with every number big-endian, is:
+ *
+ *     int     magic number
+ *     int     format version
+ *     int     Markov length
+ *     long    offset into the brain journal
+ *     int     a bound on the token ids; every id written is less than it
+ *     int     amount of tokens, then for each, its id, then its length in UTF-8 bytes followed by the bytes, in id
+ *             order
+ *     int     1 if the brain was frozen, followed by the frozen chain (see FrozenChain.save), else 0
+ *     ...     the context table, learnt on top of the frozen chain if there is one, followed by its table of lower
+ *             orders; see ContextTable.save
+ *     int     magic number
+ *
+ * Version 1 snapshots, which held every token of the dictionary in id order without their ids (nor the greatest id),
+ * can still be read, as can version 2 snapshots, which were written before there were lower orders; for both, the
+ * lower orders are worked out from the context table as it is read. Version 3 snapshots were written before brains
+ * could be frozen, so are the same but for the frozen chain.
+ */
+public final class BrainSnapshot
+{
+	/**
+	 * Marks the start and end of a snapshot file; "CHST" in ASCII.
+	 */
+	private static final int MAGIC = 0x43485354;
+
+	/**
+	 * The version of the format written; files of any other version but the earlier ones below are refused.
+	 */
+	private static final int VERSION = 4;
+
+	/**
+	 * The first version of the format, which can still be read.
+	 */
+	private static final int VERSION_ALL_TOKENS = 1;
+
+	/**
+	 * The second version of the format, without the lower orders, which can still be read.
+	 */
+	private static final int VERSION_NO_LOWER_ORDERS = 2;
+
+	/**
+	 * The third version of the format, without the frozen chain, which can still be read.
+	 */
+	private static final int VERSION_NOT_FROZEN = 3;
+
+	/**
+	 * The size of the buffer used to read and write the file, in bytes.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The amount of tokens in each TokenGroup.
+	 */
+	private final int markovLength;
+
+	/**
+	 * The offset into the brain journal up to which every message had been learnt.
+	 */
+	private final long journalOffset;
+
+	// the learnt state; the frozen chain is null unless the brain was frozen
+	private final TokenDictionary tokenDictionary;
+	private final FrozenChain frozenChain;
+	private final ContextTable contextTable;
+
+	/**
+	 * Instantiates a BrainSnapshot that has been read.
+	 */
+	private BrainSnapshot(int markovLength, long journalOffset, TokenDictionary tokenDictionary,
+			FrozenChain frozenChain, ContextTable contextTable)
+	{
+		this.markovLength = markovLength;
+		this.journalOffset = journalOffset;
+		this.tokenDictionary = tokenDictionary;
+		this.frozenChain = frozenChain;
+		this.contextTable = contextTable;
+	}
+
+	/**
+	 * Gets the amount of tokens in each TokenGroup of the snapshot.
+	 *
+	 * @return The Markov length
+	 */
+	public int getMarkovLength()
+	{
+		return this.markovLength;
+	}
+
+	/**
+	 * Gets the offset into the brain journal, in bytes, up to which every message had been learnt when the snapshot was
+	 * written; messages from this offset onwards need replaying on top of it.
+	 *
+	 * @return The offset
+	 */
+	public long getJournalOffset()
+	{
+		return this.journalOffset;
+	}
+
+	/**
+	 * Gets the ids of the tokens that were learnt.
+	 *
+	 * @return The token dictionary
+	 */
+	TokenDictionary getTokenDictionary()
+	{
+		return this.tokenDictionary;
+	}
+
+	/**
+	 * Gets the TokenGroups that had been frozen, which the context table learns on top of.
+	 *
+	 * @return The frozen chain, else null if the brain was not frozen
+	 */
+	FrozenChain getFrozenChain()
+	{
+		return this.frozenChain;
+	}
+
+	/**
+	 * Gets the TokenGroups that were learnt, or if the brain was frozen, those learnt since.
+	 *
+	 * @return The context table
+	 */
+	ContextTable getContextTable()
+	{
+		return this.contextTable;
+	}
+
+	/**
+	 * Reads a snapshot from a file.
+	 *
+	 * @param file The file
+	 * @return The snapshot, ready to be given to a new MegaHal
+	 * @throws IOException If the file could not be read, or is not a snapshot of a version that can be read
+	 */
+	public static BrainSnapshot read(File file) throws IOException
+	{
+		return read(file, new TokenDictionary());
+	}
+
+	/**
+	 * Reads a snapshot from a file, interning its tokens into a dictionary that may be shared with other brains.
+	 *
+	 * @param file The file
+	 * @param tokenDictionary The dictionary to intern the tokens into, which becomes the snapshot's
+	 * @return The snapshot, ready to be given to a new MegaHal
+	 * @throws IOException If the file could not be read, or is not a snapshot of a version that can be read
+	 */
+	static BrainSnapshot read(File file, TokenDictionary tokenDictionary) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			Input in = new Input(channel);
+
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException(String.format("'%s' is not a brain snapshot.", file.getAbsolutePath()));
+			}
+
+			int version = in.readInt();
+			if (version < VERSION_ALL_TOKENS || version > VERSION)
+			{
+				throw new IOException(String.format("'%s' is a version %d brain snapshot; only versions %d to %d can be read.", file.getAbsolutePath(), version, VERSION_ALL_TOKENS, VERSION));
+			}
+
+			int markovLength = in.readInt();
+			long journalOffset = in.readLong();
+
+			// the id each token is given in the dictionary, indexed by the id it had when written
+			int[] tokenIds;
+			if (version == VERSION_ALL_TOKENS)
+			{
+				tokenIds = new int[in.readLength()];
+				for (int i = 0; i < tokenIds.length; i++)
+				{
+					tokenIds[i] = tokenDictionary.intern(in.readString());
+				}
+			}
+			else
+			{
+				tokenIds = new int[in.readLength()];
+				Arrays.fill(tokenIds, TokenDictionary.UNKNOWN_TOKEN);
+
+				int tokenCount = in.readLength();
+				for (int i = 0; i < tokenCount; i++)
+				{
+					int id = in.readInt();
+					if (id < 0 || id >= tokenIds.length)
+					{
+						throw new IOException(String.format("The brain snapshot at '%s' is corrupt.", file.getAbsolutePath()));
+					}
+
+					tokenIds[id] = tokenDictionary.intern(in.readString());
+				}
+			}
+
+			FrozenChain frozenChain = null;
+			if (version > VERSION_NOT_FROZEN && in.readInt() != 0)
+			{
+				frozenChain = FrozenChain.load(markovLength, in, tokenIds);
+			}
+
+			ContextTable contextTable = ContextTable.load(markovLength, in, tokenIds,
+					version > VERSION_NO_LOWER_ORDERS, frozenChain);
+
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException(String.format("The brain snapshot at '%s' is corrupt.", file.getAbsolutePath()));
+			}
+
+			return new BrainSnapshot(markovLength, journalOffset, tokenDictionary, frozenChain, contextTable);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a snapshot to a file. The snapshot is written to a temporary file which then replaces the file, so that
+	 * the previous snapshot is kept if writing fails part of the way through.
+	 *
+	 * The caller must ensure that nothing changes the context table while it is written.
+	 *
+	 * @param file The file
+	 * @param markovLength The amount of tokens in each TokenGroup
+	 * @param journalOffset The offset into the brain journal up to which every message has been learnt
+	 * @param tokenDictionary The ids of the tokens
+	 * @param frozenChain The TokenGroups that have been frozen, which the context table learns on top of; or null if
+	 *                    the brain has not been frozen
+	 * @param contextTable The learnt TokenGroups
+	 * @throws IOException If the file could not be written
+	 */
+	static void write(File file, int markovLength, long journalOffset, TokenDictionary tokenDictionary,
+			FrozenChain frozenChain, ContextTable contextTable) throws IOException
+	{
+		File temporaryFile = new File(file.getPath() + ".tmp");
+
+		FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			Output out = new Output(channel);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(markovLength);
+			out.writeLong(journalOffset);
+
+			// tokens may still be interned while the table is held still, so only look at those known up front; the
+			// dictionary may be shared with other brains, so leave out any that this one does not use
+			int tokenIdLimit = tokenDictionary.size();
+			int tokenCount = 0;
+			for (int id = 0; id < tokenIdLimit; id++)
+			{
+				if (contextTable.isTokenUsed(id))
+				{
+					tokenCount++;
+				}
+			}
+
+			out.writeInt(tokenIdLimit);
+			out.writeInt(tokenCount);
+			for (int id = 0; id < tokenIdLimit; id++)
+			{
+				if (contextTable.isTokenUsed(id))
+				{
+					out.writeInt(id);
+					out.writeString(tokenDictionary.getToken(id));
+				}
+			}
+
+			out.writeInt(frozenChain == null ? 0 : 1);
+			if (frozenChain != null)
+			{
+				frozenChain.save(out);
+			}
+
+			contextTable.save(out);
+
+			out.writeInt(MAGIC);
+			out.flush();
+
+			// make sure the new snapshot is on the disk before it replaces the old one
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes numbers and Strings to a channel through a buffer, so that large Arrays are copied in bulk.
+	 */
+	static final class Output
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Output(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		void writeInt(int value) throws IOException
+		{
+			this.ensureRoom(4);
+			this.buffer.putInt(value);
+		}
+
+		void writeLong(long value) throws IOException
+		{
+			this.ensureRoom(8);
+			this.buffer.putLong(value);
+		}
+
+		void writeString(String value) throws IOException
+		{
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			this.writeInt(bytes.length);
+			this.writeBytes(bytes, bytes.length);
+		}
+
+		void writeBytes(byte[] values, int length) throws IOException
+		{
+			for (int offset = 0; offset < length; )
+			{
+				this.ensureRoom(1);
+
+				int count = Math.min(length - offset, this.buffer.remaining());
+				this.buffer.put(values, offset, count);
+				offset += count;
+			}
+		}
+
+		void writeInts(int[] values, int length) throws IOException
+		{
+			for (int offset = 0; offset < length; )
+			{
+				this.ensureRoom(4);
+
+				// copy as many ints as fit through an int view of the buffer, then move the buffer past them
+				int count = Math.min(length - offset, this.buffer.remaining() / 4);
+				this.buffer.asIntBuffer().put(values, offset, count);
+				this.buffer.position(this.buffer.position() + count * 4);
+				offset += count;
+			}
+		}
+
+		void flush() throws IOException
+		{
+			this.buffer.flip();
+			while (this.buffer.hasRemaining())
+			{
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		private void ensureRoom(int bytes) throws IOException
+		{
+			if (this.buffer.remaining() < bytes)
+			{
+				this.flush();
+			}
+		}
+	}
+
+	/**
+	 * Reads what an Output wrote from a channel through a buffer.
+	 */
+	static final class Input
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Input(FileChannel channel)
+		{
+			this.channel = channel;
+
+			// start with an empty buffer, so that the first read fills it
+			this.buffer.limit(0);
+		}
+
+		int readInt() throws IOException
+		{
+			this.ensureAvailable(4);
+			return this.buffer.getInt();
+		}
+
+		long readLong() throws IOException
+		{
+			this.ensureAvailable(8);
+			return this.buffer.getLong();
+		}
+
+		String readString() throws IOException
+		{
+			byte[] bytes = new byte[this.readLength()];
+			this.readBytes(bytes, bytes.length);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Reads an amount of things to follow, refusing negative amounts rather than failing obscurely later on.
+		 */
+		int readLength() throws IOException
+		{
+			int length = this.readInt();
+			if (length < 0)
+			{
+				throw new IOException("The brain snapshot is corrupt.");
+			}
+
+			return length;
+		}
+
+		void readBytes(byte[] values, int length) throws IOException
+		{
+			for (int offset = 0; offset < length; )
+			{
+				this.ensureAvailable(1);
+
+				int count = Math.min(length - offset, this.buffer.remaining());
+				this.buffer.get(values, offset, count);
+				offset += count;
+			}
+		}
+
+		void readInts(int[] values, int length) throws IOException
+		{
+			for (int offset = 0; offset < length; )
+			{
+				this.ensureAvailable(4);
+
+				int count = Math.min(length - offset, this.buffer.remaining() / 4);
+				this.buffer.asIntBuffer().get(values, offset, count);
+				this.buffer.position(this.buffer.position() + count * 4);
+				offset += count;
+			}
+		}
+
+		private void ensureAvailable(int bytes) throws IOException
+		{
+			if (this.buffer.remaining() >= bytes)
+				return;
+
+			// keep what is left over and top the buffer up behind it
+			this.buffer.compact();
+			while (this.buffer.position() < bytes)
+			{
+				if (this.channel.read(this.buffer) < 0)
+				{
+					throw new EOFException("The brain snapshot ends unexpectedly.");
+				}
+			}
+			this.buffer.flip();
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Teaches MegaHal every message in a large corpus, such as years of channel logs, using every core.
+ *
+ * A corpus is any amount of files and directories of files, each holding one message per line in UTF-8, in the same
+ * way as the brain file; gzipped files are recognised by their contents and decompressed as they are read. Directories
+ * are searched recursively.
+ *
+ * The calling thread reads the files in large chunks, each cut at the end of a line, and hands them over to a pool of
+ * worker threads. Each worker breaks the lines of its chunks into tokens and counts their TokenGroups into a
+ * ContextTable of its own, without any locking beyond interning new tokens, and every so often merges its table into
+ * MegaHal's and starts a fresh one. A TokenGroup that is common in the corpus is therefore counted many times in a
+ * worker's table but only merged once per table, so merging takes a small share of the time, and MegaHal can carry on
+ * replying throughout.
+ *
+ * Nothing imported is appended to the brain journal, so a brain snapshot should be written afterwards to keep it.
+ */
+public final class BulkTrainer
+{
+	/**
+	 * The default amount of bytes read from a file at a time, and so handed to a worker at a time.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * The default amount of TokenGroups a worker counts before merging its table into MegaHal's.
+	 */
+	public static final int DEFAULT_TABLE_SIZE = 1 << 18;
+
+	/**
+	 * A gzipped file starts with these two bytes.
+	 */
+	private static final int GZIP_MAGIC = 0x1F8B;
+
+	/**
+	 * The size of the buffer that gzipped files are decompressed through, in bytes.
+	 */
+	private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * A run of whole lines read from a file.
+	 */
+	private static final class Chunk
+	{
+		// the bytes of the lines, of which only the first length are in use
+		private final byte[] bytes;
+		private final int length;
+
+		private Chunk(byte[] bytes, int length)
+		{
+			this.bytes = bytes;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Handed to each worker once every file has been read, to tell it to merge what it has left and stop.
+	 */
+	private static final Chunk END = new Chunk(new byte[0], 0);
+
+	/**
+	 * Takes chunks off the queue and learns from every line in them into a table of its own, until it takes END.
+	 */
+	private final class Worker extends Thread
+	{
+		private final BlockingQueue<Chunk> queue;
+
+		// what has been learnt since the last merge
+		private ContextTable table;
+
+		// what stopped the worker from learning, if anything did
+		private volatile Throwable failure = null;
+
+		private Worker(BlockingQueue<Chunk> queue, int number)
+		{
+			super("Chester bulk trainer " + number);
+			this.queue = queue;
+			this.table = new ContextTable(BulkTrainer.this.megaHal.getMarkovLength());
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				for (Chunk chunk = this.queue.take(); chunk != END; chunk = this.queue.take())
+				{
+					// carry on taking chunks after a failure, so that the reader never waits on a full queue forever
+					if (this.failure == null)
+					{
+						try
+						{
+							this.learn(chunk);
+						}
+						catch (Throwable e)
+						{
+							this.failure = e;
+						}
+					}
+				}
+
+				if (this.failure == null)
+				{
+					BulkTrainer.this.megaHal.addTable(this.table);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				this.failure = e;
+			}
+		}
+
+		/**
+		 * Learns from every line of a chunk, merging the table into MegaHal's whenever it has grown large enough.
+		 */
+		private void learn(Chunk chunk)
+		{
+			// a line end can never be part of a longer UTF-8 sequence, so each chunk decodes on its own
+			String text = new String(chunk.bytes, 0, chunk.length, StandardCharsets.UTF_8);
+
+			for (int start = 0; start < text.length(); )
+			{
+				int end = text.indexOf('\n', start);
+				if (end < 0)
+				{
+					end = text.length();
+				}
+
+				// tolerate files with Windows line ends
+				int messageEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+
+				BulkTrainer.this.messageCount.incrementAndGet();
+				if (BulkTrainer.this.megaHal.addMessage(this.table, text.substring(start, messageEnd)))
+				{
+					BulkTrainer.this.learntCount.incrementAndGet();
+				}
+
+				start = end + 1;
+			}
+
+			if (this.table.getGroupCount() >= BulkTrainer.this.tableSize)
+			{
+				BulkTrainer.this.megaHal.addTable(this.table);
+				this.table = new ContextTable(BulkTrainer.this.megaHal.getMarkovLength());
+			}
+		}
+	}
+
+	/**
+	 * The instance of MegaHal to teach.
+	 */
+	private final MegaHal megaHal;
+
+	/**
+	 * The amount of worker threads.
+	 */
+	private final int threadCount;
+
+	/**
+	 * The amount of bytes read from a file at a time.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The amount of TokenGroups a worker counts before merging its table into MegaHal's.
+	 */
+	private final int tableSize;
+
+	// statistics about the messages that have been imported
+	private final AtomicLong messageCount = new AtomicLong();
+	private final AtomicLong learntCount = new AtomicLong();
+
+	/**
+	 * Creates a BulkTrainer with one worker for each processor, and the default chunk and table sizes.
+	 *
+	 * @param megaHal The instance of MegaHal to teach
+	 */
+	public BulkTrainer(MegaHal megaHal)
+	{
+		this(megaHal, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, DEFAULT_TABLE_SIZE);
+	}
+
+	/**
+	 * Creates a BulkTrainer.
+	 *
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param threadCount The amount of worker threads
+	 * @param chunkSize The amount of bytes read from a file at a time; lines longer than this are still read whole
+	 * @param tableSize The amount of TokenGroups each worker counts before merging its table into MegaHal's; larger
+	 *                  tables merge less often, but hold more memory
+	 */
+	public BulkTrainer(MegaHal megaHal, int threadCount, int chunkSize, int tableSize)
+	{
+		if (threadCount < 1)
+		{
+			throw new IllegalArgumentException("There must be at least one worker thread.");
+		}
+
+		if (chunkSize < 1)
+		{
+			throw new IllegalArgumentException("The chunk size must be positive.");
+		}
+
+		this.megaHal = megaHal;
+		this.threadCount = threadCount;
+		this.chunkSize = chunkSize;
+		this.tableSize = tableSize;
+	}
+
+	/**
+	 * Teaches MegaHal every message in some files, and in every file in some directories. This returns once every
+	 * message has been learnt and merged in. If reading fails part of the way through, whatever had been read is still
+	 * learnt before the failure is thrown.
+	 *
+	 * @param paths The files and directories
+	 * @throws IOException If a file could not be read
+	 * @throws InterruptedException If interrupted while waiting for the workers
+	 * @throws IllegalStateException If a worker failed to learn; what the other workers learnt is kept
+	 */
+	public void importFiles(List<File> paths) throws IOException, InterruptedException
+	{
+		List<File> files = new ArrayList<File>();
+		for (File path : paths)
+		{
+			listFiles(path, files);
+		}
+
+		BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(this.threadCount * 2);
+		Worker[] workers = new Worker[this.threadCount];
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Worker(queue, i + 1);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		try
+		{
+			for (File file : files)
+			{
+				this.readFile(file, queue, workers);
+			}
+		}
+		finally
+		{
+			// each worker takes exactly one END, after every chunk queued before it
+			for (int i = 0; i < workers.length; i++)
+			{
+				queue.put(END);
+			}
+
+			for (Worker worker : workers)
+			{
+				worker.join();
+			}
+		}
+
+		for (Worker worker : workers)
+		{
+			if (worker.failure != null)
+			{
+				throw new IllegalStateException("A bulk trainer worker failed.", worker.failure);
+			}
+		}
+	}
+
+	/**
+	 * Gets the amount of lines read so far.
+	 *
+	 * @return The amount of lines
+	 */
+	public long getMessageCount()
+	{
+		return this.messageCount.get();
+	}
+
+	/**
+	 * Gets the amount of lines learnt from so far; lines too short to learn anything from are not counted.
+	 *
+	 * @return The amount of lines
+	 */
+	public long getLearntCount()
+	{
+		return this.learntCount.get();
+	}
+
+	/**
+	 * Reads a file in chunks of whole lines and queues them for the workers, stopping early if a worker has failed.
+	 *
+	 * @param file The file
+	 * @param queue The queue the workers take chunks from
+	 * @param workers The workers
+	 * @throws IOException If the file could not be read
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
+	 */
+	private void readFile(File file, BlockingQueue<Chunk> queue, Worker[] workers) throws IOException, InterruptedException
+	{
+		ReadableByteChannel channel = openFile(file);
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(this.chunkSize);
+			boolean ended = false;
+
+			while (!ended)
+			{
+				while (buffer.hasRemaining() && !ended)
+				{
+					ended = channel.read(buffer) < 0;
+				}
+
+				byte[] bytes = buffer.array();
+				int length = buffer.position();
+
+				// cut the chunk after its last line end, or take everything that is left at the end of the file
+				int end = ended ? length : lastLineEnd(bytes, length);
+
+				if (end == 0 && !ended)
+				{
+					// a single line fills the whole buffer; make room for the rest of it
+					buffer = ByteBuffer.allocate(bytes.length * 2);
+					buffer.put(bytes, 0, length);
+					continue;
+				}
+
+				if (end > 0)
+				{
+					queue.put(new Chunk(bytes, end));
+				}
+
+				for (Worker worker : workers)
+				{
+					if (worker.failure != null)
+						return;
+				}
+
+				// the chunk now belongs to a worker, so start a new buffer with the partial line that was left over
+				buffer = ByteBuffer.allocate(Math.max(this.chunkSize, length - end));
+				buffer.put(bytes, end, length - end);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Opens a file for reading, decompressing it as it is read if it is gzipped.
+	 *
+	 * @param file The file
+	 * @return A channel to read the contents of the file from
+	 * @throws IOException If the file could not be opened
+	 */
+	private static ReadableByteChannel openFile(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			while (magic.hasRemaining() && channel.read(magic) >= 0)
+			{
+				// keep reading until both bytes are in, or the file ends
+			}
+			channel.position(0);
+
+			if (magic.position() == 2 && (magic.getShort(0) & 0xFFFF) == GZIP_MAGIC)
+			{
+				return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel), GZIP_BUFFER_SIZE));
+			}
+
+			return channel;
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds a file, or every file in a directory and the directories within it, to a List, in order of their paths.
+	 *
+	 * @param path The file or directory
+	 * @param files The List to add to
+	 * @throws IOException If a directory could not be searched
+	 */
+	private static void listFiles(File path, final List<File> files) throws IOException
+	{
+		final List<File> found = new ArrayList<File>();
+
+		Files.walkFileTree(path.toPath(), new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+			{
+				if (attributes.isRegularFile())
+				{
+					found.add(file.toFile());
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		// logs are usually named by date, so this reads them in order
+		Collections.sort(found);
+		files.addAll(found);
+	}
+
+	/**
+	 * Finds where the last line in some bytes ends.
+	 *
+	 * @param bytes The bytes
+	 * @param length The amount of bytes in use
+	 * @return The index just after the last line end, else 0 if there is none
+	 */
+	private static int lastLineEnd(byte[] bytes, int length)
+	{
+		for (int i = length - 1; i >= 0; i--)
+		{
+			if (bytes[i] == '\n')
+			{
+				return i + 1;
+			}
+		}
+
+		return 0;
+	}
+}
@@ -3,30 +3,19 @@ package com.hoolean.chester;
 import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.ClientBuilder;
 
+import javax.management.JMException;
 import java.io.*;
+import java.util.Arrays;
 import java.util.Properties;
-import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 public class ChesterExecutable
 {
-	// keys and default values for the config
-	private static final String PROPERTY_KEY_NICK = "name";
-	private static final String PROPERTY_DEFAULT_NICK = "Chester";
-
-	private static final String PROPERTY_KEY_USER = "user";
-	private static final String PROPERTY_DEFAULT_USER = "Chester";
-
-	private static final String PROPERTY_KEY_SERVER = "server";
-	private static final String PROPERTY_DEFAULT_SERVER = "irc.esper.net:5555";
-
-	private static final String PROPERTY_KEY_CHANNELS = "channels";
-	private static final String PROPERTY_DEFAULT_CHANNELS = "#drtshock, #hawkfalcon";
-
-	private static final String DEFAULT_BRAIN = "Hello World\nCan I have some coffee?\nPlease slap me";
-
 	/**
-	 * Starts a Chester IRC client with the settings found in config.properties.
+	 * Starts a Chester IRC client with the settings found in config.properties, or imports past messages if called with
+	 * --import.
 	 *
 	 * @param args The command line arguments called with it
 	 */
@@ -34,35 +23,54 @@ public class ChesterExecutable
 	{
 		// TODO: support all properties
 
-		Properties properties = getProperties();
+		Properties properties = Config.getProperties();
+
+		// the config as it was last read, which is read again whenever it changes
+		final AtomicReference<Properties> config = new AtomicReference<Properties>(properties);
+
+		// search for replies on a pool of their own, sharing its threads out between the replies that can be built at
+		// once, so that each reply's searches start straight away rather than queueing behind another's
+		int replyThreads = Math.max(1, Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_THREADS, Config.PROPERTY_DEFAULT_REPLY_THREADS));
+		ForkJoinPool replyPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		int replySearchCount = Math.max(1, replyPool.getParallelism() / replyThreads);
+
+		// load and set up brains as the config says
+		BrainLoader brainLoader = new BrainLoader(config, replyPool, replySearchCount);
+
+		if (args.length > 0 && args[0].equals(CorpusImporter.ARGUMENT_IMPORT))
+		{
+			new CorpusImporter(brainLoader).importCorpus(properties, Arrays.asList(args).subList(1, args.length));
+			return;
+		}
+
 		ClientBuilder clientBuilder = new ClientBuilder();
 
-		if (properties.stringPropertyNames().contains(PROPERTY_KEY_NICK))
+		if (properties.stringPropertyNames().contains(Config.PROPERTY_KEY_NICK))
 		{
-			clientBuilder.nick(properties.getProperty(PROPERTY_KEY_NICK));
+			clientBuilder.nick(properties.getProperty(Config.PROPERTY_KEY_NICK));
 		}
 		else
 		{
-			clientBuilder.nick(PROPERTY_DEFAULT_NICK);
+			clientBuilder.nick(Config.PROPERTY_DEFAULT_NICK);
 		}
 
-		if (properties.stringPropertyNames().contains(PROPERTY_KEY_USER))
+		if (properties.stringPropertyNames().contains(Config.PROPERTY_KEY_USER))
 		{
-			clientBuilder.user(properties.getProperty(PROPERTY_KEY_USER));
+			clientBuilder.user(properties.getProperty(Config.PROPERTY_KEY_USER));
 		}
 		else
 		{
-			clientBuilder.user(PROPERTY_DEFAULT_USER);
+			clientBuilder.user(Config.PROPERTY_DEFAULT_USER);
 		}
 
 		String serverString;
-		if (properties.stringPropertyNames().contains(PROPERTY_KEY_SERVER))
+		if (properties.stringPropertyNames().contains(Config.PROPERTY_KEY_SERVER))
 		{
-			serverString = properties.getProperty(PROPERTY_KEY_SERVER);
+			serverString = properties.getProperty(Config.PROPERTY_KEY_SERVER);
 		}
 		else
 		{
-			serverString = PROPERTY_DEFAULT_SERVER;
+			serverString = Config.PROPERTY_DEFAULT_SERVER;
 		}
 
 		String[] serverParts = serverString.split(":");
@@ -76,108 +84,137 @@ public class ChesterExecutable
 			System.err.println(String.format("'%s' is not a valid server port number. The default port will be used.", serverParts[1]));
 		}
 
-		Client client = clientBuilder.build();
+		final Client client = clientBuilder.build();
 
-		String channelString;
-		if (properties.stringPropertyNames().contains(PROPERTY_KEY_CHANNELS))
+		for (String channel : Config.getChannels(properties).values())
 		{
-			channelString = properties.getProperty(PROPERTY_KEY_CHANNELS);
-		}
-		else
-		{
-			channelString = PROPERTY_DEFAULT_CHANNELS;
+			client.addChannel(channel);
 		}
 
-		for (String channel : channelString.split(","))
-		{
-			client.addChannel(channel.trim());
-		}
+		// the metrics of every part of Chester, which are registered as each part is created
+		Metrics metrics = new Metrics();
+
+		final Metrics.Counter exceptionCount = new Metrics.Counter();
+		metrics.register("chester_irc_exceptions_total", "Exceptions thrown by the IRC client.", exceptionCount);
 
 		// TODO: consider changing Consumer to lambda
 
-		// log any Exceptions
+		// log and count any Exceptions
 		client.setExceptionListener(new Consumer<Exception>()
 		{
 			@Override
 			public void accept(Exception e)
 			{
+				exceptionCount.increment();
 				e.printStackTrace();
 			}
 		});
 
-		// create an instance of MegaHal to learn and reply
-		MegaHal hal = new MegaHal();
-
-		// the defaul brain file
-		File brainFile = new File("brain.txt");
-		Scanner brainScanner;
-		try
+		// host the brains that Chester learns and replies with, opening the shared brain straight away if there is one
+		final BrainManager brainManager = brainLoader.createBrainManager(metrics);
+		if (brainManager == null)
 		{
-			brainScanner = new Scanner(brainFile);
-		}
-		catch (FileNotFoundException e)
-		{
-			brainScanner = new Scanner(DEFAULT_BRAIN);
+			client.shutdown("Could not open the brain.");
+			return;
 		}
 
-		// load each sentence
-		while (brainScanner.hasNextLine())
+		// build replies away from the event thread, no more often than each channel's rate limit allows
+		final ReplyScheduler replyScheduler = createReplyScheduler(properties, replyThreads);
+		replyScheduler.registerMetrics(metrics);
+
+		// join and part channels, and swap in retrained brains, as the files they are set in change
+		final FileWatcher fileWatcher = new ConfigReloader(config, client, brainManager, replyScheduler, brainLoader, metrics)
+				.watchFiles();
+
+		exportMetrics(properties, metrics);
+
+		// stop replying, then learn and store whatever is still queued when the JVM is shutting down
+		Runtime.getRuntime().addShutdownHook(new Thread()
 		{
-			hal.addMessage(brainScanner.nextLine());
-		}
+			@Override
+			public void run()
+			{
+				if (fileWatcher != null)
+				{
+					try
+					{
+						fileWatcher.close();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+
+				replyScheduler.close();
+
+				try
+				{
+					brainManager.close();
+				}
+				catch (IOException e)
+				{
+					System.err.println("Could not store the last learnt messages in the brain file.");
+					e.printStackTrace();
+				}
+			}
+		});
 
 		// register a Listener to cause Chester to learn and reply to messages in channels he joins
-		client.getEventManager().registerEventListener(new ConverseListener(hal, brainFile));
+		client.getEventManager().registerEventListener(new ConverseListener(brainManager, replyScheduler));
 	}
 
 	/**
-	 * Gets the properties at config.properties else creates the file with default value.
+	 * Creates the ReplyScheduler that builds and sends replies, with the rate limits the config says.
 	 *
-	 * @return The Properties found, else the default Properties
+	 * @param properties The config
+	 * @param threads The amount of threads to build replies on
+	 * @return The scheduler
 	 */
-	private static Properties getProperties()
+	private static ReplyScheduler createReplyScheduler(Properties properties, int threads)
 	{
-		// TODO: remove unnecessary timestamp
-		// TODO: have values unescaped
-
-		// the default config location
-		File configFile = new File("config.properties");
-		Properties properties = new Properties();
-		boolean createDefault = false;
-		try
-		{
-			properties.load(new FileInputStream(configFile));
-		}
-		catch (FileNotFoundException e)
-		{
-			System.err.println(String.format("Config file does not exist at '%s'; attempting to create it.", configFile.getAbsolutePath()));
-			createDefault = true;
-		}
-		catch (IOException e)
-		{
-			System.err.println(String.format("Failed to read config file at '%s'.", configFile.getAbsolutePath()));
-			createDefault = true;
-		}
+		ReplyScheduler replyScheduler = new ReplyScheduler(threads, ReplyScheduler.DEFAULT_INTERVAL,
+				ReplyScheduler.DEFAULT_BURST, ReplyScheduler.DEFAULT_STALE_AFTER);
+		ConfigReloader.setReplyRateLimits(properties, replyScheduler);
+		return replyScheduler;
+	}
 
-		if (createDefault)
+	/**
+	 * Makes metrics readable from outside of Chester, in the ways the config says; over JMX, and as text over HTTP on a
+	 * port of the loopback address. Failing to export them is not a reason to stop Chester running.
+	 *
+	 * @param properties The config
+	 * @param metrics The metrics
+	 */
+	private static void exportMetrics(Properties properties, Metrics metrics)
+	{
+		if (Boolean.parseBoolean(properties.getProperty(Config.PROPERTY_KEY_METRICS_JMX, Config.PROPERTY_DEFAULT_METRICS_JMX).trim()))
 		{
-			properties.setProperty(PROPERTY_KEY_NICK, PROPERTY_DEFAULT_NICK);
-			properties.setProperty(PROPERTY_KEY_USER, PROPERTY_DEFAULT_USER);
-			properties.setProperty(PROPERTY_KEY_SERVER, PROPERTY_DEFAULT_SERVER);
-			properties.setProperty(PROPERTY_KEY_CHANNELS, PROPERTY_DEFAULT_CHANNELS);
-
 			try
 			{
-				properties.store(new FileOutputStream(configFile), null);
+				metrics.registerMBean();
 			}
-			catch (IOException e)
+			catch (JMException e)
 			{
-				System.err.println("There was an issue when creating a default config file.");
+				System.err.println("Could not register the metrics with JMX.");
+				e.printStackTrace();
 			}
-
-			return properties;
 		}
 
-		return properties;
+		// the metrics are only served over HTTP if a port is given
+		int port = Config.getIntProperty(properties, Config.PROPERTY_KEY_METRICS_PORT, Config.PROPERTY_DEFAULT_METRICS_PORT);
+		if (port <= 0)
+			return;
+
+		try
+		{
+			// the server's thread is a daemon, so it is left to stop with the JVM
+			new MetricsServer(metrics, port);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not serve metrics on port %d.", port));
+			e.printStackTrace();
+		}
 	}
 }
@@ -0,0 +1,377 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The keys and default values of everything in config.properties, and the ways they are read.
+ *
+ * Chester reads the config when he starts, and again whenever it changes if he is watching it; everything that reads a
+ * property is handed the Properties as they were last read, so that it sees one version of the config throughout.
+ */
+final class Config
+{
+	/**
+	 * Where MegaHal's brain is kept while Chester runs.
+	 */
+	enum BrainStorage
+	{
+		/**
+		 * Entirely on the heap, loaded from a BrainSnapshot.
+		 */
+		HEAP,
+
+		/**
+		 * In a MappedChain read in place, with only what has been learnt since it was written on the heap.
+		 */
+		MAPPED,
+
+		/**
+		 * On the heap, loaded from a BrainSnapshot and then frozen into a FrozenChain, with only what has been learnt
+		 * since it was last frozen kept in a ContextTable on top; it is frozen again each time a snapshot is written.
+		 */
+		FROZEN
+	}
+
+	/**
+	 * Which channels share a brain.
+	 */
+	enum BrainMode
+	{
+		/**
+		 * Every channel shares one brain, kept in the working directory.
+		 */
+		SHARED,
+
+		/**
+		 * Each channel has a brain of its own, kept in a directory of its own in the brain directory, unless it has
+		 * been given the name of another channel's brain.
+		 */
+		CHANNEL
+	}
+
+	// keys and default values for the config
+	static final String PROPERTY_KEY_NICK = "name";
+	static final String PROPERTY_DEFAULT_NICK = "Chester";
+
+	static final String PROPERTY_KEY_USER = "user";
+	static final String PROPERTY_DEFAULT_USER = "Chester";
+
+	static final String PROPERTY_KEY_SERVER = "server";
+	static final String PROPERTY_DEFAULT_SERVER = "irc.esper.net:5555";
+
+	static final String PROPERTY_KEY_CHANNELS = "channels";
+	static final String PROPERTY_DEFAULT_CHANNELS = "#drtshock, #hawkfalcon";
+
+	static final String PROPERTY_KEY_LEARN_QUEUE_CAPACITY = "learn.queue.capacity";
+	static final String PROPERTY_DEFAULT_LEARN_QUEUE_CAPACITY = String.valueOf(LearningPipeline.DEFAULT_CAPACITY);
+
+	static final String PROPERTY_KEY_LEARN_BATCH_SIZE = "learn.batch.size";
+	static final String PROPERTY_DEFAULT_LEARN_BATCH_SIZE = String.valueOf(LearningPipeline.DEFAULT_BATCH_SIZE);
+
+	static final String PROPERTY_KEY_LEARN_OVERFLOW = "learn.overflow";
+	static final String PROPERTY_DEFAULT_LEARN_OVERFLOW = LearningPipeline.OverflowPolicy.DROP_OLDEST.name();
+
+	static final String PROPERTY_KEY_LEARN_SEEN_WINDOW = "learn.seen.window";
+	static final String PROPERTY_DEFAULT_LEARN_SEEN_WINDOW = "0";
+
+	static final String PROPERTY_KEY_LEARN_SEEN_MIN_LENGTH = "learn.seen.min.length";
+	static final String PROPERTY_DEFAULT_LEARN_SEEN_MIN_LENGTH = String.valueOf(SeenFilter.DEFAULT_MIN_LENGTH);
+
+	static final String PROPERTY_KEY_JOURNAL_COMMIT_SIZE = "journal.commit.size";
+	static final String PROPERTY_DEFAULT_JOURNAL_COMMIT_SIZE = String.valueOf(BrainJournal.DEFAULT_COMMIT_SIZE);
+
+	static final String PROPERTY_KEY_JOURNAL_COMMIT_INTERVAL = "journal.commit.interval";
+	static final String PROPERTY_DEFAULT_JOURNAL_COMMIT_INTERVAL = String.valueOf(BrainJournal.DEFAULT_COMMIT_INTERVAL);
+
+	static final String PROPERTY_KEY_JOURNAL_SYNC = "journal.sync";
+	static final String PROPERTY_DEFAULT_JOURNAL_SYNC = BrainJournal.SyncPolicy.NEVER.name();
+
+	static final String PROPERTY_KEY_SNAPSHOT_FILE = "snapshot.file";
+	static final String PROPERTY_DEFAULT_SNAPSHOT_FILE = "brain.snapshot";
+
+	static final String PROPERTY_KEY_SNAPSHOT_INTERVAL = "snapshot.interval";
+	static final String PROPERTY_DEFAULT_SNAPSHOT_INTERVAL = String.valueOf(15 * 60 * 1000);
+
+	static final String PROPERTY_KEY_BRAIN_STORAGE = "brain.storage";
+	static final String PROPERTY_DEFAULT_BRAIN_STORAGE = BrainStorage.HEAP.name();
+
+	static final String PROPERTY_KEY_BRAIN_MAPPED_FILE = "brain.mapped.file";
+	static final String PROPERTY_DEFAULT_BRAIN_MAPPED_FILE = "brain.map";
+
+	static final String PROPERTY_KEY_REPLY_TIME_BUDGET = "reply.time.budget";
+	static final String PROPERTY_DEFAULT_REPLY_TIME_BUDGET = String.valueOf(MegaHal.DEFAULT_REPLY_TIME_BUDGET);
+
+	static final String PROPERTY_KEY_REPLY_MAX_LENGTH = "reply.max.length";
+	static final String PROPERTY_DEFAULT_REPLY_MAX_LENGTH = String.valueOf(MegaHal.DEFAULT_MAX_REPLY_LENGTH);
+
+	static final String PROPERTY_KEY_REPLY_MAX_WALK_TIME = "reply.max.walk.time";
+	static final String PROPERTY_DEFAULT_REPLY_MAX_WALK_TIME = String.valueOf(MegaHal.DEFAULT_MAX_WALK_TIME);
+
+	static final String PROPERTY_KEY_REPLY_THREADS = "reply.threads";
+	static final String PROPERTY_DEFAULT_REPLY_THREADS = String.valueOf(ReplyScheduler.DEFAULT_THREADS);
+
+	static final String PROPERTY_KEY_REPLY_INTERVAL = "reply.interval";
+	static final String PROPERTY_DEFAULT_REPLY_INTERVAL = String.valueOf(ReplyScheduler.DEFAULT_INTERVAL);
+
+	static final String PROPERTY_KEY_REPLY_BURST = "reply.burst";
+	static final String PROPERTY_DEFAULT_REPLY_BURST = String.valueOf(ReplyScheduler.DEFAULT_BURST);
+
+	static final String PROPERTY_KEY_REPLY_STALE = "reply.stale";
+	static final String PROPERTY_DEFAULT_REPLY_STALE = String.valueOf(ReplyScheduler.DEFAULT_STALE_AFTER);
+
+	static final String PROPERTY_KEY_BRAIN_MODE = "brain.mode";
+	static final String PROPERTY_DEFAULT_BRAIN_MODE = BrainMode.SHARED.name();
+
+	static final String PROPERTY_KEY_BRAIN_DIRECTORY = "brain.directory";
+	static final String PROPERTY_DEFAULT_BRAIN_DIRECTORY = "brains";
+
+	static final String PROPERTY_KEY_BRAIN_IDLE_TIMEOUT = "brain.idle.timeout";
+	static final String PROPERTY_DEFAULT_BRAIN_IDLE_TIMEOUT = String.valueOf(30 * 60 * 1000);
+
+	static final String PROPERTY_KEY_BRAIN_LEARN_THREADS = "brain.learn.threads";
+	static final String PROPERTY_DEFAULT_BRAIN_LEARN_THREADS = "2";
+
+	// followed by the name of a channel, the name of the brain it is given
+	static final String PROPERTY_PREFIX_BRAIN_NAME = "brain.name.";
+
+	static final String PROPERTY_KEY_BRAIN_MEMORY_BUDGET = "brain.memory.budget";
+	static final String PROPERTY_DEFAULT_BRAIN_MEMORY_BUDGET = "0";
+
+	static final String PROPERTY_KEY_BRAIN_PRUNE_DECAY = "brain.prune.decay";
+	static final String PROPERTY_DEFAULT_BRAIN_PRUNE_DECAY = String.valueOf(Math.round(MegaHal.DEFAULT_PRUNE_DECAY * 100));
+
+	static final String PROPERTY_KEY_BRAIN_BACKOFF_ORDERS = "brain.backoff.orders";
+	static final String PROPERTY_DEFAULT_BRAIN_BACKOFF_ORDERS = String.valueOf(MegaHal.DEFAULT_BACKOFF_ORDERS);
+
+	static final String PROPERTY_KEY_METRICS_PORT = "metrics.port";
+	static final String PROPERTY_DEFAULT_METRICS_PORT = "0";
+
+	static final String PROPERTY_KEY_METRICS_JMX = "metrics.jmx";
+	static final String PROPERTY_DEFAULT_METRICS_JMX = "true";
+
+	static final String PROPERTY_KEY_CONFIG_WATCH = "config.watch";
+	static final String PROPERTY_DEFAULT_CONFIG_WATCH = "true";
+
+	static final String PROPERTY_KEY_BRAIN_RELOAD_FILE = "brain.reload.file";
+	static final String PROPERTY_DEFAULT_BRAIN_RELOAD_FILE = "brain.snapshot.new";
+
+	/**
+	 * The config file, kept in the working directory.
+	 */
+	static final String CONFIG_FILE = "config.properties";
+
+	private Config()
+	{
+	}
+
+	/**
+	 * Gets the channels the config says to join.
+	 *
+	 * @param properties The config
+	 * @return The names of the channels, by their names in lower case, in the order they are given
+	 */
+	static Map<String, String> getChannels(Properties properties)
+	{
+		Map<String, String> channels = new LinkedHashMap<String, String>();
+
+		for (String channel : properties.getProperty(PROPERTY_KEY_CHANNELS, PROPERTY_DEFAULT_CHANNELS).split(","))
+		{
+			channel = channel.trim();
+			if (!channel.isEmpty())
+			{
+				channels.put(channel.toLowerCase(Locale.ROOT), channel);
+			}
+		}
+
+		return channels;
+	}
+
+	/**
+	 * Gets the names the config gives the brains of channels, rather than them being named after their channels.
+	 *
+	 * @param properties The config
+	 * @return The names of the brains, by the names of their channels
+	 */
+	static Map<String, String> getChannelBrains(Properties properties)
+	{
+		Map<String, String> channelBrains = new LinkedHashMap<String, String>();
+
+		for (String key : properties.stringPropertyNames())
+		{
+			if (key.startsWith(PROPERTY_PREFIX_BRAIN_NAME))
+			{
+				channelBrains.put(key.substring(PROPERTY_PREFIX_BRAIN_NAME.length()),
+						BrainManager.getDefaultBrainName(properties.getProperty(key).trim()));
+			}
+		}
+
+		return channelBrains;
+	}
+
+	/**
+	 * Gets a whole number property, falling back to the default if it is missing or not a number.
+	 *
+	 * @param properties The Properties to read from
+	 * @param key The key of the property
+	 * @param defaultValue The default value of the property
+	 * @return The value of the property
+	 */
+	static int getIntProperty(Properties properties, String key, String defaultValue)
+	{
+		String value = properties.getProperty(key, defaultValue);
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println(String.format("'%s' is not a valid value for '%s'. The default will be used.", value, key));
+			return Integer.parseInt(defaultValue);
+		}
+	}
+
+	/**
+	 * Gets a property naming one of the values of an enum, falling back to the default if it is missing or unknown.
+	 *
+	 * @param properties The Properties to read from
+	 * @param key The key of the property
+	 * @param defaultValue The default value of the property
+	 * @param type The enum the value belongs to
+	 * @param <E> The type of the enum
+	 * @return The value of the property
+	 */
+	static <E extends Enum<E>> E getEnumProperty(Properties properties, String key, String defaultValue, Class<E> type)
+	{
+		String value = properties.getProperty(key, defaultValue);
+		try
+		{
+			return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(String.format("'%s' is not a valid value for '%s'. The default will be used.", value, key));
+			return Enum.valueOf(type, defaultValue);
+		}
+	}
+
+	/**
+	 * Gets the properties at config.properties else creates the file with default value.
+	 *
+	 * @return The Properties found, else the default Properties
+	 */
+	static Properties getProperties()
+	{
+		// TODO: remove unnecessary timestamp
+		// TODO: have values unescaped
+
+		// the default config location
+		File configFile = new File(CONFIG_FILE);
+		Properties properties = new Properties();
+		boolean createDefault = false;
+		try
+		{
+			properties.load(new FileInputStream(configFile));
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(String.format("Config file does not exist at '%s'; attempting to create it.", configFile.getAbsolutePath()));
+			createDefault = true;
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Failed to read config file at '%s'.", configFile.getAbsolutePath()));
+			createDefault = true;
+		}
+
+		if (createDefault)
+		{
+			properties.setProperty(PROPERTY_KEY_NICK, PROPERTY_DEFAULT_NICK);
+			properties.setProperty(PROPERTY_KEY_USER, PROPERTY_DEFAULT_USER);
+			properties.setProperty(PROPERTY_KEY_SERVER, PROPERTY_DEFAULT_SERVER);
+			properties.setProperty(PROPERTY_KEY_CHANNELS, PROPERTY_DEFAULT_CHANNELS);
+			properties.setProperty(PROPERTY_KEY_LEARN_QUEUE_CAPACITY, PROPERTY_DEFAULT_LEARN_QUEUE_CAPACITY);
+			properties.setProperty(PROPERTY_KEY_LEARN_BATCH_SIZE, PROPERTY_DEFAULT_LEARN_BATCH_SIZE);
+			properties.setProperty(PROPERTY_KEY_LEARN_OVERFLOW, PROPERTY_DEFAULT_LEARN_OVERFLOW);
+			properties.setProperty(PROPERTY_KEY_LEARN_SEEN_WINDOW, PROPERTY_DEFAULT_LEARN_SEEN_WINDOW);
+			properties.setProperty(PROPERTY_KEY_LEARN_SEEN_MIN_LENGTH, PROPERTY_DEFAULT_LEARN_SEEN_MIN_LENGTH);
+			properties.setProperty(PROPERTY_KEY_JOURNAL_COMMIT_SIZE, PROPERTY_DEFAULT_JOURNAL_COMMIT_SIZE);
+			properties.setProperty(PROPERTY_KEY_JOURNAL_COMMIT_INTERVAL, PROPERTY_DEFAULT_JOURNAL_COMMIT_INTERVAL);
+			properties.setProperty(PROPERTY_KEY_JOURNAL_SYNC, PROPERTY_DEFAULT_JOURNAL_SYNC);
+			properties.setProperty(PROPERTY_KEY_SNAPSHOT_FILE, PROPERTY_DEFAULT_SNAPSHOT_FILE);
+			properties.setProperty(PROPERTY_KEY_SNAPSHOT_INTERVAL, PROPERTY_DEFAULT_SNAPSHOT_INTERVAL);
+			properties.setProperty(PROPERTY_KEY_BRAIN_STORAGE, PROPERTY_DEFAULT_BRAIN_STORAGE);
+			properties.setProperty(PROPERTY_KEY_BRAIN_MAPPED_FILE, PROPERTY_DEFAULT_BRAIN_MAPPED_FILE);
+			properties.setProperty(PROPERTY_KEY_REPLY_TIME_BUDGET, PROPERTY_DEFAULT_REPLY_TIME_BUDGET);
+			properties.setProperty(PROPERTY_KEY_REPLY_MAX_LENGTH, PROPERTY_DEFAULT_REPLY_MAX_LENGTH);
+			properties.setProperty(PROPERTY_KEY_REPLY_MAX_WALK_TIME, PROPERTY_DEFAULT_REPLY_MAX_WALK_TIME);
+			properties.setProperty(PROPERTY_KEY_REPLY_THREADS, PROPERTY_DEFAULT_REPLY_THREADS);
+			properties.setProperty(PROPERTY_KEY_REPLY_INTERVAL, PROPERTY_DEFAULT_REPLY_INTERVAL);
+			properties.setProperty(PROPERTY_KEY_REPLY_BURST, PROPERTY_DEFAULT_REPLY_BURST);
+			properties.setProperty(PROPERTY_KEY_REPLY_STALE, PROPERTY_DEFAULT_REPLY_STALE);
+			properties.setProperty(PROPERTY_KEY_BRAIN_MODE, PROPERTY_DEFAULT_BRAIN_MODE);
+			properties.setProperty(PROPERTY_KEY_BRAIN_DIRECTORY, PROPERTY_DEFAULT_BRAIN_DIRECTORY);
+			properties.setProperty(PROPERTY_KEY_BRAIN_IDLE_TIMEOUT, PROPERTY_DEFAULT_BRAIN_IDLE_TIMEOUT);
+			properties.setProperty(PROPERTY_KEY_BRAIN_LEARN_THREADS, PROPERTY_DEFAULT_BRAIN_LEARN_THREADS);
+			properties.setProperty(PROPERTY_KEY_BRAIN_MEMORY_BUDGET, PROPERTY_DEFAULT_BRAIN_MEMORY_BUDGET);
+			properties.setProperty(PROPERTY_KEY_BRAIN_PRUNE_DECAY, PROPERTY_DEFAULT_BRAIN_PRUNE_DECAY);
+			properties.setProperty(PROPERTY_KEY_BRAIN_BACKOFF_ORDERS, PROPERTY_DEFAULT_BRAIN_BACKOFF_ORDERS);
+			properties.setProperty(PROPERTY_KEY_METRICS_PORT, PROPERTY_DEFAULT_METRICS_PORT);
+			properties.setProperty(PROPERTY_KEY_METRICS_JMX, PROPERTY_DEFAULT_METRICS_JMX);
+			properties.setProperty(PROPERTY_KEY_CONFIG_WATCH, PROPERTY_DEFAULT_CONFIG_WATCH);
+			properties.setProperty(PROPERTY_KEY_BRAIN_RELOAD_FILE, PROPERTY_DEFAULT_BRAIN_RELOAD_FILE);
+
+			try
+			{
+				properties.store(new FileOutputStream(configFile), null);
+			}
+			catch (IOException e)
+			{
+				System.err.println("There was an issue when creating a default config file.");
+			}
+
+			return properties;
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Reads the config file again while Chester runs; unlike getProperties(), the file is never created.
+	 *
+	 * @param configFile The config file
+	 * @return The Properties found, else null if the file could not be read
+	 */
+	static Properties readProperties(File configFile)
+	{
+		Properties properties = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(configFile);
+			try
+			{
+				properties.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Failed to read config file at '%s'; the config in use will be kept.", configFile.getAbsolutePath()));
+			e.printStackTrace();
+			return null;
+		}
+
+		return properties;
+	}
+}
@@ -0,0 +1,346 @@
+package com.hoolean.chester;
+
+import org.kitteh.irc.client.library.Client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes the changes to Chester that can be made while he runs; reading the config again whenever it changes, and
+ * swapping in a retrained brain whenever one is dropped in beside the brain that every channel shares.
+ */
+final class ConfigReloader
+{
+	/**
+	 * The keys of the properties that are only read when Chester starts, so that changing them while he runs has no
+	 * effect until he is restarted; every other property takes effect when the config is reloaded, or, for those that
+	 * set brains up, once each brain is next opened.
+	 */
+	private static final List<String> RESTART_PROPERTY_KEYS = Arrays.asList(Config.PROPERTY_KEY_USER,
+			Config.PROPERTY_KEY_SERVER, Config.PROPERTY_KEY_BRAIN_MODE, Config.PROPERTY_KEY_BRAIN_LEARN_THREADS,
+			Config.PROPERTY_KEY_BRAIN_IDLE_TIMEOUT, Config.PROPERTY_KEY_REPLY_THREADS, Config.PROPERTY_KEY_METRICS_PORT,
+			Config.PROPERTY_KEY_METRICS_JMX, Config.PROPERTY_KEY_CONFIG_WATCH, Config.PROPERTY_KEY_BRAIN_RELOAD_FILE);
+
+	/**
+	 * The reason given when parting a channel that has been removed from the config.
+	 */
+	private static final String PART_REASON = "Leaving";
+
+	/**
+	 * The config, as it was last read, which is replaced each time the config is read again.
+	 */
+	private final AtomicReference<Properties> config;
+
+	/**
+	 * The IRC client, whose channels and nick are changed as the config says.
+	 */
+	private final Client client;
+
+	/**
+	 * The host of the brains, whose brains are changed as the config says.
+	 */
+	private final BrainManager brainManager;
+
+	/**
+	 * The scheduler to change the rate limits of as the config says.
+	 */
+	private final ReplyScheduler replyScheduler;
+
+	/**
+	 * The loader that sets brains up, and so sets up each swapped in brain as the brain in use was.
+	 */
+	private final BrainLoader brainLoader;
+
+	/**
+	 * The metrics to register those of the watcher with, and to point at each swapped in brain.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * Creates a reloader, which does nothing until it is asked to watch the files.
+	 *
+	 * @param config The config, as it was last read, which is replaced each time the config is read again
+	 * @param client The IRC client, whose channels and nick are changed as the config says
+	 * @param brainManager The host of the brains, whose brains are changed as the config says
+	 * @param replyScheduler The scheduler to change the rate limits of as the config says
+	 * @param brainLoader The loader that set the brains up
+	 * @param metrics The metrics to register those of the watcher with, and to point at each swapped in brain
+	 */
+	ConfigReloader(AtomicReference<Properties> config, Client client, BrainManager brainManager,
+			ReplyScheduler replyScheduler, BrainLoader brainLoader, Metrics metrics)
+	{
+		this.config = config;
+		this.client = client;
+		this.brainManager = brainManager;
+		this.replyScheduler = replyScheduler;
+		this.brainLoader = brainLoader;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Watches the config file, and the file retrained brains are dropped into if every channel shares a brain, unless
+	 * the config says not to. Whenever the config changes it is read again, and whenever a retrained brain is dropped
+	 * in it is swapped in; both happen on the watcher's thread, so Chester carries on learning and replying meanwhile.
+	 * Failing to watch them is not a reason to stop Chester running.
+	 *
+	 * @return The watcher, else null if the files are not being watched
+	 */
+	FileWatcher watchFiles()
+	{
+		Properties properties = this.config.get();
+		if (!Boolean.parseBoolean(properties.getProperty(Config.PROPERTY_KEY_CONFIG_WATCH, Config.PROPERTY_DEFAULT_CONFIG_WATCH).trim()))
+			return null;
+
+		FileWatcher fileWatcher = null;
+		try
+		{
+			fileWatcher = new FileWatcher(FileWatcher.DEFAULT_SETTLE_TIME);
+
+			fileWatcher.watch(new File(Config.CONFIG_FILE), new FileWatcher.Listener()
+			{
+				@Override
+				public void fileChanged(File file)
+				{
+					ConfigReloader.this.reloadConfig(file);
+				}
+			});
+
+			// brains for each channel come and go, so only the shared brain can be swapped while it is open
+			if (Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_MODE, Config.PROPERTY_DEFAULT_BRAIN_MODE, Config.BrainMode.class) == Config.BrainMode.SHARED)
+			{
+				fileWatcher.watch(new File(properties.getProperty(Config.PROPERTY_KEY_BRAIN_RELOAD_FILE, Config.PROPERTY_DEFAULT_BRAIN_RELOAD_FILE)), new FileWatcher.Listener()
+				{
+					@Override
+					public void fileChanged(File file)
+					{
+						ConfigReloader.this.reloadBrain(file);
+					}
+				});
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not watch the config for changes; it will only be read when Chester starts.");
+			e.printStackTrace();
+
+			if (fileWatcher != null)
+			{
+				try
+				{
+					fileWatcher.close();
+				}
+				catch (IOException closeException)
+				{
+					closeException.printStackTrace();
+				}
+			}
+
+			return null;
+		}
+
+		fileWatcher.registerMetrics(this.metrics);
+		fileWatcher.start();
+		return fileWatcher;
+	}
+
+	/**
+	 * Reads the config again, and makes the changes to it that can be made while Chester runs: joining the channels
+	 * that have been added and parting those that have been removed, changing his nick, giving channels the brains they
+	 * have been given and changing how his replies are limited. Brains are opened as the config says from then on, but
+	 * those that are open are not opened again; the shared brain stays as it is until a retrained brain is swapped in.
+	 * Changes to properties that are only read when Chester starts are pointed out.
+	 *
+	 * @param configFile The config file
+	 */
+	private void reloadConfig(File configFile)
+	{
+		Properties properties = Config.readProperties(configFile);
+		if (properties == null)
+			return;
+
+		Properties previous = this.config.getAndSet(properties);
+
+		// join the channels that have been added, and part those that have been removed, without reconnecting
+		Map<String, String> channels = Config.getChannels(properties);
+		Map<String, String> previousChannels = Config.getChannels(previous);
+
+		for (Map.Entry<String, String> channel : channels.entrySet())
+		{
+			if (!previousChannels.containsKey(channel.getKey()))
+			{
+				this.client.addChannel(channel.getValue());
+			}
+		}
+
+		for (Map.Entry<String, String> channel : previousChannels.entrySet())
+		{
+			if (!channels.containsKey(channel.getKey()))
+			{
+				this.client.removeChannel(channel.getValue(), PART_REASON);
+			}
+		}
+
+		String nick = properties.getProperty(Config.PROPERTY_KEY_NICK, Config.PROPERTY_DEFAULT_NICK);
+		if (!nick.equals(previous.getProperty(Config.PROPERTY_KEY_NICK, Config.PROPERTY_DEFAULT_NICK)))
+		{
+			this.client.setNick(nick);
+		}
+
+		this.brainManager.setChannelBrains(Config.getChannelBrains(properties));
+
+		for (BrainManager.Brain brain : this.brainManager.getOpenBrains())
+		{
+			this.brainLoader.setReplyLimits(properties, brain.getMegaHal());
+		}
+		setReplyRateLimits(properties, this.replyScheduler);
+
+		for (String key : RESTART_PROPERTY_KEYS)
+		{
+			String value = properties.getProperty(key);
+			String previousValue = previous.getProperty(key);
+
+			if (value == null ? previousValue != null : !value.equals(previousValue))
+			{
+				System.err.println(String.format("'%s' has changed, but will only take effect once Chester is restarted.", key));
+			}
+		}
+
+		System.out.println(String.format("Reloaded the config at '%s'.", configFile.getAbsolutePath()));
+	}
+
+	/**
+	 * Swaps a retrained brain in for the brain that every channel shares, such as a snapshot written by importing
+	 * past messages into a copy of the brain file. The retrained brain is loaded, and taught everything appended to the
+	 * brain file since the snapshot was written, while the brain in use carries on learning and replying; only then is
+	 * it swapped in by the brain's learning pipeline, which holds up learning just long enough to teach it what was
+	 * learnt meanwhile, and never holds up replies. The retrained snapshot then takes the place of the brain's snapshot,
+	 * so that the brain is loaded from it from then on.
+	 *
+	 * Both brains are in memory at once until the swap, so the heap must have room for both.
+	 *
+	 * @param reloadFile The snapshot of the retrained brain
+	 */
+	private void reloadBrain(File reloadFile)
+	{
+		Properties properties = this.config.get();
+		long startTime = System.nanoTime();
+
+		// a mapped brain is read in place from its own file, which cannot be swapped while it is mapped
+		Config.BrainStorage storage = Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_STORAGE, Config.PROPERTY_DEFAULT_BRAIN_STORAGE, Config.BrainStorage.class);
+		if (storage == Config.BrainStorage.MAPPED)
+		{
+			System.err.println(String.format("A retrained brain cannot be swapped in while '%s' is '%s'; it will be ignored.",
+					Config.PROPERTY_KEY_BRAIN_STORAGE, properties.getProperty(Config.PROPERTY_KEY_BRAIN_STORAGE)));
+			return;
+		}
+
+		BrainManager.Brain brain;
+		try
+		{
+			brain = this.brainManager.getBrain(BrainLoader.SHARED_BRAIN_NAME);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not open the brain to swap the retrained brain in for.");
+			e.printStackTrace();
+			return;
+		}
+
+		File brainFile = brain.getJournal().getFile();
+		int batchSize = Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_BATCH_SIZE, Config.PROPERTY_DEFAULT_LEARN_BATCH_SIZE);
+
+		MegaHal hal;
+		long offset;
+		try
+		{
+			BrainSnapshot snapshot = BrainSnapshot.read(reloadFile);
+
+			// a brain file shorter than the snapshot expects is not the one the snapshot was taken partway through
+			offset = snapshot.getJournalOffset();
+			if (offset > brain.getJournal().commitPosition())
+			{
+				System.err.println(String.format("The retrained brain at '%s' does not match the brain file; it will be ignored.", reloadFile.getAbsolutePath()));
+				return;
+			}
+
+			hal = new MegaHal(snapshot);
+			this.brainLoader.setBackoffOrders(properties, hal);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not load the retrained brain at '%s'; the brain in use will be kept.", reloadFile.getAbsolutePath()));
+			e.printStackTrace();
+			return;
+		}
+
+		if (storage == Config.BrainStorage.FROZEN)
+		{
+			hal.freeze();
+		}
+
+		// set the retrained brain up as the brain in use was, before anyone can reply with it
+		this.brainLoader.setReplyLimits(properties, hal);
+		this.brainLoader.setMemoryBudget(properties, hal);
+
+		try
+		{
+			// the brain in use carries on learning while the retrained one catches up with the brain file
+			this.brainManager.replaceMegaHal(BrainLoader.SHARED_BRAIN_NAME, hal, offset, batchSize);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not catch the retrained brain up with the brain file at '%s'; the brain in use will be kept.", brainFile.getAbsolutePath()));
+			e.printStackTrace();
+			return;
+		}
+		catch (IllegalStateException e)
+		{
+			// Chester is shutting down
+			return;
+		}
+
+		// the metrics of the brain replaced would keep it in memory, so point them at this one instead
+		Metrics brainMetrics = new Metrics();
+		hal.registerMetrics(brainMetrics);
+		this.metrics.registerAll(brainMetrics);
+
+		// the retrained snapshot is as good a snapshot of the brain as any the pipeline writes, so keep it in place of the
+		// last; the pipeline writes one of its own in due course either way
+		File snapshotFile = this.brainLoader.getSnapshotFile(properties, hal);
+		try
+		{
+			Files.move(reloadFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not move the retrained brain to '%s'; it will be kept there from the next snapshot.", snapshotFile.getAbsolutePath()));
+			e.printStackTrace();
+		}
+
+		System.out.println(String.format("Swapped in the retrained brain from '%s' in %d seconds.", reloadFile.getAbsolutePath(),
+				TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime)));
+	}
+
+	/**
+	 * Sets the rate limits of the ReplyScheduler to those the config says.
+	 *
+	 * @param properties The config
+	 * @param replyScheduler The scheduler
+	 */
+	static void setReplyRateLimits(Properties properties, ReplyScheduler replyScheduler)
+	{
+		int interval = Math.max(0, Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_INTERVAL, Config.PROPERTY_DEFAULT_REPLY_INTERVAL));
+		int burst = Math.max(1, Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_BURST, Config.PROPERTY_DEFAULT_REPLY_BURST));
+		int staleAfter = Math.max(0, Config.getIntProperty(properties, Config.PROPERTY_KEY_REPLY_STALE, Config.PROPERTY_DEFAULT_REPLY_STALE));
+
+		replyScheduler.setLimits(interval, burst, staleAfter);
+	}
+}
@@ -0,0 +1,554 @@
+package com.hoolean.chester;
+
+import java.util.Random;
+
+/**
+ * A read-only view of a ContextTable as it was when the view was published, which any amount of threads can use at
+ * once while the table carries on learning.
+ *
+ * The view holds the table's Arrays and the amounts of groups and edges at the time, which never change. The Arrays
+ * are shared with the table, which changes some of what is in them in place as it carries on learning (see
+ * ContextTable), so the view checks everything it reads against its own amounts: a group or edge at or past them is
+ * newer than the view, and is ignored, and so is a list whose first edge is. The groups of each token are told apart
+ * from newer ones in the same way. Counts and flags may be read as they were or as they have since become, which at
+ * worst makes a draw use a slightly newer weighting; totals are those of the edges the view has, as the table's running
+ * totals may count newer ones.
+ */
+final class ContextSnapshot implements MarkovChain
+{
+	private final int order;
+	private final int[] keys;
+	private final int[] hashes;
+	private final byte[] flags;
+	private final int[] nextHeads;
+	private final int[] previousHeads;
+	private final int[] nextTotals;
+	private final int[] previousTotals;
+	private final AliasSampler[] nextSamplers;
+	private final AliasSampler[] previousSamplers;
+	private final int groupCount;
+	private final int[] index;
+	private final int[] edges;
+	private final int edgeCount;
+	private final ContextTable.TokenGroups[] tokenGroups;
+	private final ContextSnapshot lowerOrders;
+
+	/**
+	 * Creates a view over the current state of a ContextTable; see the table's fields for what each parameter holds,
+	 * bar the lower orders, which are a view published along with it of its table of lower orders (or null if it is
+	 * such a table itself).
+	 */
+	ContextSnapshot(int order, int[] keys, int[] hashes, byte[] flags, int[] nextHeads, int[] previousHeads, int[] nextTotals,
+			int[] previousTotals, AliasSampler[] nextSamplers, AliasSampler[] previousSamplers, int groupCount,
+			int[] index, int[] edges, int edgeCount, ContextTable.TokenGroups[] tokenGroups, ContextSnapshot lowerOrders)
+	{
+		this.order = order;
+		this.keys = keys;
+		this.hashes = hashes;
+		this.flags = flags;
+		this.nextHeads = nextHeads;
+		this.previousHeads = previousHeads;
+		this.nextTotals = nextTotals;
+		this.previousTotals = previousTotals;
+		this.nextSamplers = nextSamplers;
+		this.previousSamplers = previousSamplers;
+		this.groupCount = groupCount;
+		this.index = index;
+		this.edges = edges;
+		this.edgeCount = edgeCount;
+		this.tokenGroups = tokenGroups;
+		this.lowerOrders = lowerOrders;
+	}
+
+	/**
+	 * Gets the amount of tokens in each group.
+	 *
+	 * @return The amount of tokens in each group
+	 */
+	public int getOrder()
+	{
+		return this.order;
+	}
+
+	/**
+	 * Gets the amount of groups that had been learnt. Group ids are handed out densely and groups are never removed, so
+	 * every number from 0 up to but excluding this value is the id of a group; a random group can be picked by picking
+	 * a random number in that range.
+	 *
+	 * @return The amount of groups
+	 */
+	public int getGroupCount()
+	{
+		return this.groupCount;
+	}
+
+	/**
+	 * Gets the amount of edges that had been stored; each is a token seen before or after a group, along with how many
+	 * times it was seen.
+	 *
+	 * @return The amount of edges
+	 */
+	public int getEdgeCount()
+	{
+		return this.edgeCount;
+	}
+
+	/**
+	 * Finds the id of the group made up of a run of tokens.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token of the group in the Array
+	 * @return The id of the group, else ContextTable.NO_GROUP if the run of tokens had not been learnt
+	 */
+	public int findGroup(int[] tokens, int offset)
+	{
+		int mask = this.index.length - 1;
+		int hash = ContextTable.hash(tokens, offset, this.order);
+
+		// probe linearly from the slot the hash points at until the group or an empty slot is found
+		for (int slot = hash & mask; this.index[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int group = this.index[slot] - 1;
+
+			// groups added after this snapshot may already be in the index, but are not part of it
+			if (group < this.groupCount && this.hashes[group] == hash && this.keyEquals(group, tokens, offset))
+			{
+				return group;
+			}
+		}
+
+		return ContextTable.NO_GROUP;
+	}
+
+	/**
+	 * Gets the id of the token at a specified index in a group.
+	 *
+	 * @param group The id of the group
+	 * @param index The index of the token in the group
+	 * @return The id of the token
+	 */
+	public int getToken(int group, int index)
+	{
+		return this.keys[group * this.order + index];
+	}
+
+	/**
+	 * Gets whether or not a group can start a message.
+	 *
+	 * @param group The id of the group
+	 * @return True if the group can start a message, else False
+	 */
+	public boolean canStart(int group)
+	{
+		return (this.flags[group] & ContextTable.FLAG_CAN_START) != 0;
+	}
+
+	/**
+	 * Gets whether or not a group can end a message.
+	 *
+	 * @param group The id of the group
+	 * @return True if the group can end a message, else False
+	 */
+	public boolean canEnd(int group)
+	{
+		return (this.flags[group] & ContextTable.FLAG_CAN_END) != 0;
+	}
+
+	/**
+	 * Draws one of the tokens seen directly after a group at random, weighted by how often each was seen.
+	 *
+	 * @param group The id of the group
+	 * @param random The source of randomness
+	 * @return The id of the token drawn
+	 */
+	public int sampleNextToken(int group, Random random)
+	{
+		int head = this.getHead(this.nextHeads[group]);
+
+		// there is no choice to be made if only one token has been seen
+		if (this.isLastEdge(head))
+		{
+			return this.edges[head * ContextTable.EDGE_SIZE + ContextTable.EDGE_TOKEN];
+		}
+
+		return this.getSampler(head, group, this.nextTotals, this.nextSamplers).sample(random);
+	}
+
+	/**
+	 * Draws one of the tokens seen directly before a group at random, weighted by how often each was seen.
+	 *
+	 * @param group The id of the group
+	 * @param random The source of randomness
+	 * @return The id of the token drawn
+	 */
+	public int samplePreviousToken(int group, Random random)
+	{
+		int head = this.getHead(this.previousHeads[group]);
+
+		// there is no choice to be made if only one token has been seen
+		if (this.isLastEdge(head))
+		{
+			return this.edges[head * ContextTable.EDGE_SIZE + ContextTable.EDGE_TOKEN];
+		}
+
+		return this.getSampler(head, group, this.previousTotals, this.previousSamplers).sample(random);
+	}
+
+	/**
+	 * Gets the observed probability of a token coming directly after a group; that is, the amount of times it was seen
+	 * there out of the amount of times any token was.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @return The probability, which is 0 if the token has never been seen after the group
+	 */
+	public double getNextProbability(int group, int token)
+	{
+		return this.getEdgeProbability(this.getHead(this.nextHeads[group]), token);
+	}
+
+	/**
+	 * Gets the observed probability of a token coming directly before a group; that is, the amount of times it was
+	 * seen there out of the amount of times any token was.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @return The probability, which is 0 if the token has never been seen before the group
+	 */
+	public double getPreviousProbability(int group, int token)
+	{
+		return this.getEdgeProbability(this.getHead(this.previousHeads[group]), token);
+	}
+
+	/**
+	 * Gets the amount of times any token had been seen directly after a group, counting only the edges the snapshot
+	 * has.
+	 *
+	 * @param group The id of the group
+	 * @return The total count
+	 */
+	public long getNextTotal(int group)
+	{
+		int head = this.getHead(this.nextHeads[group]);
+		return head == ContextTable.NO_EDGE ? 0 : this.getTotal(head, group, this.nextTotals, this.nextSamplers);
+	}
+
+	/**
+	 * Gets the amount of times any token had been seen directly before a group, counting only the edges the snapshot
+	 * has.
+	 *
+	 * @param group The id of the group
+	 * @return The total count
+	 */
+	public long getPreviousTotal(int group)
+	{
+		int head = this.getHead(this.previousHeads[group]);
+		return head == ContextTable.NO_EDGE ? 0 : this.getTotal(head, group, this.previousTotals, this.previousSamplers);
+	}
+
+	/**
+	 * Gets the amount of groups that a token is in. Together with getTokenGroup, this allows a random group containing
+	 * a token to be picked without copying the groups anywhere.
+	 *
+	 * @param token The id of the token, or TokenDictionary.UNKNOWN_TOKEN
+	 * @return The amount of groups, which is 0 if the token is unknown
+	 */
+	public int getTokenGroupCount(int token)
+	{
+		if (token < 0 || token >= this.tokenGroups.length)
+		{
+			return 0;
+		}
+
+		ContextTable.TokenGroups list = this.tokenGroups[token];
+		if (list == null)
+		{
+			return 0;
+		}
+
+		// the groups of this snapshot come first, and are followed by newer groups and empty slots, which may be filled
+		// at any moment; search for where they end
+		int[] groups = list.groups;
+		int low = 0;
+		int high = groups.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			int group = groups[middle] - 1;
+
+			if (group >= 0 && group < this.groupCount)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Gets one of the groups that a token is in. The groups of a token only ever have more added to the end, so an index
+	 * keeps referring to the same group as the table grows, even if the list is replaced by a larger one between this
+	 * and getTokenGroupCount().
+	 *
+	 * @param token The id of the token
+	 * @param index The index of the group, from 0 up to but excluding getTokenGroupCount(token)
+	 * @return The id of the group
+	 */
+	public int getTokenGroup(int token, int index)
+	{
+		return this.tokenGroups[token].groups[index] - 1;
+	}
+
+	/**
+	 * Every group of a ContextTable has exactly one id, so none are aliases.
+	 *
+	 * @param group The id of the group
+	 * @return False
+	 */
+	public boolean isAlias(int group)
+	{
+		return false;
+	}
+
+	/**
+	 * Passes every token seen directly after a group, with its count, to a visitor.
+	 *
+	 * @param group The id of the group
+	 * @param visitor The visitor
+	 */
+	public void visitNextTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visitEdges(this.getHead(this.nextHeads[group]), visitor);
+	}
+
+	/**
+	 * Passes every token seen directly before a group, with its count, to a visitor.
+	 *
+	 * @param group The id of the group
+	 * @param visitor The visitor
+	 */
+	public void visitPreviousTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visitEdges(this.getHead(this.previousHeads[group]), visitor);
+	}
+
+	/**
+	 * Gets the view of the table's lower order contexts, published along with this one.
+	 *
+	 * @return The view of the lower orders, else null if this is one itself
+	 */
+	public ContextSnapshot getLowerOrders()
+	{
+		return this.lowerOrders;
+	}
+
+	/**
+	 * Passes the tokens and counts of a linked list of edges to a visitor.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param visitor The visitor
+	 */
+	private void visitEdges(int head, TokenCountVisitor visitor)
+	{
+		for (int edge = head; edge != ContextTable.NO_EDGE && edge < this.edgeCount;
+				edge = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT])
+		{
+			visitor.visit(this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_TOKEN],
+					this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_COUNT]);
+		}
+	}
+
+	/**
+	 * Gets the first edge of a list as far as this snapshot is concerned; a list that was empty when it was published
+	 * may have been given its first edge since, which it ignores.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty, as read from the Arrays
+	 * @return The index of the first edge, else NO_EDGE if the list was empty when the snapshot was published
+	 */
+	private int getHead(int head)
+	{
+		return head < this.edgeCount ? head : ContextTable.NO_EDGE;
+	}
+
+	/**
+	 * Whether or not an edge is the last of its list as far as this snapshot is concerned.
+	 *
+	 * @param edge The index of the edge
+	 * @return True if no edge of this snapshot follows it, else False
+	 */
+	private boolean isLastEdge(int edge)
+	{
+		int next = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT];
+		return next == ContextTable.NO_EDGE || next >= this.edgeCount;
+	}
+
+	/**
+	 * Gets the share of the counts in a linked list of edges that belong to a token.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param token The id of the token
+	 * @return The token's count divided by the total count, else 0 if the list is empty
+	 */
+	private double getEdgeProbability(int head, int token)
+	{
+		long total = 0;
+		long count = 0;
+
+		for (int edge = head; edge != ContextTable.NO_EDGE && edge < this.edgeCount;
+				edge = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT])
+		{
+			int edgeCount = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_COUNT];
+			total += edgeCount;
+
+			if (this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_TOKEN] == token)
+			{
+				count = edgeCount;
+			}
+		}
+
+		return total == 0 ? 0 : (double) count / total;
+	}
+
+	/**
+	 * Gets the total count of one of a group's lists of edges, as far as this snapshot is concerned. The table keeps a
+	 * running total of each list, which counts any edges added to it since the snapshot was published; it is only used
+	 * if the cached sampler shows it has not changed since a snapshot of no more edges than this one, else the counts
+	 * of the edges the snapshot has are summed.
+	 *
+	 * @param head The index of the first edge of the list, which must not be empty
+	 * @param group The id of the group
+	 * @param totals The table's running totals of the lists
+	 * @param samplers The cached samplers of the lists
+	 * @return The total count
+	 */
+	private long getTotal(int head, int group, int[] totals, AliasSampler[] samplers)
+	{
+		long total = totals[group];
+		AliasSampler sampler = samplers[group];
+		if (sampler != null && sampler.getEdgeCount() <= this.edgeCount && sampler.getTotal() == total)
+		{
+			return total;
+		}
+
+		return this.sumCounts(head);
+	}
+
+	/**
+	 * Gets the cached sampler of one of a group's lists of edges, building it again if it does not draw from the list
+	 * as this snapshot has it. One whose total is no longer the table's running total has either been learnt into since
+	 * or was built by an older snapshot, and is kept if it still has the total of the edges this snapshot has, so that
+	 * snapshots do not build a sampler for every draw while the table carries on learning. A sampler built by a newer
+	 * snapshot may have more edges in the list than this one, so this one builds a sampler of its own, but does not
+	 * cache it in place of the newer one; otherwise two snapshots drawing in turn would each build one for every draw.
+	 *
+	 * @param head The index of the first edge of the list, which must not be empty
+	 * @param group The id of the group
+	 * @param totals The table's running totals of the lists
+	 * @param samplers The cached samplers of the lists
+	 * @return The sampler
+	 */
+	private AliasSampler getSampler(int head, int group, int[] totals, AliasSampler[] samplers)
+	{
+		AliasSampler sampler = samplers[group];
+		if (sampler != null && sampler.getEdgeCount() > this.edgeCount)
+		{
+			return this.buildSampler(head);
+		}
+
+		if (sampler == null || (sampler.getTotal() != totals[group] && sampler.getTotal() != this.sumCounts(head)))
+		{
+			sampler = this.buildSampler(head);
+			samplers[group] = sampler;
+		}
+
+		return sampler;
+	}
+
+	/**
+	 * Gets the sampler cached for the tokens seen directly after a group, for tests to tell whether it is reused.
+	 *
+	 * @param group The id of the group
+	 * @return The sampler, else null if none has been cached
+	 */
+	AliasSampler getCachedNextSampler(int group)
+	{
+		return this.nextSamplers[group];
+	}
+
+	/**
+	 * Sums the counts of the edges of a linked list that this snapshot has.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @return The total count, else 0 if the list is empty
+	 */
+	private long sumCounts(int head)
+	{
+		long total = 0;
+		for (int edge = head; edge != ContextTable.NO_EDGE && edge < this.edgeCount;
+				edge = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT])
+		{
+			total += this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_COUNT];
+		}
+
+		return total;
+	}
+
+	/**
+	 * Builds a sampler from the tokens and counts of a linked list of edges.
+	 *
+	 * @param head The index of the first edge of the list, which must not be empty
+	 * @return A new sampler over the tokens in the list
+	 */
+	private AliasSampler buildSampler(int head)
+	{
+		int size = 0;
+		for (int edge = head; edge != ContextTable.NO_EDGE && edge < this.edgeCount;
+				edge = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT])
+		{
+			size++;
+		}
+
+		int[] tokens = new int[size];
+		int[] counts = new int[size];
+		long total = 0;
+
+		// stop after size edges, in case the list has grown since it was measured
+		int edge = head;
+		for (int i = 0; i < size; i++)
+		{
+			tokens[i] = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_TOKEN];
+			counts[i] = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_COUNT];
+			total += counts[i];
+
+			edge = this.edges[edge * ContextTable.EDGE_SIZE + ContextTable.EDGE_NEXT];
+		}
+
+		return new AliasSampler(tokens, counts, total, this.edgeCount);
+	}
+
+	/**
+	 * Whether or not a group is made up of a run of tokens.
+	 *
+	 * @param group The id of the group
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token in the Array
+	 * @return True if the tokens are the same as the group's, else False
+	 */
+	private boolean keyEquals(int group, int[] tokens, int offset)
+	{
+		int start = group * this.order;
+		for (int i = 0; i < this.order; i++)
+		{
+			if (this.keys[start + i] != tokens[offset + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
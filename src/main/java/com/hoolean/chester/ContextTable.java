@@ -0,0 +1,1736 @@
+package com.hoolean.chester;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Stores every TokenGroup (a run of token ids of the Markov length) that MegaHal has learnt, along with the tokens
+ * seen directly before and after each one, in a handful of flat primitive Arrays.
+ *
+ * Each group is given a dense int id in order of first appearance. The tokens of group n are stored at
+ * [n * order, (n + 1) * order) of one shared keys Array, and an open-addressed hash index over these keys is used to
+ * find the id of a run of tokens. The previous and next tokens of each group, along with how many times each was seen,
+ * are kept as linked lists threaded through one shared edge Array, so no Objects are created per group or per
+ * transition.
+ *
+ * The table has a single writer at a time; callers must ensure this. Readers never touch the table itself; instead,
+ * after each batch of changes the writer calls publish(), and readers work on the ContextSnapshot that it creates,
+ * which shares the table's Arrays rather than copying them, so that publishing stays cheap. New groups and edges are
+ * added past the amounts of each that a snapshot holds, and the Arrays are replaced with new copies as they grow or are
+ * pruned, but the writer also changes what a snapshot shares in place: the counts of edges and their totals grow, flags
+ * are set, a list that was empty is given its first edge and the last edge of a list is linked to a new one, empty
+ * slots of the indexes are filled, and the groups of each token are added to. So a snapshot takes nothing it reads for
+ * granted: it ignores any group or edge at or past its own amounts, which are fixed when it is published, and with them
+ * any list that only has edges past them, and tells its own groups of each token apart from newer ones as described at
+ * TokenGroups. Counts, totals and flags may be read either as they were published or as they have since become, each
+ * on its own, which at worst makes a draw use a slightly newer weighting; this is the price of readers never waiting
+ * for the writer.
+ *
+ * A table may also learn on top of a MappedChain or a FrozenChain, in which case it only holds what has been learnt
+ * since the chain was written or frozen, and publishes LayeredChains that read the two together; or on top of the
+ * chain of another table that nothing else changes, such as while that table is being pruned. Each new group is
+ * looked up in the base chain as it is added, and the match (if any) recorded both ways, so that readers can get from
+ * either half of a group to the other without looking it up again. The lower orders of a FrozenChain are learnt on top
+ * of in the same way by the table of lower orders.
+ *
+ * Every table also holds a second table of the lower orders: contexts of fewer tokens than the order, which a walk
+ * backs off to when the group of the last (or first) tokens of a message has not been learnt or has nothing after (or
+ * before) it. Each context is stored as a group padded out with PAD at its start, with the tokens seen before and after
+ * it and whether it can start or end a message, just like any other group. Keeping them as groups of the same length
+ * lets the lower orders share everything the table already does, from the index to snapshots, merging and pruning,
+ * and they are published, saved, merged and pruned along with it. Which lengths of context are learnt is up to whatever
+ * learns into the table, and the table of lower orders may well be empty.
+ */
+class ContextTable
+{
+	/**
+	 * The value used to mark the end of a linked list of edges, or a group without any edges.
+	 */
+	static final int NO_EDGE = -1;
+
+	/**
+	 * The value returned when a run of tokens has never been learnt as a group.
+	 */
+	public static final int NO_GROUP = -1;
+
+	/**
+	 * Pads out the start of a lower order context to the order; never the id of a token.
+	 */
+	static final int PAD = -2;
+
+	// bits in the flags Array
+	static final byte FLAG_CAN_START = 1;
+	static final byte FLAG_CAN_END = 2;
+
+	// the amount of ints each edge takes up in the edges Array; the token, the amount of times it was seen, then the
+	// index of the following edge
+	static final int EDGE_SIZE = 3;
+	static final int EDGE_TOKEN = 0;
+	static final int EDGE_COUNT = 1;
+	static final int EDGE_NEXT = 2;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// roughly how many bytes each group takes up besides its tokens, for estimating how much memory the table uses;
+	// its hash, flags, list heads and totals, two sampler references and at least two slots of the index
+	private static final int GROUP_BYTES = 4 + 1 + 4 * 4 + 2 * 4 + 2 * 4;
+
+	/**
+	 * The amount of tokens in each group.
+	 */
+	private final int order;
+
+	/**
+	 * The token ids of every group, one after another; group n occupies [n * order, (n + 1) * order).
+	 */
+	private int[] keys;
+
+	/**
+	 * The hash of the tokens of each group, indexed by group id; kept so that the index can be rebuilt without hashing
+	 * every group again, and so that probing can skip groups whose hash differs without comparing their tokens.
+	 */
+	private int[] hashes;
+
+	/**
+	 * Whether each group can start and/or end a message, indexed by group id.
+	 */
+	private byte[] flags;
+
+	/**
+	 * The index of the first edge of the list of tokens seen after each group, indexed by group id.
+	 */
+	private int[] nextHeads;
+
+	/**
+	 * The index of the first edge of the list of tokens seen before each group, indexed by group id.
+	 */
+	private int[] previousHeads;
+
+	/**
+	 * The sum of the counts of the tokens seen after each group, indexed by group id.
+	 */
+	private int[] nextTotals;
+
+	/**
+	 * The sum of the counts of the tokens seen before each group, indexed by group id.
+	 */
+	private int[] previousTotals;
+
+	/**
+	 * The cached samplers for the tokens seen after each group, indexed by group id; these are only written by readers.
+	 */
+	private AliasSampler[] nextSamplers;
+
+	/**
+	 * The cached samplers for the tokens seen before each group, indexed by group id; these are only written by
+	 * readers.
+	 */
+	private AliasSampler[] previousSamplers;
+
+	/**
+	 * The amount of groups stored; also the id that the next new group will be given.
+	 */
+	private int groupCount = 0;
+
+	/**
+	 * An open-addressed hash index over the groups; each slot holds a group id plus one, so that 0 can mean empty.
+	 * The length is always a power of two and is kept at least twice the amount of groups.
+	 */
+	private int[] index;
+
+	/**
+	 * Every edge of every linked list of previous and next tokens, EDGE_SIZE ints at a time.
+	 */
+	private int[] edges;
+
+	/**
+	 * The amount of edges stored.
+	 */
+	private int edgeCount = 0;
+
+	/**
+	 * The groups that each token is in, indexed by token id, or null for a token in none.
+	 */
+	private TokenGroups[] tokenGroups;
+
+	/**
+	 * The amount of groups each token is in, indexed by token id; only the writer reads these, as a snapshot works out
+	 * how many of the groups of each token are its own.
+	 */
+	private int[] tokenGroupCounts;
+
+	/**
+	 * The chain this table learns on top of, or null if it learns on top of nothing.
+	 */
+	private final MarkovChain base;
+
+	/**
+	 * The table of this table's lower order contexts, or null if this is such a table itself.
+	 */
+	private final ContextTable lowerOrders;
+
+	/**
+	 * The buffer that the keys of lower order contexts are built in, or null if this is not a table of them.
+	 */
+	private final int[] contextKey;
+
+	/**
+	 * An open-addressed hash index of the edges of a table of lower orders, keyed by the list each is in and its
+	 * token; each slot holds an edge plus one, so that 0 can mean empty, and the length is always a power of two kept
+	 * at least twice the amount of edges. A context of a single token can be followed by thousands of different tokens,
+	 * far too many to walk the list of each time one is counted; the lists of groups stay short enough to walk, so a
+	 * table of groups has none.
+	 */
+	private int[] edgeIndex;
+
+	/**
+	 * The list that the edge in each slot of the edge index is in; twice its group, plus one for the tokens before it.
+	 */
+	private int[] edgeIndexLists;
+
+	/**
+	 * The index of the last edge of the list of tokens after each group, or NO_EDGE if the list is empty, so that edges
+	 * can be added to the end without walking the list; null unless there is an edge index.
+	 */
+	private int[] nextTails;
+
+	/**
+	 * The same as nextTails, for the lists of tokens before each group.
+	 */
+	private int[] previousTails;
+
+	/**
+	 * The id of the group of the base chain that each group matches, else NO_GROUP, indexed by group id; null if there
+	 * is no base chain.
+	 */
+	private int[] baseGroups;
+
+	/**
+	 * An open-addressed hash index from base chain group ids to the groups that match them; each slot holds a group id
+	 * plus one, so that 0 can mean empty. The length is always a power of two and is kept at least twice the amount of
+	 * matching groups.
+	 */
+	private int[] baseIndex;
+
+	/**
+	 * The amount of groups that match a group of the base chain.
+	 */
+	private int baseIndexCount = 0;
+
+	/**
+	 * The most recently published view of the table.
+	 */
+	private volatile ContextSnapshot snapshot;
+
+	/**
+	 * The most recently published view of the table along with its base chain, or the same as snapshot if there is no
+	 * base chain.
+	 */
+	private volatile MarkovChain chain;
+
+	/**
+	 * The groups that a token is in, which readers may come across while the writer is still adding to them.
+	 *
+	 * Each group is stored as its id plus one, so that 0 can mean a slot that has not been filled, in the order they
+	 * were added, which is also the order of their ids. The Array is final, so that a reader that comes across a list
+	 * at all sees every group added to it before it was created, however it came across it; groups added since may or
+	 * may not be seen, but are newer than any group of a snapshot that the list was published with. The groups of a
+	 * snapshot are therefore always the slots from the start up to the first that is empty or holds a newer group.
+	 * Growing a list replaces it with a new one, holding a copy of the Array.
+	 */
+	static final class TokenGroups
+	{
+		/**
+		 * The id plus one of each group that the token is in, followed by empty slots to add more to.
+		 */
+		final int[] groups;
+
+		/**
+		 * Creates a list of the groups that a token is in.
+		 *
+		 * @param groups The id plus one of each group, followed by empty slots
+		 */
+		TokenGroups(int[] groups)
+		{
+			this.groups = groups;
+		}
+	}
+
+	/**
+	 * Creates an empty ContextTable for groups of a certain amount of tokens.
+	 *
+	 * @param order The amount of tokens in each group
+	 */
+	public ContextTable(int order)
+	{
+		this(order, null);
+	}
+
+	/**
+	 * Creates an empty ContextTable that learns on top of another chain, which must not change while it does, such as a
+	 * MappedChain or a FrozenChain; if the chain has lower orders, the table of lower orders learns on top of them.
+	 *
+	 * @param order The amount of tokens in each group, which must be the same as the base chain's
+	 * @param base The chain to learn on top of, or null to learn on top of nothing
+	 */
+	public ContextTable(int order, MarkovChain base)
+	{
+		this(order, base, false);
+	}
+
+	/**
+	 * Creates an empty ContextTable.
+	 *
+	 * @param order The amount of tokens in each group
+	 * @param base The chain to learn on top of, or null to learn on top of nothing
+	 * @param isLowerOrders Whether the table is to hold the lower order contexts of another, rather than groups
+	 */
+	private ContextTable(int order, MarkovChain base, boolean isLowerOrders)
+	{
+		this.order = order;
+		this.base = base;
+		this.lowerOrders = isLowerOrders ? null
+				: new ContextTable(order, base == null ? null : base.getLowerOrders(), true);
+		this.contextKey = isLowerOrders ? new int[order] : null;
+
+		this.reset(INITIAL_CAPACITY, INITIAL_CAPACITY, INITIAL_CAPACITY);
+		this.publish();
+	}
+
+	/**
+	 * Writes every group and edge to a brain snapshot. The index and the groups of each token are left out, as they
+	 * can be rebuilt from the groups far more quickly than they could be read.
+	 *
+	 * The layout, following the amounts of groups and edges, is each per-group Array cut down to the amount of groups,
+	 * then the edges; then the same again for the table of lower orders. Nothing may change the table while it is saved.
+	 *
+	 * @param out Where to write to
+	 * @throws IOException If writing fails
+	 */
+	void save(BrainSnapshot.Output out) throws IOException
+	{
+		out.writeInt(this.groupCount);
+		out.writeInt(this.edgeCount);
+
+		out.writeInts(this.keys, this.groupCount * this.order);
+		out.writeBytes(this.flags, this.groupCount);
+		out.writeInts(this.nextHeads, this.groupCount);
+		out.writeInts(this.previousHeads, this.groupCount);
+		out.writeInts(this.nextTotals, this.groupCount);
+		out.writeInts(this.previousTotals, this.groupCount);
+		out.writeInts(this.edges, this.edgeCount * EDGE_SIZE);
+
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.save(out);
+		}
+	}
+
+	/**
+	 * Reads a table that was written by save(), and publishes it. The tokens may have been given different ids since
+	 * the table was written, so every token id read is changed to the one it is now.
+	 *
+	 * @param order The amount of tokens in each group
+	 * @param in Where to read from
+	 * @param tokenIds The id each token is now, indexed by the id it had when written; TokenDictionary.UNKNOWN_TOKEN
+	 *                 for any id that was not written
+	 * @param hasLowerOrders Whether the table of lower orders was written too; if not, as in snapshots written before
+	 *                       there was one, it is left empty, for the lower orders to be worked out from the groups if
+	 *                       they are wanted
+	 * @param base The chain the table learnt on top of when it was written, or null if it learnt on top of nothing
+	 * @return The table
+	 * @throws IOException If reading fails, or the table uses a token that was not written
+	 */
+	static ContextTable load(int order, BrainSnapshot.Input in, int[] tokenIds, boolean hasLowerOrders,
+			MarkovChain base) throws IOException
+	{
+		ContextTable table = new ContextTable(order, base);
+		table.read(in, tokenIds);
+
+		if (hasLowerOrders)
+		{
+			table.lowerOrders.read(in, tokenIds);
+		}
+
+		table.publish();
+
+		return table;
+	}
+
+	/**
+	 * Reads the groups and edges written by save() into the table, which must be empty; see load().
+	 *
+	 * @param in Where to read from
+	 * @param tokenIds The id each token is now, indexed by the id it had when written
+	 * @throws IOException If reading fails, or the table uses a token that was not written
+	 */
+	private void read(BrainSnapshot.Input in, int[] tokenIds) throws IOException
+	{
+		int groupCount = in.readLength();
+		int edgeCount = in.readLength();
+
+		// read the Arrays straight into place, leaving room to grow
+		this.ensureGroupCapacity(groupCount);
+		in.readInts(this.keys, groupCount * this.order);
+		in.readBytes(this.flags, groupCount);
+		in.readInts(this.nextHeads, groupCount);
+		in.readInts(this.previousHeads, groupCount);
+		in.readInts(this.nextTotals, groupCount);
+		in.readInts(this.previousTotals, groupCount);
+
+		if (edgeCount * EDGE_SIZE > this.edges.length)
+		{
+			this.edges = new int[Math.max(edgeCount, this.edges.length / EDGE_SIZE * 2) * EDGE_SIZE];
+		}
+		in.readInts(this.edges, edgeCount * EDGE_SIZE);
+
+		this.groupCount = groupCount;
+		this.edgeCount = edgeCount;
+
+		// change the ids of the tokens before anything is hashed by them
+		for (int i = 0; i < groupCount * this.order; i++)
+		{
+			this.keys[i] = changeTokenId(this.keys[i], tokenIds);
+		}
+		for (int edge = 0; edge < edgeCount; edge++)
+		{
+			this.edges[edge * EDGE_SIZE + EDGE_TOKEN] = changeTokenId(this.edges[edge * EDGE_SIZE + EDGE_TOKEN], tokenIds);
+		}
+
+		// rebuild what was left out
+		for (int group = 0; group < groupCount; group++)
+		{
+			this.hashes[group] = hash(this.keys, group * this.order, this.order);
+		}
+
+		int indexSize = this.index.length;
+		while (groupCount * 2 > indexSize)
+		{
+			indexSize *= 2;
+		}
+		this.rehash(indexSize);
+
+		for (int group = 0; group < groupCount; group++)
+		{
+			this.addTokenGroups(group);
+		}
+
+		if (this.edgeIndex != null)
+		{
+			this.indexEdges();
+		}
+
+		// link each group to its match in the base chain, as addGroup would have
+		if (this.base != null)
+		{
+			for (int group = 0; group < groupCount; group++)
+			{
+				this.baseGroups[group] = this.base.findGroup(this.keys, group * this.order);
+
+				if (this.baseGroups[group] != NO_GROUP)
+				{
+					this.addBaseIndex(group);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up the id a token is now, given the id it had when a table was written.
+	 *
+	 * @param token The id the token had
+	 * @param tokenIds The id each token is now, indexed by the id it had
+	 * @return The id the token is now
+	 * @throws IOException If the token was not written along with the table
+	 */
+	static int changeTokenId(int token, int[] tokenIds) throws IOException
+	{
+		// the padding of lower order contexts is not a token
+		if (token == PAD)
+		{
+			return token;
+		}
+
+		if (token < 0 || token >= tokenIds.length || tokenIds[token] == TokenDictionary.UNKNOWN_TOKEN)
+		{
+			throw new IOException(String.format("The table uses token %d, which was not written with it.", token));
+		}
+
+		return tokenIds[token];
+	}
+
+	/**
+	 * Gets the amount of tokens in each group.
+	 *
+	 * @return The amount of tokens in each group
+	 */
+	public int getOrder()
+	{
+		return this.order;
+	}
+
+	/**
+	 * Gets the view of the table as of the last call to publish(). This may be called from any thread.
+	 *
+	 * @return The snapshot
+	 */
+	public ContextSnapshot getSnapshot()
+	{
+		return this.snapshot;
+	}
+
+	/**
+	 * Gets the chain that the table learns on top of.
+	 *
+	 * @return The chain, else null if it learns on top of nothing
+	 */
+	public MarkovChain getBase()
+	{
+		return this.base;
+	}
+
+	/**
+	 * Gets the view of the table, along with the chain it learns on top of if there is one, as of the last call to
+	 * publish(). This may be called from any thread.
+	 *
+	 * @return The chain
+	 */
+	public MarkovChain getChain()
+	{
+		return this.chain;
+	}
+
+	/**
+	 * Makes every change made so far, including to the lower orders, visible to readers, by replacing the snapshot
+	 * returned by getSnapshot() and the chain returned by getChain(). Only the references to the Arrays and the amounts
+	 * of groups and edges are captured, so this is cheap enough to call after every message; see the class
+	 * documentation for what a snapshot may see of what is changed afterwards.
+	 */
+	public void publish()
+	{
+		ContextSnapshot lowerOrders = null;
+		MarkovChain lowerOrderChain = null;
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.publish();
+			lowerOrders = this.lowerOrders.getSnapshot();
+			lowerOrderChain = this.lowerOrders.getChain();
+		}
+
+		ContextSnapshot snapshot = new ContextSnapshot(this.order, this.keys, this.hashes, this.flags, this.nextHeads,
+				this.previousHeads, this.nextTotals, this.previousTotals, this.nextSamplers, this.previousSamplers,
+				this.groupCount, this.index, this.edges, this.edgeCount, this.tokenGroups, lowerOrders);
+
+		// the write to the volatile fields ensures that every write before them is visible to any thread that reads them
+		this.snapshot = snapshot;
+		this.chain = this.base == null ? snapshot
+				: new LayeredChain(this.base, snapshot, this.baseGroups, this.baseIndex, lowerOrderChain);
+	}
+
+	/**
+	 * Finds the id of the group made up of a run of tokens, creating the group if it has never been learnt.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token of the group in the Array
+	 * @return The id of the group
+	 */
+	public int addGroup(int[] tokens, int offset)
+	{
+		int mask = this.index.length - 1;
+		int hash = hash(tokens, offset, this.order);
+
+		// probe linearly from the slot the hash points at until the group or an empty slot is found
+		int slot;
+		for (slot = hash & mask; this.index[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int group = this.index[slot] - 1;
+
+			if (this.hashes[group] == hash && this.keyEquals(group, tokens, offset))
+			{
+				return group;
+			}
+		}
+
+		// the group is new; give it the next id
+		int group = this.groupCount++;
+		this.ensureGroupCapacity(this.groupCount);
+
+		System.arraycopy(tokens, offset, this.keys, group * this.order, this.order);
+		this.hashes[group] = hash;
+		this.nextHeads[group] = NO_EDGE;
+		this.previousHeads[group] = NO_EDGE;
+		this.index[slot] = group + 1;
+
+		// keep the index at most half full, so that probe sequences stay short
+		if (this.groupCount * 2 > this.index.length)
+		{
+			this.rehash(this.index.length * 2);
+		}
+
+		this.addTokenGroups(group);
+
+		// link the group to its match in the base chain, if it has one
+		if (this.base != null)
+		{
+			int baseGroup = this.base.findGroup(tokens, offset);
+			this.baseGroups[group] = baseGroup;
+
+			if (baseGroup != NO_GROUP)
+			{
+				this.addBaseIndex(group);
+			}
+		}
+
+		return group;
+	}
+
+	/**
+	 * Marks a group as being able to start a message.
+	 *
+	 * @param group The id of the group
+	 */
+	public void setCanStart(int group)
+	{
+		this.flags[group] |= FLAG_CAN_START;
+	}
+
+	/**
+	 * Marks a group as being able to end a message.
+	 *
+	 * @param group The id of the group
+	 */
+	public void setCanEnd(int group)
+	{
+		this.flags[group] |= FLAG_CAN_END;
+	}
+
+	/**
+	 * Records that a token has been seen directly after a group once more.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 */
+	public void addNextToken(int group, int token)
+	{
+		this.addNextToken(group, token, 1);
+	}
+
+	/**
+	 * Records that a token has been seen directly after a group some more times.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @param count The amount of times
+	 */
+	public void addNextToken(int group, int token, int count)
+	{
+		if (this.edgeIndex != null)
+		{
+			this.addIndexedEdge(group, true, token, count);
+		}
+		else
+		{
+			this.nextHeads[group] = this.addEdge(this.nextHeads[group], token, count);
+		}
+
+		this.nextTotals[group] += count;
+	}
+
+	/**
+	 * Records that a token has been seen directly before a group once more.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 */
+	public void addPreviousToken(int group, int token)
+	{
+		this.addPreviousToken(group, token, 1);
+	}
+
+	/**
+	 * Records that a token has been seen directly before a group some more times.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @param count The amount of times
+	 */
+	public void addPreviousToken(int group, int token, int count)
+	{
+		if (this.edgeIndex != null)
+		{
+			this.addIndexedEdge(group, false, token, count);
+		}
+		else
+		{
+			this.previousHeads[group] = this.addEdge(this.previousHeads[group], token, count);
+		}
+
+		this.previousTotals[group] += count;
+	}
+
+	/**
+	 * Whether or not this table holds the lower order contexts of another, rather than groups.
+	 *
+	 * @return True if it holds lower order contexts, else false
+	 */
+	private boolean isLowerOrders()
+	{
+		return this.lowerOrders == null;
+	}
+
+	/**
+	 * Gets the table of the lower order contexts of this one, which is learnt into by finding contexts with
+	 * addContext().
+	 *
+	 * @return The table of lower orders, else null if this is one itself
+	 */
+	public ContextTable getLowerOrders()
+	{
+		return this.lowerOrders;
+	}
+
+	/**
+	 * Finds the id of the lower order context made up of a run of tokens, creating it if it has never been learnt. This
+	 * must be a table of lower orders.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param start The index of the first token of the context in the Array
+	 * @param length The amount of tokens in the context, from 1 up to but excluding the order
+	 * @return The id of the context
+	 */
+	public int addContext(int[] tokens, int start, int length)
+	{
+		contextKey(tokens, start, length, this.contextKey);
+		return this.addGroup(this.contextKey, 0);
+	}
+
+	/**
+	 * Builds the key that a lower order context is stored by; its tokens, padded out at the start to the order.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param start The index of the first token of the context in the Array
+	 * @param length The amount of tokens in the context
+	 * @param key The Array to build the key in, which is as long as the order
+	 */
+	static void contextKey(int[] tokens, int start, int length, int[] key)
+	{
+		Arrays.fill(key, 0, key.length - length, PAD);
+		System.arraycopy(tokens, start, key, key.length - length, length);
+	}
+
+	/**
+	 * Works out the lower order contexts of every group of a chain, and adds them to the table of lower orders; for a
+	 * chain learnt before there were lower orders, such as an old snapshot or a mapped chain.
+	 *
+	 * Every token seen after a group was also seen after each run of its last tokens, and every token seen before it
+	 * before each run of its first, so the counts of the lower orders follow from those of the groups. The only
+	 * transitions not counted anywhere in the chain are those inside the first group of a message, and inside the
+	 * last, which are counted once for each group that can start or end a message. Messages shorter than the order
+	 * were never learnt, so cannot be worked out.
+	 *
+	 * @param chain The chain, whose token ids must be the same as the table's
+	 * @param shortest The amount of tokens in the shortest contexts to work out; those of every length from it up to
+	 *                 one less than the order are
+	 */
+	void deriveLowerOrders(MarkovChain chain, final int shortest)
+	{
+		final ContextTable lowerOrders = this.lowerOrders;
+		final int order = this.order;
+		final int[] key = new int[order];
+
+		MarkovChain.TokenCountVisitor nextVisitor = new MarkovChain.TokenCountVisitor()
+		{
+			@Override
+			public void visit(int token, int count)
+			{
+				for (int length = shortest; length < order; length++)
+				{
+					lowerOrders.addNextToken(lowerOrders.addContext(key, order - length, length), token, count);
+				}
+			}
+		};
+
+		MarkovChain.TokenCountVisitor previousVisitor = new MarkovChain.TokenCountVisitor()
+		{
+			@Override
+			public void visit(int token, int count)
+			{
+				for (int length = shortest; length < order; length++)
+				{
+					lowerOrders.addPreviousToken(lowerOrders.addContext(key, 0, length), token, count);
+				}
+			}
+		};
+
+		for (int group = 0; group < chain.getGroupCount(); group++)
+		{
+			if (chain.isAlias(group))
+				continue;
+
+			for (int i = 0; i < order; i++)
+			{
+				key[i] = chain.getToken(group, i);
+			}
+
+			chain.visitNextTokens(group, nextVisitor);
+			chain.visitPreviousTokens(group, previousVisitor);
+
+			if (chain.canStart(group))
+			{
+				// the group's own tokens follow on from the runs before them, which nothing else counts
+				for (int end = 1; end < order; end++)
+				{
+					for (int length = shortest; length <= end; length++)
+					{
+						lowerOrders.addNextToken(lowerOrders.addContext(key, end - length, length), key[end]);
+					}
+
+					if (end >= shortest)
+					{
+						lowerOrders.setCanStart(lowerOrders.addContext(key, 0, end));
+					}
+				}
+			}
+
+			if (chain.canEnd(group))
+			{
+				// ...and the same for the runs after them, at the end of a message
+				for (int start = order - 1; start > 0; start--)
+				{
+					for (int length = shortest; length <= order - start; length++)
+					{
+						lowerOrders.addPreviousToken(lowerOrders.addContext(key, start, length), key[start - 1]);
+					}
+
+					if (order - start >= shortest)
+					{
+						lowerOrders.setCanEnd(lowerOrders.addContext(key, start, order - start));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds everything learnt by another table to this one, as if every message it learnt had been learnt by this one
+	 * instead. The other table must use the same token ids, and must not be changed while it is merged.
+	 *
+	 * @param other The table to merge in, which must have the same order
+	 */
+	public void merge(ContextTable other)
+	{
+		for (int otherGroup = 0; otherGroup < other.groupCount; otherGroup++)
+		{
+			int group = this.addGroup(other.keys, otherGroup * this.order);
+
+			this.flags[group] |= other.flags[otherGroup];
+
+			// carry each edge's count over whole, rather than one at a time
+			for (int edge = other.nextHeads[otherGroup]; edge != NO_EDGE; edge = other.edges[edge * EDGE_SIZE + EDGE_NEXT])
+			{
+				this.addNextToken(group, other.edges[edge * EDGE_SIZE + EDGE_TOKEN], other.edges[edge * EDGE_SIZE + EDGE_COUNT]);
+			}
+
+			for (int edge = other.previousHeads[otherGroup]; edge != NO_EDGE; edge = other.edges[edge * EDGE_SIZE + EDGE_NEXT])
+			{
+				this.addPreviousToken(group, other.edges[edge * EDGE_SIZE + EDGE_TOKEN], other.edges[edge * EDGE_SIZE + EDGE_COUNT]);
+			}
+		}
+
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.merge(other.lowerOrders);
+		}
+	}
+
+	/**
+	 * Forgets the least valuable of what the table has learnt, so that it can be kept within a memory budget.
+	 *
+	 * Every count is multiplied by the decay, which ages what has been learnt like an LFU cache: an edge seen only once
+	 * or twice, or not seen again for several prunings, falls to nothing and is dropped, while one that keeps being seen
+	 * keeps growing back. Rounding every count down would drop every edge seen only once in one go, which is usually
+	 * most of them, so instead the newest edges are rounded up and the oldest down, in proportion to how near each count
+	 * is to either; as group ids are handed out in order of first appearance, an edge is as new as the newer of the two
+	 * groups it joins. This keeps the table shrinking by about the decay each time, and as the groups of a message are
+	 * added together, a message seen only once tends to be kept or forgotten whole. Then every group that can no longer
+	 * be walked through (one left with nothing after it that cannot end a message, with nothing before it that cannot
+	 * start one, or with nothing on either side) is dropped, along with every edge leading to it, until every group left
+	 * can still be walked through. Readers therefore never step from a group that is kept onto one that is not.
+	 *
+	 * The lower order contexts are pruned along with the groups, each decaying in the same way and being dropped once it
+	 * has no edge left, as nothing leads into one.
+	 *
+	 * The groups that are kept are given new ids in the same order as before, and everything is copied into new
+	 * Arrays, so snapshots that have already been published carry on reading the old ones; until they are let go of,
+	 * both copies are held at once. The table only takes the new Arrays once all of them have been filled, so if pruning
+	 * fails part way through, such as for want of memory, the table is left as it was. The table must be published
+	 * afterwards. Tokens are never forgotten, as their ids are held by the TokenDictionary, but tokens that are in no
+	 * group that is kept are no longer in the groups of any token.
+	 *
+	 * @param decay The fraction of each count to keep, greater than 0 and less than 1
+	 * @throws IllegalStateException If the table learns on top of another chain, as what the chain knows cannot be
+	 *                               forgotten and groups of the table may be walked into from it
+	 */
+	public void prune(double decay)
+	{
+		if (this.base != null)
+			throw new IllegalStateException("A table that learns on top of another chain cannot be pruned.");
+
+		// prune into a new table, and only take its Arrays once it is done, so that a failure leaves this one as it was
+		ContextTable pruned = new ContextTable(this.order, null, this.isLowerOrders());
+		this.pruneInto(pruned, decay);
+		this.take(pruned);
+	}
+
+	/**
+	 * Copies what is kept by pruning this table, and its lower orders, into another table; see prune(). Nothing of
+	 * this table is changed.
+	 *
+	 * @param pruned The table to copy into, which must be new and of the same order and kind
+	 * @param decay The fraction of each count to keep
+	 */
+	private void pruneInto(ContextTable pruned, double decay)
+	{
+		// decay the count of every edge, and find the group each edge leads to, as dropping a group drops the edges to it
+		int[] counts = new int[this.edgeCount];
+		int[] targets = new int[this.edgeCount];
+		int[] tokens = new int[this.order];
+
+		for (int group = 0; group < this.groupCount; group++)
+		{
+			int start = group * this.order;
+
+			// the edges of a lower order context lead to no group of their own, so count them as leading back to it
+			if (this.isLowerOrders())
+			{
+				for (int edge = this.nextHeads[group]; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+				{
+					targets[edge] = group;
+					counts[edge] = this.decay(edge, group, group, decay);
+				}
+				for (int edge = this.previousHeads[group]; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+				{
+					targets[edge] = group;
+					counts[edge] = this.decay(edge, group, group, decay);
+				}
+
+				continue;
+			}
+
+			// the group after a next token is this group's tokens shifted back by one, with the token on the end...
+			System.arraycopy(this.keys, start + 1, tokens, 0, this.order - 1);
+			for (int edge = this.nextHeads[group]; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+			{
+				tokens[this.order - 1] = this.edges[edge * EDGE_SIZE + EDGE_TOKEN];
+				targets[edge] = this.findGroup(tokens, 0);
+				counts[edge] = this.decay(edge, group, targets[edge], decay);
+			}
+
+			// ...and the group before a previous token is them shifted forward by one, with the token at the start
+			System.arraycopy(this.keys, start, tokens, 1, this.order - 1);
+			for (int edge = this.previousHeads[group]; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+			{
+				tokens[0] = this.edges[edge * EDGE_SIZE + EDGE_TOKEN];
+				targets[edge] = this.findGroup(tokens, 0);
+				counts[edge] = this.decay(edge, group, targets[edge], decay);
+			}
+		}
+
+		// drop groups until none is left that cannot be walked through; dropping one may strand its neighbours, so keep
+		// sweeping until a sweep drops nothing
+		boolean[] kept = new boolean[this.groupCount];
+		Arrays.fill(kept, true);
+
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int group = 0; group < this.groupCount; group++)
+			{
+				if (kept[group] && !this.canWalkThrough(group, counts, targets, kept))
+				{
+					kept[group] = false;
+					changed = true;
+				}
+			}
+		}
+
+		int keptGroupCount = 0;
+		int keptEdgeCount = 0;
+		for (int edge = 0; edge < this.edgeCount; edge++)
+		{
+			if (isKept(edge, counts, targets, kept))
+			{
+				keptEdgeCount++;
+			}
+		}
+		for (int group = 0; group < this.groupCount; group++)
+		{
+			if (kept[group])
+			{
+				keptGroupCount++;
+			}
+		}
+
+		// copy across what is kept, with new ids in the same order as before
+		pruned.reset(Math.max(keptGroupCount, INITIAL_CAPACITY), Math.max(keptEdgeCount, INITIAL_CAPACITY),
+				this.tokenGroupCounts.length);
+
+		for (int oldGroup = 0; oldGroup < this.groupCount; oldGroup++)
+		{
+			if (!kept[oldGroup])
+				continue;
+
+			int group = pruned.addGroup(this.keys, oldGroup * this.order);
+			pruned.flags[group] = this.flags[oldGroup];
+
+			pruned.nextHeads[group] = pruned.copyEdges(this.edges, this.nextHeads[oldGroup], counts, targets, kept);
+			pruned.nextTotals[group] = pruned.sumCounts(pruned.nextHeads[group]);
+
+			pruned.previousHeads[group] = pruned.copyEdges(this.edges, this.previousHeads[oldGroup], counts, targets,
+					kept);
+			pruned.previousTotals[group] = pruned.sumCounts(pruned.previousHeads[group]);
+		}
+
+		if (pruned.edgeIndex != null)
+		{
+			pruned.indexEdges();
+		}
+
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.pruneInto(pruned.lowerOrders, decay);
+		}
+	}
+
+	/**
+	 * Takes the Arrays of a table that has been pruned into, and those of its lower orders, in place of this table's;
+	 * this only swaps references, so it cannot fail part way through.
+	 *
+	 * @param pruned The table that was pruned into
+	 */
+	private void take(ContextTable pruned)
+	{
+		this.keys = pruned.keys;
+		this.hashes = pruned.hashes;
+		this.flags = pruned.flags;
+		this.nextHeads = pruned.nextHeads;
+		this.previousHeads = pruned.previousHeads;
+		this.nextTotals = pruned.nextTotals;
+		this.previousTotals = pruned.previousTotals;
+		this.nextSamplers = pruned.nextSamplers;
+		this.previousSamplers = pruned.previousSamplers;
+		this.groupCount = pruned.groupCount;
+		this.index = pruned.index;
+		this.edges = pruned.edges;
+		this.edgeCount = pruned.edgeCount;
+		this.tokenGroups = pruned.tokenGroups;
+		this.tokenGroupCounts = pruned.tokenGroupCounts;
+		this.edgeIndex = pruned.edgeIndex;
+		this.edgeIndexLists = pruned.edgeIndexLists;
+		this.nextTails = pruned.nextTails;
+		this.previousTails = pruned.previousTails;
+
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.take(pruned.lowerOrders);
+		}
+	}
+
+	/**
+	 * Multiplies the count of an edge by a decay, rounding it up if the edge is newer than the fraction of it being
+	 * rounded away, else down; see prune().
+	 *
+	 * @param edge The index of the edge
+	 * @param group The id of the group the edge belongs to
+	 * @param target The id of the group the edge leads to, or NO_GROUP if there is none
+	 * @param decay The fraction of the count to keep
+	 * @return The decayed count
+	 */
+	private int decay(int edge, int group, int target, double decay)
+	{
+		double decayed = this.edges[edge * EDGE_SIZE + EDGE_COUNT] * decay;
+		int whole = (int) decayed;
+
+		// how new the edge is, from just over 0 for the oldest to 1 for the newest
+		double newness = (double) (Math.max(group, target) + 1) / this.groupCount;
+
+		return newness > 1 - (decayed - whole) ? whole + 1 : whole;
+	}
+
+	/**
+	 * Whether or not a token is in any group or lower order context stored, or in any of the chain the table learns on
+	 * top of. Every token seen before or after a group is in the group that follows on from it, and the same goes for
+	 * the lower orders, so these are all of the tokens the table uses.
+	 *
+	 * @param token The id of the token
+	 * @return True if the table uses the token, else False
+	 */
+	public boolean isTokenUsed(int token)
+	{
+		if (token < this.tokenGroupCounts.length && this.tokenGroupCounts[token] > 0)
+		{
+			return true;
+		}
+
+		if (this.base != null && this.base.getTokenGroupCount(token) > 0)
+		{
+			return true;
+		}
+
+		return this.lowerOrders != null && this.lowerOrders.isTokenUsed(token);
+	}
+
+	/**
+	 * Gets the amount of groups stored.
+	 *
+	 * @return The amount of groups
+	 */
+	public int getGroupCount()
+	{
+		return this.groupCount;
+	}
+
+	/**
+	 * Gets the amount of edges stored, counting both the tokens seen after groups and those seen before them.
+	 *
+	 * @return The amount of edges
+	 */
+	public int getEdgeCount()
+	{
+		return this.edgeCount;
+	}
+
+	/**
+	 * Estimates how many bytes the groups and edges stored take up, along with those of the lower orders; see
+	 * estimateMemory().
+	 *
+	 * @return The estimate, in bytes
+	 */
+	public long getMemoryEstimate()
+	{
+		if (this.isLowerOrders())
+		{
+			return estimateLowerOrderMemory(this.order, this.groupCount, this.edgeCount);
+		}
+
+		return estimateMemory(this.order, this.groupCount, this.edgeCount) + this.lowerOrders.getMemoryEstimate();
+	}
+
+	/**
+	 * Estimates how many bytes a table's groups and edges take up. Only the groups and edges themselves are counted,
+	 * along with each group's place in the index and in the groups of its tokens; the room the Arrays leave to grow
+	 * into, the samplers that readers cache and the tokens themselves are not, so the heap used may well be up to twice
+	 * as much. It is meant for telling whether a table has grown too large, not for sizing the heap.
+	 *
+	 * @param order The amount of tokens in each group
+	 * @param groupCount The amount of groups
+	 * @param edgeCount The amount of edges
+	 * @return The estimate, in bytes
+	 */
+	static long estimateMemory(int order, long groupCount, long edgeCount)
+	{
+		// each group's tokens are stored once in the keys, and it is in the groups of up to as many tokens again
+		return groupCount * (GROUP_BYTES + 2 * 4 * order) + edgeCount * EDGE_SIZE * 4;
+	}
+
+	/**
+	 * Estimates how many bytes a table of lower orders' contexts and edges take up, in the same way as
+	 * estimateMemory(); on top of which each context has the last edge of both of its lists, and each edge at least two
+	 * slots of the edge index.
+	 *
+	 * @param order The amount of tokens in each context, padding and all
+	 * @param groupCount The amount of contexts
+	 * @param edgeCount The amount of edges
+	 * @return The estimate, in bytes
+	 */
+	static long estimateLowerOrderMemory(int order, long groupCount, long edgeCount)
+	{
+		return estimateMemory(order, groupCount, edgeCount) + groupCount * 2 * 4 + edgeCount * 2 * 2 * 4;
+	}
+
+	/**
+	 * Whether or not a group can still be walked through once the groups not marked as kept have been dropped; that
+	 * is, whether it keeps some edge, and can both carry on or end a message and carry back or start one.
+	 *
+	 * @param group The id of the group
+	 * @param counts The decayed count of each edge
+	 * @param targets The group that each edge leads to
+	 * @param kept Whether or not each group is still kept
+	 * @return True if the group can be walked through, else False
+	 */
+	private boolean canWalkThrough(int group, int[] counts, int[] targets, boolean[] kept)
+	{
+		boolean hasNext = this.hasKeptEdge(this.nextHeads[group], counts, targets, kept);
+		boolean hasPrevious = this.hasKeptEdge(this.previousHeads[group], counts, targets, kept);
+
+		// a lower order context is only ever walked one way, so is worth keeping as long as it keeps any edge
+		if (this.isLowerOrders())
+		{
+			return hasNext || hasPrevious;
+		}
+
+		return (hasNext || hasPrevious)
+				&& (hasNext || (this.flags[group] & FLAG_CAN_END) != 0)
+				&& (hasPrevious || (this.flags[group] & FLAG_CAN_START) != 0);
+	}
+
+	/**
+	 * Whether or not any edge of a linked list is kept.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param counts The decayed count of each edge
+	 * @param targets The group that each edge leads to
+	 * @param kept Whether or not each group is still kept
+	 * @return True if an edge is kept, else False
+	 */
+	private boolean hasKeptEdge(int head, int[] counts, int[] targets, boolean[] kept)
+	{
+		for (int edge = head; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+		{
+			if (isKept(edge, counts, targets, kept))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Whether or not an edge is kept by pruning; it must still have been seen once after decaying, and lead to a group
+	 * that is kept.
+	 *
+	 * @param edge The index of the edge
+	 * @param counts The decayed count of each edge
+	 * @param targets The group that each edge leads to
+	 * @param kept Whether or not each group is kept
+	 * @return True if the edge is kept, else False
+	 */
+	private static boolean isKept(int edge, int[] counts, int[] targets, boolean[] kept)
+	{
+		return counts[edge] > 0 && targets[edge] != NO_GROUP && kept[targets[edge]];
+	}
+
+	/**
+	 * Copies the edges of a linked list that are kept by pruning onto the end of the edges Array, with their decayed
+	 * counts, in the same order. There must be room for them.
+	 *
+	 * @param from The edges Array the list is in
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param counts The decayed count of each edge
+	 * @param targets The group that each edge leads to
+	 * @param kept Whether or not each group is kept
+	 * @return The index of the first edge of the copied list, or NO_EDGE if no edge was kept
+	 */
+	private int copyEdges(int[] from, int head, int[] counts, int[] targets, boolean[] kept)
+	{
+		int copiedHead = NO_EDGE;
+		int last = NO_EDGE;
+
+		for (int edge = head; edge != NO_EDGE; edge = from[edge * EDGE_SIZE + EDGE_NEXT])
+		{
+			if (!isKept(edge, counts, targets, kept))
+				continue;
+
+			int copy = this.edgeCount++;
+			this.edges[copy * EDGE_SIZE + EDGE_TOKEN] = from[edge * EDGE_SIZE + EDGE_TOKEN];
+			this.edges[copy * EDGE_SIZE + EDGE_COUNT] = counts[edge];
+			this.edges[copy * EDGE_SIZE + EDGE_NEXT] = NO_EDGE;
+
+			if (last == NO_EDGE)
+			{
+				copiedHead = copy;
+			}
+			else
+			{
+				this.edges[last * EDGE_SIZE + EDGE_NEXT] = copy;
+			}
+
+			last = copy;
+		}
+
+		return copiedHead;
+	}
+
+	/**
+	 * Adds up the counts of a linked list of edges.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @return The sum of the counts
+	 */
+	private int sumCounts(int head)
+	{
+		int total = 0;
+		for (int edge = head; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+		{
+			total += this.edges[edge * EDGE_SIZE + EDGE_COUNT];
+		}
+
+		return total;
+	}
+
+	/**
+	 * Counts a token in a linked list of edges some amount of times, adding it to the end of the list if it is not
+	 * already in it.
+	 *
+	 * New edges are only ever linked onto the end of a list, so that a reader walking the list with an older snapshot
+	 * either stops where the list used to end or steps onto an edge beyond the snapshot, which it knows to ignore.
+	 *
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param token The id of the token
+	 * @param count The amount of times the token was seen
+	 * @return The index of the first edge of the list after the addition
+	 */
+	private int addEdge(int head, int token, int count)
+	{
+		// walk to the end of the list, stopping early if the token is already present
+		int last = NO_EDGE;
+		for (int edge = head; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+		{
+			if (this.edges[edge * EDGE_SIZE + EDGE_TOKEN] == token)
+			{
+				this.edges[edge * EDGE_SIZE + EDGE_COUNT] += count;
+				return head;
+			}
+
+			last = edge;
+		}
+
+		// make room for the new edge
+		if ((this.edgeCount + 1) * EDGE_SIZE > this.edges.length)
+		{
+			this.edges = Arrays.copyOf(this.edges, this.edges.length * 2);
+		}
+
+		int edge = this.edgeCount++;
+		this.edges[edge * EDGE_SIZE + EDGE_TOKEN] = token;
+		this.edges[edge * EDGE_SIZE + EDGE_COUNT] = count;
+		this.edges[edge * EDGE_SIZE + EDGE_NEXT] = NO_EDGE;
+
+		// the new edge either starts the list or is linked from the previous end of it
+		if (last == NO_EDGE)
+		{
+			return edge;
+		}
+
+		this.edges[last * EDGE_SIZE + EDGE_NEXT] = edge;
+		return head;
+	}
+
+	/**
+	 * Counts a token in one of a group's lists of edges some amount of times, finding it through the edge index, and
+	 * adding it to the end of the list if it is not already in it; see addEdge().
+	 *
+	 * @param group The id of the group
+	 * @param next Whether the list is of the tokens after the group, else of those before it
+	 * @param token The id of the token
+	 * @param count The amount of times the token was seen
+	 */
+	private void addIndexedEdge(int group, boolean next, int token, int count)
+	{
+		int list = group * 2 + (next ? 0 : 1);
+		int mask = this.edgeIndex.length - 1;
+
+		// probe linearly from the slot the hash points at until the edge or an empty slot is found
+		int slot;
+		for (slot = hashEdge(list, token) & mask; this.edgeIndex[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int edge = this.edgeIndex[slot] - 1;
+
+			if (this.edgeIndexLists[slot] == list && this.edges[edge * EDGE_SIZE + EDGE_TOKEN] == token)
+			{
+				this.edges[edge * EDGE_SIZE + EDGE_COUNT] += count;
+				return;
+			}
+		}
+
+		// make room for the new edge
+		if ((this.edgeCount + 1) * EDGE_SIZE > this.edges.length)
+		{
+			this.edges = Arrays.copyOf(this.edges, this.edges.length * 2);
+		}
+
+		int edge = this.edgeCount++;
+		this.edges[edge * EDGE_SIZE + EDGE_TOKEN] = token;
+		this.edges[edge * EDGE_SIZE + EDGE_COUNT] = count;
+		this.edges[edge * EDGE_SIZE + EDGE_NEXT] = NO_EDGE;
+
+		// link it onto the end of the list, as addEdge does
+		int[] heads = next ? this.nextHeads : this.previousHeads;
+		int[] tails = next ? this.nextTails : this.previousTails;
+
+		if (heads[group] == NO_EDGE)
+		{
+			heads[group] = edge;
+		}
+		else
+		{
+			this.edges[tails[group] * EDGE_SIZE + EDGE_NEXT] = edge;
+		}
+		tails[group] = edge;
+
+		this.edgeIndex[slot] = edge + 1;
+		this.edgeIndexLists[slot] = list;
+
+		// keep the index at most half full, as with groups
+		if (this.edgeCount * 2 > this.edgeIndex.length)
+		{
+			this.indexEdges();
+		}
+	}
+
+	/**
+	 * Rebuilds the edge index, and the last edge of each list, from the lists of edges; big enough to stay at most half
+	 * full.
+	 */
+	private void indexEdges()
+	{
+		int size = INITIAL_CAPACITY * 2;
+		while (this.edgeCount * 2 >= size)
+		{
+			size *= 2;
+		}
+
+		this.edgeIndex = new int[size];
+		this.edgeIndexLists = new int[size];
+		int mask = size - 1;
+
+		for (int group = 0; group < this.groupCount; group++)
+		{
+			this.nextTails[group] = this.indexEdges(group * 2, this.nextHeads[group], mask);
+			this.previousTails[group] = this.indexEdges(group * 2 + 1, this.previousHeads[group], mask);
+		}
+	}
+
+	/**
+	 * Adds the edges of a list to the edge index.
+	 *
+	 * @param list The list, as it is keyed in the index
+	 * @param head The index of the first edge of the list, or NO_EDGE if the list is empty
+	 * @param mask The length of the index, less one
+	 * @return The index of the last edge of the list, or NO_EDGE if the list is empty
+	 */
+	private int indexEdges(int list, int head, int mask)
+	{
+		int last = NO_EDGE;
+		for (int edge = head; edge != NO_EDGE; edge = this.edges[edge * EDGE_SIZE + EDGE_NEXT])
+		{
+			int slot = hashEdge(list, this.edges[edge * EDGE_SIZE + EDGE_TOKEN]) & mask;
+			while (this.edgeIndex[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			this.edgeIndex[slot] = edge + 1;
+			this.edgeIndexLists[slot] = list;
+			last = edge;
+		}
+
+		return last;
+	}
+
+	/**
+	 * Hashes an edge for the edge index.
+	 *
+	 * @param list The list the edge is in
+	 * @param token The id of its token
+	 * @return The hash code
+	 */
+	private static int hashEdge(int list, int token)
+	{
+		return Hashing.finish(Hashing.mix(Hashing.mix(0, list), token), 2);
+	}
+
+	/**
+	 * Records that each distinct token in a group is in it; padding is not a token, so is left out.
+	 *
+	 * @param group The id of the group
+	 */
+	private void addTokenGroups(int group)
+	{
+		int start = group * this.order;
+		for (int i = 0; i < this.order; i++)
+		{
+			int token = this.keys[start + i];
+
+			// skip the padding of lower order contexts, and tokens that appear earlier in the same group, as they have
+			// already been recorded
+			boolean repeated = token < 0;
+			for (int j = 0; j < i && !repeated; j++)
+			{
+				repeated = this.keys[start + j] == token;
+			}
+
+			if (!repeated)
+			{
+				this.addTokenGroup(token, group);
+			}
+		}
+	}
+
+	/**
+	 * Records that a token is in a group.
+	 *
+	 * @param token The id of the token
+	 * @param group The id of the group
+	 */
+	private void addTokenGroup(int token, int group)
+	{
+		// token ids are dense, so grow the per-token Arrays to cover this one
+		if (token >= this.tokenGroupCounts.length)
+		{
+			int capacity = Math.max(token + 1, this.tokenGroupCounts.length * 2);
+			this.tokenGroups = Arrays.copyOf(this.tokenGroups, capacity);
+			this.tokenGroupCounts = Arrays.copyOf(this.tokenGroupCounts, capacity);
+		}
+
+		TokenGroups groups = this.tokenGroups[token];
+		int count = this.tokenGroupCounts[token];
+
+		if (groups == null || count == groups.groups.length)
+		{
+			// fill in the group before the new list is created, so that every reader that sees the list sees it
+			int[] grown = groups == null ? new int[1] : Arrays.copyOf(groups.groups, count * 2);
+			grown[count] = group + 1;
+			this.tokenGroups[token] = new TokenGroups(grown);
+		}
+		else
+		{
+			groups.groups[count] = group + 1;
+		}
+
+		this.tokenGroupCounts[token] = count + 1;
+	}
+
+	/**
+	 * Empties the table, replacing every Array with a new one; the Arrays already published are left untouched.
+	 *
+	 * @param groupCapacity The amount of groups there should be room for
+	 * @param edgeCapacity The amount of edges there should be room for
+	 * @param tokenCapacity The amount of tokens there should be room for in the groups of each token
+	 */
+	private void reset(int groupCapacity, int edgeCapacity, int tokenCapacity)
+	{
+		// keep the index at most half full, as addGroup does
+		int indexSize = INITIAL_CAPACITY * 2;
+		while (groupCapacity * 2 > indexSize)
+		{
+			indexSize *= 2;
+		}
+
+		this.keys = new int[groupCapacity * this.order];
+		this.hashes = new int[groupCapacity];
+		this.flags = new byte[groupCapacity];
+		this.nextHeads = new int[groupCapacity];
+		this.previousHeads = new int[groupCapacity];
+		this.nextTotals = new int[groupCapacity];
+		this.previousTotals = new int[groupCapacity];
+		this.nextSamplers = new AliasSampler[groupCapacity];
+		this.previousSamplers = new AliasSampler[groupCapacity];
+		this.index = new int[indexSize];
+		this.edges = new int[edgeCapacity * EDGE_SIZE];
+		this.tokenGroups = new TokenGroups[tokenCapacity];
+		this.tokenGroupCounts = new int[tokenCapacity];
+		this.groupCount = 0;
+		this.edgeCount = 0;
+
+		if (this.base != null)
+		{
+			this.baseGroups = new int[groupCapacity];
+			this.baseIndex = new int[INITIAL_CAPACITY * 2];
+			this.baseIndexCount = 0;
+		}
+
+		if (this.isLowerOrders())
+		{
+			this.edgeIndex = new int[INITIAL_CAPACITY * 2];
+			this.edgeIndexLists = new int[INITIAL_CAPACITY * 2];
+			this.nextTails = new int[groupCapacity];
+			this.previousTails = new int[groupCapacity];
+		}
+	}
+
+	/**
+	 * Grows the per-group Arrays so that they can hold at least a certain amount of groups.
+	 *
+	 * @param capacity The amount of groups that must fit
+	 */
+	private void ensureGroupCapacity(int capacity)
+	{
+		if (capacity <= this.flags.length)
+			return;
+
+		int newCapacity = Math.max(capacity, this.flags.length * 2);
+		this.keys = Arrays.copyOf(this.keys, newCapacity * this.order);
+		this.hashes = Arrays.copyOf(this.hashes, newCapacity);
+		this.flags = Arrays.copyOf(this.flags, newCapacity);
+		this.nextHeads = Arrays.copyOf(this.nextHeads, newCapacity);
+		this.previousHeads = Arrays.copyOf(this.previousHeads, newCapacity);
+		this.nextTotals = Arrays.copyOf(this.nextTotals, newCapacity);
+		this.previousTotals = Arrays.copyOf(this.previousTotals, newCapacity);
+		this.nextSamplers = Arrays.copyOf(this.nextSamplers, newCapacity);
+		this.previousSamplers = Arrays.copyOf(this.previousSamplers, newCapacity);
+
+		if (this.baseGroups != null)
+		{
+			this.baseGroups = Arrays.copyOf(this.baseGroups, newCapacity);
+		}
+
+		if (this.nextTails != null)
+		{
+			this.nextTails = Arrays.copyOf(this.nextTails, newCapacity);
+			this.previousTails = Arrays.copyOf(this.previousTails, newCapacity);
+		}
+	}
+
+	/**
+	 * Gets the average amount of slots of the index looked at to find a group that has been learnt; 1 if no two groups
+	 * ever compete for a slot. This shows how evenly the hash spreads the groups, and is worked out by walking the whole
+	 * index, so it should only be called now and then.
+	 *
+	 * @return The mean probe length, else 0 if there are no groups
+	 */
+	public double getMeanProbeLength()
+	{
+		return Hashing.meanProbeLength(this.index, this.hashes);
+	}
+
+	/**
+	 * Adds a group that matches a group of the base chain to the index of such groups, growing the index if it has
+	 * become more than half full. A new Array is always used when growing, so that snapshots holding the old one can
+	 * carry on using it.
+	 *
+	 * @param group The id of the group
+	 */
+	private void addBaseIndex(int group)
+	{
+		this.baseIndexCount++;
+		if (this.baseIndexCount * 2 > this.baseIndex.length)
+		{
+			int[] baseIndex = new int[this.baseIndex.length * 2];
+			for (int slot = 0; slot < this.baseIndex.length; slot++)
+			{
+				if (this.baseIndex[slot] != 0)
+				{
+					insert(baseIndex, Hashing.hash(this.baseGroups[this.baseIndex[slot] - 1]), this.baseIndex[slot]);
+				}
+			}
+
+			this.baseIndex = baseIndex;
+		}
+
+		insert(this.baseIndex, Hashing.hash(this.baseGroups[group]), group + 1);
+	}
+
+	/**
+	 * Puts a value in the first empty slot of an open-addressed hash index from where its hash points.
+	 *
+	 * @param index The index
+	 * @param hash The hash of the value's key
+	 * @param value The value, which must not be 0
+	 */
+	private static void insert(int[] index, int hash, int value)
+	{
+		int mask = index.length - 1;
+
+		int slot = hash & mask;
+		while (index[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		index[slot] = value;
+	}
+
+	/**
+	 * Rebuilds the hash index with a new amount of slots. A new Array is always used, so that snapshots holding the
+	 * old one can carry on using it.
+	 *
+	 * @param size The new amount of slots, which must be a power of two
+	 */
+	private void rehash(int size)
+	{
+		int[] index = new int[size];
+		int mask = size - 1;
+
+		for (int group = 0; group < this.groupCount; group++)
+		{
+			int slot = this.hashes[group] & mask;
+			while (index[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			index[slot] = group + 1;
+		}
+
+		this.index = index;
+	}
+
+	/**
+	 * Finds the id of the group made up of a run of tokens, without creating it.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token of the group in the Array
+	 * @return The id of the group, else NO_GROUP if it has never been learnt
+	 */
+	private int findGroup(int[] tokens, int offset)
+	{
+		int mask = this.index.length - 1;
+		int hash = hash(tokens, offset, this.order);
+
+		for (int slot = hash & mask; this.index[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int group = this.index[slot] - 1;
+
+			if (this.hashes[group] == hash && this.keyEquals(group, tokens, offset))
+			{
+				return group;
+			}
+		}
+
+		return NO_GROUP;
+	}
+
+	/**
+	 * Whether or not a group is made up of a run of tokens.
+	 *
+	 * @param group The id of the group
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token in the Array
+	 * @return True if the tokens are the same as the group's, else False
+	 */
+	private boolean keyEquals(int group, int[] tokens, int offset)
+	{
+		int start = group * this.order;
+		for (int i = 0; i < this.order; i++)
+		{
+			if (this.keys[start + i] != tokens[offset + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Generates a hash code from a run of tokens.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token in the Array
+	 * @param length The amount of tokens
+	 * @return The hash code
+	 */
+	static int hash(int[] tokens, int offset, int length)
+	{
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+		{
+			hash = Hashing.mix(hash, tokens[offset + i]);
+		}
+
+		return Hashing.finish(hash, length);
+	}
+}
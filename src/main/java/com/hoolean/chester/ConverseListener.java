@@ -1,10 +1,23 @@
 package com.hoolean.chester;
 
+import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.element.Channel;
+import org.kitteh.irc.client.library.event.channel.ChannelJoinEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelKickEvent;
 import org.kitteh.irc.client.library.event.channel.ChannelMessageEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelPartEvent;
+import org.kitteh.irc.client.library.event.user.UserNickChangeEvent;
+import org.kitteh.irc.client.library.event.user.UserQuitEvent;
 import org.kitteh.irc.lib.net.engio.mbassy.listener.Handler;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConverseListener
 {
@@ -16,25 +29,45 @@ public class ConverseListener
 	private static final char NICK_SPLITTER = (char) 0x200b;
 
 	/**
-	 * The instance of MegaHal to teach and use for generating responses.
+	 * Hosts the brain of each channel; each brain's instance of MegaHal generates responses, and its pipeline teaches
+	 * it and saves what it learns, away from the thread the event arrived on.
 	 */
-	private final MegaHal megaHal;
+	private final BrainManager brainManager;
 
 	/**
-	 * The file to save sentences to, allowing permanence in the learning of MegaHal.
+	 * Builds and sends replies away from the event thread, limiting how often each channel is replied to.
 	 */
-	private final File brainFile;
+	private final ReplyScheduler replyScheduler;
 
 	/**
-	 * Create an instance of ConverseListener with the desired instance of MegaHal to teach and use for generating
-	 * responses.
+	 * Finds the nicks of the users of each channel in replies, keyed by the channel's name in lower case. Each is
+	 * dropped as soon as the channel's users change, and built again the next time the channel is replied to, so only
+	 * the channels replied to since their users last changed have one.
+	 */
+	private final ConcurrentMap<String, NickMatcher> channelNicks = new ConcurrentHashMap<String, NickMatcher>();
+
+	/**
+	 * Counts the changes to the users of channels, so that a matcher built while one happened, which may have missed
+	 * it, is not kept.
+	 */
+	private final AtomicLong usersChanges = new AtomicLong();
+
+	/**
+	 * Finds the bot's own nick in messages; rebuilt whenever the bot's nick changes.
+	 */
+	private volatile NickMatcher ownNick;
+
+	/**
+	 * Create an instance of ConverseListener with the desired host of the brains to use for generating responses and
+	 * to teach, and the scheduler to generate responses on.
 	 *
-	 * @param megaHal The instance of MegaHal to teach and use for generating responses
+	 * @param brainManager The host of the brain of each channel
+	 * @param replyScheduler The scheduler to build and send replies on
 	 */
-	public ConverseListener(MegaHal megaHal, File brainFile)
+	public ConverseListener(BrainManager brainManager, ReplyScheduler replyScheduler)
 	{
-		this.megaHal = megaHal;
-		this.brainFile = brainFile;
+		this.brainManager = brainManager;
+		this.replyScheduler = replyScheduler;
 	}
 
 	/**
@@ -46,90 +79,194 @@ public class ConverseListener
 	public void onMessage(ChannelMessageEvent event)
 	{
 		String message = event.getMessage();
+		NickMatcher ownNick = this.getOwnNick(event.getClient().getNick());
 
 		// if should prompt a reply
-		if (isMessagePinging(message, event.getClient().getNick()))
+		if (ownNick.isFoundIn(message))
 		{
-			// use a builder, as it is likely faster for quick String manipulation
-			StringBuilder fixedBuilder = new StringBuilder();
-			fixedBuilder.append(message);
+			final Client client = event.getClient();
+			final Channel channel = event.getChannel();
 
-			// while the bot's nick appears at some index in the message...
-			int index;
-			while ((index = fixedBuilder.toString().toLowerCase().indexOf(event.getClient().getNick().toLowerCase())) != -1)
+			// leave the reply to the scheduler, which builds it on a thread of its own once the channel is due one,
+			// along with any other mentions that arrive in the meantime
+			// TODO: review the practise of removing the bot's nick, there may be a better alternative
+			this.replyScheduler.schedule(channel.getName(), ownNick.remove(message), new ReplyScheduler.Replier()
 			{
-				// ...remove it
-				// TODO: review the practise of removing it, there may be a better alternative
-				fixedBuilder.delete(index, index + event.getClient().getNick().length());
-			}
+				@Override
+				public void reply(String message)
+				{
+					// find the channel's brain here rather than on the event thread, as it may have to be opened first
+					BrainManager.Brain brain;
+					try
+					{
+						brain = ConverseListener.this.brainManager.getChannelBrain(channel.getName());
+					}
+					catch (IOException e)
+					{
+						System.err.println(String.format("Could not open the brain of '%s'; the mention will be ignored.", channel.getName()));
+						e.printStackTrace();
+						return;
+					}
+
+					// calculate the best reply to the message, without the bot's nick in it, with MegaHal
+					String reply = brain.getMegaHal().getBestMessageFromMessage(message);
 
-			// calculate the best reply to the message with MegaHal
-			String reply = this.megaHal.getBestMessageFromMessage(fixedBuilder.toString());
+					// split every user's nick in the reply, so as not to ping them; the splitter is invisible on most
+					// clients, so there should be no visible effect
+					// e.g. Chester -> C<CHARACTER>hester
+					String unpinging = ConverseListener.this.getChannelNicks(channel).split(reply, NICK_SPLITTER);
 
-			// send the reply
-			event.getClient().sendMessage(event.getChannel(), removePings(reply, event.getChannel()));
+					// send the reply
+					client.sendMessage(channel, unpinging);
+				}
+			});
 		}
 		else // if should learn from message
 		{
-			this.megaHal.addMessage(message);
+			// queue it to be learnt and stored by the channel's brain, which is opened meanwhile if it is not open; this
+			// returns straight away, leaving the event thread free
+			this.brainManager.submitMessage(event.getChannel().getName(), message);
+		}
+	}
 
-			try
-			{
-				// store the message to a File
-				PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(this.brainFile)));
-				printWriter.println(message);
-			}
-			catch (IOException e)
-			{
-				System.err.println("Could not append message to a file.");
-				e.printStackTrace();
-			}
+	/**
+	 * Gets the matcher of the bot's own nick, building a new one if the nick has changed.
+	 *
+	 * @param nick The bot's nick at the moment
+	 * @return The matcher of the nick
+	 */
+	private NickMatcher getOwnNick(String nick)
+	{
+		List<String> nicks = Collections.singletonList(nick);
+		NickMatcher ownNick = this.ownNick;
+
+		if (ownNick == null || !ownNick.hasNicks(nicks))
+		{
+			ownNick = new NickMatcher(nicks);
+			this.ownNick = ownNick;
 		}
+
+		return ownNick;
 	}
 
 	/**
-	 * Whether or not a message contains an instance of the User's nick that is likely to ping them.
+	 * Drops the matcher of the nicks of a channel's users when someone joins it, including the bot.
 	 *
-	 * @param message The message that may contain the User's nick
-	 * @param nick The User's nick
-	 * @return True if the message does ping them, else false
+	 * @param event The details of the event of the User joining the Channel
 	 */
-	private static boolean isMessagePinging(String message, String nick)
+	@Handler
+	public void onJoin(ChannelJoinEvent event)
 	{
-		// make both Strings lowercase, as we wish the contains to be case-insensitive
-		return message.toLowerCase().contains(nick.toLowerCase());
+		this.dropChannelNicks(event.getChannel());
 	}
 
 	/**
-	 * Splits all instances of every nick from a channel-user in a message with a unicode character, so as not to ping
-	 * them if their nick is mentioned in a message.
+	 * Drops the matcher of the nicks of a channel's users when someone parts it; if it was the bot, the channel is not
+	 * replied to again, and its matcher is not built again, until it is rejoined.
 	 *
-	 * The character is invisible on most clients, so their should be no visible effect.
+	 * @param event The details of the event of the User parting the Channel
+	 */
+	@Handler
+	public void onPart(ChannelPartEvent event)
+	{
+		this.dropChannelNicks(event.getChannel());
+	}
+
+	/**
+	 * Drops the matcher of the nicks of a channel's users when someone is kicked from it, including the bot.
 	 *
-	 * @param message The message to remove pings from
-	 * @param channel The channel to source users and their nicks from
-	 * @return The message with all nicks split
+	 * @param event The details of the event of the User being kicked from the Channel
 	 */
-	private static String removePings(String message, Channel channel)
+	@Handler
+	public void onKick(ChannelKickEvent event)
 	{
-		// using a StringBuilder will probably make String manipulation faster
-		StringBuilder fixedBuilder = new StringBuilder();
-		fixedBuilder.append(message);
+		this.dropChannelNicks(event.getChannel());
+	}
 
-		// for each nick in the channel
-		for (String nick : channel.getNames())
+	/**
+	 * Drops the matchers of the channels a user was in when they quit, which are those built with their nick.
+	 *
+	 * @param event The details of the event of the User quitting
+	 */
+	@Handler
+	public void onQuit(UserQuitEvent event)
+	{
+		this.dropChannelNicks(event.getActor().getNick());
+	}
+
+	/**
+	 * Drops the matchers of the channels a user is in when they change their nick, which are those built with their
+	 * old nick.
+	 *
+	 * @param event The details of the event of the User changing their nick
+	 */
+	@Handler
+	public void onNickChange(UserNickChangeEvent event)
+	{
+		this.dropChannelNicks(event.getActor().getNick());
+	}
+
+	/**
+	 * Drops the matcher of the nicks of a channel's users, for it to be built again the next time the channel is
+	 * replied to.
+	 *
+	 * @param channel The channel
+	 */
+	private void dropChannelNicks(Channel channel)
+	{
+		this.usersChanges.incrementAndGet();
+		this.channelNicks.remove(channel.getName().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Drops the matchers of the channels a user is in, which are those built with their nick, for them to be built
+	 * again the next time each channel is replied to.
+	 *
+	 * @param nick The user's nick
+	 */
+	private void dropChannelNicks(String nick)
+	{
+		this.usersChanges.incrementAndGet();
+
+		for (Iterator<NickMatcher> iterator = this.channelNicks.values().iterator(); iterator.hasNext(); )
 		{
-			// while the nick is in the message at some index
-			int index;
-			while ((index = fixedBuilder.toString().toLowerCase().indexOf(nick.toLowerCase())) != -1)
+			if (iterator.next().hasNick(nick))
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Gets the matcher of the nicks of a channel's users, building a new one if there is none.
+	 *
+	 * Joins, parts, kicks, quits and nick changes drop the channel's matcher as they happen, so it only needs checking
+	 * against the amount of users, which is enough to catch the users only becoming known after the bot has joined; the
+	 * matcher itself is only rebuilt when they really have changed.
+	 *
+	 * @param channel The channel
+	 * @return The matcher of the nicks of its users
+	 */
+	private NickMatcher getChannelNicks(Channel channel)
+	{
+		String key = channel.getName().toLowerCase(Locale.ROOT);
+		long usersChanges = this.usersChanges.get();
+		List<String> names = channel.getNames();
+		NickMatcher channelNicks = this.channelNicks.get(key);
+
+		if (channelNicks == null || channelNicks.getNickCount() != names.size())
+		{
+			channelNicks = new NickMatcher(names);
+
+			// only keep it if no users changed while it was built, else it may have missed the change; checking again
+			// once it is kept catches a change that dropped the channel's matcher just before it was
+			this.channelNicks.put(key, channelNicks);
+			if (this.usersChanges.get() != usersChanges)
 			{
-				// split it with the unicode character
-				// e.g. Chester -> C<CHARACTER>hester
-				fixedBuilder.insert(index + 1, NICK_SPLITTER);
+				this.channelNicks.remove(key, channelNicks);
 			}
 		}
 
-		// return the modified result
-		return fixedBuilder.toString();
+		return channelNicks;
 	}
 }
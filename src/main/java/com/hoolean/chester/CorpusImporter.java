@@ -0,0 +1,246 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports past messages into a brain when Chester is started with --import, rather than connecting to IRC.
+ */
+final class CorpusImporter
+{
+	/**
+	 * The command line argument that, followed by files and directories of past messages, makes Chester learn every
+	 * message in them and write a snapshot of his brain instead of connecting to IRC.
+	 */
+	static final String ARGUMENT_IMPORT = "--import";
+
+	/**
+	 * The command line argument that, followed by the name of a channel or brain, picks the brain that --import teaches
+	 * when each channel has a brain of its own.
+	 */
+	private static final String ARGUMENT_BRAIN = "--brain";
+
+	/**
+	 * The loader that loads the brain to import into, in the same way as Chester does when he starts.
+	 */
+	private final BrainLoader brainLoader;
+
+	/**
+	 * Creates an importer.
+	 *
+	 * @param brainLoader The loader that loads the brain to import into
+	 */
+	CorpusImporter(BrainLoader brainLoader)
+	{
+		this.brainLoader = brainLoader;
+	}
+
+	/**
+	 * Teaches MegaHal every message in some files and directories of past messages, such as channel logs, using every
+	 * core, then writes a snapshot of his brain so that he knows them from the next time he starts. If every channel
+	 * shares a brain, that brain is taught; else the brain of the channel, or the brain, named after --brain.
+	 *
+	 * The messages are not appended to the brain file, which holds what was learnt on IRC; instead, the files and
+	 * directories are copied into the brain's imported directory, so that they are learnt again along with the brain
+	 * file whenever there is no snapshot that can be used.
+	 *
+	 * @param properties The config
+	 * @param arguments The command line arguments after --import; --brain and the name of a channel or brain if each
+	 *                  channel has a brain of its own, followed by the paths of the files and directories
+	 */
+	void importCorpus(Properties properties, List<String> arguments)
+	{
+		String brainName = null;
+		List<String> paths = arguments;
+		if (paths.size() >= 2 && paths.get(0).equals(ARGUMENT_BRAIN))
+		{
+			brainName = paths.get(1);
+			paths = paths.subList(2, paths.size());
+		}
+
+		if (paths.isEmpty())
+		{
+			System.err.println(String.format("Usage: %s [%s <channel or brain>] <file or directory>...", ARGUMENT_IMPORT, ARGUMENT_BRAIN));
+			return;
+		}
+
+		int batchSize = Config.getIntProperty(properties, Config.PROPERTY_KEY_LEARN_BATCH_SIZE, Config.PROPERTY_DEFAULT_LEARN_BATCH_SIZE);
+		File brainFile;
+		File snapshotFile;
+		MegaHal hal;
+
+		if (Config.getEnumProperty(properties, Config.PROPERTY_KEY_BRAIN_MODE, Config.PROPERTY_DEFAULT_BRAIN_MODE, Config.BrainMode.class) == Config.BrainMode.SHARED)
+		{
+			if (brainName != null)
+			{
+				System.err.println(String.format("Every channel shares one brain, so '%s' cannot be given; nothing will be imported.", ARGUMENT_BRAIN));
+				return;
+			}
+
+			brainFile = new File("brain.txt");
+			hal = this.brainLoader.loadBrain(properties, brainFile, batchSize);
+			snapshotFile = this.brainLoader.getSnapshotFile(properties, hal);
+		}
+		else
+		{
+			if (brainName == null)
+			{
+				System.err.println(String.format("Each channel has a brain of its own, so name the channel, or brain, to import into with '%s'; nothing will be imported.", ARGUMENT_BRAIN));
+				return;
+			}
+
+			File brainDirectory;
+			try
+			{
+				brainDirectory = this.brainLoader.getBrainDirectory(properties, getImportBrainName(properties, brainName));
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return;
+			}
+
+			brainFile = new File(brainDirectory, "brain.txt");
+			snapshotFile = new File(brainDirectory, Config.PROPERTY_DEFAULT_SNAPSHOT_FILE);
+			hal = this.brainLoader.loadBrain(properties, snapshotFile, brainFile, batchSize, null);
+		}
+
+		List<File> files = new ArrayList<File>(paths.size());
+		for (String path : paths)
+		{
+			files.add(new File(path));
+		}
+
+		BulkTrainer trainer = new BulkTrainer(hal);
+		long startTime = System.nanoTime();
+		try
+		{
+			trainer.importFiles(files);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not read the messages to import; nothing will be saved.");
+			e.printStackTrace();
+			return;
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Interrupted while importing messages; nothing will be saved.");
+			return;
+		}
+
+		System.out.println(String.format("Learnt from %d of %d messages in %d seconds.", trainer.getLearntCount(),
+				trainer.getMessageCount(), TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime)));
+
+		// keep the messages, so that they are not lost along with the snapshot
+		try
+		{
+			recordImport(brainFile, files);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not copy the messages into '%s'; nothing will be saved.", BrainLoader.getImportedDirectory(brainFile).getAbsolutePath()));
+			e.printStackTrace();
+			return;
+		}
+
+		// everything in the brain file has been learnt too, so the snapshot covers all of it
+		try
+		{
+			hal.writeSnapshot(snapshotFile, brainFile.length());
+		}
+		catch (IOException e)
+		{
+			// the snapshot there is from before the import, so would be used in place of relearning what was imported
+			System.err.println(String.format("Could not write the brain snapshot at '%s'; it will be deleted, so that the brain is relearnt along with what was imported.", snapshotFile.getAbsolutePath()));
+			e.printStackTrace();
+
+			if (snapshotFile.exists() && !snapshotFile.delete())
+			{
+				System.err.println(String.format("Could not delete the brain snapshot at '%s'; delete it before starting Chester, or the messages imported will not be known.", snapshotFile.getAbsolutePath()));
+			}
+		}
+	}
+
+	/**
+	 * Gets the name of the brain that --brain picks out; that of the channel if it is the name of one, else the name of
+	 * a brain, in the same way as the config names the brains of channels.
+	 *
+	 * @param properties The config
+	 * @param name The name of the channel or brain
+	 * @return The name of the brain
+	 */
+	private static String getImportBrainName(Properties properties, String name)
+	{
+		for (Map.Entry<String, String> entry : Config.getChannelBrains(properties).entrySet())
+		{
+			if (entry.getKey().equalsIgnoreCase(name))
+				return entry.getValue();
+		}
+
+		return BrainManager.getDefaultBrainName(name);
+	}
+
+	/**
+	 * Copies the files and directories of a corpus that has been imported into the brain's imported directory, in a
+	 * directory of their own. They are copied under a name marking them as partial, and only given their proper name
+	 * once all of them have been, so that a corpus is never learnt again half copied.
+	 *
+	 * @param brainFile The brain's brain file
+	 * @param files The files and directories
+	 * @throws IOException If they could not be copied
+	 */
+	private static void recordImport(File brainFile, List<File> files) throws IOException
+	{
+		File importedDirectory = BrainLoader.getImportedDirectory(brainFile);
+		String name = String.format("%d-%s", System.currentTimeMillis(), Long.toHexString(System.nanoTime()));
+		Path partial = new File(importedDirectory, name + BrainLoader.IMPORTED_PARTIAL_SUFFIX).toPath();
+
+		Files.createDirectories(partial);
+		for (int i = 0; i < files.size(); i++)
+		{
+			Path source = files.get(i).toPath();
+			copyTree(source, partial.resolve(i + "-" + source.toAbsolutePath().normalize().getFileName()));
+		}
+
+		Files.move(partial, new File(importedDirectory, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Copies a file, or a directory and everything in it.
+	 *
+	 * @param source The file or directory
+	 * @param target Where to copy it to, which must not exist
+	 * @throws IOException If it could not be copied
+	 */
+	private static void copyTree(final Path source, final Path target) throws IOException
+	{
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException
+			{
+				Files.createDirectories(target.resolve(source.relativize(directory).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+			{
+				Files.copy(file, target.resolve(source.relativize(file).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
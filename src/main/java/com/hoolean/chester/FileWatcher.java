@@ -0,0 +1,313 @@
+package com.hoolean.chester;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files for being changed, or created, on a thread of its own, and tells a listener about each once it has
+ * stopped changing.
+ *
+ * The directory each file is in is watched, rather than the file itself, so that files replaced by being moved into
+ * place (as editors and careful scripts do) are caught as well as those written in place. Files are usually written in
+ * more than one go, so a change is only passed on once the file has gone the settle time without changing again; a
+ * file being copied in bit by bit is not read half way through, and a burst of changes is passed on once.
+ *
+ * Listeners are called on the watcher's thread, one at a time, so they can take as long as they need without holding
+ * up anything but the next change; changes made meanwhile are passed on once they are done.
+ */
+public class FileWatcher implements Closeable
+{
+	/**
+	 * Told about changes to a watched file.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called once a watched file has been changed, or created, and has then gone the settle time without changing.
+		 *
+		 * @param file The file
+		 */
+		void fileChanged(File file);
+	}
+
+	/**
+	 * The default amount of time a file must go without changing before the change is passed on, in milliseconds.
+	 */
+	public static final long DEFAULT_SETTLE_TIME = 2000;
+
+	/**
+	 * The longest amount of time the watcher waits for a change before checking whether it has been closed, in
+	 * milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 1000;
+
+	/**
+	 * The amount of time a file must go without changing before the change is passed on, in nanoseconds.
+	 */
+	private final long settleTime;
+
+	/**
+	 * Tells the watcher about changes to the watched directories.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * The directory that each key watches; guarded by this.
+	 */
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+	/**
+	 * The listener of each watched file, by its absolute path; guarded by this.
+	 */
+	private final Map<Path, Listener> listeners = new HashMap<Path, Listener>();
+
+	/**
+	 * The System.nanoTime() at which each file that has changed last changed, by its absolute path; only used by the
+	 * watcher's thread.
+	 */
+	private final Map<Path, Long> changes = new HashMap<Path, Long>();
+
+	/**
+	 * The thread that waits for changes and passes them on.
+	 */
+	private final Thread watcher;
+
+	/**
+	 * Whether or not the watcher should keep running.
+	 */
+	private volatile boolean running = true;
+
+	// metrics about the changes passed on
+	private final Metrics.Counter changeCount = new Metrics.Counter();
+	private final Metrics.Counter failureCount = new Metrics.Counter();
+
+	/**
+	 * Creates a FileWatcher that watches no files yet; its thread is a daemon, so it does not keep the JVM running.
+	 *
+	 * @param settleTime The amount of time a file must go without changing before the change is passed on, in
+	 *                   milliseconds
+	 * @throws IOException If the file system could not be watched
+	 */
+	public FileWatcher(long settleTime) throws IOException
+	{
+		this.settleTime = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settleTime));
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		this.watcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				FileWatcher.this.watch();
+			}
+		}, "Chester file watcher");
+		this.watcher.setDaemon(true);
+	}
+
+	/**
+	 * Watches a file, which need not exist yet, though the directory it is in must.
+	 *
+	 * @param file The file
+	 * @param listener Told about each change to the file; a file has only one listener, so this replaces any other
+	 * @throws IOException If the file's directory could not be watched
+	 */
+	public synchronized void watch(File file, Listener listener) throws IOException
+	{
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		Path directory = path.getParent();
+
+		// registering a directory twice gives back the same key, so each is only watched once
+		WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.directories.put(key, directory);
+
+		this.listeners.put(path, listener);
+	}
+
+	/**
+	 * Starts the watcher thread.
+	 */
+	public void start()
+	{
+		this.watcher.start();
+	}
+
+	/**
+	 * Registers metrics about the changes passed on.
+	 *
+	 * @param metrics The registry to register the metrics with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_file_changes_total", "Changes to watched files passed on, such as to the config.", this.changeCount);
+		metrics.register("chester_file_change_failures_total", "Changes to watched files that could not be acted on.", this.failureCount);
+	}
+
+	/**
+	 * Stops watching. A listener that is being called is left to return in its own time, rather than being interrupted
+	 * part way through, and no more changes are passed on once it has.
+	 *
+	 * @throws IOException If the file system could not stop being watched
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.running = false;
+		this.watchService.close();
+	}
+
+	/**
+	 * Waits for changes and passes each on once its file has settled, until closed; this is what the watcher thread
+	 * does.
+	 */
+	private void watch()
+	{
+		while (this.running)
+		{
+			WatchKey key;
+			try
+			{
+				key = this.watchService.poll(this.getWaitTime(), TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (ClosedWatchServiceException e)
+			{
+				return;
+			}
+
+			if (key != null)
+			{
+				this.recordChanges(key);
+			}
+
+			this.passOnSettled();
+		}
+	}
+
+	/**
+	 * Works out how long to wait for the next change; until the first file to have changed has settled, if any has.
+	 *
+	 * @return The amount of time to wait, in nanoseconds
+	 */
+	private long getWaitTime()
+	{
+		long waitTime = TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL);
+		long now = System.nanoTime();
+
+		for (long changeTime : this.changes.values())
+		{
+			waitTime = Math.min(waitTime, Math.max(0, changeTime + this.settleTime - now));
+		}
+
+		return waitTime;
+	}
+
+	/**
+	 * Notes the time of each change to a watched file that a key has seen, and readies the key for more.
+	 *
+	 * @param key The key
+	 */
+	private void recordChanges(WatchKey key)
+	{
+		Path directory;
+		synchronized (this)
+		{
+			directory = this.directories.get(key);
+		}
+
+		long now = System.nanoTime();
+
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (directory == null)
+				continue;
+
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				// changes were missed, so any of the directory's files may have changed
+				synchronized (this)
+				{
+					for (Path path : this.listeners.keySet())
+					{
+						if (directory.equals(path.getParent()))
+						{
+							this.changes.put(path, now);
+						}
+					}
+				}
+
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+			synchronized (this)
+			{
+				if (this.listeners.containsKey(path))
+				{
+					this.changes.put(path, now);
+				}
+			}
+		}
+
+		key.reset();
+	}
+
+	/**
+	 * Passes on the change to each file that has gone the settle time without changing again, if it still exists.
+	 */
+	private void passOnSettled()
+	{
+		long now = System.nanoTime();
+
+		for (Iterator<Map.Entry<Path, Long>> iterator = this.changes.entrySet().iterator(); iterator.hasNext(); )
+		{
+			Map.Entry<Path, Long> entry = iterator.next();
+			if (now - entry.getValue() < this.settleTime)
+				continue;
+
+			iterator.remove();
+
+			File file = entry.getKey().toFile();
+			if (!file.exists())
+				continue;
+
+			Listener listener;
+			synchronized (this)
+			{
+				listener = this.listeners.get(entry.getKey());
+			}
+
+			this.changeCount.increment();
+			try
+			{
+				listener.fileChanged(file);
+			}
+			catch (RuntimeException e)
+			{
+				// never let one bad change stop the watcher
+				this.failureCount.increment();
+				System.err.println(String.format("Could not act on the change to '%s'.", file.getAbsolutePath()));
+				e.printStackTrace();
+			}
+
+			if (!this.running)
+				return;
+		}
+	}
+}
@@ -0,0 +1,1001 @@
+package com.hoolean.chester;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything MegaHal had learnt at some point, frozen into a compact form on the heap that replies are built from
+ * directly, and that never changes once built.
+ *
+ * Most of what a ContextTable holds is there so that it can keep learning: room to grow in every Array, an index kept
+ * at most half full, a hash for each group, and edges threaded through linked lists, with an int each for the token,
+ * the count and the next edge. A frozen chain needs none of that, so each group is instead stored as one record of
+ * varints, one record after another in a single byte Array:
+ *
+ *     byte    whether the group can start and/or end a message, as in ContextTable
+ *     varint  each token of the group, less ContextTable.PAD, so that the padding of lower order contexts is 0
+ *     ...     the tokens seen after the group, then those seen before it; each as the amount of tokens, the sum of
+ *             their counts and the length in bytes of what follows, then each token (as the gap from the one before,
+ *             as they are sorted) along with its count
+ *
+ * A varint holds seven bits in each byte, with the top bit set on every byte but the last, so the small numbers that
+ * make up most of a chain (counts of one, and the gaps between sorted tokens) take a single byte where a ContextTable
+ * takes four.
+ *
+ * Rather than keeping a hash index, the groups are numbered in order of the top bits of their hashes, so that the
+ * groups of each bucket of hashes are next to each other and only the first group of each bucket needs storing; with
+ * around GROUPS_PER_BUCKET groups to a bucket, that is a byte per group. The bottom byte of each group's hash is kept as
+ * well, so that finding a group only decodes the keys of those groups in its bucket whose byte matches, which is almost
+ * always just the group being looked for. The groups of each token are sorted, and stored as the gaps between them in
+ * the same way; every TOKEN_GROUP_SKIP-th is stored whole, along with where it is, so that any one can be found by
+ * decoding no more than that many.
+ *
+ * The lower orders are frozen into a FrozenChain of their own. MegaHal learns on top of a frozen chain in a
+ * ContextTable, and the two are read together through a LayeredChain, as with a MappedChain.
+ */
+final class FrozenChain implements MarkovChain
+{
+	/**
+	 * The mean amount of groups in each bucket of hashes; the more there are, the less space the starts of the buckets
+	 * take up, but the more groups are looked at to find one.
+	 */
+	private static final int GROUPS_PER_BUCKET = 4;
+
+	/**
+	 * How often a group of a token is stored whole, rather than as the gap from the one before.
+	 */
+	private static final int TOKEN_GROUP_SKIP = 16;
+
+	/**
+	 * Groups with more than this many tokens seen next to them have an AliasSampler built and cached for them; the
+	 * tokens of smaller groups are simply decoded, which is as quick and needs nothing more on the heap.
+	 */
+	private static final int SAMPLER_THRESHOLD = 16;
+
+	/**
+	 * The longest that an Array can be made on most JVMs.
+	 */
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The amount of tokens in each group.
+	 */
+	private final int order;
+
+	/**
+	 * The amount of edges, counting both the tokens seen after groups and those seen before them.
+	 */
+	private final long edgeCount;
+
+	/**
+	 * The record of every group, one after another in group id order.
+	 */
+	private final byte[] records;
+
+	/**
+	 * Where the record of each group starts, indexed by group id.
+	 */
+	private final int[] recordStarts;
+
+	/**
+	 * The bottom byte of the hash of each group, indexed by group id.
+	 */
+	private final byte[] fingerprints;
+
+	/**
+	 * The id of the first group in each bucket of hashes, followed by the amount of groups.
+	 */
+	private final int[] bucketStarts;
+
+	/**
+	 * How far a hash is shifted to the right to leave the bucket it is in.
+	 */
+	private final int bucketShift;
+
+	/**
+	 * Where the groups of each token start in the groups of every token, followed by the amount of them, indexed by
+	 * token id.
+	 */
+	private final int[] tokenGroupStarts;
+
+	/**
+	 * The groups of every token, one token after another, as varints.
+	 */
+	private final byte[] tokenGroups;
+
+	/**
+	 * Where every TOKEN_GROUP_SKIP-th group of every token starts in tokenGroups, counting through all of them at once.
+	 */
+	private final int[] tokenGroupSkips;
+
+	/**
+	 * The lower order contexts, frozen in the same way, or null if there are none.
+	 */
+	private final FrozenChain lowerOrders;
+
+	// samplers for groups with many edges, built the first time each is drawn from and shared between threads
+	private final ConcurrentHashMap<Integer, AliasSampler> nextSamplers = new ConcurrentHashMap<Integer, AliasSampler>();
+	private final ConcurrentHashMap<Integer, AliasSampler> previousSamplers = new ConcurrentHashMap<Integer, AliasSampler>();
+
+	/**
+	 * Instantiates a FrozenChain that has been built; see Builder.
+	 */
+	private FrozenChain(int order, long edgeCount, byte[] records, int[] recordStarts, byte[] fingerprints,
+			int[] bucketStarts, int bucketShift, int[] tokenGroupStarts, byte[] tokenGroups, int[] tokenGroupSkips,
+			FrozenChain lowerOrders)
+	{
+		this.order = order;
+		this.edgeCount = edgeCount;
+		this.records = records;
+		this.recordStarts = recordStarts;
+		this.fingerprints = fingerprints;
+		this.bucketStarts = bucketStarts;
+		this.bucketShift = bucketShift;
+		this.tokenGroupStarts = tokenGroupStarts;
+		this.tokenGroups = tokenGroups;
+		this.tokenGroupSkips = tokenGroupSkips;
+		this.lowerOrders = lowerOrders;
+	}
+
+	/**
+	 * Freezes everything in a chain, along with its lower orders. Aliased group ids are left out and the rest are
+	 * numbered anew, and the tokens seen next to each group are merged and sorted. Nothing may change the chain while it
+	 * is frozen.
+	 *
+	 * @param chain The chain
+	 * @return The frozen chain
+	 * @throws IllegalStateException If the chain is too large to be frozen into Arrays
+	 */
+	static FrozenChain freeze(MarkovChain chain)
+	{
+		int order = chain.getOrder();
+
+		Builder builder = new Builder(order);
+		MappedChain.EdgeCollector next = new MappedChain.EdgeCollector();
+		MappedChain.EdgeCollector previous = new MappedChain.EdgeCollector();
+		int[] key = new int[order];
+
+		for (int group = 0; group < chain.getGroupCount(); group++)
+		{
+			if (chain.isAlias(group))
+				continue;
+
+			for (int i = 0; i < order; i++)
+			{
+				key[i] = chain.getToken(group, i);
+			}
+
+			int flags = (chain.canStart(group) ? ContextTable.FLAG_CAN_START : 0)
+					| (chain.canEnd(group) ? ContextTable.FLAG_CAN_END : 0);
+
+			next.clear();
+			chain.visitNextTokens(group, next);
+			previous.clear();
+			chain.visitPreviousTokens(group, previous);
+
+			builder.add(key, flags, next, previous);
+		}
+
+		MarkovChain lowerOrders = chain.getLowerOrders();
+		return builder.build(lowerOrders == null ? null : freeze(lowerOrders));
+	}
+
+	/**
+	 * Writes the chain, and its lower orders, to a brain snapshot. Only the records are written; everything else can be
+	 * rebuilt from them, and has to be anyway if the ids of the tokens have changed by the time they are read.
+	 *
+	 * The layout is the amount of groups, then the length of the records followed by the records; then a 1 followed by
+	 * the lower orders in the same way, else a 0 if there are none.
+	 *
+	 * @param out Where to write to
+	 * @throws IOException If writing fails
+	 */
+	void save(BrainSnapshot.Output out) throws IOException
+	{
+		out.writeInt(this.recordStarts.length);
+		out.writeInt(this.records.length);
+		out.writeBytes(this.records, this.records.length);
+
+		out.writeInt(this.lowerOrders == null ? 0 : 1);
+		if (this.lowerOrders != null)
+		{
+			this.lowerOrders.save(out);
+		}
+	}
+
+	/**
+	 * Reads a chain that was written by save(). The tokens may have been given different ids since the chain was
+	 * written, so every token id read is changed to the one it is now, and the chain is built again from its records.
+	 *
+	 * @param order The amount of tokens in each group
+	 * @param in Where to read from
+	 * @param tokenIds The id each token is now, indexed by the id it had when written; TokenDictionary.UNKNOWN_TOKEN
+	 *                 for any id that was not written
+	 * @return The chain
+	 * @throws IOException If reading fails, or the chain uses a token that was not written
+	 */
+	static FrozenChain load(int order, BrainSnapshot.Input in, int[] tokenIds) throws IOException
+	{
+		int groupCount = in.readLength();
+		byte[] records = new byte[in.readLength()];
+		in.readBytes(records, records.length);
+
+		Builder builder = new Builder(order);
+		MappedChain.EdgeCollector next = new MappedChain.EdgeCollector();
+		MappedChain.EdgeCollector previous = new MappedChain.EdgeCollector();
+		int[] key = new int[order];
+
+		int position = 0;
+		for (int group = 0; group < groupCount; group++)
+		{
+			if (position >= records.length)
+			{
+				throw new IOException("The frozen chain is corrupt.");
+			}
+
+			int flags = records[position++];
+
+			for (int i = 0; i < order; i++)
+			{
+				long read = readVarInt(records, position);
+				key[i] = ContextTable.changeTokenId(valueOf(read) + ContextTable.PAD, tokenIds);
+				position = positionOf(read);
+			}
+
+			next.clear();
+			position = readEdges(records, position, tokenIds, next);
+			previous.clear();
+			position = readEdges(records, position, tokenIds, previous);
+
+			builder.add(key, flags, next, previous);
+		}
+
+		FrozenChain lowerOrders = in.readInt() != 0 ? load(order, in, tokenIds) : null;
+		return builder.build(lowerOrders);
+	}
+
+	/**
+	 * Decodes a group's tokens seen after or before it, changing the id of each, and passes them to a collector.
+	 *
+	 * @return The position after them
+	 */
+	private static int readEdges(byte[] records, int position, int[] tokenIds, MappedChain.EdgeCollector collector)
+			throws IOException
+	{
+		long read = readVarInt(records, position);
+		int count = valueOf(read);
+
+		// the total and length are worked out again as the edges are added
+		position = skipVarInt(records, skipVarInt(records, positionOf(read)));
+
+		int token = 0;
+		for (int i = 0; i < count; i++)
+		{
+			read = readVarInt(records, position);
+			token += valueOf(read);
+			read = readVarInt(records, positionOf(read));
+			position = positionOf(read);
+
+			collector.visit(ContextTable.changeTokenId(token, tokenIds), valueOf(read));
+		}
+
+		return position;
+	}
+
+	/**
+	 * Gets the amount of edges, counting both the tokens seen after groups and those seen before them, but not those of
+	 * the lower orders.
+	 *
+	 * @return The amount of edges
+	 */
+	long getEdgeCount()
+	{
+		return this.edgeCount;
+	}
+
+	/**
+	 * Gets how many bytes the chain takes up, along with its lower orders. Unlike the estimate of a ContextTable, this
+	 * is every byte of every Array, as nothing is left to grow into; only the samplers cached for groups with many
+	 * edges are not counted.
+	 *
+	 * @return The amount of bytes
+	 */
+	long getMemoryUsage()
+	{
+		long bytes = this.records.length + this.recordStarts.length * 4L + this.fingerprints.length
+				+ this.bucketStarts.length * 4L + this.tokenGroupStarts.length * 4L + this.tokenGroups.length
+				+ this.tokenGroupSkips.length * 4L;
+
+		return this.lowerOrders == null ? bytes : bytes + this.lowerOrders.getMemoryUsage();
+	}
+
+	@Override
+	public int getOrder()
+	{
+		return this.order;
+	}
+
+	@Override
+	public int getGroupCount()
+	{
+		return this.recordStarts.length;
+	}
+
+	@Override
+	public int findGroup(int[] tokens, int offset)
+	{
+		int hash = ContextTable.hash(tokens, offset, this.order);
+		int bucket = hash >>> this.bucketShift;
+		byte fingerprint = (byte) hash;
+
+		for (int group = this.bucketStarts[bucket]; group < this.bucketStarts[bucket + 1]; group++)
+		{
+			if (this.fingerprints[group] == fingerprint && this.keyEquals(group, tokens, offset))
+			{
+				return group;
+			}
+		}
+
+		return ContextTable.NO_GROUP;
+	}
+
+	@Override
+	public int getToken(int group, int index)
+	{
+		int position = this.recordStarts[group] + 1;
+		for (int i = 0; i < index; i++)
+		{
+			position = skipVarInt(this.records, position);
+		}
+
+		return valueOf(readVarInt(this.records, position)) + ContextTable.PAD;
+	}
+
+	@Override
+	public boolean canStart(int group)
+	{
+		return (this.records[this.recordStarts[group]] & ContextTable.FLAG_CAN_START) != 0;
+	}
+
+	@Override
+	public boolean canEnd(int group)
+	{
+		return (this.records[this.recordStarts[group]] & ContextTable.FLAG_CAN_END) != 0;
+	}
+
+	@Override
+	public int sampleNextToken(int group, Random random)
+	{
+		return this.sample(this.getEdgesStart(group, true), this.nextSamplers, group, random);
+	}
+
+	@Override
+	public int samplePreviousToken(int group, Random random)
+	{
+		return this.sample(this.getEdgesStart(group, false), this.previousSamplers, group, random);
+	}
+
+	@Override
+	public double getNextProbability(int group, int token)
+	{
+		return this.getProbability(this.getEdgesStart(group, true), token);
+	}
+
+	@Override
+	public double getPreviousProbability(int group, int token)
+	{
+		return this.getProbability(this.getEdgesStart(group, false), token);
+	}
+
+	@Override
+	public long getNextTotal(int group)
+	{
+		return valueOf(readVarInt(this.records, skipVarInt(this.records, this.getEdgesStart(group, true))));
+	}
+
+	@Override
+	public long getPreviousTotal(int group)
+	{
+		return valueOf(readVarInt(this.records, skipVarInt(this.records, this.getEdgesStart(group, false))));
+	}
+
+	@Override
+	public int getTokenGroupCount(int token)
+	{
+		if (token < 0 || token >= this.tokenGroupStarts.length - 1)
+		{
+			return 0;
+		}
+
+		return this.tokenGroupStarts[token + 1] - this.tokenGroupStarts[token];
+	}
+
+	@Override
+	public int getTokenGroup(int token, int index)
+	{
+		int start = this.tokenGroupStarts[token];
+		int target = start + index;
+
+		// start from the nearest group stored whole at or before the one wanted, which may belong to an earlier token
+		int skip = target / TOKEN_GROUP_SKIP;
+		int position = this.tokenGroupSkips[skip];
+		int current = skip * TOKEN_GROUP_SKIP;
+
+		for (; current < start; current++)
+		{
+			position = skipVarInt(this.tokenGroups, position);
+		}
+
+		// the first of a token's groups is always stored whole, as is every one a skip points at
+		long read = readVarInt(this.tokenGroups, position);
+		int group = valueOf(read);
+
+		for (current++; current <= target; current++)
+		{
+			read = readVarInt(this.tokenGroups, positionOf(read));
+			group += valueOf(read);
+		}
+
+		return group;
+	}
+
+	@Override
+	public boolean isAlias(int group)
+	{
+		return false;
+	}
+
+	@Override
+	public void visitNextTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visit(this.getEdgesStart(group, true), visitor);
+	}
+
+	@Override
+	public void visitPreviousTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visit(this.getEdgesStart(group, false), visitor);
+	}
+
+	@Override
+	public MarkovChain getLowerOrders()
+	{
+		return this.lowerOrders;
+	}
+
+	/**
+	 * Finds where the tokens seen after a group, or before it, start in its record.
+	 *
+	 * @param group The id of the group
+	 * @param next True for the tokens seen after it, else False for those seen before it
+	 * @return The position of the amount of tokens
+	 */
+	private int getEdgesStart(int group, boolean next)
+	{
+		int position = this.recordStarts[group] + 1;
+		for (int i = 0; i < this.order; i++)
+		{
+			position = skipVarInt(this.records, position);
+		}
+
+		if (!next)
+		{
+			// skip over the amount and total of the tokens seen after it, then over the tokens by their length
+			long read = readVarInt(this.records, skipVarInt(this.records, skipVarInt(this.records, position)));
+			position = positionOf(read) + valueOf(read);
+		}
+
+		return position;
+	}
+
+	/**
+	 * Draws one of the tokens of a group's edges at random, weighted by their counts.
+	 */
+	private int sample(int position, ConcurrentHashMap<Integer, AliasSampler> samplers, int group, Random random)
+	{
+		long read = readVarInt(this.records, position);
+		int count = valueOf(read);
+		read = readVarInt(this.records, positionOf(read));
+		int total = valueOf(read);
+		position = skipVarInt(this.records, positionOf(read));
+
+		// there is no choice to be made if only one token has been seen
+		if (count == 1)
+		{
+			return valueOf(readVarInt(this.records, position));
+		}
+
+		if (count > SAMPLER_THRESHOLD)
+		{
+			AliasSampler sampler = samplers.get(group);
+			if (sampler == null)
+			{
+				sampler = this.buildSampler(position, count, total);
+				samplers.putIfAbsent(group, sampler);
+			}
+
+			return sampler.sample(random);
+		}
+
+		// decode the counts until the randomly chosen amount of them has been passed
+		int remaining = random.nextInt(total);
+		int token = 0;
+		for (int i = 0; i < count - 1; i++)
+		{
+			read = readVarInt(this.records, position);
+			token += valueOf(read);
+			read = readVarInt(this.records, positionOf(read));
+			position = positionOf(read);
+
+			remaining -= valueOf(read);
+			if (remaining < 0)
+			{
+				return token;
+			}
+		}
+
+		return token + valueOf(readVarInt(this.records, position));
+	}
+
+	/**
+	 * Gets the share of the counts of a group's edges that belong to a token.
+	 */
+	private double getProbability(int position, int token)
+	{
+		long read = readVarInt(this.records, position);
+		int count = valueOf(read);
+		read = readVarInt(this.records, positionOf(read));
+		int total = valueOf(read);
+		position = skipVarInt(this.records, positionOf(read));
+
+		// the tokens are sorted, so stop as soon as they pass the one looked for
+		int edgeToken = 0;
+		for (int i = 0; i < count && edgeToken <= token; i++)
+		{
+			read = readVarInt(this.records, position);
+			edgeToken += valueOf(read);
+			read = readVarInt(this.records, positionOf(read));
+			position = positionOf(read);
+
+			if (edgeToken == token)
+			{
+				return (double) valueOf(read) / total;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Passes the tokens and counts of a group's edges to a visitor.
+	 */
+	private void visit(int position, TokenCountVisitor visitor)
+	{
+		long read = readVarInt(this.records, position);
+		int count = valueOf(read);
+		position = skipVarInt(this.records, skipVarInt(this.records, positionOf(read)));
+
+		int token = 0;
+		for (int i = 0; i < count; i++)
+		{
+			read = readVarInt(this.records, position);
+			token += valueOf(read);
+			read = readVarInt(this.records, positionOf(read));
+			position = positionOf(read);
+
+			visitor.visit(token, valueOf(read));
+		}
+	}
+
+	/**
+	 * Builds a sampler from the edges of a group.
+	 */
+	private AliasSampler buildSampler(int position, int count, int total)
+	{
+		int[] tokens = new int[count];
+		int[] counts = new int[count];
+
+		int token = 0;
+		for (int i = 0; i < count; i++)
+		{
+			long read = readVarInt(this.records, position);
+			token += valueOf(read);
+			read = readVarInt(this.records, positionOf(read));
+			position = positionOf(read);
+
+			tokens[i] = token;
+			counts[i] = valueOf(read);
+		}
+
+		return new AliasSampler(tokens, counts, total);
+	}
+
+	/**
+	 * Whether or not a group is made up of a run of tokens.
+	 */
+	private boolean keyEquals(int group, int[] tokens, int offset)
+	{
+		int position = this.recordStarts[group] + 1;
+		for (int i = 0; i < this.order; i++)
+		{
+			long read = readVarInt(this.records, position);
+			if (valueOf(read) + ContextTable.PAD != tokens[offset + i])
+			{
+				return false;
+			}
+
+			position = positionOf(read);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decodes a varint. So that nothing has to be allocated to return both, the value and the position after it are
+	 * packed into a long, to be taken apart with valueOf() and positionOf().
+	 *
+	 * @param bytes The bytes to decode from
+	 * @param position The position of the first byte of the varint
+	 * @return The value in the top half, and the position after the varint in the bottom half
+	 */
+	private static long readVarInt(byte[] bytes, int position)
+	{
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = bytes[position++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while (b < 0);
+
+		return ((long) value << 32) | (position & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the value decoded by readVarInt().
+	 */
+	private static int valueOf(long read)
+	{
+		return (int) (read >>> 32);
+	}
+
+	/**
+	 * Gets the position after the varint decoded by readVarInt().
+	 */
+	private static int positionOf(long read)
+	{
+		return (int) read;
+	}
+
+	/**
+	 * Skips over a varint without decoding it.
+	 *
+	 * @return The position after it
+	 */
+	private static int skipVarInt(byte[] bytes, int position)
+	{
+		while (bytes[position++] < 0)
+		{
+			// every byte but the last has its top bit set
+		}
+
+		return position;
+	}
+
+	/**
+	 * Gets the amount of bytes that a value takes up as a varint.
+	 */
+	private static int varIntLength(int value)
+	{
+		int length = 1;
+		while ((value >>>= 7) != 0)
+		{
+			length++;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Builds a FrozenChain from groups given one at a time, in any order. Each group's record is encoded as it is
+	 * added, and the records are only sorted into their buckets once every group is in.
+	 */
+	private static final class Builder
+	{
+		// the amount of tokens in each group
+		private final int order;
+
+		// the records, in the order they were added
+		private byte[] records = new byte[1024];
+		private int length = 0;
+
+		// where each record starts, in the order they were added
+		private int[] starts = new int[64];
+
+		// the hash of each group, in the order they were added
+		private int[] hashes = new int[64];
+
+		private int groupCount = 0;
+		private long edgeCount = 0;
+
+		// one more than the greatest token id in any group
+		private int tokenLimit = 0;
+
+		Builder(int order)
+		{
+			this.order = order;
+		}
+
+		/**
+		 * Adds a group. The collectors are merged, so their tokens are sorted.
+		 *
+		 * @param key The tokens of the group
+		 * @param flags Whether the group can start and/or end a message
+		 * @param next The tokens seen after the group
+		 * @param previous The tokens seen before the group
+		 */
+		void add(int[] key, int flags, MappedChain.EdgeCollector next, MappedChain.EdgeCollector previous)
+		{
+			int nextCount = next.merge();
+			int previousCount = previous.merge();
+
+			if (this.groupCount == this.starts.length)
+			{
+				this.starts = Arrays.copyOf(this.starts, this.groupCount * 2);
+				this.hashes = Arrays.copyOf(this.hashes, this.groupCount * 2);
+			}
+
+			this.starts[this.groupCount] = this.length;
+			this.hashes[this.groupCount] = ContextTable.hash(key, 0, this.order);
+			this.groupCount++;
+			this.edgeCount += nextCount + previousCount;
+
+			// a byte for the flags, plus at most five for each token, both amounts, both totals and both lengths
+			this.ensureRoom(1 + 5 * (this.order + 6) + getEdgesLength(next, nextCount)
+					+ (long) getEdgesLength(previous, previousCount));
+
+			this.records[this.length++] = (byte) flags;
+
+			for (int token : key)
+			{
+				this.writeVarInt(token - ContextTable.PAD);
+				this.tokenLimit = Math.max(this.tokenLimit, token + 1);
+			}
+
+			this.writeEdges(next, nextCount);
+			this.writeEdges(previous, previousCount);
+		}
+
+		/**
+		 * Sorts the records into their buckets, and indexes the groups of each token.
+		 *
+		 * @param lowerOrders The lower orders, already frozen, or null if there are none
+		 * @return The chain
+		 */
+		FrozenChain build(FrozenChain lowerOrders)
+		{
+			int groupCount = this.groupCount;
+
+			// at least two buckets, as a hash cannot be shifted right by all 32 of its bits
+			int bucketBits = 1;
+			while ((1L << bucketBits) * GROUPS_PER_BUCKET < groupCount && bucketBits < 30)
+			{
+				bucketBits++;
+			}
+			int bucketShift = 32 - bucketBits;
+
+			// count the groups of each bucket into the start of the next, so that summing them leaves each in place
+			int[] bucketStarts = new int[(1 << bucketBits) + 1];
+			for (int i = 0; i < groupCount; i++)
+			{
+				bucketStarts[(this.hashes[i] >>> bucketShift) + 1]++;
+			}
+			for (int bucket = 1; bucket < bucketStarts.length; bucket++)
+			{
+				bucketStarts[bucket] += bucketStarts[bucket - 1];
+			}
+
+			// give each group the next id of its bucket, and copy its record into place
+			int[] cursors = Arrays.copyOf(bucketStarts, bucketStarts.length - 1);
+			int[] added = new int[groupCount];
+			for (int i = 0; i < groupCount; i++)
+			{
+				added[cursors[this.hashes[i] >>> bucketShift]++] = i;
+			}
+
+			byte[] records = new byte[this.length];
+			int[] recordStarts = new int[groupCount];
+			byte[] fingerprints = new byte[groupCount];
+			int position = 0;
+
+			for (int group = 0; group < groupCount; group++)
+			{
+				int i = added[group];
+				int start = this.starts[i];
+				int end = i + 1 < groupCount ? this.starts[i + 1] : this.length;
+
+				System.arraycopy(this.records, start, records, position, end - start);
+				recordStarts[group] = position;
+				fingerprints[group] = (byte) this.hashes[i];
+				position += end - start;
+			}
+
+			// let go of the records as they were added before building anything else
+			this.records = null;
+			this.starts = null;
+			this.hashes = null;
+
+			/*
+			The groups of each token are counted into tokenGroupStarts shifted along by one, then listed whole in id
+			order, which leaves them sorted; only then can the gaps between them be encoded, one token after another.
+			 */
+			int[] key = new int[this.order];
+			int[] tokenGroupStarts = new int[this.tokenLimit + 1];
+
+			for (int group = 0; group < groupCount; group++)
+			{
+				int entries = readKey(records, recordStarts[group], key);
+				for (int i = 0; i < entries; i++)
+				{
+					tokenGroupStarts[key[i] + 1]++;
+				}
+			}
+
+			long entryCount = 0;
+			for (int token = 0; token < this.tokenLimit; token++)
+			{
+				entryCount += tokenGroupStarts[token + 1];
+				if (entryCount > MAX_ARRAY_LENGTH)
+				{
+					throw new IllegalStateException("The brain is too large to be frozen.");
+				}
+
+				tokenGroupStarts[token + 1] += tokenGroupStarts[token];
+			}
+
+			int[] entries = new int[(int) entryCount];
+			int[] entryCursors = Arrays.copyOf(tokenGroupStarts, this.tokenLimit);
+			for (int group = 0; group < groupCount; group++)
+			{
+				int distinct = readKey(records, recordStarts[group], key);
+				for (int i = 0; i < distinct; i++)
+				{
+					entries[entryCursors[key[i]]++] = group;
+				}
+			}
+
+			int[] tokenGroupSkips = new int[(entries.length + TOKEN_GROUP_SKIP - 1) / TOKEN_GROUP_SKIP];
+			this.records = new byte[Math.max(entries.length, 16)];
+			this.length = 0;
+
+			for (int token = 0; token < this.tokenLimit; token++)
+			{
+				for (int entry = tokenGroupStarts[token]; entry < tokenGroupStarts[token + 1]; entry++)
+				{
+					this.ensureRoom(5);
+
+					if (entry % TOKEN_GROUP_SKIP == 0)
+					{
+						tokenGroupSkips[entry / TOKEN_GROUP_SKIP] = this.length;
+					}
+
+					boolean whole = entry == tokenGroupStarts[token] || entry % TOKEN_GROUP_SKIP == 0;
+					this.writeVarInt(whole ? entries[entry] : entries[entry] - entries[entry - 1]);
+				}
+			}
+
+			byte[] tokenGroups = Arrays.copyOf(this.records, this.length);
+			this.records = null;
+
+			return new FrozenChain(this.order, this.edgeCount, records, recordStarts, fingerprints, bucketStarts,
+					bucketShift, tokenGroupStarts, tokenGroups, tokenGroupSkips, lowerOrders);
+		}
+
+		/**
+		 * Reads the distinct tokens of a group out of its record, leaving out the padding of lower order contexts.
+		 *
+		 * @return The amount of distinct tokens, which are at the start of the key
+		 */
+		private int readKey(byte[] records, int position, int[] key)
+		{
+			position++;
+
+			int distinct = 0;
+			for (int i = 0; i < this.order; i++)
+			{
+				long read = readVarInt(records, position);
+				int token = valueOf(read) + ContextTable.PAD;
+				position = positionOf(read);
+
+				boolean repeated = token < 0;
+				for (int j = 0; j < distinct && !repeated; j++)
+				{
+					repeated = key[j] == token;
+				}
+
+				if (!repeated)
+				{
+					key[distinct++] = token;
+				}
+			}
+
+			return distinct;
+		}
+
+		/**
+		 * Encodes the amount, total and length of a group's merged edges, followed by the edges.
+		 */
+		private void writeEdges(MappedChain.EdgeCollector edges, int count)
+		{
+			long total = 0;
+			for (int i = 0; i < count; i++)
+			{
+				total += edges.getCount(i);
+			}
+
+			this.writeVarInt(count);
+			this.writeVarInt((int) Math.min(total, Integer.MAX_VALUE));
+			this.writeVarInt(getEdgesLength(edges, count));
+
+			int token = 0;
+			for (int i = 0; i < count; i++)
+			{
+				this.writeVarInt(edges.getToken(i) - token);
+				this.writeVarInt(edges.getCount(i));
+				token = edges.getToken(i);
+			}
+		}
+
+		/**
+		 * Works out how many bytes a group's merged edges take up once encoded.
+		 */
+		private static int getEdgesLength(MappedChain.EdgeCollector edges, int count)
+		{
+			int length = 0;
+			int token = 0;
+			for (int i = 0; i < count; i++)
+			{
+				length += varIntLength(edges.getToken(i) - token) + varIntLength(edges.getCount(i));
+				token = edges.getToken(i);
+			}
+
+			return length;
+		}
+
+		/**
+		 * Encodes a value, which must not be negative, as a varint; there must be room for it.
+		 */
+		private void writeVarInt(int value)
+		{
+			while ((value & ~0x7F) != 0)
+			{
+				this.records[this.length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+
+			this.records[this.length++] = (byte) value;
+		}
+
+		/**
+		 * Grows the buffer so that there is room for at least an amount of bytes more.
+		 */
+		private void ensureRoom(long bytes)
+		{
+			long needed = this.length + bytes;
+			if (needed <= this.records.length)
+				return;
+
+			if (needed > MAX_ARRAY_LENGTH)
+			{
+				throw new IllegalStateException("The brain is too large to be frozen.");
+			}
+
+			this.records = Arrays.copyOf(this.records, (int) Math.min(Math.max(needed, this.records.length * 2L), MAX_ARRAY_LENGTH));
+		}
+	}
+}
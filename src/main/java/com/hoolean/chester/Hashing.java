@@ -0,0 +1,90 @@
+package com.hoolean.chester;
+
+/**
+ * The hash function behind every open-addressed index in Chester; the 32 bit MurmurHash3, fed one int at a time.
+ *
+ * Each int is scrambled and folded into the hash in turn, so the order of the ints matters and every bit of each one
+ * affects every bit of the result. The indexes only use the low bits of a hash to pick a slot, and the ids they are
+ * built over are small, dense and often repeated in different orders, which a simpler hash (such as a polynomial)
+ * maps into runs of neighbouring slots; linear probing then has to walk the whole run.
+ *
+ * MappedChain files lay out their indexes by these hashes, so changing anything here means changing the MappedChain
+ * version too.
+ */
+final class Hashing
+{
+	private static final int C1 = 0xCC9E2D51;
+	private static final int C2 = 0x1B873593;
+
+	private Hashing()
+	{
+	}
+
+	/**
+	 * Folds an int into a hash.
+	 *
+	 * @param hash The hash so far, starting from 0
+	 * @param value The int
+	 * @return The new hash
+	 */
+	static int mix(int hash, int value)
+	{
+		int scrambled = Integer.rotateLeft(value * C1, 15) * C2;
+
+		hash ^= scrambled;
+		return Integer.rotateLeft(hash, 13) * 5 + 0xE6546B64;
+	}
+
+	/**
+	 * Finishes a hash, so that the low bits depend on every int folded into it.
+	 *
+	 * @param hash The hash of every int
+	 * @param length The amount of things hashed, so that runs that only differ by trailing zeroes do not collide
+	 * @return The finished hash
+	 */
+	static int finish(int hash, int length)
+	{
+		return hash(hash ^ length);
+	}
+
+	/**
+	 * Generates a hash code from a single int, such as an id.
+	 *
+	 * @param value The int
+	 * @return The hash code
+	 */
+	static int hash(int value)
+	{
+		value ^= value >>> 16;
+		value *= 0x85EBCA6B;
+		value ^= value >>> 13;
+		value *= 0xC2B2AE35;
+		return value ^ (value >>> 16);
+	}
+
+	/**
+	 * Works out the average amount of slots of an open-addressed hash index looked at to find each value in it.
+	 *
+	 * @param index The index, whose slots hold values plus one
+	 * @param hashes The hash of each value, indexed by value
+	 * @return The mean probe length, else 0 if the index is empty
+	 */
+	static double meanProbeLength(int[] index, int[] hashes)
+	{
+		int mask = index.length - 1;
+		long probes = 0;
+		int count = 0;
+
+		for (int slot = 0; slot < index.length; slot++)
+		{
+			if (index[slot] != 0)
+			{
+				// the distance from the slot the hash points at, wrapping around the end of the index
+				probes += ((slot - hashes[index[slot] - 1]) & mask) + 1;
+				count++;
+			}
+		}
+
+		return count == 0 ? 0 : (double) probes / count;
+	}
+}
@@ -0,0 +1,348 @@
+package com.hoolean.chester;
+
+import java.util.Random;
+
+/**
+ * A base chain (a MappedChain, a FrozenChain, or a snapshot of a table set aside to be pruned) and a snapshot of the
+ * ContextTable learnt on top of it, read together as one chain.
+ *
+ * Groups of the base chain keep their ids, and groups of the table are numbered after them. A group learnt again after
+ * the base chain was written or frozen is in both; the table records which base group each of its groups matches, and
+ * keeps an index the other way, so that either id can be used to reach both halves. findGroup() always returns the
+ * table's id for such a group, so the table's id is skipped when visiting every group once, as the base id covers
+ * both.
+ *
+ * The counts of a group that is in both are the sums of its counts in each, so a token is drawn by first picking a
+ * half in proportion to its total count and then drawing from that half alone, which gives every token exactly the
+ * same chance as drawing from the summed counts would.
+ */
+final class LayeredChain implements MarkovChain
+{
+	/**
+	 * The chain that was mapped or frozen.
+	 */
+	private final MarkovChain base;
+
+	/**
+	 * What has been learnt since.
+	 */
+	private final ContextSnapshot delta;
+
+	/**
+	 * The amount of groups in the base chain; the id of group n of the table is this plus n.
+	 */
+	private final int baseGroupCount;
+
+	/**
+	 * The id of the base group that each group of the table matches, else ContextTable.NO_GROUP, indexed by the table's
+	 * group id.
+	 */
+	private final int[] baseGroups;
+
+	/**
+	 * An open-addressed hash index from base group ids to the groups of the table that match them; each slot holds the
+	 * table's group id plus one, so that 0 can mean empty.
+	 */
+	private final int[] baseIndex;
+
+	/**
+	 * The lower orders of both halves, read together in the same way, or null if this is itself a view of lower orders.
+	 */
+	private final MarkovChain lowerOrders;
+
+	/**
+	 * Creates a view over a base chain and what has been learnt on top of it; see ContextTable for what each parameter
+	 * holds.
+	 */
+	LayeredChain(MarkovChain base, ContextSnapshot delta, int[] baseGroups, int[] baseIndex, MarkovChain lowerOrders)
+	{
+		this.base = base;
+		this.delta = delta;
+		this.baseGroupCount = base.getGroupCount();
+		this.baseGroups = baseGroups;
+		this.baseIndex = baseIndex;
+		this.lowerOrders = lowerOrders;
+	}
+
+	@Override
+	public int getOrder()
+	{
+		return this.base.getOrder();
+	}
+
+	@Override
+	public int getGroupCount()
+	{
+		return this.baseGroupCount + this.delta.getGroupCount();
+	}
+
+	@Override
+	public int findGroup(int[] tokens, int offset)
+	{
+		int deltaGroup = this.delta.findGroup(tokens, offset);
+		if (deltaGroup != ContextTable.NO_GROUP)
+		{
+			return this.baseGroupCount + deltaGroup;
+		}
+
+		return this.base.findGroup(tokens, offset);
+	}
+
+	@Override
+	public int getToken(int group, int index)
+	{
+		if (group < this.baseGroupCount)
+		{
+			return this.base.getToken(group, index);
+		}
+
+		return this.delta.getToken(group - this.baseGroupCount, index);
+	}
+
+	@Override
+	public boolean canStart(int group)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		return (baseGroup != ContextTable.NO_GROUP && this.base.canStart(baseGroup))
+				|| (deltaGroup != ContextTable.NO_GROUP && this.delta.canStart(deltaGroup));
+	}
+
+	@Override
+	public boolean canEnd(int group)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		return (baseGroup != ContextTable.NO_GROUP && this.base.canEnd(baseGroup))
+				|| (deltaGroup != ContextTable.NO_GROUP && this.delta.canEnd(deltaGroup));
+	}
+
+	@Override
+	public int sampleNextToken(int group, Random random)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		long baseTotal = baseGroup == ContextTable.NO_GROUP ? 0 : this.base.getNextTotal(baseGroup);
+		long deltaTotal = deltaGroup == ContextTable.NO_GROUP ? 0 : this.delta.getNextTotal(deltaGroup);
+
+		// pick a half in proportion to its total, then draw from it
+		if (deltaTotal == 0 || random.nextDouble() * (baseTotal + deltaTotal) < baseTotal)
+		{
+			return this.base.sampleNextToken(baseGroup, random);
+		}
+
+		return this.delta.sampleNextToken(deltaGroup, random);
+	}
+
+	@Override
+	public int samplePreviousToken(int group, Random random)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		long baseTotal = baseGroup == ContextTable.NO_GROUP ? 0 : this.base.getPreviousTotal(baseGroup);
+		long deltaTotal = deltaGroup == ContextTable.NO_GROUP ? 0 : this.delta.getPreviousTotal(deltaGroup);
+
+		// pick a half in proportion to its total, then draw from it
+		if (deltaTotal == 0 || random.nextDouble() * (baseTotal + deltaTotal) < baseTotal)
+		{
+			return this.base.samplePreviousToken(baseGroup, random);
+		}
+
+		return this.delta.samplePreviousToken(deltaGroup, random);
+	}
+
+	@Override
+	public double getNextProbability(int group, int token)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		// each half's probability weighted by its total, which together are the summed counts over the summed totals
+		double count = 0;
+		long total = 0;
+
+		if (baseGroup != ContextTable.NO_GROUP)
+		{
+			long baseTotal = this.base.getNextTotal(baseGroup);
+			count += this.base.getNextProbability(baseGroup, token) * baseTotal;
+			total += baseTotal;
+		}
+
+		if (deltaGroup != ContextTable.NO_GROUP)
+		{
+			long deltaTotal = this.delta.getNextTotal(deltaGroup);
+			count += this.delta.getNextProbability(deltaGroup, token) * deltaTotal;
+			total += deltaTotal;
+		}
+
+		return total == 0 ? 0 : count / total;
+	}
+
+	@Override
+	public double getPreviousProbability(int group, int token)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		// each half's probability weighted by its total, which together are the summed counts over the summed totals
+		double count = 0;
+		long total = 0;
+
+		if (baseGroup != ContextTable.NO_GROUP)
+		{
+			long baseTotal = this.base.getPreviousTotal(baseGroup);
+			count += this.base.getPreviousProbability(baseGroup, token) * baseTotal;
+			total += baseTotal;
+		}
+
+		if (deltaGroup != ContextTable.NO_GROUP)
+		{
+			long deltaTotal = this.delta.getPreviousTotal(deltaGroup);
+			count += this.delta.getPreviousProbability(deltaGroup, token) * deltaTotal;
+			total += deltaTotal;
+		}
+
+		return total == 0 ? 0 : count / total;
+	}
+
+	@Override
+	public long getNextTotal(int group)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		return (baseGroup == ContextTable.NO_GROUP ? 0 : this.base.getNextTotal(baseGroup))
+				+ (deltaGroup == ContextTable.NO_GROUP ? 0 : this.delta.getNextTotal(deltaGroup));
+	}
+
+	@Override
+	public long getPreviousTotal(int group)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		return (baseGroup == ContextTable.NO_GROUP ? 0 : this.base.getPreviousTotal(baseGroup))
+				+ (deltaGroup == ContextTable.NO_GROUP ? 0 : this.delta.getPreviousTotal(deltaGroup));
+	}
+
+	/**
+	 * Gets the amount of groups that a token is in. A group in both halves is counted twice, which only makes it a
+	 * little more likely to be picked as the middle of a reply.
+	 */
+	@Override
+	public int getTokenGroupCount(int token)
+	{
+		return this.base.getTokenGroupCount(token) + this.delta.getTokenGroupCount(token);
+	}
+
+	@Override
+	public int getTokenGroup(int token, int index)
+	{
+		int baseCount = this.base.getTokenGroupCount(token);
+		if (index < baseCount)
+		{
+			return this.base.getTokenGroup(token, index);
+		}
+
+		return this.baseGroupCount + this.delta.getTokenGroup(token, index - baseCount);
+	}
+
+	@Override
+	public boolean isAlias(int group)
+	{
+		return group >= this.baseGroupCount && this.baseGroups[group - this.baseGroupCount] != ContextTable.NO_GROUP;
+	}
+
+	@Override
+	public void visitNextTokens(int group, TokenCountVisitor visitor)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		if (baseGroup != ContextTable.NO_GROUP)
+		{
+			this.base.visitNextTokens(baseGroup, visitor);
+		}
+
+		if (deltaGroup != ContextTable.NO_GROUP)
+		{
+			this.delta.visitNextTokens(deltaGroup, visitor);
+		}
+	}
+
+	@Override
+	public void visitPreviousTokens(int group, TokenCountVisitor visitor)
+	{
+		int baseGroup = this.getBaseGroup(group);
+		int deltaGroup = this.getDeltaGroup(group);
+
+		if (baseGroup != ContextTable.NO_GROUP)
+		{
+			this.base.visitPreviousTokens(baseGroup, visitor);
+		}
+
+		if (deltaGroup != ContextTable.NO_GROUP)
+		{
+			this.delta.visitPreviousTokens(deltaGroup, visitor);
+		}
+	}
+
+	/**
+	 * The lower orders of a frozen chain are layered under the table's in the same way; those of a mapped chain were
+	 * worked out into the table's own when it was mapped, so the table's are all of them.
+	 */
+	@Override
+	public MarkovChain getLowerOrders()
+	{
+		return this.lowerOrders;
+	}
+
+	/**
+	 * Gets the id in the base chain of a group.
+	 *
+	 * @param group The id of the group in this view
+	 * @return The id of the group in the base chain, else ContextTable.NO_GROUP if it is only in the table
+	 */
+	private int getBaseGroup(int group)
+	{
+		if (group < this.baseGroupCount)
+		{
+			return group;
+		}
+
+		return this.baseGroups[group - this.baseGroupCount];
+	}
+
+	/**
+	 * Gets the id in the table of a group.
+	 *
+	 * @param group The id of the group in this view
+	 * @return The id of the group in the table, else ContextTable.NO_GROUP if it is only in the base chain
+	 */
+	private int getDeltaGroup(int group)
+	{
+		if (group >= this.baseGroupCount)
+		{
+			return group - this.baseGroupCount;
+		}
+
+		// look the base group up in the index of the table's groups that match base ones
+		int mask = this.baseIndex.length - 1;
+		for (int slot = Hashing.hash(group) & mask; this.baseIndex[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int deltaGroup = this.baseIndex[slot] - 1;
+
+			// groups added after the snapshot may already be in the index, but are not part of it
+			if (deltaGroup < this.delta.getGroupCount() && this.baseGroups[deltaGroup] == group)
+			{
+				return deltaGroup;
+			}
+		}
+
+		return ContextTable.NO_GROUP;
+	}
+}
@@ -0,0 +1,725 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands messages to be learnt from over to a dedicated learner thread, so that whoever observed them (such as an IRC
+ * event thread) can return immediately.
+ *
+ * Messages wait in a bounded queue. The learner takes them off in batches, teaches each batch to MegaHal in one go and
+ * then appends the batch to the brain journal. If messages arrive faster than they can be learnt and the queue fills up,
+ * the overflow policy decides what happens to them.
+ *
+ * The learner can also write a brain snapshot every so often, and once more when closed. As it is the only thread that
+ * learns and appends to the journal, a snapshot written between two batches is always exactly as far through the
+ * journal as the journal's position says.
+ *
+ * The learner is usually a thread of its own, but may instead run on a pool shared by many pipelines, so that many
+ * brains can be hosted without a thread each. It is then only handed to the pool while there are messages to learn,
+ * and never runs on more than one of the pool's threads at once.
+ *
+ * The instance of MegaHal taught can be replaced by another, such as one that has been retrained, without stopping the
+ * pipeline; the replacement is caught up with the journal first, so it has learnt everything the instance it replaces
+ * had, and messages carry on being queued meanwhile.
+ */
+public class LearningPipeline
+{
+	/**
+	 * What to do with a message that arrives while the queue is full.
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * Wait for there to be room in the queue; this slows whoever submitted the message down to the learner's pace.
+		 */
+		BLOCK,
+
+		/**
+		 * Throw away the message that has just arrived.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * Throw away the message that has waited the longest, to make room for the one that has just arrived.
+		 */
+		DROP_OLDEST
+	}
+
+	/**
+	 * The default amount of messages that may wait to be learnt.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * The default largest amount of messages learnt in one batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * How long the learner waits for a message before checking whether it has been closed, in milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * The instance of MegaHal to teach; only replaced while learnLock is held.
+	 */
+	private volatile MegaHal megaHal;
+
+	/**
+	 * The journal to save sentences to, allowing permanence in the learning of MegaHal.
+	 */
+	private final BrainJournal journal;
+
+	/**
+	 * The messages waiting to be learnt.
+	 */
+	private final BlockingQueue<String> queue;
+
+	/**
+	 * The largest amount of messages learnt in one batch.
+	 */
+	private final int batchSize;
+
+	/**
+	 * What to do with messages that arrive while the queue is full.
+	 */
+	private final OverflowPolicy overflowPolicy;
+
+	/**
+	 * The thread that learns from the queued messages, or null if the learner runs on a pool.
+	 */
+	private final Thread learner;
+
+	/**
+	 * The pool that the learner runs on, or null if it has a thread of its own.
+	 */
+	private final Executor learnerPool;
+
+	/**
+	 * Drains the queue on the learner pool.
+	 */
+	private final Runnable drainTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			LearningPipeline.this.drain();
+		}
+	};
+
+	/**
+	 * Whether or not the drain task has been handed to the learner pool and has not yet started draining.
+	 */
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Held while learning on the learner pool, so that a drain task handed to the pool twice never runs twice at once,
+	 * and so that close() can wait for it to finish.
+	 */
+	private final ReentrantLock drainLock = new ReentrantLock();
+
+	/**
+	 * Held while a batch is learnt and appended to the journal, or a snapshot written, so that the instance of MegaHal
+	 * is never replaced part way through either; the journal then holds exactly what the instance has learnt whenever
+	 * this is free.
+	 */
+	private final ReentrantLock learnLock = new ReentrantLock();
+
+	/**
+	 * The file to write brain snapshots to, or null if they should not be written.
+	 */
+	private File snapshotFile = null;
+
+	/**
+	 * How long to wait between brain snapshots, in milliseconds.
+	 */
+	private long snapshotInterval = 0;
+
+	/**
+	 * The System.nanoTime() at which the last brain snapshot was written, or the learner started.
+	 */
+	private long lastSnapshotTime;
+
+	/**
+	 * Whether or not anything has been learnt since the last brain snapshot; MegaHal may have learnt from elsewhere
+	 * before the pipeline was created, such as the end of the journal at startup, so the first snapshot is always
+	 * written. Guarded by learnLock.
+	 */
+	private boolean learntSinceSnapshot = true;
+
+	/**
+	 * Skips messages that have been seen lately, both before they are queued and as they are learnt, which is when
+	 * they are remembered; or null if every message is learnt.
+	 */
+	private SeenFilter seenFilter = null;
+
+	/**
+	 * Whether or not the learner should keep running once the queue is empty.
+	 */
+	private volatile boolean running = true;
+
+	// statistics about the messages that have passed through the pipeline
+	private final Metrics.Counter submittedCount = new Metrics.Counter();
+	private final Metrics.Counter learntCount = new Metrics.Counter();
+	private final Metrics.Counter droppedCount = new Metrics.Counter();
+	private final Metrics.Counter batchCount = new Metrics.Counter();
+	private final Metrics.Counter deferredSnapshotCount = new Metrics.Counter();
+	private final Metrics.Histogram batchTimes = Metrics.Histogram.nanoseconds();
+
+	/**
+	 * Creates a LearningPipeline with the default capacity, batch size and overflow policy.
+	 *
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param journal The journal to append learnt messages to
+	 */
+	public LearningPipeline(MegaHal megaHal, BrainJournal journal)
+	{
+		this(megaHal, journal, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Creates a LearningPipeline. The learner thread is not started until start() is called.
+	 *
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param journal The journal to append learnt messages to
+	 * @param capacity The amount of messages that may wait to be learnt
+	 * @param batchSize The largest amount of messages learnt in one batch
+	 * @param overflowPolicy What to do with messages that arrive while the queue is full
+	 */
+	public LearningPipeline(MegaHal megaHal, BrainJournal journal, int capacity, int batchSize, OverflowPolicy overflowPolicy)
+	{
+		this(megaHal, journal, capacity, batchSize, overflowPolicy, null);
+	}
+
+	/**
+	 * Creates a LearningPipeline whose learner runs on a pool that may be shared with other pipelines. Messages are not
+	 * learnt until start() is called.
+	 *
+	 * @param megaHal The instance of MegaHal to teach
+	 * @param journal The journal to append learnt messages to
+	 * @param capacity The amount of messages that may wait to be learnt
+	 * @param batchSize The largest amount of messages learnt in one batch
+	 * @param overflowPolicy What to do with messages that arrive while the queue is full
+	 * @param learnerPool The pool to learn on, or null for the learner to have a thread of its own
+	 */
+	public LearningPipeline(MegaHal megaHal, BrainJournal journal, int capacity, int batchSize,
+			OverflowPolicy overflowPolicy, Executor learnerPool)
+	{
+		this.megaHal = megaHal;
+		this.journal = journal;
+		this.queue = new ArrayBlockingQueue<String>(capacity);
+		this.batchSize = batchSize;
+		this.overflowPolicy = overflowPolicy;
+		this.learnerPool = learnerPool;
+
+		if (learnerPool != null)
+		{
+			this.learner = null;
+			return;
+		}
+
+		this.learner = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				LearningPipeline.this.runLearner();
+			}
+		}, "Chester learner");
+		this.learner.setDaemon(true);
+	}
+
+	/**
+	 * Has the learner write a brain snapshot periodically, and once more when closed. This must be called before
+	 * start().
+	 *
+	 * @param snapshotFile The file to write snapshots to
+	 * @param snapshotInterval How long to wait between snapshots, in milliseconds; if 0 or less, a snapshot is only
+	 *                         written when closed. If the learner runs on a pool, a snapshot that falls due is only
+	 *                         written once there are messages to learn
+	 */
+	public void setSnapshot(File snapshotFile, long snapshotInterval)
+	{
+		this.snapshotFile = snapshotFile;
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * Has repeats of messages seen lately skipped as they are submitted, so that they are neither learnt nor appended
+	 * to the journal. This must be called before start().
+	 *
+	 * @param seenFilter The filter of the messages seen lately
+	 */
+	public void setSeenFilter(SeenFilter seenFilter)
+	{
+		this.seenFilter = seenFilter;
+	}
+
+	/**
+	 * Replaces the instance of MegaHal taught with another, such as one that has been retrained, while the pipeline
+	 * carries on. The replacement is first taught everything appended to the journal from an offset on, without holding
+	 * up the learner; then, with the learner held up, whatever was appended since, which is the little learnt in the
+	 * meantime, before it takes the place of the instance. Messages carry on being queued throughout, and the next
+	 * snapshot is of the replacement. The replacement should not be taught by anything else.
+	 *
+	 * @param megaHal The replacement
+	 * @param offset The offset in the journal's file up to which the replacement has already learnt, in bytes
+	 * @param batchSize The amount of messages to teach the replacement at once while catching it up
+	 * @throws IOException If the journal could not be committed or read; the instance is then left as it was
+	 */
+	public void replaceMegaHal(MegaHal megaHal, long offset, int batchSize) throws IOException
+	{
+		// catch up with the bulk of the journal while the learner carries on, which may take a while
+		long caughtUp = this.journal.commitPosition();
+		BrainJournal.replay(this.journal.getFile(), offset, caughtUp, megaHal, batchSize);
+
+		this.learnLock.lock();
+		try
+		{
+			// nothing is appended while the lock is held, so this catches the replacement up exactly
+			long end = this.journal.commitPosition();
+			BrainJournal.replay(this.journal.getFile(), caughtUp, end, megaHal, batchSize);
+
+			this.megaHal = megaHal;
+			this.learntSinceSnapshot = true;
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the instance of MegaHal taught, which is the one to reply with.
+	 *
+	 * @return The instance
+	 */
+	public MegaHal getMegaHal()
+	{
+		return this.megaHal;
+	}
+
+	/**
+	 * Starts the learner thread.
+	 */
+	public void start()
+	{
+		this.lastSnapshotTime = System.nanoTime();
+
+		if (this.learner != null)
+		{
+			this.learner.start();
+		}
+		else
+		{
+			this.scheduleDrain();
+		}
+	}
+
+	/**
+	 * Queues a message to be learnt from. Unless the overflow policy is BLOCK and the queue is full, this returns
+	 * immediately.
+	 *
+	 * @param message The message
+	 * @return True if the message was queued, else False if it was dropped or skipped for having been seen lately
+	 */
+	public boolean submit(String message)
+	{
+		this.submittedCount.increment();
+
+		// skip repeats straight away, which saves learning them, storing them and making room for them in the queue
+		if (this.seenFilter != null && this.seenFilter.isSeen(message))
+			return false;
+
+		// the message is only remembered once it is learnt, as it may yet be dropped to make room for newer ones
+		if (!this.enqueue(message))
+			return false;
+
+		// a learner on a pool only runs while there is something to learn
+		if (this.learnerPool != null)
+		{
+			this.scheduleDrain();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Puts a message in the queue, following the overflow policy if it is full.
+	 *
+	 * @param message The message
+	 * @return True if the message was queued, else False if it was dropped
+	 */
+	private boolean enqueue(String message)
+	{
+		switch (this.overflowPolicy)
+		{
+			case BLOCK:
+				try
+				{
+					this.queue.put(message);
+					return true;
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					this.droppedCount.increment();
+					return false;
+				}
+
+			case DROP_OLDEST:
+				// keep making room until the message fits; another thread may take the room first
+				while (!this.queue.offer(message))
+				{
+					if (this.queue.poll() != null)
+					{
+						this.droppedCount.increment();
+					}
+				}
+				return true;
+
+			default:
+				if (this.queue.offer(message))
+				{
+					return true;
+				}
+
+				this.droppedCount.increment();
+				return false;
+		}
+	}
+
+	/**
+	 * Waits for the learner to learn everything still queued and then stops it. Messages should no longer be submitted
+	 * once this has been called. If snapshots are being written, a last one is written once everything has been
+	 * learnt. The journal is left open, as it belongs to whoever created the pipeline.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the learner
+	 */
+	public void close() throws InterruptedException
+	{
+		this.running = false;
+
+		if (this.learner != null)
+		{
+			this.learner.join();
+			return;
+		}
+
+		// wait for any drain in progress, then learn whatever it left behind here
+		this.drainLock.lockInterruptibly();
+		try
+		{
+			this.learnQueued();
+			this.writeSnapshot(true);
+		}
+		finally
+		{
+			this.drainLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the amount of messages currently waiting to be learnt.
+	 *
+	 * @return The depth of the queue
+	 */
+	public int getQueueDepth()
+	{
+		return this.queue.size();
+	}
+
+	/**
+	 * Gets the amount of messages that have been submitted, whether or not they were dropped.
+	 *
+	 * @return The amount of messages submitted
+	 */
+	public long getSubmittedCount()
+	{
+		return this.submittedCount.get();
+	}
+
+	/**
+	 * Gets the amount of messages that have been taken off the queue and learnt.
+	 *
+	 * @return The amount of messages learnt
+	 */
+	public long getLearntCount()
+	{
+		return this.learntCount.get();
+	}
+
+	/**
+	 * Gets the amount of messages that were thrown away because the queue was full.
+	 *
+	 * @return The amount of messages dropped
+	 */
+	public long getDroppedCount()
+	{
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * Gets the amount of batches the learner has learnt.
+	 *
+	 * @return The amount of batches
+	 */
+	public long getBatchCount()
+	{
+		return this.batchCount.get();
+	}
+
+	/**
+	 * Registers metrics about the messages that have passed through the pipeline and how long the learner takes over
+	 * them.
+	 *
+	 * @param metrics The registry to register the metrics with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_learn_submitted_total", "Messages submitted to be learnt, whether or not they were dropped.", this.submittedCount);
+		metrics.register("chester_learn_dropped_total", "Messages thrown away because the learn queue was full.", this.droppedCount);
+		metrics.register("chester_learn_snapshots_deferred_total", "Brain snapshots put off until the next was due, as the brain was being pruned.", this.deferredSnapshotCount);
+		metrics.register("chester_learn_batches_total", "Batches of messages learnt by the learner.", this.batchCount);
+		metrics.register("chester_learn_batch_seconds", "Time taken to learn each batch, not counting appending it to the journal.", this.batchTimes);
+
+		if (this.seenFilter != null)
+		{
+			this.seenFilter.registerMetrics(metrics);
+		}
+
+		metrics.register("chester_learn_queue_depth", "Messages waiting to be learnt.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return LearningPipeline.this.getQueueDepth();
+			}
+		});
+	}
+
+	/**
+	 * Repeatedly takes a batch of messages off the queue and learns it, until closed and the queue is empty.
+	 */
+	private void runLearner()
+	{
+		List<String> batch = new ArrayList<String>(this.batchSize);
+
+		while (this.running || !this.queue.isEmpty())
+		{
+			try
+			{
+				// write a snapshot between batches whenever one is due
+				if (this.snapshotInterval > 0 && System.nanoTime() - this.lastSnapshotTime
+						>= TimeUnit.MILLISECONDS.toNanos(this.snapshotInterval))
+				{
+					this.writeSnapshot(false);
+				}
+
+				// wait for at least one message...
+				String message = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (message == null)
+					continue;
+
+				// ...then take as many more as are waiting, up to the batch size
+				batch.add(message);
+				this.queue.drainTo(batch, this.batchSize - 1);
+
+				this.learn(batch);
+			}
+			catch (InterruptedException e)
+			{
+				// only close() should stop the learner, and it does so by clearing running
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (RuntimeException e)
+			{
+				// never let one bad batch kill the learner
+				System.err.println("Could not learn from a batch of messages.");
+				e.printStackTrace();
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+
+		this.writeSnapshot(true);
+	}
+
+	/**
+	 * Hands the drain task to the learner pool, unless it has already been handed over and has not yet started.
+	 */
+	private void scheduleDrain()
+	{
+		if (this.drainScheduled.compareAndSet(false, true))
+		{
+			this.learnerPool.execute(this.drainTask);
+		}
+	}
+
+	/**
+	 * Learns every queued message, and writes a snapshot if one is due; this is what the learner does on a pool, each
+	 * time it is handed to it.
+	 */
+	private void drain()
+	{
+		this.drainLock.lock();
+		try
+		{
+			// once closed, the queue is left to close() to finish off
+			if (!this.running)
+				return;
+
+			do
+			{
+				// from here on, a message that arrives is either learnt by this drain or hands the pool another one
+				this.drainScheduled.set(false);
+
+				this.learnQueued();
+
+				if (this.snapshotInterval > 0 && System.nanoTime() - this.lastSnapshotTime
+						>= TimeUnit.MILLISECONDS.toNanos(this.snapshotInterval))
+				{
+					this.writeSnapshot(false);
+				}
+			}
+			while (!this.queue.isEmpty() && this.drainScheduled.compareAndSet(false, true));
+		}
+		finally
+		{
+			this.drainLock.unlock();
+		}
+	}
+
+	/**
+	 * Learns queued messages in batches until the queue is empty.
+	 */
+	private void learnQueued()
+	{
+		List<String> batch = new ArrayList<String>(this.batchSize);
+
+		while (this.queue.drainTo(batch, this.batchSize) > 0)
+		{
+			try
+			{
+				this.learn(batch);
+			}
+			catch (RuntimeException e)
+			{
+				// never let one bad batch stop the rest being learnt
+				System.err.println("Could not learn from a batch of messages.");
+				e.printStackTrace();
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes a brain snapshot, if snapshots are being written and anything has been learnt since the last one.
+	 *
+	 * @param wait Whether or not to wait for the brain to finish being pruned, if it is; if not, the snapshot is put
+	 *             off until the next is due, so that learning carries on meanwhile
+	 */
+	private void writeSnapshot(boolean wait)
+	{
+		this.lastSnapshotTime = System.nanoTime();
+
+		if (this.snapshotFile == null)
+			return;
+
+		this.learnLock.lock();
+		try
+		{
+			if (!this.learntSinceSnapshot)
+				return;
+
+			// commit the journal first, so that the file is never shorter than the offset the snapshot records
+			this.journal.commit();
+			if (wait)
+			{
+				this.megaHal.writeSnapshot(this.snapshotFile, this.journal.getPosition());
+			}
+			else if (!this.megaHal.tryWriteSnapshot(this.snapshotFile, this.journal.getPosition()))
+			{
+				this.deferredSnapshotCount.increment();
+				return;
+			}
+			this.learntSinceSnapshot = false;
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not write a brain snapshot to '%s'.", this.snapshotFile.getAbsolutePath()));
+			e.printStackTrace();
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+
+	/**
+	 * Teaches a batch of messages to MegaHal and appends them to the brain journal.
+	 *
+	 * @param batch The messages
+	 */
+	private void learn(List<String> batch)
+	{
+		this.learnLock.lock();
+		try
+		{
+			// remember each message as it is learnt, rather than as it is queued, so that one the queue drops is not
+			// skipped the next time it is said; this also skips repeats that were queued before the first was learnt
+			if (this.seenFilter != null)
+			{
+				for (Iterator<String> iterator = batch.iterator(); iterator.hasNext(); )
+				{
+					if (!this.seenFilter.addIfUnseen(iterator.next()))
+					{
+						iterator.remove();
+					}
+				}
+
+				if (batch.isEmpty())
+					return;
+			}
+
+			long startTime = System.nanoTime();
+			this.megaHal.addMessages(batch);
+			this.batchTimes.record(System.nanoTime() - startTime);
+
+			this.learntCount.add(batch.size());
+			this.batchCount.increment();
+			this.learntSinceSnapshot = true;
+
+			// the journal buffers the messages and commits them to the file in its own time
+			for (String message : batch)
+			{
+				this.journal.append(message);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Could not append messages to the brain journal at '%s'.", this.journal.getFile().getAbsolutePath()));
+			e.printStackTrace();
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+}
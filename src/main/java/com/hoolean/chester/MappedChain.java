@@ -0,0 +1,955 @@
+package com.hoolean.chester;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything MegaHal has learnt, stored in a file that is mapped into memory and read in place, rather than loaded
+ * onto the heap.
+ *
+ * As nothing is read until it is needed, a MappedChain is ready to use as soon as it is opened, and may be larger than
+ * the heap; the operating system keeps the parts in use in its page cache, where they are shared with any other
+ * process that maps the same file. A MappedChain never changes once written. MegaHal learns on top of it in a
+ * ContextTable on the heap, and the two are read together through a LayeredChain.
+ *
+ * The file is made up of a fixed-size header followed by sections of Arrays, each starting at a multiple of 8 bytes
+ * so that no value straddles two mapped chunks. Every number is big-endian. The header holds:
+ *
+ *     int     magic number
+ *     int     format version
+ *     int     Markov length
+ *     int     amount of groups
+ *     int     amount of tokens
+ *     int     amount of slots in the group index
+ *     int     amount of slots in the token index
+ *     int     unused
+ *     long    offset into the brain journal
+ *     long[]  the offset of each section, in the order below
+ *
+ * The sections, where G is the amount of groups and T the amount of tokens, are:
+ *
+ *     int[G * order]          the tokens of every group, one group after another
+ *     byte[G]                 whether each group can start and/or end a message, as in ContextTable
+ *     int[G]                  the sum of the counts of the tokens seen after each group
+ *     int[G]                  the sum of the counts of the tokens seen before each group
+ *     int[G + 1]              where the tokens seen after each group start in the next edges
+ *     int[G + 1]              where the tokens seen before each group start in the previous edges
+ *     int[2 * next edges]     the tokens seen after each group, with their counts, one group after another
+ *     int[2 * previous edges] the tokens seen before each group, with their counts, one group after another
+ *     int[]                   an open-addressed hash index over the groups, holding each group id plus one
+ *     long[T + 1]             where the groups of each token start in the token groups
+ *     int[]                   the ids of the groups that each token is in, one token after another
+ *     long[T + 1]             where each token starts in the token characters
+ *     char[]                  the characters of every token, one after another
+ *     int[]                   an open-addressed hash index over the tokens, holding each token id plus one
+ */
+public final class MappedChain implements MarkovChain
+{
+	/**
+	 * Marks a mapped chain file; "CHMP" in ASCII.
+	 */
+	private static final int MAGIC = 0x43484D50;
+
+	/**
+	 * The version of the format written; files of any other version are refused.
+	 */
+	private static final int VERSION = 2;
+
+	// the positions of the values in the header
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_ORDER = 8;
+	private static final int HEADER_GROUP_COUNT = 12;
+	private static final int HEADER_TOKEN_COUNT = 16;
+	private static final int HEADER_INDEX_SIZE = 20;
+	private static final int HEADER_TOKEN_INDEX_SIZE = 24;
+	private static final int HEADER_JOURNAL_OFFSET = 32;
+	private static final int HEADER_SECTIONS = 40;
+	private static final int HEADER_SIZE = 256;
+
+	// the sections of the file, in order
+	private static final int KEYS = 0;
+	private static final int FLAGS = 1;
+	private static final int NEXT_TOTALS = 2;
+	private static final int PREVIOUS_TOTALS = 3;
+	private static final int NEXT_STARTS = 4;
+	private static final int PREVIOUS_STARTS = 5;
+	private static final int NEXT_EDGES = 6;
+	private static final int PREVIOUS_EDGES = 7;
+	private static final int INDEX = 8;
+	private static final int TOKEN_GROUP_STARTS = 9;
+	private static final int TOKEN_GROUPS = 10;
+	private static final int TOKEN_STARTS = 11;
+	private static final int TOKEN_CHARS = 12;
+	private static final int TOKEN_INDEX = 13;
+	private static final int SECTION_COUNT = 14;
+
+	/**
+	 * Groups with more than this many tokens seen next to them have an AliasSampler built and cached for them; the
+	 * tokens of smaller groups are simply walked through, which is as quick and needs nothing on the heap.
+	 */
+	private static final int SAMPLER_THRESHOLD = 16;
+
+	/**
+	 * The file the chain is stored in.
+	 */
+	private final File file;
+
+	/**
+	 * The mapped file.
+	 */
+	private final MappedFile mapping;
+
+	// values from the header
+	private final int order;
+	private final int groupCount;
+	private final int tokenCount;
+	private final int indexMask;
+	private final int tokenIndexMask;
+	private final long journalOffset;
+
+	// the offsets of the sections
+	private final long keys;
+	private final long flags;
+	private final long nextTotals;
+	private final long previousTotals;
+	private final long nextStarts;
+	private final long previousStarts;
+	private final long nextEdges;
+	private final long previousEdges;
+	private final long index;
+	private final long tokenGroupStarts;
+	private final long tokenGroups;
+	private final long tokenStarts;
+	private final long tokenChars;
+	private final long tokenIndex;
+
+	// the cached samplers of groups with many tokens seen next to them; the chain never changes, so neither do they
+	private final ConcurrentHashMap<Integer, AliasSampler> nextSamplers = new ConcurrentHashMap<Integer, AliasSampler>();
+	private final ConcurrentHashMap<Integer, AliasSampler> previousSamplers = new ConcurrentHashMap<Integer, AliasSampler>();
+
+	/**
+	 * Instantiates a MappedChain over a mapped file, checking that the file is one.
+	 *
+	 * @param file The file the chain is stored in
+	 * @param mapping The mapped file
+	 * @throws IOException If the file is not a mapped chain of a version that can be read
+	 */
+	private MappedChain(File file, MappedFile mapping) throws IOException
+	{
+		this.file = file;
+		this.mapping = mapping;
+
+		if (mapping.length() < HEADER_SIZE || mapping.getInt(HEADER_MAGIC) != MAGIC)
+		{
+			throw new IOException(String.format("'%s' is not a mapped brain.", file.getAbsolutePath()));
+		}
+
+		int version = mapping.getInt(HEADER_VERSION);
+		if (version != VERSION)
+		{
+			throw new IOException(String.format("'%s' is a version %d mapped brain; only version %d can be read.", file.getAbsolutePath(), version, VERSION));
+		}
+
+		this.order = mapping.getInt(HEADER_ORDER);
+		this.groupCount = mapping.getInt(HEADER_GROUP_COUNT);
+		this.tokenCount = mapping.getInt(HEADER_TOKEN_COUNT);
+		this.indexMask = mapping.getInt(HEADER_INDEX_SIZE) - 1;
+		this.tokenIndexMask = mapping.getInt(HEADER_TOKEN_INDEX_SIZE) - 1;
+		this.journalOffset = mapping.getLong(HEADER_JOURNAL_OFFSET);
+
+		this.keys = getSection(mapping, KEYS);
+		this.flags = getSection(mapping, FLAGS);
+		this.nextTotals = getSection(mapping, NEXT_TOTALS);
+		this.previousTotals = getSection(mapping, PREVIOUS_TOTALS);
+		this.nextStarts = getSection(mapping, NEXT_STARTS);
+		this.previousStarts = getSection(mapping, PREVIOUS_STARTS);
+		this.nextEdges = getSection(mapping, NEXT_EDGES);
+		this.previousEdges = getSection(mapping, PREVIOUS_EDGES);
+		this.index = getSection(mapping, INDEX);
+		this.tokenGroupStarts = getSection(mapping, TOKEN_GROUP_STARTS);
+		this.tokenGroups = getSection(mapping, TOKEN_GROUPS);
+		this.tokenStarts = getSection(mapping, TOKEN_STARTS);
+		this.tokenChars = getSection(mapping, TOKEN_CHARS);
+		this.tokenIndex = getSection(mapping, TOKEN_INDEX);
+
+		// the token index is the last section, so if it fits then so does everything else
+		if (this.tokenIndex + (this.tokenIndexMask + 1) * 4L > mapping.length())
+		{
+			throw new IOException(String.format("The mapped brain at '%s' is corrupt.", file.getAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Opens and maps a file written by write().
+	 *
+	 * @param file The file
+	 * @return The chain stored in the file
+	 * @throws IOException If the file could not be mapped, or is not a mapped chain of a version that can be read
+	 */
+	public static MappedChain open(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			return new MappedChain(file, new MappedFile(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+		}
+		finally
+		{
+			// the mapping outlives the channel
+			channel.close();
+		}
+	}
+
+	/**
+	 * Gets the file the chain is stored in.
+	 *
+	 * @return The file
+	 */
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	/**
+	 * Gets the offset into the brain journal, in bytes, up to which every message had been learnt when the chain was
+	 * written; messages from this offset onwards need replaying on top of it.
+	 *
+	 * @return The offset
+	 */
+	public long getJournalOffset()
+	{
+		return this.journalOffset;
+	}
+
+	/**
+	 * Gets the amount of tokens stored as seen before or after each group, summed over every group.
+	 *
+	 * @return The amount of edges
+	 */
+	long getEdgeCount()
+	{
+		// each starts section has one more element than there are groups, holding where the last group's edges end
+		return (long) this.mapping.getInt(this.nextStarts + this.groupCount * 4L)
+				+ this.mapping.getInt(this.previousStarts + this.groupCount * 4L);
+	}
+
+	/**
+	 * Gets the amount of tokens stored in the chain; their ids are every number from 0 up to but excluding this.
+	 *
+	 * @return The amount of tokens
+	 */
+	int getTokenCount()
+	{
+		return this.tokenCount;
+	}
+
+	/**
+	 * Finds the id of a token stored in the chain, straight out of the characters it is part of.
+	 *
+	 * @param characters The characters the token is in
+	 * @param start The index of the first character of the token
+	 * @param end The index just after the last character of the token
+	 * @param hash The hash of the token, from TokenDictionary.hash
+	 * @return The id of the token, else TokenDictionary.UNKNOWN_TOKEN if it is not stored in the chain
+	 */
+	int getTokenId(CharSequence characters, int start, int end, int hash)
+	{
+		for (int slot = hash & this.tokenIndexMask; ; slot = (slot + 1) & this.tokenIndexMask)
+		{
+			int id = this.mapping.getInt(this.tokenIndex + slot * 4L) - 1;
+			if (id < 0)
+			{
+				return TokenDictionary.UNKNOWN_TOKEN;
+			}
+
+			if (this.tokenEquals(id, characters, start, end))
+			{
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Gets a token stored in the chain.
+	 *
+	 * @param id The id of the token
+	 * @return The token
+	 */
+	String getToken(int id)
+	{
+		StringBuilder builder = new StringBuilder();
+		this.appendToken(id, builder);
+		return builder.toString();
+	}
+
+	/**
+	 * Appends a token stored in the chain to a StringBuilder, reading it straight out of the mapping.
+	 *
+	 * @param id The id of the token
+	 * @param builder The StringBuilder
+	 */
+	void appendToken(int id, StringBuilder builder)
+	{
+		long start = this.mapping.getLong(this.tokenStarts + id * 8L);
+		long end = this.mapping.getLong(this.tokenStarts + (id + 1) * 8L);
+
+		for (long i = start; i < end; i++)
+		{
+			builder.append(this.mapping.getChar(this.tokenChars + i * 2));
+		}
+	}
+
+	@Override
+	public int getOrder()
+	{
+		return this.order;
+	}
+
+	@Override
+	public int getGroupCount()
+	{
+		return this.groupCount;
+	}
+
+	@Override
+	public int findGroup(int[] tokens, int offset)
+	{
+		// probe linearly from the slot the hash points at until the group or an empty slot is found
+		for (int slot = ContextTable.hash(tokens, offset, this.order) & this.indexMask; ; slot = (slot + 1) & this.indexMask)
+		{
+			int group = this.mapping.getInt(this.index + slot * 4L) - 1;
+			if (group < 0)
+			{
+				return ContextTable.NO_GROUP;
+			}
+
+			if (this.keyEquals(group, tokens, offset))
+			{
+				return group;
+			}
+		}
+	}
+
+	@Override
+	public int getToken(int group, int index)
+	{
+		return this.mapping.getInt(this.keys + ((long) group * this.order + index) * 4);
+	}
+
+	@Override
+	public boolean canStart(int group)
+	{
+		return (this.mapping.getByte(this.flags + group) & ContextTable.FLAG_CAN_START) != 0;
+	}
+
+	@Override
+	public boolean canEnd(int group)
+	{
+		return (this.mapping.getByte(this.flags + group) & ContextTable.FLAG_CAN_END) != 0;
+	}
+
+	@Override
+	public int sampleNextToken(int group, Random random)
+	{
+		return this.sample(this.nextStarts, this.nextEdges, this.nextTotals, this.nextSamplers, group, random);
+	}
+
+	@Override
+	public int samplePreviousToken(int group, Random random)
+	{
+		return this.sample(this.previousStarts, this.previousEdges, this.previousTotals, this.previousSamplers, group, random);
+	}
+
+	@Override
+	public double getNextProbability(int group, int token)
+	{
+		return this.getProbability(this.nextStarts, this.nextEdges, this.nextTotals, group, token);
+	}
+
+	@Override
+	public double getPreviousProbability(int group, int token)
+	{
+		return this.getProbability(this.previousStarts, this.previousEdges, this.previousTotals, group, token);
+	}
+
+	@Override
+	public long getNextTotal(int group)
+	{
+		return this.mapping.getInt(this.nextTotals + group * 4L);
+	}
+
+	@Override
+	public long getPreviousTotal(int group)
+	{
+		return this.mapping.getInt(this.previousTotals + group * 4L);
+	}
+
+	@Override
+	public int getTokenGroupCount(int token)
+	{
+		if (token < 0 || token >= this.tokenCount)
+		{
+			return 0;
+		}
+
+		return (int) (this.mapping.getLong(this.tokenGroupStarts + (token + 1) * 8L)
+				- this.mapping.getLong(this.tokenGroupStarts + token * 8L));
+	}
+
+	@Override
+	public int getTokenGroup(int token, int index)
+	{
+		long start = this.mapping.getLong(this.tokenGroupStarts + token * 8L);
+		return this.mapping.getInt(this.tokenGroups + (start + index) * 4);
+	}
+
+	@Override
+	public boolean isAlias(int group)
+	{
+		return false;
+	}
+
+	@Override
+	public void visitNextTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visit(this.nextStarts, this.nextEdges, group, visitor);
+	}
+
+	@Override
+	public void visitPreviousTokens(int group, TokenCountVisitor visitor)
+	{
+		this.visit(this.previousStarts, this.previousEdges, group, visitor);
+	}
+
+	/**
+	 * Lower orders are not written to the file; a MegaHal learning on top of a mapped chain works them out onto the heap
+	 * instead, so the mapped chain alone has none.
+	 */
+	@Override
+	public MarkovChain getLowerOrders()
+	{
+		return null;
+	}
+
+	/**
+	 * Draws one of the tokens of a group's edges at random, weighted by their counts.
+	 */
+	private int sample(long starts, long edges, long totals, ConcurrentHashMap<Integer, AliasSampler> samplers,
+			int group, Random random)
+	{
+		int start = this.mapping.getInt(starts + group * 4L);
+		int end = this.mapping.getInt(starts + (group + 1) * 4L);
+
+		// there is no choice to be made if only one token has been seen
+		if (end - start == 1)
+		{
+			return this.mapping.getInt(edges + start * 8L);
+		}
+
+		if (end - start > SAMPLER_THRESHOLD)
+		{
+			AliasSampler sampler = samplers.get(group);
+			if (sampler == null)
+			{
+				sampler = this.buildSampler(edges, start, end);
+				samplers.putIfAbsent(group, sampler);
+			}
+
+			return sampler.sample(random);
+		}
+
+		// walk through the counts until the randomly chosen amount of them has been passed
+		int remaining = random.nextInt(this.mapping.getInt(totals + group * 4L));
+		for (int edge = start; edge < end - 1; edge++)
+		{
+			remaining -= this.mapping.getInt(edges + edge * 8L + 4);
+			if (remaining < 0)
+			{
+				return this.mapping.getInt(edges + edge * 8L);
+			}
+		}
+
+		return this.mapping.getInt(edges + (end - 1) * 8L);
+	}
+
+	/**
+	 * Gets the share of the counts of a group's edges that belong to a token.
+	 */
+	private double getProbability(long starts, long edges, long totals, int group, int token)
+	{
+		int start = this.mapping.getInt(starts + group * 4L);
+		int end = this.mapping.getInt(starts + (group + 1) * 4L);
+
+		for (int edge = start; edge < end; edge++)
+		{
+			if (this.mapping.getInt(edges + edge * 8L) == token)
+			{
+				return (double) this.mapping.getInt(edges + edge * 8L + 4) / this.mapping.getInt(totals + group * 4L);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Passes the tokens and counts of a group's edges to a visitor.
+	 */
+	private void visit(long starts, long edges, int group, TokenCountVisitor visitor)
+	{
+		int start = this.mapping.getInt(starts + group * 4L);
+		int end = this.mapping.getInt(starts + (group + 1) * 4L);
+
+		for (int edge = start; edge < end; edge++)
+		{
+			visitor.visit(this.mapping.getInt(edges + edge * 8L), this.mapping.getInt(edges + edge * 8L + 4));
+		}
+	}
+
+	/**
+	 * Builds a sampler from a run of edges.
+	 */
+	private AliasSampler buildSampler(long edges, int start, int end)
+	{
+		int[] tokens = new int[end - start];
+		int[] counts = new int[end - start];
+		long total = 0;
+
+		for (int i = 0; i < tokens.length; i++)
+		{
+			tokens[i] = this.mapping.getInt(edges + (start + i) * 8L);
+			counts[i] = this.mapping.getInt(edges + (start + i) * 8L + 4);
+			total += counts[i];
+		}
+
+		return new AliasSampler(tokens, counts, total);
+	}
+
+	/**
+	 * Whether or not a group is made up of a run of tokens.
+	 */
+	private boolean keyEquals(int group, int[] tokens, int offset)
+	{
+		long start = this.keys + (long) group * this.order * 4;
+		for (int i = 0; i < this.order; i++)
+		{
+			if (this.mapping.getInt(start + i * 4L) != tokens[offset + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Whether or not a token stored in the chain is the same as a run of characters.
+	 */
+	private boolean tokenEquals(int id, CharSequence characters, int start, int end)
+	{
+		long tokenStart = this.mapping.getLong(this.tokenStarts + id * 8L);
+		long tokenEnd = this.mapping.getLong(this.tokenStarts + (id + 1) * 8L);
+
+		if (tokenEnd - tokenStart != end - start)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < end - start; i++)
+		{
+			if (this.mapping.getChar(this.tokenChars + (tokenStart + i) * 2) != characters.charAt(start + i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes a chain, along with the tokens it refers to, to a file that can be opened as a MappedChain. The chain is
+	 * written to a temporary file which then replaces the file, so a MappedChain may be rewritten while it is open.
+	 *
+	 * Aliased group ids are left out and the rest are renumbered densely, and the tokens seen next to each group are
+	 * merged and sorted. Nothing may change the chain or dictionary while they are written.
+	 *
+	 * @param file The file
+	 * @param journalOffset The offset into the brain journal up to which every message has been learnt
+	 * @param tokenDictionary The dictionary the chain's token ids came from
+	 * @param chain The chain
+	 * @throws IOException If the file could not be written
+	 */
+	static void write(File file, long journalOffset, TokenDictionary tokenDictionary, MarkovChain chain)
+			throws IOException
+	{
+		int order = chain.getOrder();
+		int sourceGroupCount = chain.getGroupCount();
+		int tokenCount = tokenDictionary.size();
+
+		EdgeCollector collector = new EdgeCollector();
+		int[] key = new int[order];
+
+		/*
+		The first pass numbers the groups and measures everything, so that the sections can be laid out; the second
+		pass then fills them in. The groups of each token are counted into tokenGroupStarts shifted along by one, so
+		that summing them up in place leaves each token's start in the right place.
+		 */
+		int[] ids = new int[sourceGroupCount];
+		int groupCount = 0;
+		long nextEdgeCount = 0;
+		long previousEdgeCount = 0;
+		long[] tokenGroupStarts = new long[tokenCount + 1];
+
+		for (int group = 0; group < sourceGroupCount; group++)
+		{
+			if (chain.isAlias(group))
+			{
+				ids[group] = ContextTable.NO_GROUP;
+				continue;
+			}
+
+			ids[group] = groupCount++;
+
+			collector.clear();
+			chain.visitNextTokens(group, collector);
+			nextEdgeCount += collector.merge();
+
+			collector.clear();
+			chain.visitPreviousTokens(group, collector);
+			previousEdgeCount += collector.merge();
+
+			readKey(chain, group, key);
+			for (int i = 0; i < order; i++)
+			{
+				if (isFirstAppearance(key, i))
+				{
+					tokenGroupStarts[key[i] + 1]++;
+				}
+			}
+		}
+
+		for (int token = 0; token < tokenCount; token++)
+		{
+			tokenGroupStarts[token + 1] += tokenGroupStarts[token];
+		}
+
+		if (nextEdgeCount > Integer.MAX_VALUE || previousEdgeCount > Integer.MAX_VALUE)
+		{
+			throw new IOException("The brain has too many edges to be mapped.");
+		}
+
+		long tokenCharCount = 0;
+		for (int token = 0; token < tokenCount; token++)
+		{
+			tokenCharCount += tokenDictionary.getToken(token).length();
+		}
+
+		int indexSize = getIndexSize(groupCount);
+		int tokenIndexSize = getIndexSize(tokenCount);
+
+		// lay the sections out one after another
+		long[] sections = new long[SECTION_COUNT];
+		long length = HEADER_SIZE;
+		length = place(sections, KEYS, length, (long) groupCount * order * 4);
+		length = place(sections, FLAGS, length, groupCount);
+		length = place(sections, NEXT_TOTALS, length, groupCount * 4L);
+		length = place(sections, PREVIOUS_TOTALS, length, groupCount * 4L);
+		length = place(sections, NEXT_STARTS, length, (groupCount + 1) * 4L);
+		length = place(sections, PREVIOUS_STARTS, length, (groupCount + 1) * 4L);
+		length = place(sections, NEXT_EDGES, length, nextEdgeCount * 8);
+		length = place(sections, PREVIOUS_EDGES, length, previousEdgeCount * 8);
+		length = place(sections, INDEX, length, indexSize * 4L);
+		length = place(sections, TOKEN_GROUP_STARTS, length, (tokenCount + 1) * 8L);
+		length = place(sections, TOKEN_GROUPS, length, tokenGroupStarts[tokenCount] * 4);
+		length = place(sections, TOKEN_STARTS, length, (tokenCount + 1) * 8L);
+		length = place(sections, TOKEN_CHARS, length, tokenCharCount * 2);
+		length = place(sections, TOKEN_INDEX, length, tokenIndexSize * 4L);
+
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+		try
+		{
+			// start from a file of zeroes, which the indexes rely on to mean empty
+			randomAccessFile.setLength(0);
+			randomAccessFile.setLength(length);
+
+			MappedFile mapping = new MappedFile(randomAccessFile.getChannel(), FileChannel.MapMode.READ_WRITE, length);
+
+			long nextCursor = 0;
+			long previousCursor = 0;
+			long[] tokenGroupCursors = Arrays.copyOf(tokenGroupStarts, tokenCount);
+			int indexMask = indexSize - 1;
+
+			for (int group = 0; group < sourceGroupCount; group++)
+			{
+				int id = ids[group];
+				if (id == ContextTable.NO_GROUP)
+					continue;
+
+				readKey(chain, group, key);
+				for (int i = 0; i < order; i++)
+				{
+					mapping.putInt(sections[KEYS] + ((long) id * order + i) * 4, key[i]);
+				}
+
+				int flags = (chain.canStart(group) ? ContextTable.FLAG_CAN_START : 0)
+						| (chain.canEnd(group) ? ContextTable.FLAG_CAN_END : 0);
+				mapping.putByte(sections[FLAGS] + id, (byte) flags);
+
+				collector.clear();
+				chain.visitNextTokens(group, collector);
+				nextCursor = collector.write(mapping, sections[NEXT_STARTS], sections[NEXT_EDGES],
+						sections[NEXT_TOTALS], id, nextCursor);
+
+				collector.clear();
+				chain.visitPreviousTokens(group, collector);
+				previousCursor = collector.write(mapping, sections[PREVIOUS_STARTS], sections[PREVIOUS_EDGES],
+						sections[PREVIOUS_TOTALS], id, previousCursor);
+
+				// probe linearly from the slot the hash points at until an empty one is found
+				int slot = ContextTable.hash(key, 0, order) & indexMask;
+				while (mapping.getInt(sections[INDEX] + slot * 4L) != 0)
+				{
+					slot = (slot + 1) & indexMask;
+				}
+				mapping.putInt(sections[INDEX] + slot * 4L, id + 1);
+
+				for (int i = 0; i < order; i++)
+				{
+					if (isFirstAppearance(key, i))
+					{
+						mapping.putInt(sections[TOKEN_GROUPS] + tokenGroupCursors[key[i]]++ * 4, id);
+					}
+				}
+			}
+
+			// the start after the last group's is the end of its edges
+			mapping.putInt(sections[NEXT_STARTS] + groupCount * 4L, (int) nextCursor);
+			mapping.putInt(sections[PREVIOUS_STARTS] + groupCount * 4L, (int) previousCursor);
+
+			for (int token = 0; token <= tokenCount; token++)
+			{
+				mapping.putLong(sections[TOKEN_GROUP_STARTS] + token * 8L, tokenGroupStarts[token]);
+			}
+
+			// write the characters of each token, and index them
+			int tokenIndexMask = tokenIndexSize - 1;
+			long charCursor = 0;
+			for (int token = 0; token < tokenCount; token++)
+			{
+				String string = tokenDictionary.getToken(token);
+
+				mapping.putLong(sections[TOKEN_STARTS] + token * 8L, charCursor);
+				for (int i = 0; i < string.length(); i++)
+				{
+					mapping.putChar(sections[TOKEN_CHARS] + (charCursor + i) * 2, string.charAt(i));
+				}
+				charCursor += string.length();
+
+				int slot = TokenDictionary.hash(string, 0, string.length()) & tokenIndexMask;
+				while (mapping.getInt(sections[TOKEN_INDEX] + slot * 4L) != 0)
+				{
+					slot = (slot + 1) & tokenIndexMask;
+				}
+				mapping.putInt(sections[TOKEN_INDEX] + slot * 4L, token + 1);
+			}
+			mapping.putLong(sections[TOKEN_STARTS] + tokenCount * 8L, charCursor);
+
+			// fill in the header, leaving the magic number until everything else is in place
+			mapping.putInt(HEADER_VERSION, VERSION);
+			mapping.putInt(HEADER_ORDER, order);
+			mapping.putInt(HEADER_GROUP_COUNT, groupCount);
+			mapping.putInt(HEADER_TOKEN_COUNT, tokenCount);
+			mapping.putInt(HEADER_INDEX_SIZE, indexSize);
+			mapping.putInt(HEADER_TOKEN_INDEX_SIZE, tokenIndexSize);
+			mapping.putLong(HEADER_JOURNAL_OFFSET, journalOffset);
+			for (int section = 0; section < SECTION_COUNT; section++)
+			{
+				mapping.putLong(HEADER_SECTIONS + section * 8, sections[section]);
+			}
+			mapping.putInt(HEADER_MAGIC, MAGIC);
+
+			mapping.force();
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the offset of a section out of the header, checking that it is within the file.
+	 */
+	private static long getSection(MappedFile mapping, int section) throws IOException
+	{
+		long offset = mapping.getLong(HEADER_SECTIONS + section * 8);
+		if (offset < HEADER_SIZE || offset > mapping.length())
+		{
+			throw new IOException("The mapped brain is corrupt.");
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Records where a section starts, and works out where the next one can start.
+	 *
+	 * @return The first multiple of 8 bytes after the end of the section
+	 */
+	private static long place(long[] sections, int section, long start, long length)
+	{
+		sections[section] = start;
+		return (start + length + 7) & ~7L;
+	}
+
+	/**
+	 * Gets the amount of slots for a hash index over an amount of entries; the smallest power of two that is at least
+	 * twice the amount, so that the index is at most half full.
+	 */
+	private static int getIndexSize(int entries)
+	{
+		int size = 2;
+		while (size < entries * 2L)
+		{
+			size *= 2;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Copies the tokens of a group into an Array.
+	 */
+	private static void readKey(MarkovChain chain, int group, int[] key)
+	{
+		for (int i = 0; i < key.length; i++)
+		{
+			key[i] = chain.getToken(group, i);
+		}
+	}
+
+	/**
+	 * Whether or not the token at an index of a group does not also appear earlier in the group.
+	 */
+	private static boolean isFirstAppearance(int[] key, int index)
+	{
+		for (int i = 0; i < index; i++)
+		{
+			if (key[i] == key[index])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gathers the tokens seen next to a group, merging any that are visited more than once; FrozenChain gathers them in
+	 * the same way.
+	 */
+	static final class EdgeCollector implements TokenCountVisitor
+	{
+		// each edge as the token in the high half and the count in the low half, so that sorting them sorts by token
+		private long[] edges = new long[16];
+		private int size = 0;
+
+		@Override
+		public void visit(int token, int count)
+		{
+			if (this.size == this.edges.length)
+			{
+				this.edges = Arrays.copyOf(this.edges, this.size * 2);
+			}
+
+			this.edges[this.size++] = ((long) token << 32) | (count & 0xFFFFFFFFL);
+		}
+
+		void clear()
+		{
+			this.size = 0;
+		}
+
+		/**
+		 * Sorts the edges by token and adds together the counts of any token visited more than once.
+		 *
+		 * @return The amount of distinct tokens
+		 */
+		int merge()
+		{
+			Arrays.sort(this.edges, 0, this.size);
+
+			int distinct = 0;
+			for (int i = 0; i < this.size; i++)
+			{
+				long edge = this.edges[i];
+
+				if (distinct > 0 && (this.edges[distinct - 1] >>> 32) == (edge >>> 32))
+				{
+					this.edges[distinct - 1] += edge & 0xFFFFFFFFL;
+				}
+				else
+				{
+					this.edges[distinct++] = edge;
+				}
+			}
+
+			this.size = distinct;
+			return distinct;
+		}
+
+		/**
+		 * Gets the token of one of the edges, which once merged are sorted by token.
+		 */
+		int getToken(int index)
+		{
+			return (int) (this.edges[index] >>> 32);
+		}
+
+		/**
+		 * Gets the count of one of the edges.
+		 */
+		int getCount(int index)
+		{
+			return (int) this.edges[index];
+		}
+
+		/**
+		 * Merges the edges and writes them, along with where they start and their total count, for a group.
+		 *
+		 * @return The index of the edge after the last one written
+		 */
+		long write(MappedFile mapping, long starts, long edges, long totals, int group, long cursor)
+		{
+			this.merge();
+
+			mapping.putInt(starts + group * 4L, (int) cursor);
+
+			long total = 0;
+			for (int i = 0; i < this.size; i++)
+			{
+				int count = (int) this.edges[i];
+
+				mapping.putInt(edges + cursor * 8, (int) (this.edges[i] >>> 32));
+				mapping.putInt(edges + cursor * 8 + 4, count);
+				cursor++;
+				total += count;
+			}
+
+			mapping.putInt(totals + group * 4L, (int) Math.min(total, Integer.MAX_VALUE));
+
+			return cursor;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.hoolean.chester;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped into memory, addressed by long byte offsets.
+ *
+ * A single MappedByteBuffer can cover at most 2GB, so the file is mapped as a row of 1GB chunks. Values are only ever
+ * read or written at offsets that are a multiple of their own size, and the chunk size is a multiple of every value
+ * size, so no value ever straddles two chunks.
+ *
+ * Reads and writes are absolute and never touch the buffers' positions, so any amount of threads may read at once.
+ */
+final class MappedFile
+{
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The mapped chunks, in order.
+	 */
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * The length of the file, in bytes.
+	 */
+	private final long length;
+
+	/**
+	 * Maps the first part of a file. The mapping stays valid once the channel has been closed.
+	 *
+	 * @param channel The channel to the file
+	 * @param mode Whether the mapping can be written to
+	 * @param length The amount of bytes to map, which must not be more than the length of the file
+	 * @throws IOException If the file could not be mapped
+	 */
+	MappedFile(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException
+	{
+		this.length = length;
+		this.chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+
+		for (int i = 0; i < this.chunks.length; i++)
+		{
+			long start = (long) i << CHUNK_SHIFT;
+			this.chunks[i] = channel.map(mode, start, Math.min(CHUNK_SIZE, length - start));
+		}
+	}
+
+	/**
+	 * Gets the amount of bytes mapped.
+	 *
+	 * @return The length, in bytes
+	 */
+	long length()
+	{
+		return this.length;
+	}
+
+	byte getByte(long position)
+	{
+		return this.chunks[(int) (position >>> CHUNK_SHIFT)].get((int) (position & CHUNK_MASK));
+	}
+
+	char getChar(long position)
+	{
+		return this.chunks[(int) (position >>> CHUNK_SHIFT)].getChar((int) (position & CHUNK_MASK));
+	}
+
+	int getInt(long position)
+	{
+		return this.chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & CHUNK_MASK));
+	}
+
+	long getLong(long position)
+	{
+		return this.chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK));
+	}
+
+	void putByte(long position, byte value)
+	{
+		this.chunks[(int) (position >>> CHUNK_SHIFT)].put((int) (position & CHUNK_MASK), value);
+	}
+
+	void putChar(long position, char value)
+	{
+		this.chunks[(int) (position >>> CHUNK_SHIFT)].putChar((int) (position & CHUNK_MASK), value);
+	}
+
+	void putInt(long position, int value)
+	{
+		this.chunks[(int) (position >>> CHUNK_SHIFT)].putInt((int) (position & CHUNK_MASK), value);
+	}
+
+	void putLong(long position, long value)
+	{
+		this.chunks[(int) (position >>> CHUNK_SHIFT)].putLong((int) (position & CHUNK_MASK), value);
+	}
+
+	/**
+	 * Forces everything written to the mapping onto the disk.
+	 */
+	void force()
+	{
+		for (MappedByteBuffer chunk : this.chunks)
+		{
+			chunk.force();
+		}
+	}
+}
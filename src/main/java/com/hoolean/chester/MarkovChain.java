@@ -0,0 +1,183 @@
+package com.hoolean.chester;
+
+import java.util.Random;
+
+/**
+ * A read-only view of everything MegaHal has learnt; the TokenGroups, whether each can start or end a message, and the
+ * tokens seen directly before and after each one. Replies are built by walking a view, which may be any amount of
+ * threads at once.
+ *
+ * Groups are referred to by int ids, from 0 up to but excluding getGroupCount(), and tokens by the ids their
+ * TokenDictionary gave them.
+ */
+interface MarkovChain
+{
+	/**
+	 * Receives the tokens seen next to a group, along with how many times each was seen.
+	 */
+	interface TokenCountVisitor
+	{
+		/**
+		 * Receives a token seen next to a group. The same token may be received more than once for the same group, in
+		 * which case the counts should be added together.
+		 *
+		 * @param token The id of the token
+		 * @param count The amount of times the token was seen
+		 */
+		void visit(int token, int count);
+	}
+
+	/**
+	 * Gets the amount of tokens in each group.
+	 *
+	 * @return The amount of tokens in each group
+	 */
+	int getOrder();
+
+	/**
+	 * Gets the amount of group ids; every number from 0 up to but excluding this value is the id of a group, so a
+	 * random group can be picked by picking a random number in that range.
+	 *
+	 * @return The amount of group ids
+	 */
+	int getGroupCount();
+
+	/**
+	 * Finds the id of the group made up of a run of tokens.
+	 *
+	 * @param tokens An Array containing the ids of the tokens
+	 * @param offset The index of the first token of the group in the Array
+	 * @return The id of the group, else ContextTable.NO_GROUP if the run of tokens has not been learnt
+	 */
+	int findGroup(int[] tokens, int offset);
+
+	/**
+	 * Gets the id of the token at a specified index in a group.
+	 *
+	 * @param group The id of the group
+	 * @param index The index of the token in the group
+	 * @return The id of the token
+	 */
+	int getToken(int group, int index);
+
+	/**
+	 * Gets whether or not a group can start a message.
+	 *
+	 * @param group The id of the group
+	 * @return True if the group can start a message, else False
+	 */
+	boolean canStart(int group);
+
+	/**
+	 * Gets whether or not a group can end a message.
+	 *
+	 * @param group The id of the group
+	 * @return True if the group can end a message, else False
+	 */
+	boolean canEnd(int group);
+
+	/**
+	 * Draws one of the tokens seen directly after a group at random, weighted by how often each was seen. At least
+	 * one token must have been seen after the group.
+	 *
+	 * @param group The id of the group
+	 * @param random The source of randomness
+	 * @return The id of the token drawn
+	 */
+	int sampleNextToken(int group, Random random);
+
+	/**
+	 * Draws one of the tokens seen directly before a group at random, weighted by how often each was seen. At least
+	 * one token must have been seen before the group.
+	 *
+	 * @param group The id of the group
+	 * @param random The source of randomness
+	 * @return The id of the token drawn
+	 */
+	int samplePreviousToken(int group, Random random);
+
+	/**
+	 * Gets the observed probability of a token coming directly after a group.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @return The probability, which is 0 if the token has never been seen after the group
+	 */
+	double getNextProbability(int group, int token);
+
+	/**
+	 * Gets the observed probability of a token coming directly before a group.
+	 *
+	 * @param group The id of the group
+	 * @param token The id of the token
+	 * @return The probability, which is 0 if the token has never been seen before the group
+	 */
+	double getPreviousProbability(int group, int token);
+
+	/**
+	 * Gets the amount of times any token has been seen directly after a group.
+	 *
+	 * @param group The id of the group
+	 * @return The total count
+	 */
+	long getNextTotal(int group);
+
+	/**
+	 * Gets the amount of times any token has been seen directly before a group.
+	 *
+	 * @param group The id of the group
+	 * @return The total count
+	 */
+	long getPreviousTotal(int group);
+
+	/**
+	 * Gets the amount of groups that a token is in.
+	 *
+	 * @param token The id of the token, or TokenDictionary.UNKNOWN_TOKEN
+	 * @return The amount of groups, which is 0 if the token is unknown
+	 */
+	int getTokenGroupCount(int token);
+
+	/**
+	 * Gets one of the groups that a token is in.
+	 *
+	 * @param token The id of the token
+	 * @param index The index of the group, from 0 up to but excluding getTokenGroupCount(token)
+	 * @return The id of the group
+	 */
+	int getTokenGroup(int token, int index);
+
+	/**
+	 * Whether or not a group id only refers to part of a group that also has another id. Everything about such a group
+	 * is included when the other id is visited, so it should be skipped when going through every group once.
+	 *
+	 * @param group The id of the group
+	 * @return True if the id should be skipped, else False
+	 */
+	boolean isAlias(int group);
+
+	/**
+	 * Passes every token seen directly after a group, with its count, to a visitor.
+	 *
+	 * @param group The id of the group
+	 * @param visitor The visitor
+	 */
+	void visitNextTokens(int group, TokenCountVisitor visitor);
+
+	/**
+	 * Passes every token seen directly before a group, with its count, to a visitor.
+	 *
+	 * @param group The id of the group
+	 * @param visitor The visitor
+	 */
+	void visitPreviousTokens(int group, TokenCountVisitor visitor);
+
+	/**
+	 * Gets the lower order contexts to back off to when a walk reaches a run of tokens that has not been learnt as a
+	 * group, or that nothing has been seen after (or before). Each is a run of fewer tokens than the order, padded out
+	 * at the start with ContextTable.PAD, so they are looked up in the same way as groups.
+	 *
+	 * @return The lower order contexts, else null if there are none to back off to
+	 */
+	MarkovChain getLowerOrders();
+}
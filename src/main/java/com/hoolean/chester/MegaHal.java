@@ -1,6 +1,17 @@
 package com.hoolean.chester;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An implementation of the MegaHal AI algorithm, with strong influence from the JMegaHal and JSMegaHal implementations.
@@ -8,219 +19,1221 @@ import java.util.*;
 public class MegaHal
 {
 	/**
-	 * A class to hold groups of String tokens and metadata about the group.
+	 * A reply found while searching for the best reply, along with its score.
 	 */
-	private class TokenGroup
+	private static class Candidate
 	{
-		// the String tokens in the group
-		private final String[] tokens;
+		// the reply
+		private final String message;
 
-		// a hash code based on the four hash codes of each String; collisions are possible
-		private final int hashCode;
+		// how surprising the reply is with regards to the keywords it was searched for with
+		private final double surprise;
 
-		// whether or not the group can start a message
-		private boolean canStart = false;
-		// whether or not the group can end a message
-		private boolean canEnd = false;
+		// whether or not the walk that built the reply reached both a start and an end, rather than being cut short
+		private final boolean complete;
 
 		/**
-		 * Instantiates a TokenGroup Object with the specified tokens to be in the group. By default, the metadata is
-		 * set to suggest that the TokenGroup cannot end or begin a message.
+		 * Instantiates a Candidate for a reply.
 		 *
-		 * @param tokens The tokens to populate the TokenGroup, as an Array of the length specified by the Markov length
+		 * @param message The reply
+		 * @param surprise The surprise of the reply
+		 * @param complete Whether or not the reply is whole
 		 */
-		public TokenGroup(String... tokens)
+		public Candidate(String message, double surprise, boolean complete)
 		{
-			// store the tokens
-			this.tokens = tokens;
+			this.message = message;
+			this.surprise = surprise;
+			this.complete = complete;
+		}
+
+		/**
+		 * Whether or not this is a better reply than another; a whole reply is always better than one that was cut
+		 * short, and otherwise the more surprising is better.
+		 *
+		 * @param other The other reply, or null if there is none
+		 * @return True if this is better, else False
+		 */
+		public boolean isBetterThan(Candidate other)
+		{
+			return isBetter(this.complete, this.surprise, other);
+		}
+
+		/**
+		 * Whether or not a reply is better than another; see isBetterThan.
+		 */
+		private static boolean isBetter(boolean complete, double surprise, Candidate other)
+		{
+			if (other == null)
+			{
+				return true;
+			}
 
-			// generate a hash code based on the values of the hashCode() of each of the tokens
-			int hashCode = 0;
-			for (String token : tokens)
+			if (complete != other.complete)
 			{
-				hashCode += token.hashCode();
+				return complete;
 			}
 
-			// store this generated hash code
-			this.hashCode = hashCode;
+			return surprise > other.surprise;
 		}
+	}
+
+	/**
+	 * Repeatedly generates replies around random keywords until a deadline passes, keeping the most surprising one.
+	 * Several of these are run at once across the reply pool; each uses the ReplyGenerator belonging to the thread it
+	 * runs on, and so allocates nothing unless it finds a better reply than it had.
+	 */
+	private class CandidateSearch implements Callable<Candidate>
+	{
+		// the published Markov chain to build replies from; all searches for one reply share the same one
+		private final MarkovChain chain;
+
+		// the ids of the keywords to build replies around, sorted
+		private final int[] keywords;
+
+		// the ids of the tokens of the message being replied to, which the reply should not just repeat; may be null
+		private final int[] input;
+
+		// the System.nanoTime() after which no new replies should be generated
+		private final long deadline;
 
 		/**
-		 * Set whether or not the TokenGroup can start a message.
+		 * Instantiates a CandidateSearch.
 		 *
-		 * @param canStart True if the TokenGroup can start a message, else False
+		 * @param chain The published Markov chain to build replies from
+		 * @param keywords The ids of the keywords, sorted; if empty, replies are built around random TokenGroups
+		 * @param input The ids of the tokens of the message being replied to, or null if there is none
+		 * @param deadline The System.nanoTime() after which no new replies should be generated
 		 */
-		public void setCanStart(boolean canStart)
+		public CandidateSearch(MarkovChain chain, int[] keywords, int[] input, long deadline)
 		{
-			this.canStart = canStart;
+			this.chain = chain;
+			this.keywords = keywords;
+			this.input = input;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Candidate call()
+		{
+			ReplyGenerator generator = REPLY_GENERATORS.get();
+			Random random = ThreadLocalRandom.current();
+
+			Candidate best = null;
+
+			// always generate at least one reply, even if the deadline has already passed
+			do
+			{
+				best = this.generate(generator, random, best);
+			}
+			// compare by subtracting, as nanoTime() may overflow
+			while (System.nanoTime() - this.deadline < 0);
+
+			return best;
 		}
 
 		/**
-		 * Set whether or not the TokenGroup can end a message.
+		 * Generates a single reply, without regard to the deadline.
 		 *
-		 * @param canEnd True if the TokenGroup can end a message, else False
+		 * @return The reply
 		 */
-		public void setCanEnd(boolean canEnd)
+		public Candidate first()
 		{
-			this.canEnd = canEnd;
+			return this.generate(REPLY_GENERATORS.get(), ThreadLocalRandom.current(), null);
 		}
 
 		/**
-		 * Gets whether or not the TokenGroup can start a message.
+		 * Generates a reply, and keeps it if it is better than the best one so far.
 		 *
-		 * @return True if the TokenGroup can start a message, else False
+		 * @param generator The ReplyGenerator belonging to the current thread
+		 * @param random The Random belonging to the current thread
+		 * @param best The best reply so far, or null if there is none
+		 * @return The better of the reply and the best one so far
 		 */
-		public boolean canStart()
+		private Candidate generate(ReplyGenerator generator, Random random, Candidate best)
+		{
+			int maxReplyLength = MegaHal.this.maxReplyLength;
+			long maxWalkTime = TimeUnit.MILLISECONDS.toNanos(MegaHal.this.maxWalkTime);
+
+			// build the reply around a TokenGroup with a random keyword in, or if the keyword was only ever seen in
+			// messages too short to make a TokenGroup, around a lower order context with it in
+			int keyword = this.keywords.length == 0 ? TokenDictionary.UNKNOWN_TOKEN
+					: this.keywords[random.nextInt(this.keywords.length)];
+			MarkovChain middleChain = keyword == TokenDictionary.UNKNOWN_TOKEN
+					|| this.chain.getTokenGroupCount(keyword) > 0 ? this.chain : this.chain.getLowerOrders();
+
+			ReplyGenerator.Outcome outcome = generator.walk(this.chain, middleChain,
+					pickMiddleGroup(middleChain, keyword, random), random, maxReplyLength,
+					System.nanoTime() + maxWalkTime);
+
+			double surprise;
+			try
+			{
+				// a reply that only parrots the message being replied to is only better than nothing at all
+				if (this.input != null && generator.isSameAs(this.input))
+				{
+					surprise = Double.NEGATIVE_INFINITY;
+				}
+				else
+				{
+					surprise = generator.getSurprise(this.keywords);
+				}
+			}
+			finally
+			{
+				// the generator outlives this brain on the thread, so must not keep its chain reachable
+				generator.release();
+			}
+
+			MegaHal.this.candidateCount.increment();
+			MegaHal.this.walkLengths.record(generator.getLength());
+			MegaHal.this.backoffCount.add(generator.getBackoffCount());
+			MegaHal.this.countOutcome(outcome);
+
+			// only turn the reply into a String if it is the best so far
+			boolean complete = outcome == ReplyGenerator.Outcome.COMPLETE;
+			if (Candidate.isBetter(complete, surprise, best))
+			{
+				return new Candidate(generator.toMessage(MegaHal.this.tokenDictionary), surprise, complete);
+			}
+
+			return best;
+		}
+	}
+
+	/**
+	 * The default amount of Tokens in each TokenGroup.
+	 */
+	public static final int DEFAULT_MARKOV_LENGTH = 4;
+
+	/**
+	 * The default amount of time, in milliseconds, spent searching for the best reply to a message.
+	 */
+	public static final long DEFAULT_REPLY_TIME_BUDGET = 250;
+
+	/**
+	 * The default greatest amount of tokens in a reply.
+	 */
+	public static final int DEFAULT_MAX_REPLY_LENGTH = 200;
+
+	/**
+	 * The default longest amount of time, in milliseconds, spent building any one candidate reply.
+	 */
+	public static final long DEFAULT_MAX_WALK_TIME = 50;
+
+	/**
+	 * The default fraction of each count kept each time the brain is pruned.
+	 */
+	public static final double DEFAULT_PRUNE_DECAY = 0.5;
+
+	/**
+	 * The default amount of lower orders learnt and backed off to; none, so that a brain costs no more to learn and
+	 * keep than its TokenGroups do unless asked to.
+	 */
+	public static final int DEFAULT_BACKOFF_ORDERS = 0;
+
+	/**
+	 * The fraction of the memory budget that the brain is pruned down to once it grows past it; pruning down to less
+	 * than the whole budget leaves room to learn before it has to be pruned again.
+	 */
+	private static final double PRUNE_TARGET = 0.75;
+
+	/**
+	 * The thread that brains are pruned on, one at a time, so that learning never waits for pruning and no more than
+	 * one brain at a time holds both the table it is pruning and the pruned copy; it is a daemon, as a brain is never
+	 * closed without waiting for its pruning to finish.
+	 */
+	private static final ExecutorService PRUNER = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "Chester brain pruner");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Builds messages by walking the chains of brains, one for each thread that generates replies, whichever brains it
+	 * replies with; each reuses its buffers between messages, so that replying does not create garbage. Being shared
+	 * between brains, a generator is released after each walk, so that a thread of the reply pool, which outlives any
+	 * one brain, never keeps a brain's chain reachable once it has been closed.
+	 */
+	private static final ThreadLocal<ReplyGenerator> REPLY_GENERATORS = new ThreadLocal<ReplyGenerator>()
+	{
+		@Override
+		protected ReplyGenerator initialValue()
+		{
+			return new ReplyGenerator();
+		}
+	};
+
+	/**
+	 * Assigns every token an int id; the context table refers to tokens by these ids, so that each String is only
+	 * stored once.
+	 */
+	private final TokenDictionary tokenDictionary;
+
+	/**
+	 * Stores every TokenGroup along with the tokens that have occurred directly before and after it in observed
+	 * messages, and the TokenGroups that each token is in.
+	 *
+	 * Groups are referred to by int ids handed out by the table; the run of tokens making up a group is only ever
+	 * stored once, so when metadata (such as canStart and canEnd) is changed, the change is global to all similar
+	 * TokenGroups.
+	 *
+	 * Only one thread may change the table at a time, which the learn lock ensures. Replies are built from the
+	 * chains it publishes, so never have to wait for learning. If the instance was created from a MappedChain, or has
+	 * been frozen, the table only holds what has been learnt since, and the chains it publishes read both together.
+	 * Freezing replaces the table with an empty one, while holding the learn lock. While the brain is being pruned, the
+	 * table learns on top of the one being pruned in the same way, and is merged into it once it has been pruned.
+	 */
+	private volatile ContextTable contextTable;
+
+	/**
+	 * The table that is being pruned, which the context table learns on top of until it has been, else null; only
+	 * changed while holding the learn lock.
+	 */
+	private volatile ContextTable pruningTable;
+
+	/**
+	 * The chain that the context table learns on top of, or null if the instance was not created from one.
+	 */
+	private final MappedChain mappedChain;
+
+	/**
+	 * Everything learnt up to the last time the instance was frozen, which the context table learns on top of; or null
+	 * if it has never been frozen.
+	 */
+	private volatile FrozenChain frozenChain;
+
+	/**
+	 * Breaks messages into tokens, one for each thread that learns or replies; each reuses its buffer between messages.
+	 */
+	private final ThreadLocal<Tokenizer> tokenizers = new ThreadLocal<Tokenizer>()
+	{
+		@Override
+		protected Tokenizer initialValue()
+		{
+			return new Tokenizer(MegaHal.this.tokenDictionary);
+		}
+	};
+
+	/**
+	 * Held while changing the context table, which allows only one writer at a time. Breaking messages into tokens and
+	 * interning them happens beforehand without it, so threads learning at once only queue for the table updates
+	 * themselves.
+	 */
+	private final ReentrantLock learnLock = new ReentrantLock();
+
+	/**
+	 * Held while pruning, which takes the learn lock only to swap the pruned table in; anything that needs the whole
+	 * brain in one table, such as writing a snapshot, takes this before the learn lock, and so waits for pruning to
+	 * finish, then calls off any pruning that has been set aside but not yet started.
+	 */
+	private final ReentrantLock pruneLock = new ReentrantLock();
+
+	/**
+	 * The pool that candidate replies are generated across.
+	 */
+	private volatile ForkJoinPool replyPool = ForkJoinPool.commonPool();
+
+	/**
+	 * The amount of searches for candidate replies that each reply starts on the reply pool.
+	 */
+	private volatile int replySearchCount = ForkJoinPool.commonPool().getParallelism();
+
+	/**
+	 * The amount of time, in milliseconds, spent searching for the best reply to a message.
+	 */
+	private volatile long replyTimeBudget = DEFAULT_REPLY_TIME_BUDGET;
+
+	/**
+	 * The greatest amount of tokens in a reply; walks of the chain that would build a longer reply are cut short.
+	 */
+	private volatile int maxReplyLength = DEFAULT_MAX_REPLY_LENGTH;
+
+	/**
+	 * The longest amount of time, in milliseconds, spent building any one candidate reply.
+	 */
+	private volatile long maxWalkTime = DEFAULT_MAX_WALK_TIME;
+
+	/**
+	 * The amount of bytes, as estimated by the context table, that the brain may grow to before it is pruned; 0 if it
+	 * may grow without bound.
+	 */
+	private volatile long memoryBudget = 0;
+
+	/**
+	 * The fraction of each count kept each time the brain is pruned.
+	 */
+	private volatile double pruneDecay = DEFAULT_PRUNE_DECAY;
+
+	/**
+	 * The amount of lower orders learnt, counting down from one token fewer than the Markov length; only changed while
+	 * holding the learn lock.
+	 */
+	private volatile int backoffOrders = DEFAULT_BACKOFF_ORDERS;
+
+	/**
+	 * The chain the instance was created from, if it has no lower orders and they have yet to be worked out from it;
+	 * else null. Guarded by the learn lock.
+	 */
+	private MarkovChain underivedChain;
+
+	// metrics about learning and replying, which are kept whether or not they are registered anywhere
+	private final Metrics.Counter learntCount = new Metrics.Counter();
+	private final Metrics.Counter replyCount = new Metrics.Counter();
+	private final Metrics.Counter candidateCount = new Metrics.Counter();
+	private final Metrics.Histogram replyTimes = Metrics.Histogram.nanoseconds();
+	private final Metrics.Histogram walkLengths = Metrics.Histogram.amounts();
+	private final Metrics.Counter deadEndCount = new Metrics.Counter();
+	private final Metrics.Counter lengthLimitCount = new Metrics.Counter();
+	private final Metrics.Counter timeLimitCount = new Metrics.Counter();
+	private final Metrics.Counter backoffCount = new Metrics.Counter();
+	private final Metrics.Counter fallbackCount = new Metrics.Counter();
+	private final Metrics.Counter pruneCount = new Metrics.Counter();
+	private final Metrics.Counter prunedGroupCount = new Metrics.Counter();
+	private final Metrics.Counter prunedEdgeCount = new Metrics.Counter();
+	private final Metrics.Counter pruneFailureCount = new Metrics.Counter();
+	private final Metrics.Histogram pruneTimes = Metrics.Histogram.nanoseconds();
+	private final Metrics.Histogram freezeTimes = Metrics.Histogram.nanoseconds();
+
+	/**
+	 * The Markov length; when tokens are grouped into TokenGroups, the TokenGroups are of this length.
+	 */
+	private final int markovLength;
+
+	/**
+	 * Create a MegaHal instance with the default Markov length of 4.
+	 */
+	public MegaHal()
+	{
+		this(DEFAULT_MARKOV_LENGTH);
+	}
+
+	/**
+	 * Create a MegaHal instance with a specified Markov length;
+	 *
+	 * @param markovLength The specified Markov length; see variable annotations for a better description.
+	 */
+	public MegaHal(int markovLength)
+	{
+		this(markovLength, new TokenDictionary());
+	}
+
+	/**
+	 * Create a MegaHal instance with a specified Markov length, that gives tokens the ids of a dictionary that may be
+	 * shared with other instances; each token is then only stored once, however many instances know it.
+	 *
+	 * @param markovLength The specified Markov length; see variable annotations for a better description.
+	 * @param tokenDictionary The dictionary
+	 */
+	MegaHal(int markovLength, TokenDictionary tokenDictionary)
+	{
+		this.markovLength = markovLength;
+		this.mappedChain = null;
+		this.tokenDictionary = tokenDictionary;
+		this.contextTable = new ContextTable(markovLength);
+	}
+
+	/**
+	 * Create a MegaHal instance that already knows everything stored in a snapshot; the Markov length is that of the
+	 * snapshot. If the brain was frozen when the snapshot was written, the instance is frozen too.
+	 *
+	 * @param snapshot The snapshot, which should not be given to another instance
+	 */
+	public MegaHal(BrainSnapshot snapshot)
+	{
+		this.markovLength = snapshot.getMarkovLength();
+		this.mappedChain = null;
+		this.frozenChain = snapshot.getFrozenChain();
+		this.tokenDictionary = snapshot.getTokenDictionary();
+		this.contextTable = snapshot.getContextTable();
+
+		// a snapshot written before there were lower orders, or by a brain that learnt none, has none to back off to
+		MarkovChain chain = this.contextTable.getSnapshot();
+		MarkovChain lowerOrders = chain.getLowerOrders();
+		this.underivedChain = lowerOrders == null || lowerOrders.getGroupCount() == 0 ? chain : null;
+	}
+
+	/**
+	 * Create a MegaHal instance that reads everything stored in a MappedChain in place, and learns on top of it; the
+	 * Markov length is that of the chain. The lower orders, which are not mapped, are worked out from the chain and
+	 * kept on the heap if any are backed off to; see setBackoffOrders().
+	 *
+	 * @param mappedChain The chain
+	 */
+	public MegaHal(MappedChain mappedChain)
+	{
+		this.markovLength = mappedChain.getOrder();
+		this.mappedChain = mappedChain;
+		this.tokenDictionary = new TokenDictionary(mappedChain);
+		this.contextTable = new ContextTable(this.markovLength, mappedChain);
+		this.underivedChain = mappedChain;
+	}
+
+	/**
+	 * Writes everything learnt so far to a snapshot file, from which a new instance can be created much faster than it
+	 * could relearn every message. An instance created from a MappedChain writes a new MappedChain, including both the
+	 * old chain and what has been learnt since; any other writes a BrainSnapshot. A frozen instance is frozen again
+	 * first, so that what it learns on the heap never grows for longer than between two snapshots, and the snapshot
+	 * holds just the frozen chain. Learning waits until the snapshot has been written, but replies carry on as usual.
+	 * If the brain is being pruned, the snapshot is only written once it has been; see tryWriteSnapshot() for a
+	 * snapshot that should not wait.
+	 *
+	 * @param file The file to write the snapshot to
+	 * @param journalOffset The offset into the brain journal up to which every message has been learnt, from which
+	 *                      messages will need to be replayed on top of the snapshot
+	 * @throws IOException If the file could not be written
+	 */
+	public void writeSnapshot(File file, long journalOffset) throws IOException
+	{
+		if (this.mappedChain != null)
+		{
+			this.writeMappedChain(file, journalOffset);
+			return;
+		}
+
+		this.pruneLock.lock();
+		try
+		{
+			this.writeBrainSnapshot(file, journalOffset);
+		}
+		finally
+		{
+			this.pruneLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything learnt so far to a snapshot file, as writeSnapshot() does, unless the brain is being pruned;
+	 * rather than wait for pruning to finish, which can take far longer than writing the snapshot, nothing is written.
+	 * This is for snapshots written between learning messages, so that learning never waits for pruning.
+	 *
+	 * @param file The file to write the snapshot to
+	 * @param journalOffset The offset into the brain journal up to which every message has been learnt, from which
+	 *                      messages will need to be replayed on top of the snapshot
+	 * @return True if the snapshot was written, else False if the brain is being pruned and it should be tried again
+	 *         later
+	 * @throws IOException If the file could not be written
+	 */
+	public boolean tryWriteSnapshot(File file, long journalOffset) throws IOException
+	{
+		if (this.mappedChain != null)
+		{
+			this.writeMappedChain(file, journalOffset);
+			return true;
+		}
+
+		if (!this.pruneLock.tryLock())
+			return false;
+
+		try
+		{
+			this.writeBrainSnapshot(file, journalOffset);
+			return true;
+		}
+		finally
+		{
+			this.pruneLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything learnt so far to a BrainSnapshot; see writeSnapshot(). The prune lock must be held.
+	 */
+	private void writeBrainSnapshot(File file, long journalOffset) throws IOException
+	{
+		this.learnLock.lock();
+		try
+		{
+			// a pruning that has been set aside but not yet started would leave the brain split across two tables, which
+			// a snapshot cannot hold, so call it off; the brain is set aside again the next time anything is learnt
+			if (this.pruningTable != null)
+			{
+				this.restorePruningTable();
+			}
+
+			// there is nothing to fold in if nothing has been learnt since the last time
+			if (this.frozenChain != null && (this.contextTable.getGroupCount() > 0
+					|| this.contextTable.getLowerOrders().getGroupCount() > 0))
+			{
+				this.freezeLocked();
+			}
+
+			BrainSnapshot.write(file, this.markovLength, journalOffset, this.tokenDictionary, this.frozenChain,
+					this.contextTable);
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything learnt so far to a file that can be opened as a MappedChain. Learning waits until the file has
+	 * been written, but replies carry on as usual.
+	 *
+	 * @param file The file to write the chain to
+	 * @param journalOffset The offset into the brain journal up to which every message has been learnt, from which
+	 *                      messages will need to be replayed on top of the chain
+	 * @throws IOException If the file could not be written
+	 */
+	public void writeMappedChain(File file, long journalOffset) throws IOException
+	{
+		this.learnLock.lock();
+		try
+		{
+			// everything learnt has been published by the time the lock is released, so the chain is up to date
+			MappedChain.write(file, journalOffset, this.tokenDictionary, this.contextTable.getChain());
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the chain that the instance was created from and learns on top of.
+	 *
+	 * @return The chain, else null if the instance was not created from a MappedChain
+	 */
+	public MappedChain getMappedChain()
+	{
+		return this.mappedChain;
+	}
+
+	/**
+	 * Freezes everything learnt so far into a FrozenChain: a compact, immutable form of the brain that replies are
+	 * built from directly, taking up several times less of the heap than the context table it replaces. What is learnt
+	 * from then on goes into a new, empty context table on top of it, which is read together with it just as a mapped
+	 * chain is; freezing again folds that table into a new frozen chain.
+	 *
+	 * Building the frozen chain takes a pass over everything learnt, during which learning waits, but replies carry on
+	 * being built from the chain as it was; both it and the old table are held until the old chains are let go of. A
+	 * frozen brain cannot be pruned, as what it has frozen cannot be forgotten piece by piece.
+	 *
+	 * @throws IllegalStateException If the instance was created from a MappedChain, which is compact already, or has a
+	 *                               memory budget
+	 */
+	public void freeze()
+	{
+		if (this.mappedChain != null)
+			throw new IllegalStateException("A brain read from a mapped chain cannot be frozen.");
+
+		if (this.memoryBudget > 0)
+			throw new IllegalStateException("A brain with a memory budget cannot be frozen.");
+
+		// a budget that has just been taken away may have left a pruning to finish
+		this.pruneLock.lock();
+		this.learnLock.lock();
+		try
+		{
+			if (this.pruningTable != null)
+			{
+				this.restorePruningTable();
+			}
+
+			this.freezeLocked();
+		}
+		finally
 		{
-			return this.canStart;
+			this.learnLock.unlock();
+			this.pruneLock.unlock();
 		}
+	}
+
+	/**
+	 * Freezes everything learnt so far; see freeze(). The learn lock must be held.
+	 */
+	private void freezeLocked()
+	{
+		long startTime = System.nanoTime();
+
+		// everything learnt has been published by the time the lock is taken, so the chain is up to date
+		FrozenChain frozenChain = FrozenChain.freeze(this.contextTable.getChain());
+
+		// the new table publishes a chain over the frozen one as it is created, so replies move straight on to it
+		this.contextTable = new ContextTable(this.markovLength, frozenChain);
+		this.frozenChain = frozenChain;
+
+		this.freezeTimes.record(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Gets the chain that the instance was last frozen into, and learns on top of.
+	 *
+	 * @return The chain, else null if the instance has never been frozen
+	 */
+	FrozenChain getFrozenChain()
+	{
+		return this.frozenChain;
+	}
+
+	/**
+	 * Whether or not the instance has been frozen, and so learns on top of a FrozenChain.
+	 *
+	 * @return True if it has been frozen, else False
+	 */
+	public boolean isFrozen()
+	{
+		return this.frozenChain != null;
+	}
+
+	/**
+	 * Sets the pool that candidate replies are generated across, and the amount of searches each reply starts on it. If
+	 * several replies may be built at once, each should start no more searches than its share of the pool's threads, or
+	 * one reply's searches queue behind another's and use up its time budget waiting. By default the common ForkJoinPool
+	 * is used, and a search is started on each of its threads.
+	 *
+	 * @param replyPool The pool to use
+	 * @param searchCount The amount of searches each reply starts
+	 * @throws IllegalArgumentException If the amount of searches is less than 1
+	 */
+	public void setReplyPool(ForkJoinPool replyPool, int searchCount)
+	{
+		if (searchCount < 1)
+			throw new IllegalArgumentException("A reply must start at least one search.");
+
+		this.replyPool = replyPool;
+		this.replySearchCount = searchCount;
+	}
+
+	/**
+	 * Sets the amount of time spent searching for the best reply to a message; the longer the search, the more
+	 * candidate replies there are to choose from. At least one candidate is always generated on each thread, however
+	 * small the budget.
+	 *
+	 * @param replyTimeBudget The amount of time, in milliseconds
+	 */
+	public void setReplyTimeBudget(long replyTimeBudget)
+	{
+		this.replyTimeBudget = replyTimeBudget;
+	}
+
+	/**
+	 * Sets the greatest amount of tokens in a reply. Walks of the chain that would build a longer reply are cut short,
+	 * and such replies are only used if no whole reply is found in time.
+	 *
+	 * @param maxReplyLength The amount of tokens
+	 */
+	public void setMaxReplyLength(int maxReplyLength)
+	{
+		this.maxReplyLength = maxReplyLength;
+	}
+
+	/**
+	 * Sets the longest amount of time spent building any one candidate reply; the walk of the chain building it is cut
+	 * short once this passes. As the last candidate is always started within the reply time budget, no reply takes
+	 * much longer than the budget and this together.
+	 *
+	 * @param maxWalkTime The amount of time, in milliseconds
+	 */
+	public void setMaxWalkTime(long maxWalkTime)
+	{
+		this.maxWalkTime = maxWalkTime;
+	}
+
+	/**
+	 * Bounds how much memory the brain may use. Whenever learning takes the context table's estimate of its size past
+	 * the budget, the table is pruned, decaying every count and forgetting what has been seen least, until it is back
+	 * under three quarters of the budget. This happens on a thread of its own, shared by every instance: the table is
+	 * set aside and pruned there, while what is learnt meanwhile goes into a new table on top of it, and replies are
+	 * built from both together. Once it has been pruned, the new table is merged into it, and it takes the place of
+	 * both; only this takes the learn lock, and takes about as long as learning what was learnt meanwhile did.
+	 *
+	 * Tokens are never forgotten, and are not counted in the estimate; the heap used by the brain may be up to around
+	 * twice the estimate, and more again while pruning, as the table is copied, and as the brain may grow past its
+	 * budget until the pruning is done.
+	 *
+	 * @param memoryBudget The amount of bytes, or 0 to let the brain grow without bound
+	 * @throws IllegalStateException If a budget is given and the instance was created from a MappedChain, or has been
+	 *                               frozen, as the groups of either cannot be forgotten
+	 */
+	public void setMemoryBudget(long memoryBudget)
+	{
+		if (memoryBudget > 0 && this.mappedChain != null)
+			throw new IllegalStateException("The memory used by a brain read from a mapped chain cannot be bounded.");
+
+		if (memoryBudget > 0 && this.frozenChain != null)
+			throw new IllegalStateException("The memory used by a frozen brain cannot be bounded.");
+
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the fraction of each count kept each time the brain is pruned to keep within its memory budget. The lower the
+	 * fraction, the more is forgotten each time, and the less often the brain needs pruning.
+	 *
+	 * @param pruneDecay The fraction, greater than 0 and less than 1
+	 * @throws IllegalArgumentException If the fraction is not greater than 0 and less than 1
+	 */
+	public void setPruneDecay(double pruneDecay)
+	{
+		if (!(pruneDecay > 0 && pruneDecay < 1))
+			throw new IllegalArgumentException(String.format("The prune decay must be between 0 and 1, not %s.", pruneDecay));
+
+		this.pruneDecay = pruneDecay;
+	}
+
+	/**
+	 * Sets the amount of lower orders learnt, and so backed off to when replying; runs of one token fewer than the
+	 * Markov length are learnt if it is 1, runs of one and two fewer if it is 2, and so on. Each order learnt makes
+	 * learning slower and the brain bigger, so none are by default; a reply then ends wherever it reaches a TokenGroup
+	 * that nothing has been seen after, and messages shorter than the Markov length are not learnt at all.
+	 *
+	 * Only what is learnt from then on changes; lower orders already learnt, such as those in a snapshot, are kept and
+	 * still backed off to. If the instance was created from a snapshot or MappedChain that has no lower orders, they are
+	 * worked out from it the first time any are asked for, so this should be called before it learns anything.
+	 *
+	 * @param backoffOrders The amount of lower orders, from 0 to one less than the Markov length
+	 * @throws IllegalArgumentException If the amount is negative, or not less than the Markov length
+	 */
+	public void setBackoffOrders(int backoffOrders)
+	{
+		if (backoffOrders < 0 || backoffOrders >= this.markovLength)
+			throw new IllegalArgumentException(String.format("The amount of backoff orders must be between 0 and %d, not %d.", this.markovLength - 1, backoffOrders));
+
+		this.learnLock.lock();
+		try
+		{
+			this.backoffOrders = backoffOrders;
+
+			if (backoffOrders > 0 && this.underivedChain != null)
+			{
+				this.contextTable.deriveLowerOrders(this.underivedChain, this.markovLength - backoffOrders);
+				this.contextTable.publish();
+				this.underivedChain = null;
+			}
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the TokenGroups that can be extracted from a message to the Markov chain, effectively allowing the instance
+	 * to learn. This may be called from many threads at once, and never blocks replies from being built.
+	 *
+	 * @param message The message to extract TokenGroups from
+	 */
+	public void addMessage(String message)
+	{
+		int[] messageTokens = this.internMessage(message);
 
-		/**
-		 * Gets whether or not the TokenGroup can end a message.
-		 *
-		 * @return True if the TokenGroup can end a message, else False
-		 */
-		public boolean canEnd()
-		{
-			return this.canEnd;
-		}
+		// if there is nothing we can learn from this
+		if (messageTokens == null)
+			return;
 
-		/**
-		 * Gets the token at a specified index in the TokenGroup.
-		 *
-		 * @param index The index of the desired token
-		 * @return the token at the index specified
-		 */
-		public String getToken(int index)
+		this.learnLock.lock();
+		try
 		{
-			return this.tokens[index];
-		}
+			learn(this.contextTable, messageTokens, this.backoffOrders);
+			this.keepWithinMemoryBudget();
 
-		/**
-		 * Returns the internal primitive array of the contained string tokens as a List Object; useful when an Array is
-		 * antiquated or too primitive and hence impractical.
-		 *
-		 * @return The internal array of tokens as a List
-		 */
-		public List<String> toList()
-		{
-			return Arrays.asList(this.tokens);
+			// make what was learnt visible to replies
+			this.contextTable.publish();
 		}
-
-		@Override
-		public int hashCode()
+		finally
 		{
-			return this.hashCode;
+			this.learnLock.unlock();
 		}
 
-		@Override
-		public boolean equals(Object obj)
+		this.learntCount.increment();
+	}
+
+	/**
+	 * Adds the TokenGroups that can be extracted from many messages to the Markov chain at once; this is the same as
+	 * calling addMessage for each, but takes the learn lock and publishes what was learnt only once for the whole batch.
+	 *
+	 * @param messages The messages to extract TokenGroups from
+	 */
+	public void addMessages(Collection<String> messages)
+	{
+		// break all of the messages into tokens before taking the lock
+		List<int[]> batch = new ArrayList<int[]>(messages.size());
+		for (String message : messages)
 		{
-			if (!(obj instanceof TokenGroup))
-				return false;
+			int[] messageTokens = this.internMessage(message);
+
+			if (messageTokens != null)
+			{
+				batch.add(messageTokens);
+			}
+		}
 
-			// TODO: ensure lengths are equal
+		if (batch.isEmpty())
+			return;
 
-			// ensure all tokens are equal in this token to the equivalent tokens in the other TokenGroup
-			TokenGroup other = (TokenGroup) obj;
-			for (int i = 0; i < this.tokens.length; i++)
+		this.learnLock.lock();
+		try
+		{
+			for (int[] messageTokens : batch)
 			{
-				// if one of them is not equal
-				if (!this.tokens[i].equals(other.getToken(i)))
-				{
-					// then the TokenGroups cannot be equal
-					return false;
-				}
+				learn(this.contextTable, messageTokens, this.backoffOrders);
 			}
+			this.keepWithinMemoryBudget();
 
-			// all tokens are equal, hence the TokenGroups are equal
-			return true;
+			// make what was learnt visible to replies
+			this.contextTable.publish();
+		}
+		finally
+		{
+			this.learnLock.unlock();
 		}
+
+		this.learntCount.add(batch.size());
 	}
 
 	/**
-	 * The default amount of Tokens in each TokenGroup.
+	 * Adds the TokenGroups that can be extracted from a message to a table other than the instance's own, which can
+	 * later be merged in with addTable. This does not take the learn lock, so many threads can learn at once as long as
+	 * each has a table of its own; the tokens are interned into the instance's TokenDictionary, so that the ids in every
+	 * such table agree.
+	 *
+	 * @param table The table to learn into, of the same Markov length as the instance
+	 * @param message The message to extract TokenGroups from
+	 * @return True if anything was learnt from the message, else False
 	 */
-	public static final int DEFAULT_MARKOV_LENGTH = 4;
+	boolean addMessage(ContextTable table, String message)
+	{
+		int[] messageTokens = this.internMessage(message);
 
-	// TODO: review use of HashSet<String>; perhaps an ArrayList<String> would lead to better learning a more frequent
+		// if there is nothing we can learn from this
+		if (messageTokens == null)
+			return false;
 
-	/**
-	 * Stores the TokenGroups that a Token is in. Is useful when randomly selecting an [ideally] appropriate middle
-	 * symbol for a message;
-	 */
-	private final HashMap<String, HashSet<TokenGroup>> tokenMap = new HashMap<String, HashSet<TokenGroup>>();
+		learn(table, messageTokens, this.backoffOrders);
+		this.learntCount.increment();
+		return true;
+	}
 
 	/**
-	 * Prevents repetition of TokenGroup Objects; when metadata (such as canStart and canEnd) is changed, the change
-	 * should be made effective on just the one instance of the Object in existance.
+	 * Merges everything learnt into a table by addMessage(ContextTable, String) into the instance, and makes it visible
+	 * to replies. The table must not be changed while this runs, but may be reused afterwards.
 	 *
-	 * As the data-type is a HashMap, if one has an identical instance, one can use the Hash to find the one existing
-	 * instance that should preferably used to the clone, to ensure that these metadata changes are global to all
-	 * similar Tokens.
+	 * @param table The table to merge in
 	 */
-	private final HashMap<TokenGroup, TokenGroup> tokenGroupMap = new HashMap<TokenGroup, TokenGroup>();
+	void addTable(ContextTable table)
+	{
+		this.learnLock.lock();
+		try
+		{
+			this.contextTable.merge(table);
+			this.keepWithinMemoryBudget();
+
+			// make what was learnt visible to replies
+			this.contextTable.publish();
+		}
+		finally
+		{
+			this.learnLock.unlock();
+		}
+	}
 
 	/**
-	 * Links a TokenGroup to tokens that have occurred directly after it in observed messages.
+	 * Sets the context table aside to be pruned until it is back under its share of the memory budget, if learning has
+	 * taken it over the budget and it is not being pruned already, and learns on top of it meanwhile. The learn lock
+	 * must be held.
 	 */
-	private final HashMap<TokenGroup, HashSet<String>> nextTokenMap = new HashMap<TokenGroup, HashSet<String>>();
+	private void keepWithinMemoryBudget()
+	{
+		final long memoryBudget = this.memoryBudget;
+		if (memoryBudget <= 0 || this.pruningTable != null || this.contextTable.getMemoryEstimate() <= memoryBudget)
+			return;
+
+		// nothing changes the table from here on until it has been pruned, so the pruner can read it without the lock
+		final ContextTable pruningTable = this.contextTable;
+		pruningTable.publish();
+
+		this.pruningTable = pruningTable;
+		this.contextTable = new ContextTable(this.markovLength, pruningTable.getChain());
+
+		PRUNER.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				MegaHal.this.prune(pruningTable, memoryBudget);
+			}
+		});
+	}
 
 	/**
-	 * Links a TokenGroup to tokens that have occurred directly before it in observed messages.
+	 * Prunes a table that has been set aside by keepWithinMemoryBudget() until it is back under its share of the
+	 * memory budget, then merges in what has been learnt on top of it meanwhile, and puts it back in place of both.
+	 * This is what the pruner thread does.
+	 *
+	 * If pruning fails, such as for want of memory, the table is left as it was and put back all the same, so that
+	 * the brain is in one table again, snapshots can be written, and it is pruned again once it next grows past its
+	 * budget.
+	 *
+	 * @param pruningTable The table
+	 * @param memoryBudget The memory budget it went over
 	 */
-	private final HashMap<TokenGroup, HashSet<String>> previousTokenMap = new HashMap<TokenGroup, HashSet<String>>();
+	private void prune(ContextTable pruningTable, long memoryBudget)
+	{
+		this.pruneLock.lock();
+		try
+		{
+			// a snapshot may have called the pruning off before it started
+			if (this.pruningTable != pruningTable)
+				return;
+
+			try
+			{
+				long startTime = System.nanoTime();
+				int groupCount = pruningTable.getGroupCount();
+				int edgeCount = pruningTable.getEdgeCount();
+
+				// each pruning decays every count, so this always ends, if need be once everything has been forgotten;
+				// pruning builds new Arrays, so the chains the learnt table reads on top of stay as they were
+				do
+				{
+					pruningTable.prune(this.pruneDecay);
+				}
+				while (pruningTable.getMemoryEstimate() > memoryBudget * PRUNE_TARGET);
+
+				int prunedGroupCount = groupCount - pruningTable.getGroupCount();
+				int prunedEdgeCount = edgeCount - pruningTable.getEdgeCount();
+
+				this.learnLock.lock();
+				try
+				{
+					// what was learnt meanwhile is usually little next to what was pruned, so this is quick
+					this.restorePruningTable();
+				}
+				finally
+				{
+					this.learnLock.unlock();
+				}
+
+				this.pruneTimes.record(System.nanoTime() - startTime);
+				this.pruneCount.increment();
+				this.prunedGroupCount.add(prunedGroupCount);
+				this.prunedEdgeCount.add(prunedEdgeCount);
+			}
+			catch (Throwable e)
+			{
+				this.pruneFailureCount.increment();
+				System.err.println("Could not prune the brain; it will be pruned again once it next grows past its budget.");
+				e.printStackTrace();
+
+				// a table that failed to be pruned is left as it was, so put it back unpruned, unless that has been done
+				this.learnLock.lock();
+				try
+				{
+					if (this.pruningTable == pruningTable)
+					{
+						this.restorePruningTable();
+					}
+				}
+				finally
+				{
+					this.learnLock.unlock();
+				}
+			}
+		}
+		finally
+		{
+			this.pruneLock.unlock();
+		}
+	}
 
 	/**
-	 * A Random instance used for generating Random values. Obviously.
+	 * Puts the table that was set aside to be pruned back in place, whether or not it has been pruned, with what has
+	 * been learnt on top of it meanwhile merged in. The learn lock must be held.
 	 *
-	 * Basically, it's more efficient to store one for each instance than instantiate a new one each time.
+	 * The table is put back even if merging fails part way through, as merging again would count twice what had been
+	 * merged; what had not been is forgotten, as if it had been pruned.
 	 */
-	private final Random random = new Random();
+	private void restorePruningTable()
+	{
+		ContextTable pruningTable = this.pruningTable;
+		try
+		{
+			pruningTable.merge(this.contextTable);
+		}
+		finally
+		{
+			pruningTable.publish();
+
+			this.contextTable = pruningTable;
+			this.pruningTable = null;
+		}
+	}
 
 	/**
-	 * The Markov length; when tokens are grouped into TokenGroups, the TokenGroups are of this length.
+	 * Registers metrics about how much the instance has learnt, how long its replies take to build and how large its
+	 * brain is.
+	 *
+	 * @param metrics The registry to register the metrics with
 	 */
-	private final int markovLength;
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_messages_learnt_total", "Messages learnt from, not counting those without a single token to learn.", this.learntCount);
+		metrics.register("chester_replies_total", "Replies built.", this.replyCount);
+		metrics.register("chester_reply_seconds", "Time taken to build each reply, including the search for the best candidate.", this.replyTimes);
+		metrics.register("chester_reply_candidates_total", "Candidate replies generated while searching for the best reply.", this.candidateCount);
+		metrics.register("chester_reply_walk_tokens", "Tokens in each candidate reply, which is how far the chain was walked to build it.", this.walkLengths);
+		metrics.register("chester_reply_dead_ends_total", "Candidate replies cut short by reaching a TokenGroup with nothing seen after or before it.", this.deadEndCount);
+		metrics.register("chester_reply_length_limits_total", "Candidate replies cut short by reaching the greatest reply length.", this.lengthLimitCount);
+		metrics.register("chester_reply_time_limits_total", "Candidate replies cut short by running out of time.", this.timeLimitCount);
+		metrics.register("chester_reply_backoffs_total", "Steps of candidate replies that backed off to a lower order context, for want of a TokenGroup to go on from.", this.backoffCount);
+		metrics.register("chester_reply_fallbacks_total", "Replies that had to be cut short, as no whole reply was found in time.", this.fallbackCount);
+		metrics.register("chester_brain_prunes_total", "Times the brain has been pruned to keep within its memory budget.", this.pruneCount);
+		metrics.register("chester_brain_pruned_groups_total", "TokenGroups forgotten by pruning.", this.prunedGroupCount);
+		metrics.register("chester_brain_pruned_edges_total", "Transitions forgotten by pruning.", this.prunedEdgeCount);
+		metrics.register("chester_brain_prune_failures_total", "Times pruning the brain failed, after which it was put back as it was, to be pruned again once it next grows past its budget.", this.pruneFailureCount);
+		metrics.register("chester_brain_prune_seconds", "Time taken to prune the brain back under its memory budget, which happens on a thread of its own while learning carries on.", this.pruneTimes);
+		metrics.register("chester_brain_freeze_seconds", "Time taken to freeze the brain, during which nothing can be learnt.", this.freezeTimes);
+
+		metrics.register("chester_brain_tokens", "Distinct tokens known.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return MegaHal.this.tokenDictionary.size();
+			}
+		});
+
+		metrics.register("chester_brain_groups", "TokenGroups known.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return MegaHal.this.contextTable.getChain().getGroupCount();
+			}
+		});
+
+		metrics.register("chester_brain_lower_order_contexts", "Lower order contexts known, of fewer tokens than a TokenGroup, which replies back off to.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return MegaHal.this.contextTable.getChain().getLowerOrders().getGroupCount();
+			}
+		});
+
+		metrics.register("chester_brain_edges", "Transitions stored between TokenGroups and the tokens seen before and after them.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				long edgeCount = MegaHal.this.contextTable.getSnapshot().getEdgeCount();
+
+				// the table only holds what has been learnt since the mapped chain was written, or the brain frozen
+				if (MegaHal.this.mappedChain != null)
+				{
+					edgeCount += MegaHal.this.mappedChain.getEdgeCount();
+				}
+
+				FrozenChain frozenChain = MegaHal.this.frozenChain;
+				if (frozenChain != null)
+				{
+					edgeCount += frozenChain.getEdgeCount();
+				}
+
+				// ...or the table being pruned set aside
+				ContextTable pruningTable = MegaHal.this.pruningTable;
+				if (pruningTable != null)
+				{
+					edgeCount += pruningTable.getSnapshot().getEdgeCount();
+				}
+
+				return edgeCount;
+			}
+		});
+
+		metrics.register("chester_brain_estimated_bytes", "Estimated memory used by the TokenGroups, lower order contexts and transitions held on the heap, frozen or not, as compared with the memory budget.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				FrozenChain frozenChain = MegaHal.this.frozenChain;
+				ContextTable pruningTable = MegaHal.this.pruningTable;
+				return estimateMemory(MegaHal.this.contextTable.getSnapshot())
+						+ (pruningTable == null ? 0 : estimateMemory(pruningTable.getSnapshot()))
+						+ (frozenChain == null ? 0 : frozenChain.getMemoryUsage());
+			}
+		});
+	}
 
 	/**
-	 * Create a MegaHal instance with the default Markov length of 4.
+	 * Estimates how many bytes the groups, lower order contexts and edges of a snapshot of a context table take up; see
+	 * ContextTable.estimateMemory().
+	 *
+	 * @param snapshot The snapshot
+	 * @return The estimate, in bytes
 	 */
-	public MegaHal()
+	private long estimateMemory(ContextSnapshot snapshot)
 	{
-		this(DEFAULT_MARKOV_LENGTH);
+		ContextSnapshot lowerOrders = snapshot.getLowerOrders();
+		return ContextTable.estimateMemory(this.markovLength, snapshot.getGroupCount(), snapshot.getEdgeCount())
+				+ ContextTable.estimateLowerOrderMemory(this.markovLength, lowerOrders.getGroupCount(), lowerOrders.getEdgeCount());
 	}
 
 	/**
-	 * Create a MegaHal instance with a specified Markov length;
+	 * Gets the amount of tokens in each TokenGroup.
 	 *
-	 * @param markovLength The specified Markov length; see variable annotations for a better description.
+	 * @return The Markov length
 	 */
-	public MegaHal(int markovLength)
+	public int getMarkovLength()
 	{
-		this.markovLength = markovLength;
+		return this.markovLength;
 	}
 
 	/**
-	 * Adds the TokenGroups that can be extracted from a message to the Markov chain, effectively allowing the instance
-	 * to learn.
+	 * Breaks a message into tokens and interns them. This does not need the learn lock.
 	 *
-	 * @param message The message to extract TokenGroups from
+	 * @param message The message
+	 * @return The ids of the tokens of the message, else null if it has none to learn anything from
 	 */
-	public void addMessage(String message)
+	private int[] internMessage(String message)
 	{
-		// remove whitespace
-		message = message.trim();
+		// skip whitespace at either end, as String.trim() would, without copying the message
+		int start = 0;
+		int end = message.length();
+		while (start < end && message.charAt(start) <= ' ')
+		{
+			start++;
+		}
+		while (end > start && message.charAt(end - 1) <= ' ')
+		{
+			end--;
+		}
 
-		// if message is too small to possibly contain the desired amount of tokens
-		if (message.length() < this.markovLength)
-			return; // there is nothing we can learn from this
+		// a message too short to make a TokenGroup is still learnt, into the lower orders alone, as long as it is as long
+		// as the shortest of them; each token takes at least one character
+		int shortest = Math.max(1, this.markovLength - this.backoffOrders);
+		if (end - start < shortest)
+			return null; // there is nothing we can learn from this
 
-		List<String> messageTokens = this.getTokens(message);
+		// swap each token for its id as it is found, so that from here on only ints are stored and compared
+		Tokenizer tokenizer = this.tokenizers.get();
 
-		// if there are not enough tokens to create a token group of the desired size
-		if (messageTokens.size() < this.markovLength)
-			return; // there is nothing we can learn from this
+		if (tokenizer.intern(message, start, end) < shortest)
+			return null; // there is nothing we can learn from this
+
+		return tokenizer.toArray();
+	}
+
+	/**
+	 * Adds the TokenGroups that can be extracted from the tokens of a message to a table, along with the lower order
+	 * contexts of some of the orders below the Markov length. If the table is the instance's own, the learn lock must be
+	 * held.
+	 *
+	 * @param table The table to add the TokenGroups to
+	 * @param messageTokens The ids of the tokens of the message, of which there must be at least one; if there are
+	 *                      fewer than the Markov length, only the lower orders are learnt
+	 * @param backoffOrders The amount of lower orders to learn, counting down from one token fewer than the Markov
+	 *                      length
+	 */
+	private static void learn(ContextTable table, int[] messageTokens, int backoffOrders)
+	{
+		int markovLength = table.getOrder();
 
 		/*
 		This for-loop serves the purpose of creating overlapping TokenGroup's of the specified markovLength out of the
@@ -253,102 +1266,76 @@ public class MegaHal
 
 		... where the index numbers are replaced with the tokens.
 		 */
-		for (int startingIndex = 0; startingIndex <= messageTokens.size() - this.markovLength; startingIndex++)
+		for (int startingIndex = 0; startingIndex <= messageTokens.length - markovLength; startingIndex++)
 		{
-			// the tokens that will go in the new TokenGroup Object
-			String[] tokenGroupTokens = new String[this.markovLength];
-
-			// iterate through each token for this TokenGroup, starting at startingIndex and ending at
-			// startingIndex + markovLength
-			for (int i = 0; i < this.markovLength; i++)
-			{
-				// populate tokenGroupTokens with the token
-				tokenGroupTokens[i] = messageTokens.get(startingIndex + i);
-			}
-
-			// create a TokenGroup Object from the tokens
-			TokenGroup tokenGroup = new TokenGroup(tokenGroupTokens);
-
-			// if there is already an instance of an identical tokenGroup Object
-			if (tokenGroupMap.containsKey(tokenGroup))
-			{
-				// use this instead; if any changes are made to the Object, they should be made to the singular
-				// tokenGroup representing these tokens.
-				tokenGroup = tokenGroupMap.get(tokenGroup);
-			}
-			else
-			{
-				// store this token in the tokenGroup; for an explanation of why this self-referential Map is necessary,
-				// see the explanation at the variable's definition
-				tokenGroupMap.put(tokenGroup, tokenGroup);
-			}
+			// find the TokenGroup of the tokens from startingIndex to startingIndex + markovLength, creating it if
+			// this is the first time it has been seen; the table only ever holds one copy of each TokenGroup
+			int tokenGroup = table.addGroup(messageTokens, startingIndex);
 
 			// if this is the first group
 			boolean first = startingIndex == 0;
 
 			// if this is the last group
-			boolean last = startingIndex == messageTokens.size() - this.markovLength;
+			boolean last = startingIndex == messageTokens.length - markovLength;
 
 			// the TokenGroup is the first; it can start a message
 			if (first)
 			{
 				// store this property of the TokenGroup
-				tokenGroup.setCanStart(true);
+				table.setCanStart(tokenGroup);
 			}
 
 			// the TokenGroup is the last; it can end a message
 			if (last)
 			{
 				// store this property of the TokenGroup
-				tokenGroup.setCanEnd(true);
-			}
-
-			// loop through each token in this group and add a reference from the token to the group it is in
-			for (String token : tokenGroupTokens)
-			{
-				// if this token has no set of references
-				if (!this.tokenMap.containsKey(token))
-				{
-					// create a set of references
-					this.tokenMap.put(token, new HashSet<TokenGroup>(1));
-				}
-
-				// add this group to the list of references from the token
-				this.tokenMap.get(token).add(tokenGroup);
+				table.setCanEnd(tokenGroup);
 			}
 
 			// if there has been a token previous to this TokenGroup
 			if (!first)
 			{
-				// the last token of the previous TokenGroup, AKA the token before the starting token
-				String previousToken = messageTokens.get(startingIndex - 1);
-
-				// if this TokenGroup has no list of previous tokens
-				if (!previousTokenMap.containsKey(tokenGroup))
-				{
-					// create a set of previous tokens
-					previousTokenMap.put(tokenGroup, new HashSet<String>(1));
-				}
-
-				// add this token to the group of known previous tokens to this TokenGroup
-				previousTokenMap.get(tokenGroup).add(previousToken);
+				// add the last token of the previous TokenGroup, AKA the token before the starting token, to the group
+				// of known previous tokens to this TokenGroup
+				table.addPreviousToken(tokenGroup, messageTokens[startingIndex - 1]);
 			}
 
-			// if there has been a token previous to this TokenGroup
+			// if there will be a token after this TokenGroup
 			if (!last)
 			{
-				// the first token of the next TokenGroup, AKA the token after the last token in this TokenGroup
-				String nextToken = messageTokens.get(startingIndex + this.markovLength);
+				// add the first token of the next TokenGroup, AKA the token after the last token in this TokenGroup, to
+				// the group of known following tokens to this TokenGroup
+				table.addNextToken(tokenGroup, messageTokens[startingIndex + markovLength]);
+			}
+		}
+
+		// the lower orders are learnt in just the same way, once for each length of context shorter than the Markov
+		// length that is learnt, which a message too short to make a TokenGroup can still be broken into
+		ContextTable lowerOrders = table.getLowerOrders();
+		for (int length = markovLength - backoffOrders; length < markovLength && length <= messageTokens.length; length++)
+		{
+			for (int start = 0; start + length <= messageTokens.length; start++)
+			{
+				int context = lowerOrders.addContext(messageTokens, start, length);
+				int end = start + length;
 
-				// if this TokenGroup has no list of following tokens
-				if (!nextTokenMap.containsKey(tokenGroup))
+				if (start == 0)
 				{
-					// create a set of following tokens
-					nextTokenMap.put(tokenGroup, new HashSet<String>(1));
+					lowerOrders.setCanStart(context);
+				}
+				else
+				{
+					lowerOrders.addPreviousToken(context, messageTokens[start - 1]);
 				}
 
-				// add this token to the group of known following tokens to this TokenGroup
-				nextTokenMap.get(tokenGroup).add(nextToken);
+				if (end == messageTokens.length)
+				{
+					lowerOrders.setCanEnd(context);
+				}
+				else
+				{
+					lowerOrders.addNextToken(context, messageTokens[end]);
+				}
 			}
 		}
 	}
@@ -364,216 +1351,234 @@ public class MegaHal
 	}
 
 	/**
-	 * Get a message based on the Markov chain and a message to reply to; only one token in the message will be used and
-	 * will be selected entirely at Random.
+	 * Get the best message based on the Markov chain and a message to reply to.
 	 *
-	 * TODO: decide whether the Token chosen at random can be punctuation
+	 * Like the original MegaHal, every word in the message that has been learnt is a keyword; candidate replies are
+	 * built around random keywords for the reply time budget, spread across the reply pool, and the one that is most
+	 * surprising with regards to the keywords (and is not simply the message repeated back) is chosen. Candidates cut
+	 * short by the greatest reply length or walk time are only chosen if no whole candidate was found.
 	 *
 	 * @param message The message to use to influence the message returned.
 	 * @return A hopefully human-like message, assuming the storing of values previously, else an empty String.
 	 */
 	public String getBestMessageFromMessage(String message)
 	{
-		// all of the tokens in the provided message
-		List<String> messageTokens = this.getTokens(message);
+		long startTime = System.nanoTime();
+
+		// the ids of all of the tokens in the provided message, without interning any that are new
+		Tokenizer tokenizer = this.tokenizers.get();
+		int tokenCount = message == null ? 0 : tokenizer.lookUp(message, 0, message.length());
+
+		// every candidate reply is built from the same published chain, however many threads the search is spread across
+		MarkovChain chain = this.contextTable.getChain();
 
-		// if there are no tokens, just send a message that is not based on the tokens
-		if (messageTokens.size() == 0)
+		int[] input = tokenizer.toArray();
+		int[] keywords = new int[tokenCount];
+		int keywordCount = 0;
+
+		for (int i = 0; i < tokenCount; i++)
 		{
-			return this.getBestMessageFromMessage(null);
+			// only words that are in some TokenGroup or lower order context can have a reply built around them
+			if (tokenizer.isWord(i) && isKnown(chain, input[i]))
+			{
+				keywords[keywordCount++] = input[i];
+			}
 		}
 
-		// return a reply based on a Random token in the message
-		return this.getBestMessageFromToken(messageTokens.get(this.random.nextInt(messageTokens.size())));
+		return this.recordReply(this.search(chain, sortedUnique(keywords, keywordCount), input), startTime);
 	}
 
 	/**
-	 * Get a message based on the Markov chain and a token to reply to.
+	 * Get the best message based on the Markov chain and a token to reply to; see getBestMessageFromMessage.
 	 *
-	 * @param token The token to use to influence the message returned.
+	 * @param token The token to use to influence the message returned, or null for a message about nothing in particular.
 	 * @return A hopefully human-like message, assuming the storing of values previously, else an empty String.
 	 */
 	public String getBestMessageFromToken(String token)
 	{
-		// the list of tokens that will be concatenated at the end of the method to produce the best response message
-		List<String> messageTokens = new LinkedList<String>();
+		long startTime = System.nanoTime();
+
+		MarkovChain chain = this.contextTable.getChain();
 
-		// a list of potential TokenGroups to be at the centre of the message
-		List<TokenGroup> potentialMiddleGroups;
+		// the id of the token, if it has ever been learnt
+		int tokenId = token == null ? TokenDictionary.UNKNOWN_TOKEN : this.tokenDictionary.getId(token);
 
-		// if there is a reference to every TokenGroup the token is in...
-		if (this.tokenMap.containsKey(token))
+		int[] keywords;
+		if (isKnown(chain, tokenId))
 		{
-			// ...use this as the Random pool
-			potentialMiddleGroups = new ArrayList<TokenGroup>(this.tokenMap.get(token));
+			keywords = new int[] { tokenId };
 		}
 		else
 		{
-			// ...else use all TokenGroups
-			potentialMiddleGroups = new ArrayList<TokenGroup>(this.tokenGroupMap.keySet());
+			keywords = new int[0];
 		}
 
-		// if there are no potential TokenGroups...
-		if (potentialMiddleGroups.size() == 0)
+		return this.recordReply(this.search(chain, keywords, null), startTime);
+	}
+
+	/**
+	 * Counts a reply that has been built, and how long it took.
+	 *
+	 * @param reply The reply
+	 * @param startTime The System.nanoTime() at which building the reply started
+	 * @return The reply
+	 */
+	private String recordReply(String reply, long startTime)
+	{
+		this.replyTimes.record(System.nanoTime() - startTime);
+		this.replyCount.increment();
+
+		return reply;
+	}
+
+	/**
+	 * Searches for the most surprising reply with regards to some keywords.
+	 *
+	 * @param chain The published Markov chain to build replies from
+	 * @param keywords The ids of the keywords, sorted; if empty, any reply is as good as another and only one is built
+	 * @param input The ids of the tokens of the message being replied to, or null if there is none
+	 * @return The best reply found, else an empty String if the Markov chain is empty
+	 */
+	private String search(MarkovChain chain, int[] keywords, int[] input)
+	{
+		// if there are no TokenGroups, nor keywords that a reply can be built from the lower orders around...
+		if (chain.getGroupCount() == 0 && keywords.length == 0)
 		{
 			// return an empty String; nothing else can be done if the Markov chain is empty
 			return "";
 		}
 
-		// randomly select a middle TokenGroup from the pool
-		TokenGroup middleTokenGroup = potentialMiddleGroups.get(random.nextInt(potentialMiddleGroups.size()));
-
-		// add all of the middle tokens to the resulting message's tokens
-		messageTokens.addAll(middleTokenGroup.toList());
-
-		/*
-		This while-loop iterates through TokenGroups sourced from the previous TokenGroup iterated over
-		(or the middle TokenGroup if in its first iteration) until it comes across one that is a possible ending
-		TokenGroup. At this point, it stops.
-		 */
-		TokenGroup iteratingTokenGroup = middleTokenGroup;
-		while (!iteratingTokenGroup.canEnd())
+		// without keywords every reply scores the same, so the first one will do
+		if (keywords.length == 0)
 		{
-			// a List of tokens learnt from observed messages to come after the current TokenGroup
-			List<String> potentialNextTokens = new ArrayList<String>(this.nextTokenMap.get(iteratingTokenGroup));
-
-			// a random Token from this List
-			String nextToken = potentialNextTokens.get(random.nextInt(potentialNextTokens.size()));
-
-			// add this randomly selected Token to the tokens to be in the message so far (at the end)
-			messageTokens.add(nextToken);
-
-			/*
-			The TokenGroup that will be used to find the next token. It is the final three tokens of the current
-			TokenGroup with the new nextToken added at the end.
-
-			It can be visualised like so on this loop's first iteration (after this it continues, still with the last
-			elements of the list):
-
-				messageTokens:
-					0 1 2 3
-					|-----|		<-- tokens used to search for this nextToken
-
-				messageTokens after nextToken added:
-					0 1 2 3 4
-
-				tokens used to search for the next nextToken:
-					0 1 2 3 4
-					  |-----|	<-- tokens used to search for the next nextToken
-			 */
-			List<String> searchTokens = new ArrayList<String>();
-			searchTokens.addAll(iteratingTokenGroup.toList().subList(1, iteratingTokenGroup.toList().size()));
-			searchTokens.add(nextToken);
-			iteratingTokenGroup = this.tokenGroupMap.get(new TokenGroup(searchTokens.toArray(new String[searchTokens.size()])));
+			return this.countFallback(new CandidateSearch(chain, keywords, input, System.nanoTime()).first()).message;
 		}
 
-		// initialise the token group being iterated over to the middleGroup once more to begin searching for preceding
-		// tokens
-		iteratingTokenGroup = middleTokenGroup;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.replyTimeBudget);
 
-		/*
-		This while-loop iterates through TokenGroups sourced from the previous TokenGroup iterated over
-		(or the middle TokenGroup if in its first iteration) until it comes across one that is a possible ending
-		TokenGroup. At this point, it stops.
-		 */
-		while (!iteratingTokenGroup.canStart())
+		// start this reply's share of searches on the pool...
+		ForkJoinPool pool = this.replyPool;
+		int searchCount = this.replySearchCount;
+		List<ForkJoinTask<Candidate>> searches = new ArrayList<ForkJoinTask<Candidate>>(searchCount);
+		for (int i = 0; i < searchCount; i++)
 		{
-			// a List of tokens learnt from observed messages to come before the current TokenGroup
-			ArrayList<String> potentialPreviousTokens = new ArrayList<String>(this.previousTokenMap.get(iteratingTokenGroup));
-
-			// a random Token from this List
-			String previousToken = potentialPreviousTokens.get(random.nextInt(potentialPreviousTokens.size()));
-
-			// add this randomly selected Token to the tokens to be in the message so far (at the beginning)
-			messageTokens.add(0, previousToken);
+			searches.add(pool.submit(new CandidateSearch(chain, keywords, input, deadline)));
+		}
 
-			/*
-			The TokenGroup that will be used to find the next token. It is the first three tokens of the current
-			TokenGroup with the new previousToken added at the beginning.
+		// ...and keep the best of their best
+		Candidate best = null;
+		for (ForkJoinTask<Candidate> search : searches)
+		{
+			Candidate candidate = search.join();
 
-			It can be visualised like so on this loop's first iteration (after this it continues, still with the last
-			elements of the list):
+			if (candidate.isBetterThan(best))
+			{
+				best = candidate;
+			}
+		}
 
-				messageTokens:
-					  4 5 6 7 8 9 A B C (etc)
-					  |-----|		<-- tokens used to search for this nextToken
+		return this.countFallback(best).message;
+	}
 
-				messageTokens after previousToken added:
-					3 4 5 7 8 9 A B C (etc)
+	/**
+	 * Counts how a walk of the chain building a candidate reply came to an end, if it was cut short.
+	 *
+	 * @param outcome How the walk came to an end
+	 */
+	private void countOutcome(ReplyGenerator.Outcome outcome)
+	{
+		switch (outcome)
+		{
+			case DEAD_END:
+				this.deadEndCount.increment();
+				break;
+			case LENGTH_LIMIT:
+				this.lengthLimitCount.increment();
+				break;
+			case TIME_LIMIT:
+				this.timeLimitCount.increment();
+				break;
+			default:
+				break;
+		}
+	}
 
-				tokens used to search for the next previousToken:
-					3 4 5 6 7 8
-					|-----|	<-- tokens used to search for the next nextToken
-			 */
-			List<String> searchTokens = new ArrayList<String>();
-			searchTokens.add(previousToken);
-			searchTokens.addAll(iteratingTokenGroup.toList().subList(0, iteratingTokenGroup.toList().size() - 1));
-			iteratingTokenGroup = this.tokenGroupMap.get(new TokenGroup(searchTokens.toArray(new String[searchTokens.size()])));
+	/**
+	 * Counts the reply chosen as a fallback if it was cut short, which it only is if no whole reply was found.
+	 *
+	 * @param reply The reply chosen
+	 * @return The reply
+	 */
+	private Candidate countFallback(Candidate reply)
+	{
+		if (!reply.complete)
+		{
+			this.fallbackCount.increment();
 		}
 
-		// join all messageTokens into a message
-		return String.join("", messageTokens);
+		return reply;
 	}
 
 	/**
-	 * Extract all Tokens from a message, where a token is a non-interrupted sequence or either alphanumeric or
-	 * punctuation characters, continuing for as long as possible.
+	 * Whether or not a reply can be built around a token; that is, whether it is in some TokenGroup or lower order
+	 * context.
 	 *
-	 * See annotation of method for a better explanation.
-	 *
-	 * @param message The message to extract tokens from.
-	 * @return The tokens from the message as a List of Strings
+	 * @param chain The published Markov chain
+	 * @param token The id of the token, or TokenDictionary.UNKNOWN_TOKEN
+	 * @return True if the token is known, else False
 	 */
-	private List<String> getTokens(String message)
+	private static boolean isKnown(MarkovChain chain, int token)
 	{
-		// a list of tokens found in the message, both alphanumerical and grammatical
-		List<String> messageTokens = new ArrayList<String>();
-		StringBuilder buffer = new StringBuilder(); // the progress through the token being iterated over
-		boolean punctuation = true; // whether or not the current token being iterated over is punctuation
+		if (chain.getTokenGroupCount(token) > 0)
+		{
+			return true;
+		}
 
-		/*
-		This for-loop serves the purpose of splitting a message up into tokens of both punctuation. For example, where
-		a single-underline is used to show an alphanumeric token and a double-underline is used to show an punctuation
-		one, observe how the below message would be split into tokens:
+		MarkovChain lowerOrders = chain.getLowerOrders();
+		return lowerOrders != null && lowerOrders.getTokenGroupCount(token) > 0;
+	}
 
-			Chester is the best bot... ever!
-			-------=--=---=----=---====----=
+	/**
+	 * Picks a TokenGroup (or lower order context) to build a reply around at random.
+	 *
+	 * @param chain The published Markov chain (or its lower orders) to pick from
+	 * @param keyword The id of the keyword, which must be in at least one TokenGroup of the chain, or
+	 *                TokenDictionary.UNKNOWN_TOKEN for any TokenGroup to be picked
+	 * @param random The source of randomness
+	 * @return The id of the TokenGroup
+	 */
+	private static int pickMiddleGroup(MarkovChain chain, int keyword, Random random)
+	{
+		if (keyword == TokenDictionary.UNKNOWN_TOKEN)
+		{
+			// use all TokenGroups; their ids are dense, so any number below the amount of them is one
+			return random.nextInt(chain.getGroupCount());
+		}
 
-		...resulting in the tokens:
+		// pick a middle TokenGroup from those the keyword is in, reading it straight out of the table
+		return chain.getTokenGroup(keyword, random.nextInt(chain.getTokenGroupCount(keyword)));
+	}
 
-			"Chester", " ", "is", " ", "the", " ", "best", " ", "bot", "... ", "ever", "!"
+	/**
+	 * Sorts the start of an Array and removes duplicates from it.
+	 *
+	 * @param values The Array, which is sorted in place
+	 * @param length The amount of values at the start of the Array to use
+	 * @return A new Array of the distinct values, in ascending order
+	 */
+	private static int[] sortedUnique(int[] values, int length)
+	{
+		Arrays.sort(values, 0, length);
 
-		 */
-		for (char character : message.toCharArray())
+		int distinct = 0;
+		for (int i = 0; i < length; i++)
 		{
-			// if the character is alphanumeric when the previous character's token was punctuation, or vice-versa
-			if ((Character.isAlphabetic(character) || Character.isDigit(character)) == punctuation)
+			if (distinct == 0 || values[i] != values[distinct - 1])
 			{
-				// show this change of state of the token
-				punctuation = !punctuation;
-
-				// if the previous character was existent (it may not be if this is the first iteration)
-				if (buffer.length() > 0)
-				{
-					// add this token to the list of tokens in this message
-					messageTokens.add(buffer.toString());
-
-					// create a blank new buffer
-					buffer = new StringBuilder();
-				}
+				values[distinct++] = values[i];
 			}
-
-			// add this character to the buffer for this token
-			buffer.append(character);
-		}
-
-		// tidy up the final token and do what the loop does at the end of every other token, minus the creation of a
-		// new blank buffer
-		if (buffer.length() > 0)
-		{
-			messageTokens.add(buffer.toString());
 		}
 
-		return messageTokens;
+		return Arrays.copyOf(values, distinct);
 	}
 }
@@ -0,0 +1,592 @@
+package com.hoolean.chester;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A registry of the numbers that describe how Chester is doing; how much he has learnt and how quickly, how long his
+ * replies take, and how big his brain has grown.
+ *
+ * There are three kinds of metric. Counters only ever go up, such as the amount of replies generated; histograms
+ * record how a value, such as how long each reply took, is spread; and gauges are read whenever the metrics are, such
+ * as the amount of tokens in the brain. Each part of Chester keeps its own counters and histograms whether or not they
+ * are registered anywhere, as updating them costs next to nothing, and registers them here by name when asked.
+ *
+ * Every registered metric can be read as text, in the format Prometheus scrapes (see MetricsServer), or over JMX.
+ */
+public final class Metrics
+{
+	/**
+	 * The name the registry's MBean is registered under.
+	 */
+	public static final String OBJECT_NAME = "com.hoolean.chester:type=Metrics";
+
+	/**
+	 * A count that only ever goes up. Many threads may add to it at once without waiting on one another.
+	 */
+	public static final class Counter
+	{
+		private final LongAdder count = new LongAdder();
+
+		/**
+		 * Adds one to the count.
+		 */
+		public void increment()
+		{
+			this.count.increment();
+		}
+
+		/**
+		 * Adds to the count.
+		 *
+		 * @param amount The amount to add, which should not be negative
+		 */
+		public void add(long amount)
+		{
+			this.count.add(amount);
+		}
+
+		/**
+		 * Gets the count.
+		 *
+		 * @return The count
+		 */
+		public long get()
+		{
+			return this.count.sum();
+		}
+	}
+
+	/**
+	 * A value that is worked out whenever it is read.
+	 */
+	public interface Gauge
+	{
+		/**
+		 * Gets the value.
+		 *
+		 * @return The value
+		 */
+		double getValue();
+	}
+
+	/**
+	 * Counts values into buckets, so that their spread (and so percentiles) can be seen as well as their mean.
+	 *
+	 * Values are recorded as longs, in whatever unit is cheapest to measure them in (such as nanoseconds), and scaled
+	 * into the unit they are reported in (such as seconds) only when read. Many threads may record values at once;
+	 * recording takes no locks and creates no Objects.
+	 */
+	public static final class Histogram
+	{
+		/**
+		 * The largest value counted in each bucket, smallest first; values larger than the last are counted in one
+		 * more bucket on the end.
+		 */
+		private final long[] bounds;
+
+		/**
+		 * The amount of values counted in each bucket; not cumulative.
+		 */
+		private final AtomicLongArray counts;
+
+		private final LongAdder sum = new LongAdder();
+
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		/**
+		 * What a recorded value is multiplied by to get it in the unit it is reported in.
+		 */
+		private final double unit;
+
+		/**
+		 * Creates a Histogram.
+		 *
+		 * @param bounds The largest value counted in each bucket, in increasing order
+		 * @param unit What a recorded value is multiplied by to get it in the unit it is reported in
+		 */
+		public Histogram(long[] bounds, double unit)
+		{
+			for (int i = 1; i < bounds.length; i++)
+			{
+				if (bounds[i] <= bounds[i - 1])
+				{
+					throw new IllegalArgumentException("The bounds of a histogram's buckets must increase");
+				}
+			}
+
+			this.bounds = bounds.clone();
+			this.counts = new AtomicLongArray(bounds.length + 1);
+			this.unit = unit;
+		}
+
+		/**
+		 * Creates a Histogram of durations, recorded in nanoseconds and reported in seconds, with buckets from 10
+		 * microseconds to 10 seconds.
+		 *
+		 * @return The Histogram
+		 */
+		public static Histogram nanoseconds()
+		{
+			return new Histogram(oneTwoFive(10000, 10000000000L), 1e-9);
+		}
+
+		/**
+		 * Creates a Histogram of amounts, such as of tokens, with buckets from 1 to 10000.
+		 *
+		 * @return The Histogram
+		 */
+		public static Histogram amounts()
+		{
+			return new Histogram(oneTwoFive(1, 10000), 1);
+		}
+
+		/**
+		 * Records a value.
+		 *
+		 * @param value The value
+		 */
+		public void record(long value)
+		{
+			int bucket = Arrays.binarySearch(this.bounds, value);
+
+			// binarySearch gives where the value would be inserted, encoded, when it is not a bound itself
+			if (bucket < 0)
+			{
+				bucket = -bucket - 1;
+			}
+
+			this.counts.incrementAndGet(bucket);
+			this.sum.add(value);
+
+			long max;
+			while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value))
+			{
+				// another thread recorded a value at the same moment; try again against theirs
+			}
+		}
+
+		/**
+		 * Gets the amount of values recorded.
+		 *
+		 * @return The amount of values
+		 */
+		public long getCount()
+		{
+			long count = 0;
+			for (int i = 0; i < this.counts.length(); i++)
+			{
+				count += this.counts.get(i);
+			}
+
+			return count;
+		}
+
+		/**
+		 * Gets the sum of every value recorded, in the unit reported in.
+		 *
+		 * @return The sum
+		 */
+		public double getSum()
+		{
+			return this.sum.sum() * this.unit;
+		}
+
+		/**
+		 * Gets the mean of every value recorded, in the unit reported in.
+		 *
+		 * @return The mean, else 0 if no values have been recorded
+		 */
+		public double getMean()
+		{
+			long count = this.getCount();
+			return count == 0 ? 0 : this.getSum() / count;
+		}
+
+		/**
+		 * Gets the largest value recorded, in the unit reported in.
+		 *
+		 * @return The largest value, else 0 if no values have been recorded
+		 */
+		public double getMax()
+		{
+			long max = this.max.get();
+			return max == Long.MIN_VALUE ? 0 : max * this.unit;
+		}
+
+		/**
+		 * Estimates a percentile of the values recorded, in the unit reported in. Only the bucket each value fell in is
+		 * known, so this is the upper bound of the bucket the percentile falls in, or the largest value if that is in
+		 * the last bucket.
+		 *
+		 * @param percentile The percentile, from 0 to 100
+		 * @return The estimate, else 0 if no values have been recorded
+		 */
+		public double getPercentile(double percentile)
+		{
+			long[] counts = this.getBucketCounts();
+
+			long count = 0;
+			for (long bucketCount : counts)
+			{
+				count += bucketCount;
+			}
+
+			if (count == 0)
+				return 0;
+
+			// the amount of values at or below the percentile, which is always at least one
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+
+			long seen = 0;
+			for (int bucket = 0; bucket < this.bounds.length; bucket++)
+			{
+				seen += counts[bucket];
+				if (seen >= rank)
+				{
+					return Math.min(this.bounds[bucket] * this.unit, this.getMax());
+				}
+			}
+
+			return this.getMax();
+		}
+
+		/**
+		 * Copies the amount of values counted in each bucket; values may be recorded while they are copied, so the
+		 * counts may not add up to getCount() exactly.
+		 */
+		private long[] getBucketCounts()
+		{
+			long[] counts = new long[this.counts.length()];
+			for (int i = 0; i < counts.length; i++)
+			{
+				counts[i] = this.counts.get(i);
+			}
+
+			return counts;
+		}
+
+		/**
+		 * Writes the histogram as text in the format Prometheus scrapes; one line for each bucket, with the amount of
+		 * values up to and including its bound, and then the sum and amount of every value.
+		 */
+		private void writeText(String name, Appendable out) throws IOException
+		{
+			long[] counts = this.getBucketCounts();
+
+			long cumulative = 0;
+			for (int bucket = 0; bucket < this.bounds.length; bucket++)
+			{
+				cumulative += counts[bucket];
+				out.append(name).append("_bucket{le=\"").append(formatValue(this.bounds[bucket] * this.unit))
+						.append("\"} ").append(String.valueOf(cumulative)).append('\n');
+			}
+
+			cumulative += counts[this.bounds.length];
+			out.append(name).append("_bucket{le=\"+Inf\"} ").append(String.valueOf(cumulative)).append('\n');
+			out.append(name).append("_sum ").append(formatValue(this.getSum())).append('\n');
+			out.append(name).append("_count ").append(String.valueOf(cumulative)).append('\n');
+		}
+
+		/**
+		 * Generates bucket bounds of 1, 2 and 5 times each power of ten between two bounds, such as 10, 20, 50, 100.
+		 */
+		private static long[] oneTwoFive(long smallest, long largest)
+		{
+			List<Long> bounds = new ArrayList<Long>();
+			for (long power = 1; power <= largest; power *= 10)
+			{
+				for (long multiple : new long[] { 1, 2, 5 })
+				{
+					long bound = power * multiple;
+					if (bound >= smallest && bound <= largest)
+					{
+						bounds.add(bound);
+					}
+				}
+			}
+
+			long[] array = new long[bounds.size()];
+			for (int i = 0; i < array.length; i++)
+			{
+				array[i] = bounds.get(i);
+			}
+
+			return array;
+		}
+	}
+
+	/**
+	 * A metric that has been registered, along with what it is called and what it means.
+	 */
+	private static final class Entry
+	{
+		private final String help;
+
+		/**
+		 * The Counter, Histogram or Gauge.
+		 */
+		private final Object metric;
+
+		private Entry(String help, Object metric)
+		{
+			this.help = help;
+			this.metric = metric;
+		}
+	}
+
+	/**
+	 * Every registered metric by name, sorted so that they are always read in the same order.
+	 */
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * Registers a Counter.
+	 *
+	 * @param name The name, which by convention ends with "_total"
+	 * @param help What the metric counts
+	 * @param counter The Counter
+	 */
+	public void register(String name, String help, Counter counter)
+	{
+		this.add(name, help, counter);
+	}
+
+	/**
+	 * Registers a Histogram.
+	 *
+	 * @param name The name, which by convention ends with the unit values are reported in
+	 * @param help What the metric records
+	 * @param histogram The Histogram
+	 */
+	public void register(String name, String help, Histogram histogram)
+	{
+		this.add(name, help, histogram);
+	}
+
+	/**
+	 * Registers a Gauge.
+	 *
+	 * @param name The name
+	 * @param help What the metric measures
+	 * @param gauge The Gauge
+	 */
+	public void register(String name, String help, Gauge gauge)
+	{
+		this.add(name, help, gauge);
+	}
+
+	/**
+	 * Registers every metric registered with another registry, in place of any already registered under the same name;
+	 * this points the metrics of something that has been replaced, such as a brain that has been reloaded, at its
+	 * replacement, and lets go of the one replaced.
+	 *
+	 * @param metrics The other registry
+	 */
+	public void registerAll(Metrics metrics)
+	{
+		this.entries.putAll(metrics.entries);
+	}
+
+	/**
+	 * Writes every registered metric as text in the format that Prometheus scrapes.
+	 *
+	 * @param out Where to write the metrics
+	 * @throws IOException If the metrics could not be written
+	 */
+	public void writeText(Appendable out) throws IOException
+	{
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet())
+		{
+			String name = entry.getKey();
+			Object metric = entry.getValue().metric;
+
+			out.append("# HELP ").append(name).append(' ').append(entry.getValue().help).append('\n');
+
+			if (metric instanceof Counter)
+			{
+				out.append("# TYPE ").append(name).append(" counter\n");
+				out.append(name).append(' ').append(String.valueOf(((Counter) metric).get())).append('\n');
+			}
+			else if (metric instanceof Histogram)
+			{
+				out.append("# TYPE ").append(name).append(" histogram\n");
+				((Histogram) metric).writeText(name, out);
+			}
+			else
+			{
+				out.append("# TYPE ").append(name).append(" gauge\n");
+				out.append(name).append(' ').append(formatValue(((Gauge) metric).getValue())).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server, under OBJECT_NAME, that has an attribute for every registered
+	 * metric; histograms have one for each of their amount of values, mean, median, 99th percentile and largest value.
+	 * Metrics registered afterwards show up too.
+	 *
+	 * @return The name the MBean was registered under
+	 * @throws JMException If the MBean could not be registered, such as if one already has been
+	 */
+	public ObjectName registerMBean() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+
+		server.registerMBean(new MetricsMBean(), name);
+		return name;
+	}
+
+	/**
+	 * Registers a metric, unless another has the same name.
+	 */
+	private void add(String name, String help, Object metric)
+	{
+		if (this.entries.putIfAbsent(name, new Entry(help, metric)) != null)
+		{
+			throw new IllegalArgumentException(String.format("A metric called '%s' has already been registered", name));
+		}
+	}
+
+	/**
+	 * Reads the value of every registered metric, as the MBean shows them.
+	 *
+	 * @return Each value, by attribute name
+	 */
+	private Map<String, Object> readAttributes()
+	{
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet())
+		{
+			String name = entry.getKey();
+			Object metric = entry.getValue().metric;
+
+			if (metric instanceof Counter)
+			{
+				attributes.put(name, ((Counter) metric).get());
+			}
+			else if (metric instanceof Histogram)
+			{
+				Histogram histogram = (Histogram) metric;
+				attributes.put(name + "_count", histogram.getCount());
+				attributes.put(name + "_mean", histogram.getMean());
+				attributes.put(name + "_p50", histogram.getPercentile(50));
+				attributes.put(name + "_p99", histogram.getPercentile(99));
+				attributes.put(name + "_max", histogram.getMax());
+			}
+			else
+			{
+				attributes.put(name, ((Gauge) metric).getValue());
+			}
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Formats a value as Prometheus expects, without a fraction if it is a whole number.
+	 */
+	private static String formatValue(double value)
+	{
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+		{
+			return String.valueOf((long) value);
+		}
+
+		return String.valueOf(value);
+	}
+
+	/**
+	 * Shows the registered metrics over JMX, as read-only attributes; the attributes are worked out afresh each time, as
+	 * metrics may be registered at any time.
+	 */
+	private final class MetricsMBean implements DynamicMBean
+	{
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Object value = Metrics.this.readAttributes().get(attribute);
+			if (value == null)
+			{
+				throw new AttributeNotFoundException(attribute);
+			}
+
+			return value;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException(String.format("'%s' cannot be set", attribute.getName()));
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			Map<String, Object> values = Metrics.this.readAttributes();
+
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes)
+			{
+				if (values.containsKey(attribute))
+				{
+					list.add(new Attribute(attribute, values.get(attribute)));
+				}
+			}
+
+			return list;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			// nothing can be set
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+		{
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> attribute : Metrics.this.readAttributes().entrySet())
+			{
+				attributes.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+						attribute.getKey(), true, false, false));
+			}
+
+			return new MBeanInfo(Metrics.class.getName(), "Chester's metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0],
+					new MBeanNotificationInfo[0]);
+		}
+	}
+}
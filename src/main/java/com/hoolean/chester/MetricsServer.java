@@ -0,0 +1,152 @@
+package com.hoolean.chester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves every registered metric as plain text over HTTP, at /metrics, in the format that Prometheus scrapes; it can
+ * just as well be read with curl.
+ *
+ * The server only listens on the loopback address, so the metrics can only be read from the machine Chester runs on
+ * (or through something that forwards to it, such as an SSH tunnel or a local Prometheus agent).
+ */
+public class MetricsServer implements Closeable
+{
+	/**
+	 * The path the metrics are served at.
+	 */
+	public static final String PATH = "/metrics";
+
+	/**
+	 * The content type of the text format, as Prometheus expects it.
+	 */
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * The metrics to serve.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * The server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * The thread that requests are handled on; scrapes are rare, so one is plenty.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Starts serving metrics on a port of the loopback address.
+	 *
+	 * @param metrics The metrics to serve
+	 * @param port The port to listen on, or 0 to pick any free port
+	 * @throws IOException If the server could not be started, such as if the port is in use
+	 */
+	public MetricsServer(Metrics metrics, int port) throws IOException
+	{
+		this.metrics = metrics;
+
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester metrics server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext(PATH, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				MetricsServer.this.serve(exchange);
+			}
+		});
+		this.server.start();
+	}
+
+	/**
+	 * Gets the address the server is listening on, which tells the port if any free port was picked.
+	 *
+	 * @return The address
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return this.server.getAddress();
+	}
+
+	/**
+	 * Stops the server, without waiting for scrapes in progress to finish.
+	 */
+	@Override
+	public void close()
+	{
+		this.server.stop(0);
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Answers a request with the text of every metric.
+	 *
+	 * @param exchange The request and its response
+	 */
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			// only the exact path is served, as the context also matches any path beginning with it
+			if (!exchange.getRequestURI().getPath().equals(PATH))
+			{
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD"))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			StringBuilder text = new StringBuilder();
+			this.metrics.writeText(text);
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+
+			if (exchange.getRequestMethod().equals("HEAD"))
+			{
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody())
+			{
+				out.write(body);
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,473 @@
+package com.hoolean.chester;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds every nick out of a set of them in a message, ignoring case, in a single pass over the message; an
+ * Aho-Corasick automaton.
+ *
+ * The nicks are folded into a trie, one state per distinct prefix, and each state is linked to the state of its longest
+ * proper suffix that is also a prefix of some nick, so that when the next character of a message does not continue the
+ * current prefix the search falls back to that suffix rather than starting again. Each character of a message is then
+ * looked at once however many nicks there are, where looking for each nick in turn looks at the message once per nick
+ * (and copies it, to lower its case, once per match).
+ *
+ * The transitions of the trie are kept in one open-addressed table, keyed by state and character, so that the
+ * automaton of a channel of thousands of users stays a handful of flat arrays.
+ *
+ * A NickMatcher is immutable once built, and so may be shared between threads; a channel's is dropped when a user joins,
+ * leaves or changes their nick, and only built again the next time the channel is replied to.
+ */
+final class NickMatcher
+{
+	/**
+	 * The state that every search starts from; the empty prefix.
+	 */
+	private static final int ROOT = 0;
+
+	/**
+	 * The nicks, as given, so that a NickMatcher can tell whether it is still up to date.
+	 */
+	private final Set<String> nicks;
+
+	/**
+	 * The amount of nicks given, repeats and all.
+	 */
+	private final int nickCount;
+
+	/**
+	 * The state of the longest proper suffix of each state that is also a state, indexed by state.
+	 */
+	private final int[] fallbacks;
+
+	/**
+	 * The length of the nick that each state completes, else 0, indexed by state.
+	 */
+	private final int[] matchLengths;
+
+	/**
+	 * The nearest state along the fallbacks of each state that completes a nick, else -1, indexed by state; so that
+	 * nicks ending inside a longer match (such as "ann" inside "joanne") are found without walking every fallback.
+	 */
+	private final int[] matchLinks;
+
+	/**
+	 * The state each transition leaves from, indexed by slot.
+	 */
+	private final int[] slotStates;
+
+	/**
+	 * The (folded) character each transition is taken on, indexed by slot.
+	 */
+	private final char[] slotCharacters;
+
+	/**
+	 * The state each transition leads to, else 0 for an empty slot (as no transition leads back to the root), indexed
+	 * by slot.
+	 */
+	private final int[] slotTargets;
+
+	/**
+	 * Builds an automaton matching some nicks.
+	 *
+	 * @param nicks The nicks; empty ones are ignored
+	 */
+	NickMatcher(Iterable<String> nicks)
+	{
+		this.nicks = new HashSet<String>();
+
+		int nickCount = 0;
+		int characterCount = 0;
+		for (String nick : nicks)
+		{
+			if (this.nicks.add(nick))
+			{
+				characterCount += nick.length();
+			}
+
+			nickCount++;
+		}
+
+		this.nickCount = nickCount;
+
+		// there is at most one state per character, plus the root; every state but the root is entered by exactly one
+		// transition, and the table is kept at most half full
+		int maxStates = characterCount + 1;
+		int slotCount = Integer.highestOneBit(Math.max(maxStates, 2) - 1) << 2;
+
+		this.slotStates = new int[slotCount];
+		this.slotCharacters = new char[slotCount];
+		this.slotTargets = new int[slotCount];
+
+		int[] parents = new int[maxStates];
+		char[] characters = new char[maxStates];
+		int[] depths = new int[maxStates];
+		int[] matchLengths = new int[maxStates];
+		int stateCount = 1;
+
+		// fold every nick into the trie
+		for (String nick : this.nicks)
+		{
+			int state = ROOT;
+
+			for (int i = 0; i < nick.length(); i++)
+			{
+				char character = fold(nick.charAt(i));
+				int next = this.getTransition(state, character);
+
+				if (next == ROOT)
+				{
+					next = stateCount++;
+					parents[next] = state;
+					characters[next] = character;
+					depths[next] = depths[state] + 1;
+					this.addTransition(state, character, next);
+				}
+
+				state = next;
+			}
+
+			matchLengths[state] = nick.length();
+		}
+
+		this.matchLengths = Arrays.copyOf(matchLengths, stateCount);
+		this.fallbacks = new int[stateCount];
+		this.matchLinks = new int[stateCount];
+		this.matchLinks[ROOT] = -1;
+
+		// each state's fallback is found from its parent's, which is shallower, so work through the states from the
+		// shallowest; a counting sort by depth puts them in that order
+		int maxDepth = 0;
+		for (int state = 0; state < stateCount; state++)
+		{
+			maxDepth = Math.max(maxDepth, depths[state]);
+		}
+
+		int[] depthStarts = new int[maxDepth + 2];
+		for (int state = 0; state < stateCount; state++)
+		{
+			depthStarts[depths[state] + 1]++;
+		}
+		for (int depth = 1; depth < depthStarts.length; depth++)
+		{
+			depthStarts[depth] += depthStarts[depth - 1];
+		}
+
+		int[] order = new int[stateCount];
+		for (int state = 0; state < stateCount; state++)
+		{
+			order[depthStarts[depths[state]]++] = state;
+		}
+
+		// the root comes first, and has no fallback of its own
+		for (int i = 1; i < stateCount; i++)
+		{
+			int state = order[i];
+			int parent = parents[state];
+
+			int fallback = parent == ROOT ? ROOT : this.step(this.fallbacks[parent], characters[state]);
+			this.fallbacks[state] = fallback;
+			this.matchLinks[state] = this.matchLengths[fallback] > 0 ? fallback : this.matchLinks[fallback];
+		}
+	}
+
+	/**
+	 * Whether or not this was built from exactly some nicks, such as a channel's users at the moment; if not, a new
+	 * NickMatcher should be built from them. The nicks are expected to be given without repeats, as a channel's are.
+	 *
+	 * @param nicks The nicks
+	 * @return True if the nicks are the same as those this was built from, else false
+	 */
+	boolean hasNicks(Iterable<String> nicks)
+	{
+		int count = 0;
+		for (String nick : nicks)
+		{
+			if (!this.nicks.contains(nick))
+			{
+				return false;
+			}
+
+			count++;
+		}
+
+		return count == this.nickCount;
+	}
+
+	/**
+	 * Whether or not this was built from a nick, such as that of a user who has just left.
+	 *
+	 * @param nick The nick
+	 * @return True if the nick is one of those this was built from, else false
+	 */
+	boolean hasNick(String nick)
+	{
+		return this.nicks.contains(nick);
+	}
+
+	/**
+	 * Gets the amount of nicks this was built from, repeats and all; if a channel's amount of users differs, it has
+	 * changed since.
+	 *
+	 * @return The amount of nicks
+	 */
+	int getNickCount()
+	{
+		return this.nickCount;
+	}
+
+	/**
+	 * Whether or not any of the nicks appears in a message, ignoring case.
+	 *
+	 * @param message The message
+	 * @return True if a nick appears in it, else false
+	 */
+	boolean isFoundIn(CharSequence message)
+	{
+		int state = ROOT;
+
+		for (int i = 0; i < message.length(); i++)
+		{
+			state = this.step(state, fold(message.charAt(i)));
+
+			if (this.matchLengths[state] > 0 || this.matchLinks[state] != -1)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes every instance of the nicks from a message, ignoring case. Where instances overlap, the one starting
+	 * first (and then the longest) is removed, and the message is searched again in case removing them brought a new
+	 * instance together.
+	 *
+	 * @param message The message that may contain the nicks
+	 * @return The message without the nicks, or the same String if there were none
+	 */
+	String remove(String message)
+	{
+		String removed = this.removeOnce(message);
+
+		while (removed != message)
+		{
+			message = removed;
+			removed = this.removeOnce(message);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Splits every instance of the nicks in a message with a character, after the first character of each instance,
+	 * ignoring case; so that, if the character is invisible, the nicks read the same without pinging their users.
+	 *
+	 * Nicks of a single character cannot be split, and are left alone.
+	 *
+	 * @param message The message
+	 * @param splitter The character to split with
+	 * @return The message with all nicks split, or the same String if there were none
+	 */
+	String split(String message, char splitter)
+	{
+		// every instance found gets split after its first character, overlapping instances and all, which may split a
+		// position more than once; so mark each position to split before, and build the message once at the end
+		boolean[] splits = null;
+		int splitCount = 0;
+		int state = ROOT;
+
+		for (int i = 0; i < message.length(); i++)
+		{
+			state = this.step(state, fold(message.charAt(i)));
+
+			for (int match = this.matchLengths[state] > 0 ? state : this.matchLinks[state]; match != -1; match = this.matchLinks[match])
+			{
+				int length = this.matchLengths[match];
+				if (length < 2)
+				{
+					continue;
+				}
+
+				if (splits == null)
+				{
+					splits = new boolean[message.length()];
+				}
+
+				int split = i - length + 2;
+				if (!splits[split])
+				{
+					splits[split] = true;
+					splitCount++;
+				}
+			}
+		}
+
+		if (splits == null)
+		{
+			return message;
+		}
+
+		StringBuilder builder = new StringBuilder(message.length() + splitCount);
+		for (int i = 0; i < message.length(); i++)
+		{
+			if (splits[i])
+			{
+				builder.append(splitter);
+			}
+
+			builder.append(message.charAt(i));
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Removes the instances of the nicks found in one pass over a message.
+	 *
+	 * @param message The message
+	 * @return The message without them, or the same String if there were none
+	 */
+	private String removeOnce(String message)
+	{
+		// the longest instance starting at each position; instances are found by where they end, so they cannot be
+		// removed as they are found
+		int[] longest = null;
+		int state = ROOT;
+
+		for (int i = 0; i < message.length(); i++)
+		{
+			state = this.step(state, fold(message.charAt(i)));
+
+			for (int match = this.matchLengths[state] > 0 ? state : this.matchLinks[state]; match != -1; match = this.matchLinks[match])
+			{
+				if (longest == null)
+				{
+					longest = new int[message.length()];
+				}
+
+				int length = this.matchLengths[match];
+				int start = i - length + 1;
+				longest[start] = Math.max(longest[start], length);
+			}
+		}
+
+		if (longest == null)
+		{
+			return message;
+		}
+
+		StringBuilder builder = new StringBuilder(message.length());
+		int end = 0;
+		for (int i = 0; i < message.length(); i++)
+		{
+			// skip any instance overlapping one already removed
+			if (i >= end && longest[i] > 0)
+			{
+				end = i + longest[i];
+			}
+
+			if (i >= end)
+			{
+				builder.append(message.charAt(i));
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Moves the automaton on by a character, falling back along shorter suffixes of the current state until one can
+	 * be continued by it, or back to the root if none can.
+	 *
+	 * @param state The current state
+	 * @param character The (folded) character
+	 * @return The next state
+	 */
+	private int step(int state, char character)
+	{
+		while (true)
+		{
+			int next = this.getTransition(state, character);
+
+			if (next != ROOT || state == ROOT)
+			{
+				return next;
+			}
+
+			state = this.fallbacks[state];
+		}
+	}
+
+	/**
+	 * Gets the state a state's transition on a character leads to.
+	 *
+	 * @param state The state
+	 * @param character The (folded) character
+	 * @return The next state, else the root if there is no such transition
+	 */
+	private int getTransition(int state, char character)
+	{
+		int mask = this.slotTargets.length - 1;
+
+		for (int slot = slotOf(state, character) & mask; ; slot = (slot + 1) & mask)
+		{
+			int target = this.slotTargets[slot];
+
+			if (target == ROOT || (this.slotStates[slot] == state && this.slotCharacters[slot] == character))
+			{
+				return target;
+			}
+		}
+	}
+
+	/**
+	 * Adds a transition to the table, which must not hold it already.
+	 *
+	 * @param state The state the transition leaves from
+	 * @param character The (folded) character it is taken on
+	 * @param target The state it leads to
+	 */
+	private void addTransition(int state, char character, int target)
+	{
+		int mask = this.slotTargets.length - 1;
+
+		int slot = slotOf(state, character) & mask;
+		while (this.slotTargets[slot] != ROOT)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		this.slotStates[slot] = state;
+		this.slotCharacters[slot] = character;
+		this.slotTargets[slot] = target;
+	}
+
+	/**
+	 * Hashes a transition.
+	 *
+	 * @param state The state the transition leaves from
+	 * @param character The (folded) character it is taken on
+	 * @return The hash code
+	 */
+	private static int slotOf(int state, char character)
+	{
+		return Hashing.finish(Hashing.mix(Hashing.mix(0, state), character), 2);
+	}
+
+	/**
+	 * Folds a character's case, the same way String.equalsIgnoreCase does, one character at a time; unlike lowering
+	 * the case of a whole String, this never changes its length, so positions in the folded message are the same as in
+	 * the original, and does not depend on the locale.
+	 *
+	 * @param character The character
+	 * @return The folded character
+	 */
+	private static char fold(char character)
+	{
+		return Character.toLowerCase(Character.toUpperCase(character));
+	}
+}
@@ -0,0 +1,708 @@
+package com.hoolean.chester;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Walks the Markov chain outwards from a middle TokenGroup to build a message, reusing the same buffers for every
+ * message it builds; once the buffers have grown to fit the longest message seen, building a message allocates nothing
+ * other than the final String.
+ *
+ * The tokens of the message are kept in one int Array with free space at both ends, so that tokens can be added before
+ * and after in constant time. As the context used to pick each new token is always the first or last Markov length
+ * tokens of the message, that same window of the Array is handed to the MarkovChain as the key to look up, rather than
+ * copying it into a new TokenGroup each step.
+ *
+ * When the last (or first) Markov length tokens of the message have not been learnt as a TokenGroup, or nothing has
+ * been seen after (or before) them, the walk backs off to the longest run of fewer of them that has been learnt as a
+ * lower order context, and draws the next token from that instead; so a sparse chain still yields whole messages, where
+ * it used to cut them short. Each step goes back to trying the full Markov length first.
+ *
+ * A walk on a large chain with many cycles can go on for a very long time before it happens upon a TokenGroup that
+ * ends (or starts) a message, so each walk is bounded by a greatest length and a deadline; if either is reached first,
+ * the message is simply cut short there. A walk also stops where the chain does, should it reach a run of tokens with
+ * nothing seen after (or before) it at any order.
+ *
+ * Instances are not thread-safe; each thread generating messages needs its own, which can walk the chains of any brain,
+ * whatever their order. Each walk is made over a published MarkovChain, so it is unaffected by anything learnt while it
+ * is underway; once the message has been scored and turned into a String, the instance should be released, so that it
+ * does not keep the chain reachable once its brain has been closed.
+ */
+final class ReplyGenerator
+{
+	/**
+	 * How a walk came to an end.
+	 */
+	enum Outcome
+	{
+		/**
+		 * TokenGroups that can end and start a message were reached, so the message is whole.
+		 */
+		COMPLETE,
+
+		/**
+		 * A run of tokens was reached that no token has been seen after (or before), even backing off to the lower
+		 * orders, so the message was cut short there.
+		 */
+		DEAD_END,
+
+		/**
+		 * The message reached the greatest length allowed before TokenGroups that can end and start it were reached.
+		 */
+		LENGTH_LIMIT,
+
+		/**
+		 * The deadline passed before TokenGroups that can end and start the message were reached.
+		 */
+		TIME_LIMIT
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The clock is only checked once every this many tokens, as reading it costs far more than a step of the walk; must
+	 * be a power of two.
+	 */
+	private static final int STEPS_PER_CLOCK_CHECK = 64;
+
+	/**
+	 * The Markov chain that the last walk was made over, or null if the instance has been released since.
+	 */
+	private MarkovChain chain;
+
+	/**
+	 * The lower order contexts of the chain that the last walk was made over, or null if it has none.
+	 */
+	private MarkovChain lowerOrders;
+
+	/**
+	 * The chain that the context found by the last call to findNextContext() or findPreviousContext() is in; either
+	 * the chain being walked or its lower orders.
+	 */
+	private MarkovChain contextChain;
+
+	/**
+	 * The id of the context found by the last call to findNextContext() or findPreviousContext().
+	 */
+	private int contextGroup;
+
+	/**
+	 * The key that lower order contexts are looked up by; as long as the order of the chain walked.
+	 */
+	private int[] contextKey;
+
+	/**
+	 * The amount of times the last walk backed off to a lower order context.
+	 */
+	private int backoffCount;
+
+	/**
+	 * The amount of tokens in each TokenGroup of the chain walked.
+	 */
+	private int order;
+
+	/**
+	 * The ids of the tokens of the message being built, which occupy [head, tail).
+	 */
+	private int[] tokens;
+
+	/**
+	 * The index of the first token of the message.
+	 */
+	private int head;
+
+	/**
+	 * The index after the last token of the message.
+	 */
+	private int tail;
+
+	/**
+	 * The builder the message's tokens are joined in.
+	 */
+	private final StringBuilder messageBuilder = new StringBuilder();
+
+	/**
+	 * Creates a ReplyGenerator, whose buffers grow to fit the chains it walks.
+	 */
+	public ReplyGenerator()
+	{
+		this.tokens = new int[INITIAL_CAPACITY];
+		this.contextKey = new int[0];
+	}
+
+	/**
+	 * Builds a message around a middle TokenGroup by walking forwards until a TokenGroup that can end a message is
+	 * reached, then backwards from the middle until one that can start a message is reached.
+	 *
+	 * @param chain The Markov chain to walk
+	 * @param middleTokenGroup The id of the TokenGroup at the centre of the message
+	 * @param random The source of randomness used to pick tokens
+	 * @param maxLength The greatest amount of tokens the message may have; the middle TokenGroup is always included,
+	 *                  however small this is
+	 * @param deadline The System.nanoTime() after which the walk should stop
+	 * @return How the walk came to an end; unless COMPLETE, the message was cut short
+	 */
+	public Outcome walk(MarkovChain chain, int middleTokenGroup, Random random, int maxLength, long deadline)
+	{
+		return this.walk(chain, chain, middleTokenGroup, random, maxLength, deadline);
+	}
+
+	/**
+	 * Builds a message around the tokens of a middle TokenGroup or lower order context, in the same way as
+	 * walk(MarkovChain, int, Random, int, long); a message can then be built around a token that has only been seen in
+	 * messages too short to make a TokenGroup.
+	 *
+	 * @param chain The Markov chain to walk
+	 * @param middleChain The chain the middle TokenGroup or context is in; either the chain to walk or its lower orders
+	 * @param middleTokenGroup The id of the TokenGroup or context at the centre of the message
+	 * @param random The source of randomness used to pick tokens
+	 * @param maxLength The greatest amount of tokens the message may have; the middle tokens are always included,
+	 *                  however small this is
+	 * @param deadline The System.nanoTime() after which the walk should stop
+	 * @return How the walk came to an end; unless COMPLETE, the message was cut short
+	 */
+	public Outcome walk(MarkovChain chain, MarkovChain middleChain, int middleTokenGroup, Random random, int maxLength,
+			long deadline)
+	{
+		this.chain = chain;
+		this.backoffCount = 0;
+
+		// the same instance walks the chains of every brain, which need not all be of the same order
+		this.order = chain.getOrder();
+		if (this.contextKey.length != this.order)
+		{
+			this.contextKey = new int[this.order];
+		}
+		while (this.tokens.length < this.order * 4)
+		{
+			this.tokens = new int[this.tokens.length * 2];
+		}
+
+		// a brain that learns no lower orders has none to back off to, so do not look for them at every step
+		MarkovChain lowerOrders = chain.getLowerOrders();
+		this.lowerOrders = lowerOrders == null || lowerOrders.getGroupCount() == 0 ? null : lowerOrders;
+
+		// put the middle tokens in the centre of the buffer, leaving room to grow in either direction
+		this.head = (this.tokens.length - this.order) / 2;
+		this.tail = this.head;
+
+		for (int i = 0; i < this.order; i++)
+		{
+			int token = middleChain.getToken(middleTokenGroup, i);
+
+			// leave out the padding of a lower order context
+			if (token >= 0)
+			{
+				this.tokens[this.tail++] = token;
+			}
+		}
+
+		// a lower order context is shorter than any TokenGroup, so has to be backed off from straight away
+		if (middleChain != chain)
+		{
+			middleTokenGroup = ContextTable.NO_GROUP;
+		}
+
+		// how the walk came to an end; the first limit reached in either direction, if any
+		Outcome outcome = Outcome.COMPLETE;
+		int steps = 0;
+
+		/*
+		This while-loop iterates through TokenGroups sourced from the previous TokenGroup iterated over
+		(or the middle TokenGroup if in its first iteration) until it comes across one that is a possible ending
+		TokenGroup. At this point, it stops.
+		 */
+		int iteratingTokenGroup = middleTokenGroup;
+		while (true)
+		{
+			// find what to draw the next token from, backing off to fewer of the last tokens if need be
+			if (!this.findNextContext(iteratingTokenGroup))
+			{
+				// the message still needs a start, so carry on walking backwards
+				outcome = Outcome.DEAD_END;
+				break;
+			}
+
+			if (this.contextChain.canEnd(this.contextGroup))
+				break;
+
+			Outcome limit = this.checkLimits(++steps, maxLength, deadline);
+			if (limit != null)
+			{
+				// the message still needs a start, so carry on walking backwards; either limit will soon stop that too
+				outcome = limit;
+				break;
+			}
+
+			// a random Token from those learnt from observed messages to come after the current TokenGroup (or the
+			// context backed off to), where the more often a Token has been seen there the more likely it is to be
+			// picked
+			int nextToken = this.contextChain.sampleNextToken(this.contextGroup, random);
+
+			// add this randomly selected Token to the tokens to be in the message so far (at the end)
+			if (this.tail == this.tokens.length)
+			{
+				this.grow();
+			}
+			this.tokens[this.tail++] = nextToken;
+
+			/*
+			The TokenGroup that will be used to find the next token is the final Markov length tokens of the message
+			so far, which is the final three tokens of the current TokenGroup with the new nextToken added at the end.
+
+			It can be visualised like so on this loop's first iteration (after this it continues, still with the last
+			elements of the message):
+
+				tokens:
+					0 1 2 3
+					|-----|		<-- tokens used to search for this nextToken
+
+				tokens after nextToken added:
+					0 1 2 3 4
+
+				tokens used to search for the next nextToken:
+					0 1 2 3 4
+					  |-----|	<-- tokens used to search for the next nextToken
+			 */
+			iteratingTokenGroup = this.findGroup(this.tail - this.order);
+		}
+
+		// initialise the token group being iterated over to the middleGroup once more to begin searching for preceding
+		// tokens; a message built around a lower order context may by now have grown long enough to have a TokenGroup
+		// of its first tokens
+		iteratingTokenGroup = middleTokenGroup != ContextTable.NO_GROUP ? middleTokenGroup : this.findGroup(this.head);
+
+		/*
+		This while-loop iterates through TokenGroups sourced from the previous TokenGroup iterated over
+		(or the middle TokenGroup if in its first iteration) until it comes across one that is a possible starting
+		TokenGroup. At this point, it stops.
+		 */
+		while (true)
+		{
+			// find what to draw the previous token from, backing off to fewer of the first tokens if need be
+			Outcome limit = null;
+			if (!this.findPreviousContext(iteratingTokenGroup))
+			{
+				limit = Outcome.DEAD_END;
+			}
+			else if (this.contextChain.canStart(this.contextGroup))
+			{
+				break;
+			}
+			else
+			{
+				limit = this.checkLimits(++steps, maxLength, deadline);
+			}
+
+			if (limit != null)
+			{
+				if (outcome == Outcome.COMPLETE)
+				{
+					outcome = limit;
+				}
+				break;
+			}
+
+			// a random Token from those learnt from observed messages to come before the current TokenGroup (or the
+			// context backed off to), where the more often a Token has been seen there the more likely it is to be
+			// picked
+			int previousToken = this.contextChain.samplePreviousToken(this.contextGroup, random);
+
+			// add this randomly selected Token to the tokens to be in the message so far (at the beginning)
+			if (this.head == 0)
+			{
+				this.grow();
+			}
+			this.tokens[--this.head] = previousToken;
+
+			/*
+			The TokenGroup that will be used to find the next token is the first Markov length tokens of the message
+			so far, which is the first three tokens of the current TokenGroup with the new previousToken added at the
+			beginning.
+
+			It can be visualised like so on this loop's first iteration (after this it continues, still with the first
+			elements of the message):
+
+				tokens:
+					  4 5 6 7 8 9 A B C (etc)
+					  |-----|		<-- tokens used to search for this previousToken
+
+				tokens after previousToken added:
+					3 4 5 6 7 8 9 A B C (etc)
+
+				tokens used to search for the next previousToken:
+					3 4 5 6 7 8
+					|-----|	<-- tokens used to search for the next previousToken
+			 */
+			iteratingTokenGroup = this.findGroup(this.head);
+		}
+
+		return outcome;
+	}
+
+	/**
+	 * Finds the TokenGroup of the Markov length tokens of the message from an index, if there are that many.
+	 *
+	 * @param start The index in the buffer of the first token of the TokenGroup
+	 * @return The id of the TokenGroup, else NO_GROUP if it has not been learnt or the message is too short
+	 */
+	private int findGroup(int start)
+	{
+		if (this.tail - this.head < this.order)
+		{
+			return ContextTable.NO_GROUP;
+		}
+
+		return this.chain.findGroup(this.tokens, start);
+	}
+
+	/**
+	 * Finds the context to draw the token after the message from; the TokenGroup of its last Markov length tokens if
+	 * that can carry on or end the message, else the longest lower order context of its last tokens that can. The
+	 * context found is left in contextChain and contextGroup.
+	 *
+	 * @param group The TokenGroup of the last Markov length tokens, or NO_GROUP if it is not in the chain
+	 * @return True if a context was found, else false if the walk has reached a dead end
+	 */
+	private boolean findNextContext(int group)
+	{
+		if (group != ContextTable.NO_GROUP && (this.chain.canEnd(group) || this.chain.getNextTotal(group) > 0))
+		{
+			this.contextChain = this.chain;
+			this.contextGroup = group;
+			return true;
+		}
+
+		if (this.lowerOrders == null)
+		{
+			return false;
+		}
+
+		for (int length = Math.min(this.order - 1, this.tail - this.head); length > 0; length--)
+		{
+			ContextTable.contextKey(this.tokens, this.tail - length, length, this.contextKey);
+			int context = this.lowerOrders.findGroup(this.contextKey, 0);
+
+			if (context != ContextTable.NO_GROUP
+					&& (this.lowerOrders.canEnd(context) || this.lowerOrders.getNextTotal(context) > 0))
+			{
+				this.contextChain = this.lowerOrders;
+				this.contextGroup = context;
+				this.backoffCount++;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Finds the context to draw the token before the message from; the TokenGroup of its first Markov length tokens if
+	 * that can carry back or start the message, else the longest lower order context of its first tokens that can. The
+	 * context found is left in contextChain and contextGroup.
+	 *
+	 * @param group The TokenGroup of the first Markov length tokens, or NO_GROUP if it is not in the chain
+	 * @return True if a context was found, else false if the walk has reached a dead end
+	 */
+	private boolean findPreviousContext(int group)
+	{
+		if (group != ContextTable.NO_GROUP && (this.chain.canStart(group) || this.chain.getPreviousTotal(group) > 0))
+		{
+			this.contextChain = this.chain;
+			this.contextGroup = group;
+			return true;
+		}
+
+		if (this.lowerOrders == null)
+		{
+			return false;
+		}
+
+		for (int length = Math.min(this.order - 1, this.tail - this.head); length > 0; length--)
+		{
+			ContextTable.contextKey(this.tokens, this.head, length, this.contextKey);
+			int context = this.lowerOrders.findGroup(this.contextKey, 0);
+
+			if (context != ContextTable.NO_GROUP
+					&& (this.lowerOrders.canStart(context) || this.lowerOrders.getPreviousTotal(context) > 0))
+			{
+				this.contextChain = this.lowerOrders;
+				this.contextGroup = context;
+				this.backoffCount++;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks whether the walk can go on for another step.
+	 *
+	 * @param steps The amount of steps taken so far, counting this one
+	 * @param maxLength The greatest amount of tokens the message may have
+	 * @param deadline The System.nanoTime() after which the walk should stop
+	 * @return Why the walk should stop, else null if it can go on
+	 */
+	private Outcome checkLimits(int steps, int maxLength, long deadline)
+	{
+		if (this.tail - this.head >= maxLength)
+		{
+			return Outcome.LENGTH_LIMIT;
+		}
+
+		// compare by subtracting, as nanoTime() may overflow
+		if ((steps & (STEPS_PER_CLOCK_CHECK - 1)) == 0 && System.nanoTime() - deadline > 0)
+		{
+			return Outcome.TIME_LIMIT;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the amount of times the last walk backed off to a lower order context, for want of a TokenGroup to go on
+	 * from.
+	 *
+	 * @return The amount of times
+	 */
+	public int getBackoffCount()
+	{
+		return this.backoffCount;
+	}
+
+	/**
+	 * Gets the amount of tokens in the message built by the last walk.
+	 *
+	 * @return The amount of tokens
+	 */
+	public int getLength()
+	{
+		return this.tail - this.head;
+	}
+
+	/**
+	 * Gets the id of a token in the message built by the last walk.
+	 *
+	 * @param index The index of the token in the message
+	 * @return The id of the token
+	 */
+	public int getToken(int index)
+	{
+		return this.tokens[this.head + index];
+	}
+
+	/**
+	 * Measures how surprising the message built by the last walk is with regards to a set of keywords, in the same way
+	 * as the original MegaHal; for each appearance of a keyword, the information of seeing it in its context, both
+	 * after the tokens before it and before the tokens after it, is summed. Where the TokenGroup either side has not
+	 * been learnt, or the keyword has never been seen next to it, the lower order contexts are backed off to, just as
+	 * the walk does. Long messages are penalised, so that they do not win simply by containing more keywords.
+	 *
+	 * @param keywords The ids of the keywords, sorted in ascending order
+	 * @return The surprise of the message in nats; higher is better, and 0 if no keyword appeared
+	 */
+	public double getSurprise(int[] keywords)
+	{
+		double surprise = 0;
+		int keywordCount = 0;
+
+		for (int i = this.head; i < this.tail; i++)
+		{
+			int token = this.tokens[i];
+
+			if (Arrays.binarySearch(keywords, token) < 0)
+				continue;
+
+			// if there are tokens before this one, measure it as a next token
+			double probability = this.getNextProbability(i, token);
+			if (probability > 0)
+			{
+				surprise -= Math.log(probability);
+				keywordCount++;
+			}
+
+			// if there are tokens after this one, measure it as a previous token
+			probability = this.getPreviousProbability(i, token);
+			if (probability > 0)
+			{
+				surprise -= Math.log(probability);
+				keywordCount++;
+			}
+		}
+
+		// the same penalties for length as the original MegaHal
+		if (keywordCount >= 8)
+		{
+			surprise /= Math.sqrt(keywordCount - 1);
+		}
+
+		if (keywordCount >= 16)
+		{
+			surprise /= keywordCount;
+		}
+
+		return surprise;
+	}
+
+	/**
+	 * Gets the probability of a token of the message built by the last walk coming after the tokens before it; from the
+	 * TokenGroup of the Markov length tokens before it if it has been seen after them, else from the longest lower order
+	 * context of fewer of them that it has been seen after.
+	 *
+	 * @param index The index of the token in the buffer
+	 * @param token The id of the token
+	 * @return The probability, else 0 if it has never been seen after any of them
+	 */
+	private double getNextProbability(int index, int token)
+	{
+		if (index - this.order >= this.head)
+		{
+			int group = this.chain.findGroup(this.tokens, index - this.order);
+			if (group != ContextTable.NO_GROUP)
+			{
+				double probability = this.chain.getNextProbability(group, token);
+				if (probability > 0)
+				{
+					return probability;
+				}
+			}
+		}
+
+		if (this.lowerOrders == null)
+		{
+			return 0;
+		}
+
+		for (int length = Math.min(this.order - 1, index - this.head); length > 0; length--)
+		{
+			ContextTable.contextKey(this.tokens, index - length, length, this.contextKey);
+			int context = this.lowerOrders.findGroup(this.contextKey, 0);
+			if (context != ContextTable.NO_GROUP)
+			{
+				double probability = this.lowerOrders.getNextProbability(context, token);
+				if (probability > 0)
+				{
+					return probability;
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Gets the probability of a token of the message built by the last walk coming before the tokens after it; the
+	 * mirror image of getNextProbability().
+	 *
+	 * @param index The index of the token in the buffer
+	 * @param token The id of the token
+	 * @return The probability, else 0 if it has never been seen before any of them
+	 */
+	private double getPreviousProbability(int index, int token)
+	{
+		if (index + 1 + this.order <= this.tail)
+		{
+			int group = this.chain.findGroup(this.tokens, index + 1);
+			if (group != ContextTable.NO_GROUP)
+			{
+				double probability = this.chain.getPreviousProbability(group, token);
+				if (probability > 0)
+				{
+					return probability;
+				}
+			}
+		}
+
+		if (this.lowerOrders == null)
+		{
+			return 0;
+		}
+
+		for (int length = Math.min(this.order - 1, this.tail - index - 1); length > 0; length--)
+		{
+			ContextTable.contextKey(this.tokens, index + 1, length, this.contextKey);
+			int context = this.lowerOrders.findGroup(this.contextKey, 0);
+			if (context != ContextTable.NO_GROUP)
+			{
+				double probability = this.lowerOrders.getPreviousProbability(context, token);
+				if (probability > 0)
+				{
+					return probability;
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Whether or not the message built by the last walk is made of exactly the same tokens as another message.
+	 *
+	 * @param message The ids of the tokens of the other message
+	 * @return True if the messages are the same, else False
+	 */
+	public boolean isSameAs(int[] message)
+	{
+		if (message.length != this.tail - this.head)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < message.length; i++)
+		{
+			if (message[i] != this.tokens[this.head + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Joins the tokens of the message built by the last walk into a String; this is the only point at which tokens are
+	 * turned back into Strings.
+	 *
+	 * @param tokenDictionary The dictionary the token ids of the chain walked came from
+	 * @return The message
+	 */
+	public String toMessage(TokenDictionary tokenDictionary)
+	{
+		this.messageBuilder.setLength(0);
+
+		for (int i = this.head; i < this.tail; i++)
+		{
+			tokenDictionary.appendToken(this.tokens[i], this.messageBuilder);
+		}
+
+		return this.messageBuilder.toString();
+	}
+
+	/**
+	 * Lets go of the chain the last walk was made over, so that the instance, which outlives any one brain, does not
+	 * keep it reachable; the message built can no longer be scored, but can still be compared and turned into a String.
+	 */
+	public void release()
+	{
+		this.chain = null;
+		this.lowerOrders = null;
+		this.contextChain = null;
+	}
+
+	/**
+	 * Doubles the size of the token buffer, moving the message to its centre so that there is room at both ends.
+	 */
+	private void grow()
+	{
+		int length = this.tail - this.head;
+		int[] tokens = new int[this.tokens.length * 2];
+		int head = (tokens.length - length) / 2;
+
+		System.arraycopy(this.tokens, this.head, tokens, head, length);
+
+		this.tokens = tokens;
+		this.head = head;
+		this.tail = head + length;
+	}
+}
@@ -0,0 +1,521 @@
+package com.hoolean.chester;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds and sends replies away from the thread that IRC events arrive on, on a fixed pool of threads, while limiting
+ * how often each channel is replied to.
+ *
+ * Each channel has a token bucket; a reply takes a token, and tokens come back at a steady rate up to a limit, so that a
+ * channel can be replied to a few times in quick succession but no faster than the rate for long. A mention that
+ * arrives while a channel has no tokens waits for one, and any further mentions of the channel in the meantime are
+ * coalesced with it, so that a flood of mentions is answered by one reply to all of them rather than a flood of
+ * replies. Mentions that have waited too long are dropped rather than answered late.
+ *
+ * At most one reply is being built or waited for per channel, and the pool has a fixed amount of threads, so a storm
+ * of mentions can neither hold up the IRC client nor take up more than those threads (and the ForkJoinPool replies
+ * are built on) at once. Channels that have nothing waiting and have earnt back every reply are forgotten now and then,
+ * so that mentions in many channels over a long time do not build up.
+ */
+public class ReplyScheduler implements Closeable
+{
+	/**
+	 * Builds a reply to a message and sends it.
+	 */
+	public interface Replier
+	{
+		/**
+		 * Builds a reply to a message and sends it.
+		 *
+		 * @param message The message to reply to, which may be several coalesced mentions
+		 */
+		void reply(String message);
+	}
+
+	/**
+	 * The default amount of threads that replies are built on.
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * The default amount of time it takes a channel to earn another reply, in milliseconds.
+	 */
+	public static final long DEFAULT_INTERVAL = 5 * 1000;
+
+	/**
+	 * The default amount of replies a channel can earn, and so be given in quick succession.
+	 */
+	public static final int DEFAULT_BURST = 3;
+
+	/**
+	 * The default amount of time a mention may wait to be replied to before it is dropped, in milliseconds.
+	 */
+	public static final long DEFAULT_STALE_AFTER = 30 * 1000;
+
+	/**
+	 * The most mentions coalesced into one reply; older mentions than these are dropped, so that a flood of mentions
+	 * neither takes up memory nor makes the reply slow to build.
+	 */
+	private static final int MAX_COALESCED = 8;
+
+	/**
+	 * How often channels that are idle are forgotten, in milliseconds.
+	 */
+	private static final long SWEEP_INTERVAL = 60 * 1000;
+
+	/**
+	 * A mention waiting to be replied to.
+	 */
+	private static final class Mention
+	{
+		private final String message;
+		private final Replier replier;
+
+		/**
+		 * The System.nanoTime() at which the mention arrived.
+		 */
+		private final long arrivalTime;
+
+		private Mention(String message, Replier replier, long arrivalTime)
+		{
+			this.message = message;
+			this.replier = replier;
+			this.arrivalTime = arrivalTime;
+		}
+	}
+
+	/**
+	 * The mentions waiting to be replied to in a channel, along with its token bucket; guarded by itself.
+	 */
+	private final class ChannelReplies implements Runnable
+	{
+		/**
+		 * The lower case name of the channel.
+		 */
+		private final String key;
+
+		private final ArrayDeque<Mention> mentions = new ArrayDeque<Mention>();
+
+		/**
+		 * The amount of replies the channel has earnt, which may include part of one.
+		 */
+		private double tokens = ReplyScheduler.this.burst;
+
+		/**
+		 * The System.nanoTime() at which tokens was last brought up to date.
+		 */
+		private long refillTime = System.nanoTime();
+
+		/**
+		 * Whether or not a reply is being built, or waited for, for the channel; if so, any mention that arrives in the
+		 * meantime is left for it to pick up.
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * Whether or not the channel has been forgotten; if so, a mention that finds it must start the channel afresh.
+		 */
+		private boolean removed = false;
+
+		private ChannelReplies(String key)
+		{
+			this.key = key;
+		}
+
+		@Override
+		public void run()
+		{
+			ReplyScheduler.this.reply(this);
+		}
+
+		/**
+		 * Brings the tokens up to date, and works out how long it will be until the channel has earnt a reply.
+		 *
+		 * @param now The System.nanoTime() at the moment
+		 * @return The amount of time until a token is available, in nanoseconds, else 0 if one is already
+		 */
+		private long refill(long now)
+		{
+			long interval = ReplyScheduler.this.interval;
+			int burst = ReplyScheduler.this.burst;
+
+			if (interval <= 0)
+			{
+				this.tokens = burst;
+			}
+			else
+			{
+				this.tokens = Math.min(burst, this.tokens + (double) (now - this.refillTime) / interval);
+			}
+			this.refillTime = now;
+
+			return this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) * interval);
+		}
+
+		/**
+		 * Whether or not the channel can be forgotten without it being noticed; that is, nothing is waiting, and it has
+		 * earnt back every reply, just as a channel started afresh would have.
+		 *
+		 * @param now The System.nanoTime() at the moment
+		 */
+		private boolean isIdle(long now)
+		{
+			if (this.scheduled || !this.mentions.isEmpty())
+				return false;
+
+			this.refill(now);
+			return this.tokens >= ReplyScheduler.this.burst;
+		}
+	}
+
+	/**
+	 * The amount of time it takes a channel to earn another reply, in nanoseconds.
+	 */
+	private volatile long interval;
+
+	/**
+	 * The amount of replies a channel can earn.
+	 */
+	private volatile int burst;
+
+	/**
+	 * The amount of time a mention may wait to be replied to before it is dropped, in nanoseconds; 0 if never.
+	 */
+	private volatile long staleAfter;
+
+	/**
+	 * The threads replies are built on, which also wait out the time until each channel has earnt its next reply.
+	 */
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * The mentions waiting in each channel, by the lower case name of the channel.
+	 */
+	private final ConcurrentMap<String, ChannelReplies> channels = new ConcurrentHashMap<String, ChannelReplies>();
+
+	// metrics about the mentions scheduled and what became of them
+	private final Metrics.Counter mentionCount = new Metrics.Counter();
+	private final Metrics.Counter coalescedCount = new Metrics.Counter();
+	private final Metrics.Counter staleCount = new Metrics.Counter();
+	private final Metrics.Counter overflowCount = new Metrics.Counter();
+	private final Metrics.Counter failureCount = new Metrics.Counter();
+	private final Metrics.Histogram waitTimes = Metrics.Histogram.nanoseconds();
+	private final AtomicInteger waitingCount = new AtomicInteger();
+
+	/**
+	 * Creates a ReplyScheduler with the default limits.
+	 */
+	public ReplyScheduler()
+	{
+		this(DEFAULT_THREADS, DEFAULT_INTERVAL, DEFAULT_BURST, DEFAULT_STALE_AFTER);
+	}
+
+	/**
+	 * Creates a ReplyScheduler.
+	 *
+	 * @param threads The amount of threads that replies are built on
+	 * @param interval The amount of time it takes a channel to earn another reply, in milliseconds; or 0 for channels
+	 *                 to be replied to as often as they are mentioned
+	 * @param burst The amount of replies a channel can earn, and so be given in quick succession
+	 * @param staleAfter The amount of time a mention may wait to be replied to before it is dropped, in milliseconds; or 0
+	 *                   for mentions never to be dropped
+	 * @throws IllegalArgumentException If there are no threads, the burst is less than 1, or the interval or stale
+	 *                                  time is negative
+	 */
+	public ReplyScheduler(int threads, long interval, int burst, long staleAfter)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("There must be at least 1 reply thread.");
+
+		this.setLimits(interval, burst, staleAfter);
+
+		final AtomicInteger replierCount = new AtomicInteger();
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Chester replier " + replierCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// forget idle channels now and then, on the same threads
+		this.executor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ReplyScheduler.this.removeIdleChannels();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Changes how often each channel may be replied to, and how long mentions may wait. Channels keep the replies they
+	 * have already earnt, up to the new burst, and a reply already waited for is not brought forward.
+	 *
+	 * @param interval The amount of time it takes a channel to earn another reply, in milliseconds; or 0 for channels
+	 *                 to be replied to as often as they are mentioned
+	 * @param burst The amount of replies a channel can earn, and so be given in quick succession
+	 * @param staleAfter The amount of time a mention may wait to be replied to before it is dropped, in milliseconds; or 0
+	 *                   for mentions never to be dropped
+	 * @throws IllegalArgumentException If the burst is less than 1, or the interval or stale time is negative
+	 */
+	public void setLimits(long interval, int burst, long staleAfter)
+	{
+		if (burst < 1 || interval < 0 || staleAfter < 0)
+			throw new IllegalArgumentException("The reply burst must be at least 1, and the interval and stale time must not be negative.");
+
+		this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.burst = burst;
+		this.staleAfter = TimeUnit.MILLISECONDS.toNanos(staleAfter);
+	}
+
+	/**
+	 * Schedules a reply to a mention in a channel, returning straight away. The reply is built as soon as the channel
+	 * has earnt one, along with any other mentions of the channel that arrive before then, unless it has become stale
+	 * by that point.
+	 *
+	 * @param channel The name of the channel
+	 * @param message The mention
+	 * @param replier Builds the reply and sends it to the channel; if mentions are coalesced, the replier of the last
+	 *                of them is used
+	 */
+	public void schedule(String channel, String message, Replier replier)
+	{
+		String key = channel.toLowerCase(Locale.ROOT);
+
+		this.mentionCount.increment();
+
+		while (!this.schedule(key, new Mention(message, replier, System.nanoTime())))
+		{
+			// the channel was forgotten before the mention could be added to it, so start it afresh
+		}
+	}
+
+	/**
+	 * Adds a mention to a channel's waiting mentions, scheduling a reply to them if none is on its way.
+	 *
+	 * @param key The lower case name of the channel
+	 * @param mention The mention
+	 * @return True if the mention was added, else False if the channel was forgotten in the meantime
+	 */
+	private boolean schedule(String key, Mention mention)
+	{
+		ChannelReplies replies = this.channels.get(key);
+		if (replies == null)
+		{
+			ChannelReplies created = new ChannelReplies(key);
+			replies = this.channels.putIfAbsent(key, created);
+			if (replies == null)
+			{
+				replies = created;
+			}
+		}
+
+		synchronized (replies)
+		{
+			if (replies.removed)
+				return false;
+
+			long now = System.nanoTime();
+
+			replies.mentions.addLast(mention);
+			this.waitingCount.incrementAndGet();
+
+			if (replies.mentions.size() > MAX_COALESCED)
+			{
+				replies.mentions.removeFirst();
+				this.waitingCount.decrementAndGet();
+				this.overflowCount.increment();
+			}
+
+			if (replies.scheduled)
+			{
+				// a reply is on its way already, which will pick this mention up too
+				this.coalescedCount.increment();
+				return true;
+			}
+
+			replies.scheduled = true;
+			this.scheduleReply(replies, replies.refill(now));
+			return true;
+		}
+	}
+
+	/**
+	 * Stops building replies, dropping any mentions still waiting; a reply that is being built is still sent.
+	 */
+	@Override
+	public void close()
+	{
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Registers the metrics of the scheduler.
+	 *
+	 * @param metrics The metrics to register with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_reply_mentions_total", "Mentions scheduled to be replied to.", this.mentionCount);
+		metrics.register("chester_reply_mentions_coalesced_total", "Mentions answered by a reply to an earlier mention.", this.coalescedCount);
+		metrics.register("chester_reply_mentions_stale_total", "Mentions dropped for waiting too long to be replied to.", this.staleCount);
+		metrics.register("chester_reply_mentions_overflow_total", "Mentions dropped for too many more of the channel arriving while they waited.", this.overflowCount);
+		metrics.register("chester_reply_channels", "Channels that have been mentioned lately.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return ReplyScheduler.this.channels.size();
+			}
+		});
+		metrics.register("chester_reply_failures_total", "Replies that could not be built or sent.", this.failureCount);
+		metrics.register("chester_reply_wait_seconds", "Time the mentions replied to waited for their reply to be started.", this.waitTimes);
+		metrics.register("chester_reply_mentions_waiting", "Mentions waiting to be replied to.", new Metrics.Gauge()
+		{
+			@Override
+			public double getValue()
+			{
+				return ReplyScheduler.this.waitingCount.get();
+			}
+		});
+	}
+
+	/**
+	 * Builds a reply to the mentions waiting in a channel, once it has earnt one; run on the executor.
+	 *
+	 * @param replies The channel's mentions
+	 */
+	private void reply(ChannelReplies replies)
+	{
+		StringBuilder message = new StringBuilder();
+		Replier replier = null;
+
+		synchronized (replies)
+		{
+			long now = System.nanoTime();
+
+			// drop the mentions that have waited too long; the rest are newer
+			long staleAfter = this.staleAfter;
+			while (staleAfter > 0 && !replies.mentions.isEmpty() && now - replies.mentions.peekFirst().arrivalTime > staleAfter)
+			{
+				replies.mentions.removeFirst();
+				this.waitingCount.decrementAndGet();
+				this.staleCount.increment();
+			}
+
+			if (replies.mentions.isEmpty())
+			{
+				replies.scheduled = false;
+				return;
+			}
+
+			// the delay may have been cut short, such as by the clock, so check the channel really has earnt a reply
+			long delay = replies.refill(now);
+			if (delay > 0)
+			{
+				this.scheduleReply(replies, delay);
+				return;
+			}
+			replies.tokens--;
+
+			// coalesce every mention into one message, so that the reply can be to any of them
+			for (Mention mention : replies.mentions)
+			{
+				if (message.length() > 0)
+				{
+					message.append(' ');
+				}
+				message.append(mention.message);
+
+				replier = mention.replier;
+				this.waitTimes.record(now - mention.arrivalTime);
+			}
+
+			this.waitingCount.addAndGet(-replies.mentions.size());
+			replies.mentions.clear();
+		}
+
+		try
+		{
+			replier.reply(message.toString());
+		}
+		catch (RuntimeException e)
+		{
+			this.failureCount.increment();
+			System.err.println("Could not reply to a message.");
+			e.printStackTrace();
+		}
+		finally
+		{
+			synchronized (replies)
+			{
+				// any mentions that arrived while the reply was being built were left for this to pick up
+				if (replies.mentions.isEmpty())
+				{
+					replies.scheduled = false;
+				}
+				else
+				{
+					this.scheduleReply(replies, replies.refill(System.nanoTime()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets each channel that is idle, so that the channels kept are only those mentioned lately; run on the executor,
+	 * and by tests.
+	 */
+	void removeIdleChannels()
+	{
+		long now = System.nanoTime();
+
+		for (ChannelReplies replies : this.channels.values())
+		{
+			synchronized (replies)
+			{
+				if (replies.isIdle(now))
+				{
+					// a mention that already found the channel sees that it was removed, and starts it afresh
+					replies.removed = true;
+					this.channels.remove(replies.key, replies);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Schedules a reply for a channel after a delay, unless the scheduler has been closed.
+	 *
+	 * @param replies The channel's mentions; guarded by the caller
+	 * @param delay The delay, in nanoseconds
+	 */
+	private void scheduleReply(ChannelReplies replies, long delay)
+	{
+		try
+		{
+			this.executor.schedule(replies, delay, TimeUnit.NANOSECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the scheduler has been closed, so no reply will come
+			this.waitingCount.addAndGet(-replies.mentions.size());
+			replies.mentions.clear();
+			replies.scheduled = false;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.hoolean.chester;
+
+import java.util.Arrays;
+
+/**
+ * Remembers roughly which messages have been seen lately, so that repeats of them (from bots, pastes and spam) can be
+ * kept from being learnt over and over; each repeat would cost as much to learn and store as the first time, teach
+ * nothing new, and make whatever it says seem more likely than it is.
+ *
+ * Messages are compared by a fingerprint that ignores case, spacing, punctuation and what numbers are in them, so that
+ * "Buy now!!! 50% off" and "buy now 75% off" count as the same message. The fingerprints are kept in a rotating Bloom
+ * filter: two filters, each taking up a fixed amount of memory however long the messages are, of which new messages go
+ * into the newer; once it is full, the older is cleared and takes its place. So a message is remembered until somewhere
+ * between one and two windows of new messages have been seen since, and none is remembered for good.
+ *
+ * Like any Bloom filter, it never forgets a message it should remember, but now and then mistakes a new message for
+ * one it has seen; it is sized for around 1 in 100 new messages to be mistaken this way while both filters are full.
+ * Messages without a single letter or digit, or too short to tell apart, are always let through.
+ */
+public class SeenFilter
+{
+	/**
+	 * The default least amount of characters a message's fingerprint must have to be filtered; shorter messages, such
+	 * as "lol" and "yes", are repeated by many people meaning them each time, and are always let through.
+	 */
+	public static final int DEFAULT_MIN_LENGTH = 12;
+
+	/**
+	 * The bits each filter has for each message in the window; with HASHES of them set by each message, around 1 in
+	 * 100 new messages is mistaken for one seen before once both filters are full.
+	 */
+	private static final int BITS_PER_MESSAGE = 10;
+
+	/**
+	 * The amount of bits each message sets in a filter.
+	 */
+	private static final int HASHES = 7;
+
+	/**
+	 * The seed of the second hash of each fingerprint, which only needs to differ from the first's.
+	 */
+	private static final int SECOND_SEED = 0x9747B28C;
+
+	/**
+	 * The amount of messages each filter holds before they are rotated.
+	 */
+	private final int window;
+
+	/**
+	 * The least amount of characters a fingerprint must have to be filtered.
+	 */
+	private final int minLength;
+
+	/**
+	 * The amount of bits in each filter, which is a power of two.
+	 */
+	private final int bitCount;
+
+	/**
+	 * The filter that new messages are added to, and the filter it took the place of; guarded by this.
+	 */
+	private long[] current;
+	private long[] previous;
+
+	/**
+	 * The amount of messages added to the current filter; guarded by this.
+	 */
+	private int currentCount = 0;
+
+	// metrics about the messages let through and filtered out
+	private final Metrics.Counter seenCount = new Metrics.Counter();
+	private final Metrics.Counter rotationCount = new Metrics.Counter();
+
+	/**
+	 * Creates a SeenFilter that has seen nothing yet.
+	 *
+	 * @param window The amount of messages that are remembered at least; each filter takes up around 10 bits for each
+	 * @param minLength The least amount of characters a message's fingerprint must have for it to be filtered
+	 * @throws IllegalArgumentException If the window is less than 1
+	 */
+	public SeenFilter(int window, int minLength)
+	{
+		if (window < 1)
+			throw new IllegalArgumentException("The window of a seen filter must be at least 1 message.");
+
+		this.window = window;
+		this.minLength = minLength;
+
+		// a power of two, so that bits are picked with a mask rather than a division
+		long bits = Math.max(64, Long.highestOneBit((long) window * BITS_PER_MESSAGE - 1) << 1);
+		this.bitCount = (int) Math.min(bits, 1 << 30);
+
+		this.current = new long[this.bitCount / 64];
+		this.previous = new long[this.bitCount / 64];
+	}
+
+	/**
+	 * Checks whether a message has been seen lately, without adding it to the filter; a message that is checked and then
+	 * not learnt after all, such as for being dropped, is left to be learnt the next time it is seen. See addIfUnseen()
+	 * for adding it once it is learnt.
+	 *
+	 * @param message The message
+	 * @return True if the message has been seen lately and should be skipped, else False if it is new or is let
+	 *         through regardless
+	 */
+	public boolean isSeen(String message)
+	{
+		String fingerprint = this.getFilteredFingerprint(message);
+		if (fingerprint == null)
+			return false;
+
+		// two hashes, combined to give as many as are needed; this is as good as that many separate hashes
+		int first = hash(fingerprint, 0);
+		int second = hash(fingerprint, SECOND_SEED) | 1;
+		int mask = this.bitCount - 1;
+
+		synchronized (this)
+		{
+			if (this.contains(this.current, first, second, mask) || this.contains(this.previous, first, second, mask))
+			{
+				this.seenCount.increment();
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a message to the filter unless it has been seen lately, checking and adding it at once, so that of two
+	 * repeats added at the same moment only the first is let through. A message should only be added once it is sure to
+	 * be learnt, so that one that is dropped before then is not skipped the next time it is seen.
+	 *
+	 * @param message The message
+	 * @return True if the message has been added, or is let through regardless, and should be learnt; else False if it
+	 *         has been seen lately and should be skipped
+	 */
+	public boolean addIfUnseen(String message)
+	{
+		String fingerprint = this.getFilteredFingerprint(message);
+		if (fingerprint == null)
+			return true;
+
+		int first = hash(fingerprint, 0);
+		int second = hash(fingerprint, SECOND_SEED) | 1;
+		int mask = this.bitCount - 1;
+
+		synchronized (this)
+		{
+			if (this.contains(this.current, first, second, mask) || this.contains(this.previous, first, second, mask))
+			{
+				this.seenCount.increment();
+				return false;
+			}
+
+			if (this.currentCount == this.window)
+			{
+				// forget the older window of messages, and start a new one in its place
+				long[] cleared = this.previous;
+				Arrays.fill(cleared, 0);
+
+				this.previous = this.current;
+				this.current = cleared;
+				this.currentCount = 0;
+				this.rotationCount.increment();
+			}
+
+			for (int i = 0; i < HASHES; i++)
+			{
+				int bit = (first + i * second) & mask;
+				this.current[bit >>> 6] |= 1L << bit;
+			}
+			this.currentCount++;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Registers metrics about the messages filtered out.
+	 *
+	 * @param metrics The registry to register the metrics with
+	 */
+	public void registerMetrics(Metrics metrics)
+	{
+		metrics.register("chester_learn_seen_total", "Messages not learnt for being repeats of messages seen lately.", this.seenCount);
+		metrics.register("chester_learn_seen_rotations_total", "Times the seen filter forgot its older window of messages.", this.rotationCount);
+	}
+
+	/**
+	 * Gets the fingerprint of a message, if it is long enough to be filtered.
+	 *
+	 * @param message The message
+	 * @return The fingerprint, else null if the message is always let through
+	 */
+	private String getFilteredFingerprint(String message)
+	{
+		String fingerprint = fingerprint(message);
+		return fingerprint.length() < Math.max(1, this.minLength) ? null : fingerprint;
+	}
+
+	/**
+	 * Whether or not every bit a fingerprint sets is set in a filter.
+	 */
+	private boolean contains(long[] filter, int first, int second, int mask)
+	{
+		for (int i = 0; i < HASHES; i++)
+		{
+			int bit = (first + i * second) & mask;
+			if ((filter[bit >>> 6] & 1L << bit) == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the fingerprint of a message; its letters and digits in lower case, with each run of digits standing in for
+	 * any number, and everything else left out.
+	 *
+	 * @param message The message
+	 * @return The fingerprint, which is empty if the message has no letters or digits
+	 */
+	static String fingerprint(String message)
+	{
+		StringBuilder fingerprint = new StringBuilder(message.length());
+		boolean inNumber = false;
+
+		for (int i = 0; i < message.length(); i++)
+		{
+			char character = message.charAt(i);
+
+			if (Character.isDigit(character))
+			{
+				if (!inNumber)
+				{
+					fingerprint.append('0');
+				}
+				inNumber = true;
+			}
+			else
+			{
+				inNumber = false;
+
+				if (Character.isLetter(character))
+				{
+					fingerprint.append(Character.toLowerCase(character));
+				}
+			}
+		}
+
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Hashes a fingerprint, two characters at a time.
+	 */
+	private static int hash(String fingerprint, int seed)
+	{
+		int hash = seed;
+		int i = 0;
+		for (; i + 1 < fingerprint.length(); i += 2)
+		{
+			hash = Hashing.mix(hash, fingerprint.charAt(i) | fingerprint.charAt(i + 1) << 16);
+		}
+
+		if (i < fingerprint.length())
+		{
+			hash = Hashing.mix(hash, fingerprint.charAt(i));
+		}
+
+		return Hashing.finish(hash, fingerprint.length());
+	}
+}
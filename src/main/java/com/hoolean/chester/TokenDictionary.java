@@ -0,0 +1,360 @@
+package com.hoolean.chester;
+
+import java.util.Arrays;
+
+/**
+ * Assigns each distinct String token a dense int id, so that the token is stored and hashed only once no matter how
+ * many TokenGroups and transitions refer to it.
+ *
+ * Ids are handed out in order of first appearance, starting at 0, and are never reused; this allows them to be used
+ * directly as indexes into Arrays.
+ *
+ * Tokens are found through an open-addressed hash index over their characters, so a token can be looked up straight
+ * out of the message it is in, given where it starts and ends; a String is only created for a token the first time it
+ * is interned.
+ *
+ * The dictionary is safe to use from many threads at once. Looking up a token never blocks; only interning a token
+ * that has never been seen before takes a lock, which, once the vocabulary has settled, is rare.
+ *
+ * A dictionary may also be built on top of the tokens stored in a MappedChain, which keep their ids; only tokens new
+ * since the chain was written are held on the heap, and their ids follow on from the chain's.
+ */
+class TokenDictionary
+{
+	/**
+	 * The id returned when looking up a token that has never been interned.
+	 */
+	public static final int UNKNOWN_TOKEN = -1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The chain whose tokens this dictionary is built on top of, or null if there is none.
+	 */
+	private final MappedChain base;
+
+	/**
+	 * The amount of tokens stored in the base chain; the first id handed out by this dictionary itself.
+	 */
+	private final int baseSize;
+
+	/**
+	 * Holds each known token at the index of its id, less the base size, so that ids can be turned back into Strings.
+	 * Only the first size elements are in use; the Array is replaced with a larger copy when it fills up.
+	 */
+	private volatile String[] tokens = new String[INITIAL_CAPACITY];
+
+	/**
+	 * The hash of each known token, at the same index as the token; kept so that the index can be rebuilt without
+	 * hashing every token again, and so that probing can skip tokens whose hash differs without comparing their
+	 * characters.
+	 */
+	private volatile int[] hashes = new int[INITIAL_CAPACITY];
+
+	/**
+	 * The amount of known tokens, not counting those of the base chain.
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * An open-addressed hash index over the known tokens; each slot holds the index of a token in the tokens Array
+	 * plus one, so that 0 can mean empty. The length is always a power of two and is kept at least twice the amount of
+	 * tokens; when it grows, a new Array is filled and then published, so readers never see one half built.
+	 */
+	private volatile int[] index = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Creates an empty TokenDictionary.
+	 */
+	public TokenDictionary()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a TokenDictionary that knows every token stored in a MappedChain.
+	 *
+	 * @param base The chain, or null to start empty
+	 */
+	public TokenDictionary(MappedChain base)
+	{
+		this.base = base;
+		this.baseSize = base == null ? 0 : base.getTokenCount();
+	}
+
+	/**
+	 * Gets the id of a token, assigning it a new id if it has not been seen before.
+	 *
+	 * @param token The token to get the id of
+	 * @return The id of the token
+	 */
+	public int intern(String token)
+	{
+		return this.intern(token, 0, token.length());
+	}
+
+	/**
+	 * Gets the id of a token that is part of a longer sequence of characters, assigning it a new id if it has not been
+	 * seen before. A String is only created for the token if it is new.
+	 *
+	 * @param characters The characters the token is in
+	 * @param start The index of the first character of the token
+	 * @param end The index just after the last character of the token
+	 * @return The id of the token
+	 */
+	public int intern(CharSequence characters, int start, int end)
+	{
+		int hash = hash(characters, start, end);
+
+		int id = this.find(characters, start, end, hash);
+
+		// if the token is new
+		if (id == UNKNOWN_TOKEN)
+		{
+			id = this.add(characters, start, end, hash);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Gets the id of a token without assigning one if it is not known.
+	 *
+	 * @param token The token to get the id of
+	 * @return The id of the token, else UNKNOWN_TOKEN if it has never been interned
+	 */
+	public int getId(String token)
+	{
+		return this.getId(token, 0, token.length());
+	}
+
+	/**
+	 * Gets the id of a token that is part of a longer sequence of characters without assigning one if it is not known.
+	 * This never creates any Objects.
+	 *
+	 * @param characters The characters the token is in
+	 * @param start The index of the first character of the token
+	 * @param end The index just after the last character of the token
+	 * @return The id of the token, else UNKNOWN_TOKEN if it has never been interned
+	 */
+	public int getId(CharSequence characters, int start, int end)
+	{
+		return this.find(characters, start, end, hash(characters, start, end));
+	}
+
+	/**
+	 * Gets the token that an id was assigned to.
+	 *
+	 * @param id The id of the token
+	 * @return The token the id represents
+	 */
+	public String getToken(int id)
+	{
+		if (id < this.baseSize)
+		{
+			return this.base.getToken(id);
+		}
+
+		return this.tokens[id - this.baseSize];
+	}
+
+	/**
+	 * Appends the token that an id was assigned to to a StringBuilder; unlike getToken, this creates no String for
+	 * tokens of the base chain.
+	 *
+	 * @param id The id of the token
+	 * @param builder The StringBuilder
+	 */
+	public void appendToken(int id, StringBuilder builder)
+	{
+		if (id < this.baseSize)
+		{
+			this.base.appendToken(id, builder);
+		}
+		else
+		{
+			builder.append(this.tokens[id - this.baseSize]);
+		}
+	}
+
+	/**
+	 * Gets the amount of distinct tokens that have been interned, including those of the base chain.
+	 *
+	 * @return The amount of known tokens
+	 */
+	public int size()
+	{
+		return this.baseSize + this.size;
+	}
+
+	/**
+	 * Gets the average amount of slots of the index looked at to find a token that has been interned, not counting
+	 * those of the base chain; see ContextTable.getMeanProbeLength.
+	 *
+	 * @return The mean probe length, else 0 if no tokens have been interned
+	 */
+	public synchronized double getMeanProbeLength()
+	{
+		return Hashing.meanProbeLength(this.index, this.hashes);
+	}
+
+	/**
+	 * Finds the id of a known token, checking the base chain first.
+	 *
+	 * A token interned by another thread at the same moment may not be found; interning checks again under the lock,
+	 * so this can only make a lookup miss a token that was not known when it started.
+	 *
+	 * @return The id of the token, else UNKNOWN_TOKEN if it is not known
+	 */
+	private int find(CharSequence characters, int start, int end, int hash)
+	{
+		if (this.base != null)
+		{
+			int baseId = this.base.getTokenId(characters, start, end, hash);
+			if (baseId != UNKNOWN_TOKEN)
+			{
+				return baseId;
+			}
+		}
+
+		int[] index = this.index;
+		int mask = index.length - 1;
+
+		for (int slot = hash & mask; index[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int tokenIndex = index[slot] - 1;
+
+			// only trust the slot once the token it refers to is known to have been published, as the slot may have
+			// been filled after the size was last read
+			if (tokenIndex < this.size && this.hashes[tokenIndex] == hash
+					&& equals(this.tokens[tokenIndex], characters, start, end))
+			{
+				return this.baseSize + tokenIndex;
+			}
+		}
+
+		return UNKNOWN_TOKEN;
+	}
+
+	/**
+	 * Assigns a token the next unused id, unless another thread has just done so.
+	 *
+	 * @return The id of the token
+	 */
+	private synchronized int add(CharSequence characters, int start, int end, int hash)
+	{
+		// another thread may have added the token while this one waited for the lock
+		int existing = this.find(characters, start, end, hash);
+		if (existing != UNKNOWN_TOKEN)
+		{
+			return existing;
+		}
+
+		int tokenIndex = this.size;
+		if (tokenIndex == this.tokens.length)
+		{
+			this.tokens = Arrays.copyOf(this.tokens, tokenIndex * 2);
+			this.hashes = Arrays.copyOf(this.hashes, tokenIndex * 2);
+		}
+
+		// store the token before publishing its id, so that anyone who can see the id can also see the token
+		this.tokens[tokenIndex] = characters.subSequence(start, end).toString();
+		this.hashes[tokenIndex] = hash;
+		this.size = tokenIndex + 1;
+
+		// keep the index at most half full, so that probe sequences stay short
+		if (this.size * 2 > this.index.length)
+		{
+			this.rehash(this.index.length * 2);
+		}
+		else
+		{
+			insert(this.index, hash, tokenIndex + 1);
+		}
+
+		return this.baseSize + tokenIndex;
+	}
+
+	/**
+	 * Rebuilds the hash index with a new amount of slots, then publishes it.
+	 *
+	 * @param size The new amount of slots, which must be a power of two
+	 */
+	private void rehash(int size)
+	{
+		int[] index = new int[size];
+
+		int[] hashes = this.hashes;
+		for (int tokenIndex = 0; tokenIndex < this.size; tokenIndex++)
+		{
+			insert(index, hashes[tokenIndex], tokenIndex + 1);
+		}
+
+		this.index = index;
+	}
+
+	/**
+	 * Puts a value in the first empty slot of an open-addressed hash index from where its hash points.
+	 */
+	private static void insert(int[] index, int hash, int value)
+	{
+		int mask = index.length - 1;
+
+		int slot = hash & mask;
+		while (index[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		index[slot] = value;
+	}
+
+	/**
+	 * Whether or not a token is the same as a run of characters; runs of a different length are told apart without
+	 * comparing any characters.
+	 */
+	private static boolean equals(String token, CharSequence characters, int start, int end)
+	{
+		if (token.length() != end - start)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < token.length(); i++)
+		{
+			if (token.charAt(i) != characters.charAt(start + i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Generates a hash code from a run of characters; this is also how MappedChain hashes its tokens.
+	 *
+	 * @param characters The characters the run is in
+	 * @param start The index of the first character of the run
+	 * @param end The index just after the last character of the run
+	 * @return The hash code
+	 */
+	static int hash(CharSequence characters, int start, int end)
+	{
+		int hash = 0;
+
+		// fold the characters in two at a time, so that each pair makes up a whole int
+		int i = start;
+		for (; i + 1 < end; i += 2)
+		{
+			hash = Hashing.mix(hash, characters.charAt(i) | characters.charAt(i + 1) << 16);
+		}
+
+		if (i < end)
+		{
+			hash = Hashing.mix(hash, characters.charAt(i));
+		}
+
+		return Hashing.finish(hash, end - start);
+	}
+}
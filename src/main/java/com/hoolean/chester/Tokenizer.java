@@ -0,0 +1,189 @@
+package com.hoolean.chester;
+
+import java.util.Arrays;
+
+/**
+ * Breaks messages into tokens, where a token is a non-interrupted sequence of either alphanumeric or punctuation
+ * characters, continuing for as long as possible. For example, where a single-underline is used to show an
+ * alphanumeric token and a double-underline is used to show a punctuation one, observe how the below message would be
+ * split into tokens:
+ *
+ *     Chester is the best bot... ever!
+ *     -------=--=---=----=---====----=
+ *
+ * ...resulting in the tokens:
+ *
+ *     "Chester", " ", "is", " ", "the", " ", "best", " ", "bot", "... ", "ever", "!"
+ *
+ * The message is scanned in place and each token is resolved straight to its id in the TokenDictionary, so no
+ * characters are copied and no Strings are created, other than for tokens interned for the first time. Whether a
+ * character is alphanumeric is read from a table built once, rather than worked out for every character.
+ *
+ * A Tokenizer reuses its buffer of ids from one message to the next, so each thread should have its own.
+ */
+final class Tokenizer
+{
+	/**
+	 * One bit for every char, set if the char is alphanumeric; bit (c & 63) of element (c >>> 6) is that of char c.
+	 */
+	private static final long[] WORD_CHARACTERS = new long[(Character.MAX_VALUE + 1) >>> 6];
+
+	static
+	{
+		for (int character = Character.MIN_VALUE; character <= Character.MAX_VALUE; character++)
+		{
+			if (Character.isAlphabetic(character) || Character.isDigit(character))
+			{
+				WORD_CHARACTERS[character >>> 6] |= 1L << character;
+			}
+		}
+	}
+
+	/**
+	 * The dictionary that tokens are resolved against.
+	 */
+	private final TokenDictionary tokenDictionary;
+
+	/**
+	 * The ids of the tokens of the last message tokenized; only the first tokenCount are in use.
+	 */
+	private int[] tokens = new int[64];
+
+	/**
+	 * The amount of tokens in the last message tokenized.
+	 */
+	private int tokenCount = 0;
+
+	/**
+	 * Whether or not the first token of the last message tokenized is alphanumeric; tokens alternate between
+	 * alphanumeric and punctuation, so this says which every other token is too.
+	 */
+	private boolean firstIsWord = false;
+
+	/**
+	 * Creates a Tokenizer that resolves tokens against a dictionary.
+	 *
+	 * @param tokenDictionary The dictionary
+	 */
+	Tokenizer(TokenDictionary tokenDictionary)
+	{
+		this.tokenDictionary = tokenDictionary;
+	}
+
+	/**
+	 * Whether or not a character is alphanumeric, and so part of a word rather than punctuation or whitespace.
+	 *
+	 * @param character The character
+	 * @return True if the character is alphabetic or a digit, else False
+	 */
+	static boolean isWordCharacter(char character)
+	{
+		return (WORD_CHARACTERS[character >>> 6] & (1L << character)) != 0;
+	}
+
+	/**
+	 * Breaks part of a message into tokens, interning each; the ids can then be read with getToken.
+	 *
+	 * @param message The message
+	 * @param start The index of the first character to tokenize
+	 * @param end The index just after the last character to tokenize
+	 * @return The amount of tokens
+	 */
+	int intern(CharSequence message, int start, int end)
+	{
+		return this.tokenize(message, start, end, true);
+	}
+
+	/**
+	 * Breaks part of a message into tokens, looking up the id of each without interning it; the ids can then be read
+	 * with getToken, and are TokenDictionary.UNKNOWN_TOKEN for tokens that have never been interned.
+	 *
+	 * @param message The message
+	 * @param start The index of the first character to tokenize
+	 * @param end The index just after the last character to tokenize
+	 * @return The amount of tokens
+	 */
+	int lookUp(CharSequence message, int start, int end)
+	{
+		return this.tokenize(message, start, end, false);
+	}
+
+	/**
+	 * Gets the amount of tokens in the last message tokenized.
+	 *
+	 * @return The amount of tokens
+	 */
+	int getTokenCount()
+	{
+		return this.tokenCount;
+	}
+
+	/**
+	 * Gets the id of one of the tokens of the last message tokenized.
+	 *
+	 * @param index The index of the token in the message
+	 * @return The id of the token
+	 */
+	int getToken(int index)
+	{
+		return this.tokens[index];
+	}
+
+	/**
+	 * Copies the ids of the tokens of the last message tokenized into a new Array.
+	 *
+	 * @return The ids, in order
+	 */
+	int[] toArray()
+	{
+		return Arrays.copyOf(this.tokens, this.tokenCount);
+	}
+
+	/**
+	 * Whether or not one of the tokens of the last message tokenized is a word, rather than punctuation or whitespace.
+	 *
+	 * @param index The index of the token in the message
+	 * @return True if the token is alphanumeric, else False
+	 */
+	boolean isWord(int index)
+	{
+		return this.firstIsWord == ((index & 1) == 0);
+	}
+
+	/**
+	 * Scans part of a message for the boundaries between tokens, resolving each token as it is found.
+	 */
+	private int tokenize(CharSequence message, int start, int end, boolean intern)
+	{
+		this.tokenCount = 0;
+
+		if (start >= end)
+			return 0;
+
+		boolean word = isWordCharacter(message.charAt(start));
+		this.firstIsWord = word;
+
+		int tokenStart = start;
+		for (int i = start + 1; i <= end; i++)
+		{
+			// a token ends at the end of the message, or where characters change from alphanumeric to punctuation or
+			// vice-versa
+			if (i == end || isWordCharacter(message.charAt(i)) != word)
+			{
+				if (this.tokenCount == this.tokens.length)
+				{
+					this.tokens = Arrays.copyOf(this.tokens, this.tokens.length * 2);
+				}
+
+				this.tokens[this.tokenCount++] = intern
+						? this.tokenDictionary.intern(message, tokenStart, i)
+						: this.tokenDictionary.getId(message, tokenStart, i);
+
+				tokenStart = i;
+				word = !word;
+			}
+		}
+
+		return this.tokenCount;
+	}
+}
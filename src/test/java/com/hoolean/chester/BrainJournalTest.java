@@ -0,0 +1,306 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that a commit that fails part way through, whether writing or forcing, leaves the brain file holding exactly
+ * a prefix of what was appended, and that the next commit carries on from there without losing or repeating anything.
+ */
+public class BrainJournalTest
+{
+	/**
+	 * Long enough that nothing is committed but by the test.
+	 */
+	private static final long COMMIT_INTERVAL = 60 * 60 * 1000;
+
+	/**
+	 * Large enough that nothing is committed but by the test.
+	 */
+	private static final int COMMIT_SIZE = 1 << 20;
+
+	@Test
+	public void carriesOnAfterAWriteFailsPartWay() throws IOException
+	{
+		File file = File.createTempFile("chester", ".txt");
+		try
+		{
+			FailingChannel channel = FailingChannel.open(file);
+			BrainJournal journal = new BrainJournal(file, channel, COMMIT_SIZE, COMMIT_INTERVAL,
+					BrainJournal.SyncPolicy.NEVER, null);
+			try
+			{
+				journal.append("first message");
+				journal.append("the second is café");
+
+				// fail within the é, so that the file is cut short part way through a character
+				String appended = "first message\nthe second is café\n";
+				int written = appended.indexOf('é') + 1;
+				channel.failWritesAfter(written);
+				assertCommitFails(journal);
+
+				assertArrayEquals(Arrays.copyOf(utf8(appended), written), Files.readAllBytes(file.toPath()));
+				assertEquals(utf8(appended).length, journal.getPosition());
+
+				// fail straight away this time, having written nothing more
+				journal.append("third");
+				appended += "third\n";
+				channel.failWritesAfter(0);
+				assertCommitFails(journal);
+
+				assertArrayEquals(Arrays.copyOf(utf8(appended), written), Files.readAllBytes(file.toPath()));
+
+				journal.append("fourth");
+				appended += "fourth\n";
+				channel.failWritesAfter(-1);
+				journal.commit();
+
+				assertArrayEquals(utf8(appended), Files.readAllBytes(file.toPath()));
+				assertEquals(file.length(), journal.getPosition());
+			}
+			finally
+			{
+				journal.close();
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test
+	public void writesNothingAgainAfterAForceFails() throws IOException
+	{
+		File file = File.createTempFile("chester", ".txt");
+		try
+		{
+			FailingChannel channel = FailingChannel.open(file);
+			BrainJournal journal = new BrainJournal(file, channel, COMMIT_SIZE, COMMIT_INTERVAL,
+					BrainJournal.SyncPolicy.COMMIT, null);
+			try
+			{
+				journal.append("first message");
+				channel.failForces(true);
+				assertCommitFails(journal);
+
+				// everything was written before the force failed
+				String appended = "first message\n";
+				assertArrayEquals(utf8(appended), Files.readAllBytes(file.toPath()));
+
+				journal.append("second message");
+				appended += "second message\n";
+				channel.failForces(false);
+				journal.commit();
+
+				assertArrayEquals(utf8(appended), Files.readAllBytes(file.toPath()));
+				assertEquals(file.length(), journal.getPosition());
+			}
+			finally
+			{
+				journal.close();
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/**
+	 * Checks that committing a journal fails.
+	 */
+	private static void assertCommitFails(BrainJournal journal)
+	{
+		try
+		{
+			journal.commit();
+			fail("The commit did not fail.");
+		}
+		catch (IOException e)
+		{
+			// as it should
+		}
+	}
+
+	private static byte[] utf8(String text)
+	{
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A channel to a file, opened for appending, whose writes and forces fail when told to.
+	 */
+	private static final class FailingChannel extends FileChannel
+	{
+		private final FileChannel channel;
+
+		// the amount of bytes still to be written before writes fail, or -1 for them not to
+		private long writableBytes = -1;
+
+		private boolean failForces = false;
+
+		private FailingChannel(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		static FailingChannel open(File file) throws IOException
+		{
+			return new FailingChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+		}
+
+		/**
+		 * Has writes fail once an amount of bytes have been written, having written as many of them as they can.
+		 *
+		 * @param bytes The amount of bytes, or -1 for writes not to fail
+		 */
+		void failWritesAfter(long bytes)
+		{
+			this.writableBytes = bytes;
+		}
+
+		void failForces(boolean failForces)
+		{
+			this.failForces = failForces;
+		}
+
+		@Override
+		public int write(ByteBuffer source) throws IOException
+		{
+			if (this.writableBytes < 0)
+				return this.channel.write(source);
+
+			if (this.writableBytes == 0)
+				throw new IOException("The write failed, as it was told to.");
+
+			// write what may be written, leaving the source after it as a short write would
+			ByteBuffer allowed = source.duplicate();
+			allowed.limit(allowed.position() + (int) Math.min(allowed.remaining(), this.writableBytes));
+			int written = this.channel.write(allowed);
+
+			source.position(source.position() + written);
+			this.writableBytes -= written;
+			return written;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException
+		{
+			if (this.failForces)
+				throw new IOException("The force failed, as it was told to.");
+
+			this.channel.force(metaData);
+		}
+
+		@Override
+		public long size() throws IOException
+		{
+			return this.channel.size();
+		}
+
+		@Override
+		public long position() throws IOException
+		{
+			return this.channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException
+		{
+			this.channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException
+		{
+			this.channel.close();
+		}
+
+		// the journal only ever writes, forces and closes
+
+		@Override
+		public int read(ByteBuffer destination)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long read(ByteBuffer[] destinations, int offset, int length)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileChannel truncate(long size)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel source, long position, long count)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer destination, long position)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer source, long position)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared)
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
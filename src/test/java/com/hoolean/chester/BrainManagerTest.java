@@ -0,0 +1,65 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the names that channels' brains are given, which are the names of the directories they are kept in.
+ */
+public class BrainManagerTest
+{
+	@Test
+	public void leavesOutTheHash()
+	{
+		assertEquals("chester", BrainManager.getDefaultBrainName("#chester"));
+		assertEquals("chester", BrainManager.getDefaultBrainName("#Chester"));
+		assertEquals("chester-dev_2.0", BrainManager.getDefaultBrainName("#chester-dev_2.0"));
+	}
+
+	@Test
+	public void escapesEverythingElse()
+	{
+		assertEquals("%26chester", BrainManager.getDefaultBrainName("&chester"));
+		assertEquals("%2Bchester", BrainManager.getDefaultBrainName("+chester"));
+		assertEquals("a%20b", BrainManager.getDefaultBrainName("#a b"));
+		assertEquals("%2Fetc%2Fpasswd", BrainManager.getDefaultBrainName("#/etc/passwd"));
+		assertEquals("caf%C3%A9", BrainManager.getDefaultBrainName("#café"));
+	}
+
+	@Test
+	public void escapesNamesThatAreOnlyDots()
+	{
+		assertEquals("%2E%2E", BrainManager.getDefaultBrainName("#.."));
+		assertEquals("%2E", BrainManager.getDefaultBrainName("#."));
+		assertEquals("a..b", BrainManager.getDefaultBrainName("#a..b"));
+	}
+
+	@Test
+	public void escapesTheEmptyName()
+	{
+		assertEquals("%", BrainManager.getDefaultBrainName("#"));
+		assertEquals("%23", BrainManager.getDefaultBrainName("##"));
+	}
+
+	@Test
+	public void neverEscapesTwoChannelsAlike()
+	{
+		List<String> channels = Arrays.asList("#", "##", "###", "#%23", "#%", "#a_b", "#a b", "#a%20b", "&foo", "+foo",
+				"!foo", "#foo", "##foo", "#.", "#..", "#%2E", "#%2E%2E", "#café", "#caf%C3%A9");
+
+		Map<String, String> channelsByName = new HashMap<String, String>();
+		for (String channel : channels)
+		{
+			String name = BrainManager.getDefaultBrainName(channel);
+			String other = channelsByName.put(name, channel);
+
+			assertEquals(String.format("%s and %s were both given the brain %s.", other, channel, name), null, other);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that a brain snapshot gives back everything that was written to it, and that snapshots of other versions are
+ * either read as they were written or refused.
+ */
+public class BrainSnapshotTest
+{
+	/**
+	 * Where the format version is in a snapshot, in bytes; straight after the magic number.
+	 */
+	private static final int VERSION_POSITION = 4;
+
+	@Test
+	public void readsBackEverythingWritten() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(500, 1));
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			BrainSnapshot.write(file, Chains.ORDER, 1234, tokenDictionary, null, table);
+			BrainSnapshot snapshot = BrainSnapshot.read(file);
+
+			assertEquals(Chains.ORDER, snapshot.getMarkovLength());
+			assertEquals(1234, snapshot.getJournalOffset());
+			assertNull(snapshot.getFrozenChain());
+
+			MarkovChain chain = snapshot.getContextTable().getChain();
+			assertEquals(Chains.describe(table.getChain(), tokenDictionary),
+					Chains.describe(chain, snapshot.getTokenDictionary()));
+			assertEquals(Chains.describe(table.getChain().getLowerOrders(), tokenDictionary),
+					Chains.describe(chain.getLowerOrders(), snapshot.getTokenDictionary()));
+			Chains.assertFindsEveryGroup(chain);
+			Chains.assertFindsEveryGroup(chain.getLowerOrders());
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test
+	public void givesTokensTheIdsOfASharedDictionary() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(300, 2));
+
+		// a dictionary shared with another brain, which knows tokens of its own, and some of this one's in another order
+		TokenDictionary sharedDictionary = new TokenDictionary();
+		for (String token : Arrays.asList("zebra", " ", "fish", "unrelated", "the"))
+		{
+			sharedDictionary.intern(token);
+		}
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			BrainSnapshot.write(file, Chains.ORDER, 0, tokenDictionary, null, table);
+			BrainSnapshot snapshot = BrainSnapshot.read(file, sharedDictionary);
+
+			// the ids really have changed, or this would prove nothing
+			assertFalse(tokenDictionary.getId("fish") == sharedDictionary.getId("fish"));
+
+			MarkovChain chain = snapshot.getContextTable().getChain();
+			assertEquals(Chains.describe(table.getChain(), tokenDictionary), Chains.describe(chain, sharedDictionary));
+			assertEquals(Chains.describe(table.getChain().getLowerOrders(), tokenDictionary),
+					Chains.describe(chain.getLowerOrders(), sharedDictionary));
+			Chains.assertFindsEveryGroup(chain);
+
+			// the tokens of the other brain are still there, with the ids they had
+			assertEquals(0, sharedDictionary.getId("zebra"));
+			assertEquals(3, sharedDictionary.getId("unrelated"));
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test
+	public void readsVersionThreeSnapshots() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(300, 3));
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			BrainSnapshot.write(file, Chains.ORDER, 99, tokenDictionary, null, table);
+
+			// a version 3 snapshot is the same as one of version 4 that was not frozen, but without saying so
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			int frozenPosition = getFrozenPosition(file);
+			assertEquals(0, readInt(bytes, frozenPosition));
+
+			byte[] oldBytes = new byte[bytes.length - 4];
+			System.arraycopy(bytes, 0, oldBytes, 0, frozenPosition);
+			System.arraycopy(bytes, frozenPosition + 4, oldBytes, frozenPosition, bytes.length - frozenPosition - 4);
+			Files.write(file.toPath(), oldBytes);
+			Chains.writeInt(file, VERSION_POSITION, 3);
+
+			BrainSnapshot snapshot = BrainSnapshot.read(file);
+			assertEquals(99, snapshot.getJournalOffset());
+			assertNull(snapshot.getFrozenChain());
+
+			MarkovChain chain = snapshot.getContextTable().getChain();
+			assertEquals(Chains.describe(table.getChain(), tokenDictionary),
+					Chains.describe(chain, snapshot.getTokenDictionary()));
+			assertEquals(Chains.describe(table.getChain().getLowerOrders(), tokenDictionary),
+					Chains.describe(chain.getLowerOrders(), snapshot.getTokenDictionary()));
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesNewerVersions() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(50, 4));
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			BrainSnapshot.write(file, Chains.ORDER, 0, tokenDictionary, null, table);
+			Chains.writeInt(file, VERSION_POSITION, 5);
+
+			BrainSnapshot.read(file);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesTruncatedSnapshots() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(50, 5));
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			BrainSnapshot.write(file, Chains.ORDER, 0, tokenDictionary, null, table);
+
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+
+			BrainSnapshot.read(file);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/**
+	 * Finds where a snapshot says whether the brain was frozen; straight after its tokens.
+	 *
+	 * @param file The snapshot
+	 * @return The position, in bytes
+	 * @throws IOException If the snapshot could not be read
+	 */
+	private static int getFrozenPosition(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			// the magic number, version, Markov length, journal offset and bound on the token ids
+			int position = 4 + 4 + 4 + 8 + 4;
+			in.skipBytes(position);
+
+			int tokenCount = in.readInt();
+			position += 4;
+
+			for (int i = 0; i < tokenCount; i++)
+			{
+				in.readInt();
+				int length = in.readInt();
+				in.skipBytes(length);
+				position += 4 + 4 + length;
+			}
+
+			return position;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a big-endian int from some bytes.
+	 */
+	private static int readInt(byte[] bytes, int position)
+	{
+		return (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16 | (bytes[position + 2] & 0xFF) << 8
+				| bytes[position + 3] & 0xFF;
+	}
+}
@@ -0,0 +1,269 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Helpers for the tests of the ways a brain is stored: learning a made-up but reproducible corpus, and describing a
+ * chain by its tokens rather than by their ids, so that chains that give the same tokens different ids (as a snapshot
+ * read into a shared dictionary does) can still be compared.
+ */
+final class Chains
+{
+	/**
+	 * The Markov length of the brains tested.
+	 */
+	static final int ORDER = MegaHal.DEFAULT_MARKOV_LENGTH;
+
+	/**
+	 * The words the corpus is made up of; a few are far more common than the rest, as in real chat.
+	 */
+	private static final String[] WORDS = { "the", "bot", "is", "great", "today", "chester", "what", "do", "you",
+			"think", "about", "fish", "trout", "slap", "me", "with", "a", "large", "hello", "world", "how", "are",
+			"lol", "yes", "no", "maybe", "ünïcödé", "42" };
+
+	/**
+	 * The punctuation that ends each message, if any.
+	 */
+	private static final String[] ENDINGS = { "", "", "!", "?", "...", " :)" };
+
+	private Chains()
+	{
+	}
+
+	/**
+	 * Creates a brain that learns, and backs off to, every lower order, so that there are lower orders to compare.
+	 *
+	 * @param tokenDictionary The dictionary the brain interns its tokens into
+	 * @return The brain
+	 */
+	static MegaHal megaHal(TokenDictionary tokenDictionary)
+	{
+		MegaHal megaHal = new MegaHal(ORDER, tokenDictionary);
+		megaHal.setBackoffOrders(ORDER - 1);
+		return megaHal;
+	}
+
+	/**
+	 * Makes up a corpus of messages, some too short to make a single TokenGroup, and some repeated.
+	 *
+	 * @param size The amount of messages
+	 * @param seed The seed of the words picked, so that the same seed always gives the same corpus
+	 * @return The messages
+	 */
+	static List<String> corpus(int size, long seed)
+	{
+		Random random = new Random(seed);
+		List<String> messages = new ArrayList<String>(size);
+
+		for (int i = 0; i < size; i++)
+		{
+			// every so often, say something that has been said already
+			if (i > 0 && random.nextInt(10) == 0)
+			{
+				messages.add(messages.get(random.nextInt(i)));
+				continue;
+			}
+
+			StringBuilder message = new StringBuilder();
+			int length = 1 + random.nextInt(9);
+			for (int word = 0; word < length; word++)
+			{
+				if (word > 0)
+				{
+					message.append(random.nextInt(8) == 0 ? ", " : " ");
+				}
+
+				// square the draw, so that the first words are the most common
+				double draw = random.nextDouble();
+				message.append(WORDS[(int) (draw * draw * WORDS.length)]);
+			}
+			message.append(ENDINGS[random.nextInt(ENDINGS.length)]);
+
+			messages.add(message.toString());
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Learns messages into a new table, with the ids of the tokens given by a MegaHal's dictionary, and publishes it.
+	 *
+	 * @param megaHal The MegaHal whose dictionary to use
+	 * @param messages The messages
+	 * @return The table
+	 */
+	static ContextTable learn(MegaHal megaHal, List<String> messages)
+	{
+		ContextTable table = new ContextTable(megaHal.getMarkovLength());
+		for (String message : messages)
+		{
+			megaHal.addMessage(table, message);
+		}
+		table.publish();
+
+		return table;
+	}
+
+	/**
+	 * Describes everything in a chain by its tokens: every group, whether it can start or end a message and the tokens
+	 * seen before and after it with their counts, then the groups that each token is in. A group that a LayeredChain
+	 * has in both halves is described once, with the counts of both.
+	 *
+	 * @param chain The chain
+	 * @param tokenDictionary The dictionary that gives the chain's tokens their ids
+	 * @return The description, in which the same chain always has the same entries whatever ids its tokens have
+	 */
+	static Map<String, String> describe(MarkovChain chain, TokenDictionary tokenDictionary)
+	{
+		Map<String, String> description = new TreeMap<String, String>();
+		Map<String, TreeSet<String>> tokenGroups = new TreeMap<String, TreeSet<String>>();
+
+		for (int group = 0; group < chain.getGroupCount(); group++)
+		{
+			if (chain.isAlias(group))
+				continue;
+
+			String key = describeGroup(chain, group, tokenDictionary);
+			description.put("group " + key, String.format("start=%b end=%b next=%s previous=%s",
+					chain.canStart(group), chain.canEnd(group), describeNextTokens(chain, group, tokenDictionary),
+					describePreviousTokens(chain, group, tokenDictionary)));
+		}
+
+		for (int token = 0; token < tokenDictionary.size(); token++)
+		{
+			for (int index = 0; index < chain.getTokenGroupCount(token); index++)
+			{
+				String name = tokenDictionary.getToken(token);
+				if (!tokenGroups.containsKey(name))
+				{
+					tokenGroups.put(name, new TreeSet<String>());
+				}
+
+				tokenGroups.get(name).add(describeGroup(chain, chain.getTokenGroup(token, index), tokenDictionary));
+			}
+		}
+
+		for (Map.Entry<String, TreeSet<String>> entry : tokenGroups.entrySet())
+		{
+			description.put("token " + entry.getKey(), entry.getValue().toString());
+		}
+
+		return description;
+	}
+
+	/**
+	 * Checks that findGroup() finds every group of a chain by its tokens, as a group with the same tokens.
+	 *
+	 * @param chain The chain
+	 */
+	static void assertFindsEveryGroup(MarkovChain chain)
+	{
+		int[] tokens = new int[chain.getOrder()];
+
+		for (int group = 0; group < chain.getGroupCount(); group++)
+		{
+			for (int i = 0; i < tokens.length; i++)
+			{
+				tokens[i] = chain.getToken(group, i);
+			}
+
+			int found = chain.findGroup(tokens, 0);
+			assertTrue(String.format("Group %d was not found by its tokens.", group), found != ContextTable.NO_GROUP);
+
+			for (int i = 0; i < tokens.length; i++)
+			{
+				assertEquals(tokens[i], chain.getToken(found, i));
+			}
+		}
+	}
+
+	/**
+	 * Overwrites an int of a file, such as its format version.
+	 *
+	 * @param file The file
+	 * @param position Where the int starts in the file, in bytes
+	 * @param value The value to write, big-endian
+	 * @throws IOException If the file could not be written
+	 */
+	static void writeInt(File file, long position, int value) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try
+		{
+			randomAccessFile.seek(position);
+			randomAccessFile.writeInt(value);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Describes a group by its tokens, padding and all.
+	 */
+	private static String describeGroup(MarkovChain chain, int group, TokenDictionary tokenDictionary)
+	{
+		List<String> tokens = new ArrayList<String>(chain.getOrder());
+		for (int i = 0; i < chain.getOrder(); i++)
+		{
+			int token = chain.getToken(group, i);
+			tokens.add(token == ContextTable.PAD ? "<pad>" : "'" + tokenDictionary.getToken(token) + "'");
+		}
+
+		return tokens.toString();
+	}
+
+	/**
+	 * Describes the tokens seen after a group with their counts, summing those seen in both halves of a LayeredChain.
+	 */
+	private static String describeNextTokens(MarkovChain chain, int group, TokenDictionary tokenDictionary)
+	{
+		TokenCounter counter = new TokenCounter(tokenDictionary);
+		chain.visitNextTokens(group, counter);
+		return counter.counts.toString();
+	}
+
+	/**
+	 * Describes the tokens seen before a group with their counts, in the same way.
+	 */
+	private static String describePreviousTokens(MarkovChain chain, int group, TokenDictionary tokenDictionary)
+	{
+		TokenCounter counter = new TokenCounter(tokenDictionary);
+		chain.visitPreviousTokens(group, counter);
+		return counter.counts.toString();
+	}
+
+	/**
+	 * Adds up the counts of the tokens it visits, by the tokens themselves.
+	 */
+	private static final class TokenCounter implements MarkovChain.TokenCountVisitor
+	{
+		private final TokenDictionary tokenDictionary;
+		private final Map<String, Integer> counts = new TreeMap<String, Integer>();
+
+		TokenCounter(TokenDictionary tokenDictionary)
+		{
+			this.tokenDictionary = tokenDictionary;
+		}
+
+		@Override
+		public void visit(int token, int count)
+		{
+			String name = this.tokenDictionary.getToken(token);
+			Integer counted = this.counts.get(name);
+			this.counts.put(name, counted == null ? count : counted + count);
+		}
+	}
+}
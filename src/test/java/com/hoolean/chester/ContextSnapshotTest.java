@@ -0,0 +1,59 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that a snapshot of a table that carries on learning keeps drawing from, and counting, only the edges it has.
+ */
+public class ContextSnapshotTest
+{
+	@Test
+	public void ignoresEdgesAddedSince()
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = new MegaHal(Chains.ORDER, tokenDictionary);
+		ContextTable table = new ContextTable(Chains.ORDER);
+		megaHal.addMessage(table, "the bot is great");
+		megaHal.addMessage(table, "the bot lol yes");
+		table.publish();
+		ContextSnapshot older = table.getSnapshot();
+
+		// a third token is seen after "the bot "
+		megaHal.addMessage(table, "the bot was here");
+		table.publish();
+		ContextSnapshot newer = table.getSnapshot();
+
+		int[] tokens = { tokenDictionary.getId("the"), tokenDictionary.getId(" "), tokenDictionary.getId("bot"),
+				tokenDictionary.getId(" ") };
+		int group = older.findGroup(tokens, 0);
+		assertEquals(group, newer.findGroup(tokens, 0));
+
+		assertEquals(2, older.getNextTotal(group));
+		assertEquals(3, newer.getNextTotal(group));
+
+		// the snapshots take turns to draw; the older must not replace the sampler the newer cached with one of its own
+		Random random = new Random(1);
+		int was = tokenDictionary.getId("was");
+		boolean newerDrewIt = newer.sampleNextToken(group, random) == was;
+		AliasSampler sampler = newer.getCachedNextSampler(group);
+		assertNotNull(sampler);
+		for (int i = 0; i < 200; i++)
+		{
+			assertTrue(older.sampleNextToken(group, random) != was);
+			newerDrewIt |= newer.sampleNextToken(group, random) == was;
+			assertSame(sampler, newer.getCachedNextSampler(group));
+
+			assertEquals(2, older.getNextTotal(group));
+			assertEquals(3, newer.getNextTotal(group));
+		}
+
+		assertTrue(newerDrewIt);
+	}
+}
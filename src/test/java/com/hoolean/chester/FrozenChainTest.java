@@ -0,0 +1,158 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that freezing a chain keeps everything in it, and that a frozen brain keeps what it learns on top once it is
+ * frozen again into a snapshot and read back.
+ */
+public class FrozenChainTest
+{
+	@Test
+	public void keepsEverythingFrozen()
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		ContextTable table = Chains.learn(Chains.megaHal(tokenDictionary), Chains.corpus(500, 21));
+
+		FrozenChain chain = FrozenChain.freeze(table.getChain());
+
+		assertEquals(Chains.describe(table.getChain(), tokenDictionary), Chains.describe(chain, tokenDictionary));
+		assertEquals(Chains.describe(table.getChain().getLowerOrders(), tokenDictionary),
+				Chains.describe(chain.getLowerOrders(), tokenDictionary));
+		Chains.assertFindsEveryGroup(chain);
+		Chains.assertFindsEveryGroup(chain.getLowerOrders());
+	}
+
+	@Test
+	public void freezesInWhatIsLearntOnTop() throws IOException
+	{
+		List<String> first = Chains.corpus(300, 22);
+		List<String> second = Chains.corpus(300, 23);
+
+		// learn the first corpus, freeze it, then learn the second on top
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = Chains.megaHal(tokenDictionary);
+		megaHal.addMessages(first);
+		megaHal.freeze();
+		megaHal.addMessages(second);
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			// writing the snapshot freezes the second corpus in along with the first
+			megaHal.writeSnapshot(file, 3);
+
+			TokenDictionary sharedDictionary = new TokenDictionary();
+			sharedDictionary.intern("unrelated");
+			BrainSnapshot snapshot = BrainSnapshot.read(file, sharedDictionary);
+			assertEquals(3, snapshot.getJournalOffset());
+
+			MegaHal readMegaHal = new MegaHal(snapshot);
+			assertTrue(readMegaHal.isFrozen());
+			assertEquals(0, snapshot.getContextTable().getGroupCount());
+
+			// the same as having learnt both corpora into a single table
+			List<String> both = new ArrayList<String>(first);
+			both.addAll(second);
+			TokenDictionary expectedDictionary = new TokenDictionary();
+			ContextTable expected = Chains.learn(Chains.megaHal(expectedDictionary), both);
+
+			FrozenChain chain = readMegaHal.getFrozenChain();
+			assertEquals(Chains.describe(expected.getChain(), expectedDictionary),
+					Chains.describe(chain, sharedDictionary));
+			assertEquals(Chains.describe(expected.getChain().getLowerOrders(), expectedDictionary),
+					Chains.describe(chain.getLowerOrders(), sharedDictionary));
+			Chains.assertFindsEveryGroup(chain);
+			Chains.assertFindsEveryGroup(chain.getLowerOrders());
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test
+	public void keepsOnlyTheLowerOrdersBackedOffTo()
+	{
+		List<String> corpus = Chains.corpus(300, 24);
+
+		// by default, no lower orders are learnt at all
+		MegaHal megaHal = new MegaHal(Chains.ORDER, new TokenDictionary());
+		megaHal.addMessages(corpus);
+		megaHal.freeze();
+		assertEquals(0, megaHal.getFrozenChain().getLowerOrders().getGroupCount());
+
+		// backing off a single order learns the groups a token shorter, and none shorter than that
+		megaHal = new MegaHal(Chains.ORDER, new TokenDictionary());
+		megaHal.setBackoffOrders(1);
+		megaHal.addMessages(corpus);
+		megaHal.freeze();
+
+		MarkovChain lowerOrders = megaHal.getFrozenChain().getLowerOrders();
+		assertTrue(lowerOrders.getGroupCount() > 0);
+		for (int group = 0; group < lowerOrders.getGroupCount(); group++)
+		{
+			int length = 0;
+			for (int i = 0; i < lowerOrders.getOrder(); i++)
+			{
+				if (lowerOrders.getToken(group, i) != ContextTable.PAD)
+				{
+					length++;
+				}
+			}
+
+			assertEquals(Chains.ORDER - 1, length);
+		}
+	}
+
+	@Test
+	public void worksOutLowerOrdersOfSnapshotsWithoutThem() throws IOException
+	{
+		// lower orders can only be worked out of runs as long as the Markov length, so leave out the shortest messages
+		List<String> corpus = new ArrayList<String>();
+		for (String message : Chains.corpus(300, 25))
+		{
+			if (message.split(" ").length >= Chains.ORDER - 1)
+			{
+				corpus.add(message);
+			}
+		}
+
+		MegaHal megaHal = new MegaHal(Chains.ORDER, new TokenDictionary());
+		megaHal.addMessages(corpus);
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			megaHal.writeSnapshot(file, 0);
+			BrainSnapshot snapshot = BrainSnapshot.read(file);
+
+			MegaHal readMegaHal = new MegaHal(snapshot);
+			readMegaHal.setBackoffOrders(Chains.ORDER - 1);
+			readMegaHal.freeze();
+
+			// the same groups as having learnt them all along, though the transitions at the start and end of each
+			// message are only counted once for each group that can start or end one
+			TokenDictionary expectedDictionary = new TokenDictionary();
+			ContextTable expected = Chains.learn(Chains.megaHal(expectedDictionary), corpus);
+
+			FrozenChain chain = readMegaHal.getFrozenChain();
+			assertEquals(Chains.describe(expected.getChain().getLowerOrders(), expectedDictionary).keySet(),
+					Chains.describe(chain.getLowerOrders(), snapshot.getTokenDictionary()).keySet());
+			Chains.assertFindsEveryGroup(chain.getLowerOrders());
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+}
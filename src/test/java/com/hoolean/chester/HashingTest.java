@@ -0,0 +1,79 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that the hash spreads groups and tokens evenly over their indexes, so that finding one looks at barely more
+ * than a single slot; HashingBenchmark measures how long it takes, this only that it stays short.
+ */
+public class HashingTest
+{
+	/**
+	 * The longest mean probe length allowed; an index that is at most half full, with keys spread evenly, looks at
+	 * 1.5 slots on average.
+	 */
+	private static final double MAX_MEAN_PROBE_LENGTH = 2.0;
+
+	@Test
+	public void measuresProbeLengths()
+	{
+		// values 0 and 1 both hash to slot 1 of 4, so the second is found in slot 2, a slot further along
+		int[] index = { 0, 1, 2, 0 };
+		int[] hashes = { 1, 5 };
+
+		assertEquals(1.5, Hashing.meanProbeLength(index, hashes), 0);
+		assertEquals(0, Hashing.meanProbeLength(new int[4], hashes), 0);
+	}
+
+	@Test
+	public void spreadsGroupsEvenly()
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		ContextTable table = Chains.learn(new MegaHal(Chains.ORDER, tokenDictionary), Chains.corpus(5000, 31));
+
+		assertShort(table.getMeanProbeLength());
+	}
+
+	@Test
+	public void spreadsTokensEvenly()
+	{
+		// tokens that differ by a single character, as numbered nicks and counting do, are the hardest to spread
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		for (int i = 0; i < 100000; i++)
+		{
+			tokenDictionary.intern("token" + i);
+		}
+
+		assertShort(tokenDictionary.getMeanProbeLength());
+	}
+
+	@Test
+	public void spreadsSimilarGroupsEvenly()
+	{
+		// groups that differ only in their last token, which ids next to each other, are the hardest to spread
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = new MegaHal(Chains.ORDER, tokenDictionary);
+		ContextTable table = new ContextTable(Chains.ORDER);
+		for (int i = 0; i < 20000; i++)
+		{
+			megaHal.addMessage(table, "counting up to " + i);
+		}
+		table.publish();
+
+		assertShort(table.getMeanProbeLength());
+	}
+
+	/**
+	 * Checks that a mean probe length is that of an index with something in it, and no longer than it should be.
+	 */
+	private static void assertShort(double meanProbeLength)
+	{
+		assertTrue(String.format("The mean probe length of %.3f is less than 1.", meanProbeLength),
+				meanProbeLength >= 1);
+		assertTrue(String.format("The mean probe length of %.3f is too long.", meanProbeLength),
+				meanProbeLength < MAX_MEAN_PROBE_LENGTH);
+	}
+}
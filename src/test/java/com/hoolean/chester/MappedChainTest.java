@@ -0,0 +1,127 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that a mapped chain gives back everything that was written to it, including once more has been learnt on top
+ * of it, and that files of other versions, or that are not mapped chains at all, are refused.
+ */
+public class MappedChainTest
+{
+	/**
+	 * Where the format version is in a mapped chain, in bytes; straight after the magic number.
+	 */
+	private static final int VERSION_POSITION = 4;
+
+	@Test
+	public void readsBackEverythingWritten() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		MegaHal megaHal = new MegaHal(Chains.ORDER, tokenDictionary);
+		ContextTable table = Chains.learn(megaHal, Chains.corpus(500, 11));
+
+		File file = File.createTempFile("chester", ".mapped");
+		try
+		{
+			MappedChain.write(file, 42, tokenDictionary, table.getChain());
+			MappedChain chain = MappedChain.open(file);
+
+			assertEquals(Chains.ORDER, chain.getOrder());
+			assertEquals(42, chain.getJournalOffset());
+
+			// the chain has a dictionary of its own, in which the tokens have whatever ids it gave them
+			assertEquals(Chains.describe(table.getChain(), tokenDictionary),
+					Chains.describe(chain, new TokenDictionary(chain)));
+			Chains.assertFindsEveryGroup(chain);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test
+	public void keepsWhatIsLearntOnTop() throws IOException
+	{
+		List<String> first = Chains.corpus(300, 12);
+		List<String> second = Chains.corpus(300, 13);
+
+		File file = File.createTempFile("chester", ".mapped");
+		try
+		{
+			TokenDictionary tokenDictionary = new TokenDictionary();
+			ContextTable table = Chains.learn(new MegaHal(Chains.ORDER, tokenDictionary), first);
+			MappedChain.write(file, 0, tokenDictionary, table.getChain());
+
+			// learn the second corpus on top of the first, and write both out again in place of the first
+			MegaHal megaHal = new MegaHal(MappedChain.open(file));
+			megaHal.addMessages(second);
+			megaHal.writeMappedChain(file, 7);
+
+			// the same as having learnt both corpora into a single table
+			List<String> both = new ArrayList<String>(first);
+			both.addAll(second);
+			TokenDictionary expectedDictionary = new TokenDictionary();
+			ContextTable expected = Chains.learn(new MegaHal(Chains.ORDER, expectedDictionary), both);
+
+			MappedChain chain = MappedChain.open(file);
+			assertEquals(7, chain.getJournalOffset());
+			assertEquals(Chains.describe(expected.getChain(), expectedDictionary),
+					Chains.describe(chain, new TokenDictionary(chain)));
+			Chains.assertFindsEveryGroup(chain);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesOlderVersions() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		ContextTable table = Chains.learn(new MegaHal(Chains.ORDER, tokenDictionary), Chains.corpus(50, 14));
+
+		File file = File.createTempFile("chester", ".mapped");
+		try
+		{
+			// version 1 chains were indexed by another hash, so their groups could not be found in place
+			MappedChain.write(file, 0, tokenDictionary, table.getChain());
+			Chains.writeInt(file, VERSION_POSITION, 1);
+
+			MappedChain.open(file);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesOtherFiles() throws IOException
+	{
+		TokenDictionary tokenDictionary = new TokenDictionary();
+		ContextTable table = Chains.learn(new MegaHal(Chains.ORDER, tokenDictionary), Chains.corpus(50, 15));
+
+		File file = File.createTempFile("chester", ".snapshot");
+		try
+		{
+			// a snapshot is a brain too, but not one that can be mapped
+			BrainSnapshot.write(file, Chains.ORDER, 0, tokenDictionary, null, table);
+
+			MappedChain.open(file);
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+}
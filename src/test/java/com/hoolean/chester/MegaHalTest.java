@@ -0,0 +1,55 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Checks that a brain that has been let go of, as an idle brain is once it is closed, is not kept reachable by the
+ * threads it replied on, which outlive it.
+ */
+public class MegaHalTest
+{
+	@Test
+	public void letsGoOfTheChainOnceDropped() throws InterruptedException
+	{
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try
+		{
+			WeakReference<FrozenChain> chain = replyWithBrain(pool);
+
+			for (int i = 0; i < 50 && chain.get() != null; i++)
+			{
+				System.gc();
+				Thread.sleep(20);
+			}
+
+			// the pool's threads are still alive, and have replied with the brain
+			assertNull(chain.get());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Replies with a new brain on a pool and on the current thread, keeping nothing of it but a weak reference to its
+	 * chain; the brain is frozen, so that the chain every reply is built from is over one that can be got at.
+	 */
+	private static WeakReference<FrozenChain> replyWithBrain(ForkJoinPool pool)
+	{
+		MegaHal megaHal = new MegaHal(Chains.ORDER, new TokenDictionary());
+		megaHal.addMessages(Chains.corpus(200, 31));
+		megaHal.freeze();
+		megaHal.setReplyPool(pool, 2);
+
+		megaHal.getBestMessageFromMessage("the bot is great");
+		megaHal.getMessage();
+
+		return new WeakReference<FrozenChain>(megaHal.getFrozenChain());
+	}
+}
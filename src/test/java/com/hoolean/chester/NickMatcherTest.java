@@ -0,0 +1,126 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that the automaton finds, splits and removes nicks where looking for each nick in turn would; the splitter is
+ * a visible character here so that where each nick was split can be seen.
+ */
+public class NickMatcherTest
+{
+	private static NickMatcher matcher(String... nicks)
+	{
+		return new NickMatcher(Arrays.asList(nicks));
+	}
+
+	@Test
+	public void findsNicksIgnoringCase()
+	{
+		NickMatcher matcher = matcher("Chester");
+
+		assertTrue(matcher.isFoundIn("hey CHESTER, how are you?"));
+		assertTrue(matcher.isFoundIn("chester"));
+		assertFalse(matcher.isFoundIn("chestnut"));
+		assertFalse(matcher.isFoundIn(""));
+
+		// the case of the message is kept
+		assertEquals("hey C|HESTER", matcher.split("hey CHESTER", '|'));
+	}
+
+	@Test
+	public void fallsBackToSuffixes()
+	{
+		// "abc" cannot be continued by "e", so the search must fall back to "bc" to find "bce"
+		NickMatcher matcher = matcher("abcd", "bce");
+
+		assertTrue(matcher.isFoundIn("abce"));
+		assertEquals("ab|ce", matcher.split("abce", '|'));
+		assertEquals("a", matcher.remove("abce"));
+	}
+
+	@Test
+	public void findsNicksInsideLongerOnes()
+	{
+		NickMatcher matcher = matcher("ann", "joanne");
+
+		// both are split, as both would ping
+		assertEquals("j|oa|nne", matcher.split("joanne", '|'));
+		assertEquals("hi a|nn", matcher.split("hi ann", '|'));
+
+		// the instance starting first is removed, along with the one inside it
+		assertEquals("s", matcher.remove("joannes"));
+	}
+
+	@Test
+	public void removesTheLongestOfInstancesStartingTogether()
+	{
+		NickMatcher matcher = matcher("jo", "joanne");
+
+		assertEquals(" and ", matcher.remove("joanne and jo"));
+	}
+
+	@Test
+	public void searchesAgainAfterRemoving()
+	{
+		// removing the nick from the middle brings another instance of it together
+		NickMatcher matcher = matcher("chester");
+
+		assertEquals("", matcher.remove("chechesterster"));
+		assertEquals("", matcher.remove("CHEchesterSTER"));
+
+		// overlapping instances leave the end of the second behind, which needs removing again
+		assertEquals("", matcher("bob").remove("bbobob"));
+	}
+
+	@Test(timeout = 1000)
+	public void leavesNicksOfOneCharacterUnsplit()
+	{
+		NickMatcher matcher = matcher("a", "al");
+
+		assertSame("a cat", matcher("a").split("a cat", '|'));
+		assertEquals("a|l a", matcher.split("al a", '|'));
+
+		// they are still found and removed
+		assertTrue(matcher.isFoundIn("cat"));
+		assertEquals("bnn", matcher("a").remove("banana"));
+	}
+
+	@Test
+	public void returnsTheSameStringIfNoNickIsFound()
+	{
+		NickMatcher matcher = matcher("chester", "hoolean");
+		String message = "nobody here";
+
+		assertSame(message, matcher.split(message, '|'));
+		assertSame(message, matcher.remove(message));
+	}
+
+	@Test
+	public void ignoresEmptyNicks()
+	{
+		NickMatcher matcher = matcher("", "chester");
+
+		assertFalse(matcher.isFoundIn("hello"));
+		assertEquals("c|hester", matcher.split("chester", '|'));
+	}
+
+	@Test
+	public void tellsWhichNicksItWasBuiltFrom()
+	{
+		NickMatcher matcher = matcher("chester", "hoolean");
+
+		assertEquals(2, matcher.getNickCount());
+		assertTrue(matcher.hasNick("hoolean"));
+		assertFalse(matcher.hasNick("Hoolean"));
+		assertTrue(matcher.hasNicks(Arrays.asList("hoolean", "chester")));
+		assertFalse(matcher.hasNicks(Arrays.asList("chester")));
+		assertFalse(matcher.hasNicks(Arrays.asList("chester", "hoolean", "bob")));
+	}
+}
@@ -0,0 +1,214 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Checks how often channels are replied to, what replies are built from, and which mentions are dropped, using short
+ * intervals; the waits are long enough beside them that a slow machine should not upset the results.
+ */
+public class ReplySchedulerTest
+{
+	/**
+	 * The longest a reply that is due is waited for, in milliseconds.
+	 */
+	private static final long TIMEOUT = 5000;
+
+	/**
+	 * Keeps the messages it is asked to reply to, in order.
+	 */
+	private static final class Replies implements ReplyScheduler.Replier
+	{
+		private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+		@Override
+		public void reply(String message)
+		{
+			this.messages.add(message);
+		}
+
+		private String next(long timeout) throws InterruptedException
+		{
+			return this.messages.poll(timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static double read(Metrics metrics, String name) throws IOException
+	{
+		StringBuilder text = new StringBuilder();
+		metrics.writeText(text);
+
+		for (String line : text.toString().split("\n"))
+		{
+			if (line.startsWith(name + " "))
+			{
+				return Double.parseDouble(line.substring(name.length() + 1));
+			}
+		}
+
+		throw new AssertionError(String.format("There is no metric %s.", name));
+	}
+
+	@Test
+	public void repliesInBurstsThenAtTheInterval() throws Exception
+	{
+		Replies replies = new Replies();
+		ReplyScheduler scheduler = new ReplyScheduler(1, 1000, 2, 0);
+		try
+		{
+			// the channel starts with a burst of two replies...
+			scheduler.schedule("#chester", "one", replies);
+			assertEquals("one", replies.next(TIMEOUT));
+			scheduler.schedule("#chester", "two", replies);
+			assertEquals("two", replies.next(TIMEOUT));
+
+			// ...after which it has to earn the next
+			scheduler.schedule("#chester", "three", replies);
+			assertNull(replies.next(300));
+			assertEquals("three", replies.next(TIMEOUT));
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	@Test
+	public void limitsEachChannelApart() throws Exception
+	{
+		Replies replies = new Replies();
+		ReplyScheduler scheduler = new ReplyScheduler(1, 60 * 1000, 1, 0);
+		try
+		{
+			scheduler.schedule("#chester", "one", replies);
+			assertEquals("one", replies.next(TIMEOUT));
+
+			// another channel has its own bucket, and the case of the name does not make another
+			scheduler.schedule("#other", "two", replies);
+			assertEquals("two", replies.next(TIMEOUT));
+			scheduler.schedule("#CHESTER", "three", replies);
+			assertNull(replies.next(300));
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	@Test
+	public void coalescesMentionsWhileWaiting() throws Exception
+	{
+		Metrics metrics = new Metrics();
+		Replies replies = new Replies();
+		ReplyScheduler scheduler = new ReplyScheduler(1, 500, 1, 0);
+		scheduler.registerMetrics(metrics);
+		try
+		{
+			scheduler.schedule("#chester", "first", replies);
+			assertEquals("first", replies.next(TIMEOUT));
+
+			// let the first reply finish, so that the next mention waits for a reply of its own
+			Thread.sleep(50);
+
+			// only the newest mentions are kept, and answered by a single reply
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 10; i++)
+			{
+				scheduler.schedule("#chester", "m" + i, replies);
+
+				if (i >= 2)
+				{
+					expected.append(expected.length() > 0 ? " " : "").append("m").append(i);
+				}
+			}
+
+			assertEquals(expected.toString(), replies.next(TIMEOUT));
+			assertNull(replies.next(800));
+
+			assertEquals(11, read(metrics, "chester_reply_mentions_total"), 0);
+			assertEquals(9, read(metrics, "chester_reply_mentions_coalesced_total"), 0);
+			assertEquals(2, read(metrics, "chester_reply_mentions_overflow_total"), 0);
+			assertEquals(0, read(metrics, "chester_reply_mentions_stale_total"), 0);
+			assertEquals(0, read(metrics, "chester_reply_mentions_waiting"), 0);
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	@Test
+	public void dropsStaleMentions() throws Exception
+	{
+		Metrics metrics = new Metrics();
+		Replies replies = new Replies();
+		ReplyScheduler scheduler = new ReplyScheduler(1, 1000, 1, 400);
+		scheduler.registerMetrics(metrics);
+		try
+		{
+			scheduler.schedule("#chester", "first", replies);
+			assertEquals("first", replies.next(TIMEOUT));
+
+			// "old" waits the whole interval, "new" too little of it to go stale
+			scheduler.schedule("#chester", "old", replies);
+			Thread.sleep(800);
+			scheduler.schedule("#chester", "new", replies);
+
+			assertEquals("new", replies.next(TIMEOUT));
+			assertEquals(1, read(metrics, "chester_reply_mentions_stale_total"), 0);
+
+			// a mention that goes stale on its own gets no reply at all
+			scheduler.schedule("#chester", "alone", replies);
+			assertNull(replies.next(1500));
+			assertEquals(2, read(metrics, "chester_reply_mentions_stale_total"), 0);
+			assertEquals(0, read(metrics, "chester_reply_mentions_overflow_total"), 0);
+			assertEquals(0, read(metrics, "chester_reply_mentions_waiting"), 0);
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	@Test
+	public void forgetsIdleChannelsOnly() throws Exception
+	{
+		Metrics metrics = new Metrics();
+		Replies replies = new Replies();
+		ReplyScheduler scheduler = new ReplyScheduler(1, 100, 1, 0);
+		scheduler.registerMetrics(metrics);
+		try
+		{
+			scheduler.schedule("#chester", "one", replies);
+			assertEquals("one", replies.next(TIMEOUT));
+			Thread.sleep(50);
+
+			// a channel is not forgotten until it has earnt back every reply...
+			scheduler.setLimits(60 * 1000, 1, 0);
+			scheduler.removeIdleChannels();
+			assertEquals(1, read(metrics, "chester_reply_channels"), 0);
+
+			// ...after which it is
+			scheduler.setLimits(0, 1, 0);
+			scheduler.removeIdleChannels();
+			assertEquals(0, read(metrics, "chester_reply_channels"), 0);
+
+			// and a mention afterwards starts it afresh
+			scheduler.setLimits(60 * 1000, 1, 0);
+			scheduler.schedule("#chester", "two", replies);
+			assertEquals("two", replies.next(TIMEOUT));
+			assertEquals(1, read(metrics, "chester_reply_channels"), 0);
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.hoolean.chester;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks which messages count as the same, how long they are remembered for, and that the learning pipeline only
+ * remembers a message once it is learnt.
+ */
+public class SeenFilterTest
+{
+	/**
+	 * Long enough that no message in these tests is let through for being short.
+	 */
+	private static final int MIN_LENGTH = 4;
+
+	@Test
+	public void ignoresCasePunctuationAndNumbers()
+	{
+		assertEquals("buynow0off", SeenFilter.fingerprint("Buy now!!! 50% off"));
+		assertEquals("buynow0off", SeenFilter.fingerprint("buy now 75% off"));
+		assertEquals("buynow0off", SeenFilter.fingerprint("BUY  NOW -- 99 off"));
+		assertEquals("café", SeenFilter.fingerprint("Café"));
+
+		// each run of digits stands in for a number, so a number with a point in is two
+		assertEquals("buynow00off", SeenFilter.fingerprint("buy now 3.99 off"));
+		assertEquals("", SeenFilter.fingerprint("!!! ???"));
+
+		SeenFilter filter = new SeenFilter(100, MIN_LENGTH);
+		assertTrue(filter.addIfUnseen("Buy now!!! 50% off"));
+		assertFalse(filter.addIfUnseen("buy now 75% off"));
+
+		// words are not merged by what is between them, only left out
+		assertTrue(filter.addIfUnseen("buy now 75% of"));
+	}
+
+	@Test
+	public void onlyRemembersMessagesAdded()
+	{
+		SeenFilter filter = new SeenFilter(100, MIN_LENGTH);
+
+		assertFalse(filter.isSeen("hello there everyone"));
+		assertFalse(filter.isSeen("hello there everyone"));
+
+		assertTrue(filter.addIfUnseen("hello there everyone"));
+		assertTrue(filter.isSeen("Hello there, everyone!"));
+		assertFalse(filter.addIfUnseen("Hello there, everyone!"));
+	}
+
+	@Test
+	public void letsShortMessagesThrough()
+	{
+		SeenFilter filter = new SeenFilter(100, 12);
+
+		// "lolyes" is shorter than 12 characters however it is spaced
+		assertTrue(filter.addIfUnseen("lol yes"));
+		assertTrue(filter.addIfUnseen("lol yes"));
+		assertFalse(filter.isSeen("lol yes"));
+
+		// messages without letters or digits are let through even without a least length
+		filter = new SeenFilter(100, 0);
+		assertTrue(filter.addIfUnseen("!!! ???"));
+		assertTrue(filter.addIfUnseen("!!! ???"));
+
+		assertTrue(filter.addIfUnseen("twelve chars"));
+		assertFalse(filter.addIfUnseen("twelve chars"));
+	}
+
+	@Test
+	public void remembersBetweenOneAndTwoWindows() throws IOException
+	{
+		int window = 100;
+		Metrics metrics = new Metrics();
+		SeenFilter filter = new SeenFilter(window, MIN_LENGTH);
+		filter.registerMetrics(metrics);
+
+		// fill the first window, the message first and all
+		assertTrue(filter.addIfUnseen("the message remembered"));
+		addFillers(filter, 0, window - 1);
+
+		// it is remembered throughout the second window, once it has been rotated into the older filter...
+		addFillers(filter, window, window);
+		assertEquals(1, read(metrics, "chester_learn_seen_rotations_total"), 0);
+		assertTrue(filter.isSeen("the message remembered"));
+
+		// ...and forgotten once the filter it is in is cleared
+		addFillers(filter, 2 * window, 1);
+		assertEquals(2, read(metrics, "chester_learn_seen_rotations_total"), 0);
+		assertFalse(filter.isSeen("the message remembered"));
+
+		// while the messages of the second window are still remembered
+		assertTrue(filter.isSeen(filler(window)));
+		assertTrue(filter.isSeen(filler(2 * window - 1)));
+	}
+
+	@Test
+	public void remembersMessagesAsTheyAreLearnt() throws Exception
+	{
+		File file = File.createTempFile("chester", ".txt");
+		try
+		{
+			BrainJournal journal = new BrainJournal(file);
+			try
+			{
+				MegaHal megaHal = new MegaHal(Chains.ORDER, new TokenDictionary());
+				SeenFilter seenFilter = new SeenFilter(100, MIN_LENGTH);
+				LearningPipeline pipeline = new LearningPipeline(megaHal, journal, 2, LearningPipeline.DEFAULT_BATCH_SIZE,
+						LearningPipeline.OverflowPolicy.DROP_OLDEST);
+				pipeline.setSeenFilter(seenFilter);
+
+				// the learner is not started, so the first message is dropped to make room for the others
+				assertTrue(pipeline.submit("the dropped message"));
+				assertTrue(pipeline.submit("the first repeat"));
+				assertTrue(pipeline.submit("The first repeat!"));
+				assertEquals(1, pipeline.getDroppedCount());
+
+				// both repeats were queued, as neither had been learnt, but only the first of them is learnt
+				pipeline.start();
+				pipeline.close();
+				assertEquals(1, pipeline.getLearntCount());
+
+				// the dropped message was never learnt, so it is not skipped when it is said again...
+				pipeline = new LearningPipeline(megaHal, journal);
+				pipeline.setSeenFilter(seenFilter);
+				pipeline.start();
+
+				assertTrue(pipeline.submit("the dropped message"));
+
+				// ...while the repeat that was learnt is, straight away
+				assertFalse(pipeline.submit("the first repeat"));
+				pipeline.close();
+				assertEquals(1, pipeline.getLearntCount());
+
+				journal.commit();
+				assertEquals(Arrays.asList("the first repeat", "the dropped message"),
+						Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+			}
+			finally
+			{
+				journal.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	private static String filler(int i)
+	{
+		// numbers all look alike to the filter, so spell each filler out in letters
+		StringBuilder message = new StringBuilder("filler message ");
+		for (int digits = i; ; digits /= 10)
+		{
+			message.append((char) ('a' + digits % 10));
+			if (digits < 10)
+				break;
+		}
+
+		return message.toString();
+	}
+
+	private static void addFillers(SeenFilter filter, int first, int count)
+	{
+		for (int i = first; i < first + count; i++)
+		{
+			assertTrue(filter.addIfUnseen(filler(i)));
+		}
+	}
+
+	private static double read(Metrics metrics, String name) throws IOException
+	{
+		StringBuilder text = new StringBuilder();
+		metrics.writeText(text);
+
+		for (String line : text.toString().split("\n"))
+		{
+			if (line.startsWith(name + " "))
+			{
+				return Double.parseDouble(line.substring(name.length() + 1));
+			}
+		}
+
+		throw new AssertionError(String.format("There is no metric %s.", name));
+	}
+}